@@ -79,4 +79,16 @@ public abstract class AbstractNetworkReceiver extends BroadcastReceiver {
 
         return isConnected;
     }
+
+    /**
+     * @return true if the wifi is connected, false otherwise
+     */
+    public static boolean isWifiConnected(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeInfo = cm.getActiveNetworkInfo();
+
+        return activeInfo != null && activeInfo.isConnected()
+                && activeInfo.getType() == ConnectivityManager.TYPE_WIFI;
+    }
 }
\ No newline at end of file
@@ -9,6 +9,11 @@ import android.util.Log;
 public class NetworkReceiver extends AbstractNetworkReceiver {
     private static final String TAG = NetworkReceiver.class.getName();
 
+    // values published on ObservableNetwork
+    public static final String NETWORK_NONE = "none";
+    public static final String NETWORK_MOBILE = "mobile";
+    public static final String NETWORK_WIFI = "wifi";
+
     public NetworkReceiver() {
         // required to avoid
         // Unable to instantiate receiver:
@@ -18,15 +23,18 @@ public class NetworkReceiver extends AbstractNetworkReceiver {
     @Override
     public void noNetwork() {
         Log.d(TAG, "noNetwork");
+        ObservableNetwork.getInstance().updateValue(NETWORK_NONE);
     }
 
     @Override
     public void mobileNetwork() {
         Log.d(TAG, "mobileNetwork");
+        ObservableNetwork.getInstance().updateValue(NETWORK_MOBILE);
     }
 
     @Override
     public void WIFINetwork() {
         Log.d(TAG, "WIFINetwork");
+        ObservableNetwork.getInstance().updateValue(NETWORK_WIFI);
     }
 }
\ No newline at end of file
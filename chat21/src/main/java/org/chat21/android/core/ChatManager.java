@@ -14,18 +14,26 @@ import com.vanniktech.emoji.ios.IosEmojiProvider;
 import org.chat21.android.core.authentication.ChatAuthentication;
 import org.chat21.android.core.chat_groups.syncronizers.GroupsSyncronizer;
 import org.chat21.android.core.contacts.listeners.OnContactCreatedCallback;
+import org.chat21.android.core.contacts.synchronizers.ContactResolver;
 import org.chat21.android.core.contacts.synchronizers.ContactsSynchronizer;
 import org.chat21.android.core.conversations.ConversationsHandler;
 import org.chat21.android.core.exception.ChatRuntimeException;
+import org.chat21.android.core.messages.cache.MessageCache;
+import org.chat21.android.core.messages.cache.SQLiteMessageCache;
 import org.chat21.android.core.messages.handlers.ConversationMessagesHandler;
 import org.chat21.android.core.messages.listeners.SendMessageListener;
 import org.chat21.android.core.messages.models.Message;
+import org.chat21.android.core.messages.prefetch.MessagesPrefetcher;
 import org.chat21.android.core.presence.MyPresenceHandler;
 import org.chat21.android.core.presence.PresenceHandler;
+import org.chat21.android.core.presence.PresenceMultiplexer;
 import org.chat21.android.core.users.models.ChatUser;
 import org.chat21.android.core.users.models.IChatUser;
+import org.chat21.android.storage.UploadCache;
+import org.chat21.android.storage.UploadQueue;
 import org.chat21.android.utils.IOUtils;
 import org.chat21.android.utils.StringUtils;
+import org.chat21.android.utils.collections.LruRegistry;
 
 import java.io.IOException;
 import java.net.URL;
@@ -55,19 +63,52 @@ public class ChatManager {
     private String appId;
     private Context mContext;
 
-    private Map<String, ConversationMessagesHandler> conversationMessagesHandlerMap;
+    // bounded: the least recently used handlers not in use are disconnected and dropped.
+    // they are created again on the next request
+    private LruRegistry<ConversationMessagesHandler> conversationMessagesHandlerMap;
     private ConversationsHandler conversationsHandler;
     private MyPresenceHandler myPresenceHandler;
-    private Map<String, PresenceHandler> presenceHandlerMap;
+    private LruRegistry<PresenceHandler> presenceHandlerMap;
+    private PresenceMultiplexer presenceMultiplexer;
+    private UploadQueue uploadQueue;
+    private UploadCache uploadCache;
 
     private ContactsSynchronizer contactsSynchronizer;
+    private ContactResolver contactResolver;
     private GroupsSyncronizer groupsSyncronizer;
 
+    private MessageCache messageCache;
+    private MessagesPrefetcher messagesPrefetcher;
+
     // private constructor
     private ChatManager() {
-        conversationMessagesHandlerMap = new HashMap<String, ConversationMessagesHandler>();
+        conversationMessagesHandlerMap = new LruRegistry<>(Configuration.maxActiveHandlers,
+                new LruRegistry.EvictionPolicy<ConversationMessagesHandler>() {
+                    @Override
+                    public boolean isInUse(ConversationMessagesHandler handler) {
+                        return handler.hasConversationMessagesListeners();
+                    }
+
+                    @Override
+                    public void onEvicted(String recipientId, ConversationMessagesHandler handler) {
+                        handler.disconnect();
+                        Log.d(TAG, "conversationMessagesHandler for recipientId: " + recipientId + " evicted");
+                    }
+                });
 
-        presenceHandlerMap = new HashMap<>();
+        presenceHandlerMap = new LruRegistry<>(Configuration.maxActiveHandlers,
+                new LruRegistry.EvictionPolicy<PresenceHandler>() {
+                    @Override
+                    public boolean isInUse(PresenceHandler handler) {
+                        return handler.hasPresenceListeners();
+                    }
+
+                    @Override
+                    public void onEvicted(String recipientId, PresenceHandler handler) {
+                        handler.disconnect();
+                        Log.d(TAG, "presenceHandler for recipientId: " + recipientId + " evicted");
+                    }
+                });
     }
 
     public void setLoggedUser(IChatUser loggedUser) {
@@ -103,6 +144,24 @@ public class ChatManager {
         return mContext;
     }
 
+    /**
+     * @return the on-device messages storage, null if disabled
+     */
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    /**
+     * Replace the on-device messages storage.
+     * It affects only the ConversationMessagesHandler created after this call.
+     * The previous storage is not closed.
+     *
+     * @param messageCache the new storage. null to disable it
+     */
+    public void setMessageCache(MessageCache messageCache) {
+        this.messageCache = messageCache;
+    }
+
     public void createContactFor(String uid, String email,
                                  String firstName, String lastName,
                                  final OnContactCreatedCallback callback) {
@@ -276,16 +335,28 @@ public class ChatManager {
 
         chat.appId = configuration.appId;
 
+        chat.messageCache = new SQLiteMessageCache(context, currentUser.getId());
+
         // serialize the appId
         IOUtils.saveObjectToFile(context, _SERIALIZED_CHAT_CONFIGURATION_TENANT, configuration.appId);
 
         chat.initContactsSyncronizer();
 
         chat.initGroupsSyncronizer();
+
+        // resume the uploads interrupted by a previous process
+        chat.getUploadQueue();
     }
 
     public void initContactsSyncronizer() {
         this.contactsSynchronizer = getContactsSynchronizer();
+
+        // the contacts are resolved on demand by the ContactResolver
+        if (Configuration.lazyContactResolution) {
+            Log.i(TAG, "lazy contact resolution enabled: contacts synchronization skipped");
+            return;
+        }
+
         this.contactsSynchronizer.connect();
     }
 
@@ -301,7 +372,7 @@ public class ChatManager {
         myPresenceHandler = null; // destroy it
 
         // dispose all presenceHandlerMap
-        for (Map.Entry<String, PresenceHandler> entry : presenceHandlerMap.entrySet()) {
+        for (Map.Entry<String, PresenceHandler> entry : presenceHandlerMap.entries()) {
 
             String recipientId = entry.getKey();
             PresenceHandler presenceHandler = entry.getValue();
@@ -310,12 +381,34 @@ public class ChatManager {
             Log.d(TAG, "presenceHandler for recipientId: " + recipientId + " disposed");
         }
 
+        // dispose presenceMultiplexer
+        if (presenceMultiplexer != null) {
+            this.presenceMultiplexer.dispose();
+        }
+        this.presenceMultiplexer = null;
+
+        // dispose uploadQueue
+        if (uploadQueue != null) {
+            this.uploadQueue.cancelAll();
+        }
+        this.uploadQueue = null;
+
+        // forget the uploads of the logged user, even if the cache has not been used by this process
+        UploadCache.delete(mContext);
+        this.uploadCache = null;
+
+        // dispose messagesPrefetcher
+        if (messagesPrefetcher != null) {
+            this.messagesPrefetcher.stop();
+        }
+        this.messagesPrefetcher = null;
+
         //dispose conversationsHandler
         this.conversationsHandler.disconnect();
         this.conversationsHandler = null;
 
         //dispose all conversationMessagesHandlerMap
-        for (Map.Entry<String, ConversationMessagesHandler> entry : conversationMessagesHandlerMap.entrySet()) {
+        for (Map.Entry<String, ConversationMessagesHandler> entry : conversationMessagesHandlerMap.entries()) {
 
             String recipientId = entry.getKey();
             ConversationMessagesHandler conversationMessagesHandler = entry.getValue();
@@ -324,12 +417,26 @@ public class ChatManager {
             Log.d(TAG, "conversationMessagesHandler for recipientId: " + recipientId + " disposed");
         }
 
+        // clear all the cached messages of the logged user and release the storage
+        if (messageCache != null) {
+            messageCache.clear();
+            messageCache.close();
+        }
+        this.messageCache = null;
+
         // dispose contactsSynchonizer
         if (contactsSynchronizer != null) {
+            this.contactsSynchronizer.deleteSnapshot();
             this.contactsSynchronizer.disconnect();
         }
         this.contactsSynchronizer = null;
 
+        // dispose contactResolver
+        if (contactResolver != null) {
+            this.contactResolver.clear();
+        }
+        this.contactResolver = null;
+
         // dispose groupsSyncronizer
         if (groupsSyncronizer != null) {
             this.groupsSyncronizer.removeAllGroupsListeners();
@@ -407,13 +514,16 @@ public class ChatManager {
         String recipientId = recipient.getId();
         Log.d(TAG, "Getting ConversationMessagesHandler for recipientId " + recipientId);
 
-        if (conversationMessagesHandlerMap.containsKey(recipientId)) {
+        ConversationMessagesHandler existingHandler = conversationMessagesHandlerMap.get(recipientId);
+        if (existingHandler != null) {
             Log.i(TAG, "ConversationMessagesHandler for recipientId " + recipientId + " already inizialized. Return it");
 
-            return conversationMessagesHandlerMap.get(recipientId);
+            return existingHandler;
         } else {
             ConversationMessagesHandler messageHandler = new ConversationMessagesHandler(
-                    Configuration.firebaseUrl, this.getAppId(), this.getLoggedUser(), recipient);
+                    Configuration.firebaseUrl, this.getAppId(), this.getLoggedUser(), recipient,
+                    messageCache);
+            messageHandler.setPageSize(Configuration.messagesPageSize);
             conversationMessagesHandlerMap.put(recipientId, messageHandler);
 
             Log.i(TAG, "ConversationMessagesHandler for recipientId " + recipientId + " created.");
@@ -425,13 +535,14 @@ public class ChatManager {
     public PresenceHandler getPresenceHandler(String recipientId) {
         Log.d(TAG, "Getting PresenceHandler for recipientId " + recipientId);
 
-        if (presenceHandlerMap.containsKey(recipientId)) {
+        PresenceHandler existingHandler = presenceHandlerMap.get(recipientId);
+        if (existingHandler != null) {
             Log.i(TAG, "PresenceHandler for recipientId " + recipientId + " already inizialized. Return it");
 
-            return presenceHandlerMap.get(recipientId);
+            return existingHandler;
         } else {
             PresenceHandler presenceHandler =
-                    new PresenceHandler(Configuration.firebaseUrl, this.getAppId(), recipientId);
+                    new PresenceHandler(getPresenceMultiplexer(), recipientId);
 
             presenceHandlerMap.put(recipientId, presenceHandler);
 
@@ -441,6 +552,42 @@ public class ChatManager {
         }
     }
 
+    /**
+     * @return the queue of the attachments to upload and send
+     */
+    public UploadQueue getUploadQueue() {
+        if (this.uploadQueue != null) {
+            return this.uploadQueue;
+        } else {
+            this.uploadQueue = new UploadQueue(mContext, Configuration.maxConcurrentUploads);
+            return this.uploadQueue;
+        }
+    }
+
+    /**
+     * @return the download urls of the files already uploaded, by content
+     */
+    public UploadCache getUploadCache() {
+        if (this.uploadCache != null) {
+            return this.uploadCache;
+        } else {
+            this.uploadCache = new UploadCache(mContext);
+            return this.uploadCache;
+        }
+    }
+
+    /**
+     * @return the presence subscriptions shared by all the presence handlers and the lists
+     */
+    public PresenceMultiplexer getPresenceMultiplexer() {
+        if (this.presenceMultiplexer != null) {
+            return this.presenceMultiplexer;
+        } else {
+            this.presenceMultiplexer = new PresenceMultiplexer(Configuration.firebaseUrl, this.getAppId());
+            return this.presenceMultiplexer;
+        }
+    }
+
     public ConversationsHandler getConversationsHandler() {
         if (this.conversationsHandler != null) {
             return this.conversationsHandler;
@@ -451,12 +598,42 @@ public class ChatManager {
         }
     }
 
+    /**
+     * @return the prefetcher of the most recent conversations messages, null if the messages cache is disabled
+     */
+    public MessagesPrefetcher getMessagesPrefetcher() {
+        if (messageCache == null) {
+            return null;
+        }
+
+        if (this.messagesPrefetcher == null) {
+            this.messagesPrefetcher = new MessagesPrefetcher(mContext, Configuration.firebaseUrl,
+                    this.getAppId(), this.getLoggedUser().getId(), getConversationsHandler(),
+                    messageCache, Configuration.messagesPageSize);
+            this.messagesPrefetcher.setConversationsCount(Configuration.prefetchConversations);
+            this.messagesPrefetcher.setDownloadBudgetBytes(Configuration.prefetchDownloadBudgetBytes);
+        }
+        return this.messagesPrefetcher;
+    }
+
+    /**
+     * @return the resolver of the contacts by id. It works both with the contacts synchronization
+     * and with {@link Configuration#lazyContactResolution}
+     */
+    public ContactResolver getContactResolver() {
+        if (this.contactResolver == null) {
+            this.contactResolver = new ContactResolver(Configuration.firebaseUrl,
+                    this.getAppId(), getContactsSynchronizer());
+        }
+        return this.contactResolver;
+    }
+
     public ContactsSynchronizer getContactsSynchronizer() {
         if (this.contactsSynchronizer != null) {
             return this.contactsSynchronizer;
         } else {
             this.contactsSynchronizer =
-                    new ContactsSynchronizer(Configuration.firebaseUrl, this.getAppId());
+                    new ContactsSynchronizer(mContext, Configuration.firebaseUrl, this.getAppId());
             return this.contactsSynchronizer;
         }
     }
@@ -467,6 +644,9 @@ public class ChatManager {
         } else {
             this.groupsSyncronizer =
                     new GroupsSyncronizer(Configuration.firebaseUrl, this.getAppId(), loggedUser.getId());
+            // keep the cached members lists of the groups up to date
+            getContactsSynchronizer().upsertContactsListener(
+                    this.groupsSyncronizer.getMembersContactListener());
             return this.groupsSyncronizer;
         }
     }
@@ -550,9 +730,25 @@ public class ChatManager {
 
         private static final String TAG = Configuration.class.getName();
 
+        public static final int DEFAULT_MESSAGES_PAGE_SIZE = 50;
+        public static final int DEFAULT_MAX_ACTIVE_HANDLERS = 10;
+        public static final int DEFAULT_PREFETCH_CONVERSATIONS = MessagesPrefetcher.DEFAULT_CONVERSATIONS_COUNT;
+        public static final long DEFAULT_PREFETCH_DOWNLOAD_BUDGET_BYTES = MessagesPrefetcher.DEFAULT_DOWNLOAD_BUDGET_BYTES;
+        public static final long DEFAULT_PRESENCE_ONLINE_DEBOUNCE_MILLIS = 500;
+        public static final long DEFAULT_PRESENCE_OFFLINE_DEBOUNCE_MILLIS = 3000;
+        public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = UploadQueue.DEFAULT_MAX_CONCURRENT_UPLOADS;
+
         public static String appId;
         public static String firebaseUrl;
         public static String storageBucket;
+        public static int messagesPageSize = DEFAULT_MESSAGES_PAGE_SIZE;
+        public static int maxActiveHandlers = DEFAULT_MAX_ACTIVE_HANDLERS;
+        public static int prefetchConversations = DEFAULT_PREFETCH_CONVERSATIONS;
+        public static long prefetchDownloadBudgetBytes = DEFAULT_PREFETCH_DOWNLOAD_BUDGET_BYTES;
+        public static boolean lazyContactResolution = false;
+        public static long presenceOnlineDebounceMillis = DEFAULT_PRESENCE_ONLINE_DEBOUNCE_MILLIS;
+        public static long presenceOfflineDebounceMillis = DEFAULT_PRESENCE_OFFLINE_DEBOUNCE_MILLIS;
+        public static int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
 
         public Configuration(Builder builder) {
             Log.v(TAG, "Configuration constructor called");
@@ -560,6 +756,14 @@ public class ChatManager {
             this.appId = builder.mAppId;
             this.firebaseUrl = builder.mFirebaseUrl;
             this.storageBucket = builder.mStorageBucket;
+            this.messagesPageSize = builder.mMessagesPageSize;
+            this.maxActiveHandlers = builder.mMaxActiveHandlers;
+            this.prefetchConversations = builder.mPrefetchConversations;
+            this.prefetchDownloadBudgetBytes = builder.mPrefetchDownloadBudgetBytes;
+            this.lazyContactResolution = builder.mLazyContactResolution;
+            this.presenceOnlineDebounceMillis = builder.mPresenceOnlineDebounceMillis;
+            this.presenceOfflineDebounceMillis = builder.mPresenceOfflineDebounceMillis;
+            this.maxConcurrentUploads = builder.mMaxConcurrentUploads;
         }
 
         /**
@@ -571,6 +775,14 @@ public class ChatManager {
             private String mAppId;
             private String mFirebaseUrl;
             private String mStorageBucket;
+            private int mMessagesPageSize = DEFAULT_MESSAGES_PAGE_SIZE;
+            private int mMaxActiveHandlers = DEFAULT_MAX_ACTIVE_HANDLERS;
+            private int mPrefetchConversations = DEFAULT_PREFETCH_CONVERSATIONS;
+            private long mPrefetchDownloadBudgetBytes = DEFAULT_PREFETCH_DOWNLOAD_BUDGET_BYTES;
+            private boolean mLazyContactResolution = false;
+            private long mPresenceOnlineDebounceMillis = DEFAULT_PRESENCE_ONLINE_DEBOUNCE_MILLIS;
+            private long mPresenceOfflineDebounceMillis = DEFAULT_PRESENCE_OFFLINE_DEBOUNCE_MILLIS;
+            private int mMaxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
 
             public Builder(String appId) {
                 Log.d(TAG, "Configuration.Builder: appId = " + appId);
@@ -594,6 +806,108 @@ public class ChatManager {
                 return this;
             }
 
+            /**
+             * Set the number of messages downloaded when a conversation is opened.
+             * The older messages are downloaded on demand while scrolling up.
+             *
+             * @param messagesPageSize the page size. 0 to download the whole history
+             */
+            public Builder messagesPageSize(int messagesPageSize) {
+                Log.d(TAG, "Configuration.Builder.messagesPageSize: messagesPageSize = " + messagesPageSize);
+
+                mMessagesPageSize = messagesPageSize;
+
+                return this;
+            }
+
+            /**
+             * Set the max number of conversation messages handlers and presence handlers kept in memory.
+             * The least recently used ones without listeners are disconnected and dropped,
+             * they are created again when requested.
+             *
+             * @param maxActiveHandlers the max number of handlers of each kind. 0 for unbounded
+             */
+            public Builder maxActiveHandlers(int maxActiveHandlers) {
+                Log.d(TAG, "Configuration.Builder.maxActiveHandlers: maxActiveHandlers = " + maxActiveHandlers);
+
+                mMaxActiveHandlers = maxActiveHandlers;
+
+                return this;
+            }
+
+            /**
+             * Set how many of the most recent conversations have their last messages downloaded
+             * in background while the conversations list is visible and the wifi is connected.
+             *
+             * @param prefetchConversations the number of conversations. 0 to disable the prefetch
+             */
+            public Builder prefetchConversations(int prefetchConversations) {
+                Log.d(TAG, "Configuration.Builder.prefetchConversations: prefetchConversations = " + prefetchConversations);
+
+                mPrefetchConversations = prefetchConversations;
+
+                return this;
+            }
+
+            /**
+             * Set the max estimated size of the messages prefetched each time the conversations list is shown.
+             *
+             * @param prefetchDownloadBudgetBytes the budget in bytes
+             */
+            public Builder prefetchDownloadBudgetBytes(long prefetchDownloadBudgetBytes) {
+                Log.d(TAG, "Configuration.Builder.prefetchDownloadBudgetBytes: prefetchDownloadBudgetBytes = " + prefetchDownloadBudgetBytes);
+
+                mPrefetchDownloadBudgetBytes = prefetchDownloadBudgetBytes;
+
+                return this;
+            }
+
+            /**
+             * Do not synchronize the whole contacts directory on start.
+             * The contacts are downloaded one by one when they are displayed, and cached for a while.
+             * The whole directory is synchronized only once the contacts list is opened.
+             * Use it when the directory is much bigger than the contacts each user talks with.
+             *
+             * @param lazyContactResolution true to resolve the contacts on demand
+             */
+            public Builder lazyContactResolution(boolean lazyContactResolution) {
+                Log.d(TAG, "Configuration.Builder.lazyContactResolution: lazyContactResolution = " + lazyContactResolution);
+
+                mLazyContactResolution = lazyContactResolution;
+
+                return this;
+            }
+
+            /**
+             * Set how long the connection state of the logged user must hold before it is published.
+             * The shorter connection flaps are neither written to the presence nor notified.
+             *
+             * @param onlineDebounceMillis  the window to go online
+             * @param offlineDebounceMillis the window to go offline. longer than the online one to hide short drops
+             */
+            public Builder presenceDebounce(long onlineDebounceMillis, long offlineDebounceMillis) {
+                Log.d(TAG, "Configuration.Builder.presenceDebounce: onlineDebounceMillis = " + onlineDebounceMillis +
+                        ", offlineDebounceMillis = " + offlineDebounceMillis);
+
+                mPresenceOnlineDebounceMillis = onlineDebounceMillis;
+                mPresenceOfflineDebounceMillis = offlineDebounceMillis;
+
+                return this;
+            }
+
+            /**
+             * Set how many attachments are uploaded at the same time. The others wait in the queue.
+             *
+             * @param maxConcurrentUploads the max number of concurrent uploads
+             */
+            public Builder maxConcurrentUploads(int maxConcurrentUploads) {
+                Log.d(TAG, "Configuration.Builder.maxConcurrentUploads: maxConcurrentUploads = " + maxConcurrentUploads);
+
+                mMaxConcurrentUploads = maxConcurrentUploads;
+
+                return this;
+            }
+
             public Configuration build() {
                 Log.d(TAG, "Configuration.build");
 
@@ -0,0 +1,11 @@
+package org.chat21.android.core.chat_groups.listeners;
+
+import org.chat21.android.core.chat_groups.models.ChatGroup;
+import org.chat21.android.core.exception.ChatRuntimeException;
+
+/**
+ * Called once when a bulk operation on a chat group has been committed, or it has failed as a whole
+ */
+public interface ChatGroupUpdatedListener {
+    void onChatGroupUpdated(ChatGroup chatGroup, ChatRuntimeException chatException);
+}
@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.chat21.android.core.ChatManager;
+import org.chat21.android.core.users.models.ChatUser;
 import org.chat21.android.core.users.models.IChatUser;
 
 /**
@@ -26,6 +27,10 @@ public class ChatGroup implements Serializable {
     private String name;
     private String owner;
 
+    // the resolved members, rebuilt only when the members or their contacts change
+    @Exclude
+    private transient List<IChatUser> membersListCache;
+
     public ChatGroup() {
         members = new HashMap<>();
     }
@@ -73,20 +78,45 @@ public class ChatGroup implements Serializable {
 
     public void setMembers(Map<String, Integer> members) {
         this.members = members;
+        invalidateMembersList();
     }
 
     public void addMembers(Map<String, Integer> members) {
         this.members.putAll(members);
+        invalidateMembersList();
     }
 
     public void addMember(String member) {
         this.members.put(member, 1);
+        invalidateMembersList();
+    }
+
+    public void removeMember(String member) {
+        this.members.remove(member);
+        invalidateMembersList();
     }
 
+    /**
+     * Discard the cached members list, ie. when the contact of a member changes.
+     * It must be called after changing the map returned by {@link #getMembers()} directly
+     */
+    @Exclude
+    public void invalidateMembersList() {
+        membersListCache = null;
+    }
+
+    /**
+     * @return a copy of the members list, resolved from the contacts
+     */
     @Exclude
     public List<IChatUser> getMembersList() {
+        List<IChatUser> membersList = membersListCache;
+
+        if (membersList == null) {
+            membersList = patchMembers(members);
+        }
 
-        return patchMembers(members);
+        return new ArrayList<>(membersList);
     }
 
     public String getName() {
@@ -107,11 +137,16 @@ public class ChatGroup implements Serializable {
 
     private List<IChatUser> patchMembers(Map<String, Integer> members) {
         List<IChatUser> patchedMembers = new ArrayList<>();
+        boolean isResolved = true;
 
         for (Map.Entry<String, Integer> entry : members.entrySet()) {
-            IChatUser contact = ChatManager.getInstance().getContactsSynchronizer().findById(entry.getKey());
+            IChatUser contact = ChatManager.getInstance().getContactResolver().getCached(entry.getKey());
             if (contact != null) {
                 patchedMembers.add(contact);
+            } else if (ChatManager.Configuration.lazyContactResolution) {
+                // not resolved yet: show the member id until it is downloaded
+                patchedMembers.add(new ChatUser(entry.getKey(), entry.getKey()));
+                isResolved = false;
             }
 
             // TODO: 07/02/18 check for this
@@ -122,15 +157,21 @@ public class ChatGroup implements Serializable {
             }
         }
 
+        // the placeholders are replaced as soon as the contacts are resolved
+        if (isResolved) {
+            membersListCache = patchedMembers;
+        }
+
         return patchedMembers;
     }
 
     public String printMembersListWithSeparator(String separator) {
         String delimitedList = "";
 
-        if (getMembersList() != null && getMembersList().size() > 0) {
+        List<IChatUser> membersList = getMembersList();
+        if (membersList.size() > 0) {
             // append chat users
-            Iterator<IChatUser> it = getMembersList().iterator();
+            Iterator<IChatUser> it = membersList.iterator();
 
             while (it.hasNext()) {
                 delimitedList += separator + it.next().getFullName();
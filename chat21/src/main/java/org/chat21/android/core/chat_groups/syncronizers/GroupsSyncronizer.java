@@ -9,17 +9,29 @@ import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.chat21.android.core.chat_groups.listeners.ChatGroupCreatedListener;
+import org.chat21.android.core.chat_groups.listeners.ChatGroupUpdatedListener;
 import org.chat21.android.core.chat_groups.listeners.ChatGroupsListener;
 import org.chat21.android.core.chat_groups.models.ChatGroup;
+import org.chat21.android.core.contacts.listeners.ContactListener;
+import org.chat21.android.core.contacts.listeners.ContactsBatchListener;
 import org.chat21.android.core.exception.ChatRuntimeException;
 import org.chat21.android.core.users.models.IChatUser;
+import org.chat21.android.utils.SnapshotUtils;
 import org.chat21.android.utils.StringUtils;
+import org.chat21.android.utils.collections.IndexedSortedList;
 
+import static org.chat21.android.utils.DebugConstants.DEBUG_DECODE;
 import static org.chat21.android.utils.DebugConstants.DEBUG_GROUPS;
 
 /**
@@ -28,8 +40,29 @@ import static org.chat21.android.utils.DebugConstants.DEBUG_GROUPS;
 
 public class GroupsSyncronizer {
 
+    private static final IndexedSortedList.KeyProvider<ChatGroup> GROUP_KEY_PROVIDER =
+            new IndexedSortedList.KeyProvider<ChatGroup>() {
+                @Override
+                public String getKey(ChatGroup chatGroup) {
+                    return chatGroup.getGroupId();
+                }
+            };
+
+    // the last created first
+    private static final Comparator<ChatGroup> CREATED_ON_COMPARATOR = new Comparator<ChatGroup>() {
+        @Override
+        public int compare(ChatGroup first, ChatGroup second) {
+            long firstCreatedOn = first.getCreatedOnLong() != null ? first.getCreatedOnLong() : 0;
+            long secondCreatedOn = second.getCreatedOnLong() != null ? second.getCreatedOnLong() : 0;
+            return Long.compare(secondCreatedOn, firstCreatedOn);
+        }
+    };
+
     private List<ChatGroupsListener> chatGroupsListeners;
-    private List<ChatGroup> chatGroups;
+    private IndexedSortedList<ChatGroup> chatGroups;
+
+    // member id -> the ids of the groups containing it
+    private final Map<String, Set<String>> groupIdsByMember = new HashMap<>();
     private String currentUserId;
     private DatabaseReference appGroupsNode;
     private DatabaseReference userGroupsNode;
@@ -37,7 +70,7 @@ public class GroupsSyncronizer {
 
     public GroupsSyncronizer(String firebaseUrl, String appId, String currentUserId) {
         chatGroupsListeners = new ArrayList<>();
-        chatGroups = new ArrayList<>(); // chatGroups in memory
+        chatGroups = new IndexedSortedList<>(GROUP_KEY_PROVIDER, CREATED_ON_COMPARATOR); // chatGroups in memory
         this.currentUserId = currentUserId;
 
         setupAppGroupsNode(firebaseUrl, appId);
@@ -138,7 +171,7 @@ public class GroupsSyncronizer {
                     try {
                         ChatGroup chatGroup = decodeGroupFromSnapshot(dataSnapshot);
 
-                        saveOrUpdateGroupInMemory(chatGroup);
+                        deleteGroupFromMemory(chatGroup);
 
                         if (chatGroupsListeners != null) {
                             for (ChatGroupsListener chatGroupsListener : chatGroupsListeners) {
@@ -173,6 +206,9 @@ public class GroupsSyncronizer {
         return groupsChildEventListener;
     }
 
+    /**
+     * @return the groups in memory, the last created first. It is updated while the groups are synchronized
+     */
     public List<ChatGroup> getChatGroups() {
         return chatGroups;
     }
@@ -180,43 +216,100 @@ public class GroupsSyncronizer {
     // it checks if the group already exists.
     // if the group exists update it, add it otherwise
     private void saveOrUpdateGroupInMemory(ChatGroup newChatGroup) {
-
-        // look for the group
-        int index = -1;
-        for (ChatGroup tempChatGroup : chatGroups) {
-            if (tempChatGroup.getGroupId().equals(newChatGroup.getGroupId())) {
-                index = chatGroups.indexOf(tempChatGroup);
-                break;
-            }
+        ChatGroup oldChatGroup = chatGroups.getByKey(newChatGroup.getGroupId());
+        if (oldChatGroup != null) {
+            unindexMembers(oldChatGroup);
         }
 
-        if (index != -1) {
-            // group already exists
-            chatGroups.set(index, newChatGroup); // update the existing group
-        } else {
-            // group not exists
-            chatGroups.add(newChatGroup); // insert a new group
-        }
+        chatGroups.upsert(newChatGroup);
+        indexMembers(newChatGroup);
     }
 
     // it checks if the group already exists.
     // if the group exists delete it
     private void deleteGroupFromMemory(ChatGroup chatGroupToDelete) {
-        // look for the group
-        int index = -1;
-        for (ChatGroup tempChatGroup : chatGroups) {
-            if (tempChatGroup.equals(chatGroupToDelete)) {
-                index = chatGroups.indexOf(tempChatGroup);
-                break;
+        ChatGroup removed = chatGroups.removeByKey(chatGroupToDelete.getGroupId());
+        if (removed != null) {
+            unindexMembers(removed);
+        }
+    }
+
+    private void indexMembers(ChatGroup chatGroup) {
+        for (String memberId : chatGroup.getMembers().keySet()) {
+            Set<String> groupIds = groupIdsByMember.get(memberId);
+            if (groupIds == null) {
+                groupIds = new HashSet<>();
+                groupIdsByMember.put(memberId, groupIds);
             }
+            groupIds.add(chatGroup.getGroupId());
         }
+    }
 
-        if (index != -1) {
-            // group already exists
-            chatGroups.remove(index); // delete existing group
+    private void unindexMembers(ChatGroup chatGroup) {
+        for (String memberId : chatGroup.getMembers().keySet()) {
+            Set<String> groupIds = groupIdsByMember.get(memberId);
+            if (groupIds != null) {
+                groupIds.remove(chatGroup.getGroupId());
+                if (groupIds.isEmpty()) {
+                    groupIdsByMember.remove(memberId);
+                }
+            }
+        }
+    }
+
+    // discard the cached members list of the groups containing the contact
+    private void invalidateMembersOf(IChatUser contact) {
+        if (contact == null) {
+            return;
+        }
+
+        Set<String> groupIds = groupIdsByMember.get(contact.getId());
+        if (groupIds == null) {
+            return;
+        }
+
+        for (String groupId : groupIds) {
+            ChatGroup chatGroup = chatGroups.getByKey(groupId);
+            if (chatGroup != null) {
+                chatGroup.invalidateMembersList();
+            }
         }
     }
 
+    // register it to the contacts synchronizer to keep the groups members up to date
+    private final ContactListener membersContactListener = new ContactsBatchListener() {
+        @Override
+        public void onContactReceived(IChatUser contact, ChatRuntimeException e) {
+            invalidateMembersOf(contact);
+        }
+
+        @Override
+        public void onContactsReceived(List<IChatUser> contacts, ChatRuntimeException e) {
+            if (contacts != null) {
+                for (IChatUser contact : contacts) {
+                    invalidateMembersOf(contact);
+                }
+            }
+        }
+
+        @Override
+        public void onContactChanged(IChatUser contact, ChatRuntimeException e) {
+            invalidateMembersOf(contact);
+        }
+
+        @Override
+        public void onContactRemoved(IChatUser contact, ChatRuntimeException e) {
+            invalidateMembersOf(contact);
+        }
+    };
+
+    /**
+     * @return the listener which invalidates the cached members lists when the contacts of the members change
+     */
+    public ContactListener getMembersContactListener() {
+        return membersContactListener;
+    }
+
     public ChatGroup decodeGroupFromSnapshot(DataSnapshot dataSnapshot) {
 //        Log.d(DEBUG_GROUPS, "GroupsSyncronizer.decodeGroupFromSnapshot:
 // dataSnapshot == " + dataSnapshot.toString());
@@ -233,34 +326,40 @@ public class GroupsSyncronizer {
 //            }
 //        }
 
-        ChatGroup chatGroup = new ChatGroup();
-        chatGroup.setGroupId(dataSnapshot.getKey());
-
-        if (dataSnapshot.getValue() != null) {
-            Map<String, Object> map = (Map<String, Object>) dataSnapshot.getValue();
-
-            try {
-                String iconURL = (String) map.get("iconURL");
-                chatGroup.setIconURL(iconURL);
-            } catch (Exception e) {
-                Log.w(DEBUG_GROUPS,  "GroupsSyncronizer.decodeGroupFromSnapshot: cannot retrieve iconURL");
-            }
+        return decodeGroup(dataSnapshot.getKey(), SnapshotUtils.asMap(dataSnapshot.getValue()));
+    }
 
-            String owner = (String) map.get("owner");
-            chatGroup.setOwner(owner);
+    /**
+     * Decode the raw group values, as returned by {@link DataSnapshot#getValue()}.
+     * Missing fields are left unset.
+     * It can be called from any thread
+     *
+     * @param groupId the group id
+     * @param map     the group values
+     * @return the decoded group
+     */
+    public static ChatGroup decodeGroup(String groupId, Map<String, Object> map) {
+        ChatGroup chatGroup = new ChatGroup();
+        chatGroup.setGroupId(groupId);
 
-            long createdOn = (long) map.get("createdOn");
-            chatGroup.setTimestamp(createdOn);
+        if (map != null) {
+            chatGroup.setIconURL(SnapshotUtils.getString(map, "iconURL"));
+            chatGroup.setOwner(SnapshotUtils.getString(map, "owner"));
 
-            String name = (String) map.get("name");
-            chatGroup.setName(name);
+            // groups without creation date are the oldest ones
+            Long createdOn = SnapshotUtils.getLong(map, "createdOn");
+            chatGroup.setTimestamp(createdOn != null ? createdOn : 0L);
+            chatGroup.setName(SnapshotUtils.getString(map, "name"));
 
-            Map<String, Integer> members = (Map<String, Integer>) map.get("members");
-            chatGroup.addMembers(members);
+            Map<String, Integer> members = SnapshotUtils.getMap(map, "members");
+            if (members != null) {
+                chatGroup.addMembers(members);
+            }
         }
 
-        Log.d(DEBUG_GROUPS, "GroupsSyncronizer.decodeGroupFromSnapshot: " +
-                "chatGroup == " + chatGroup.toString());
+        if (Log.isLoggable(DEBUG_DECODE, Log.VERBOSE)) {
+            Log.v(DEBUG_DECODE, "decodeGroup: chatGroup == " + chatGroup.toString());
+        }
         return chatGroup;
     }
 
@@ -326,74 +425,159 @@ public class GroupsSyncronizer {
      * @return the group if exists, null otherwise
      */
     public ChatGroup getById(String groupId) {
-        for (ChatGroup chatGroup : chatGroups) {
-            if (chatGroup.getGroupId().equals(groupId)) {
-                return chatGroup;
-            }
-        }
-        return null;
+        return chatGroups.getByKey(groupId);
     }
 
+    /**
+     * @deprecated use {@link #removeMembers(String, Collection, ChatGroupUpdatedListener)}
+     */
+    @Deprecated
     public void removeMemberFromChatGroup(String groupId, IChatUser toRemove) {
-        ChatGroup chatGroup = getById(groupId);
-        int index = chatGroups.indexOf(chatGroup);
+        removeMembers(groupId, Collections.singleton(toRemove.getId()), null);
+    }
 
-        if (chatGroup.getMembers().containsKey(toRemove.getId())) {
-            // remove from firebase app reference
-            appGroupsNode.child("/" + groupId + "/members/" + toRemove.getId()).removeValue();
+    /**
+     * @deprecated use {@link #addMembers(String, Map, ChatGroupUpdatedListener)}
+     */
+    @Deprecated
+    public void addMembersToChatGroup(String groupId, Map<String, Integer> toAdd) {
+        addMembers(groupId, toAdd, null);
+    }
 
-            // remove member from local group
-            chatGroup.getMembers().remove(toRemove.getId());
+    /**
+     * Add the members to a group with a single atomic update: either all of them are added or none.
+     *
+     * @param groupId  the id of the group
+     * @param toAdd    the members to add. the existing members are overridden
+     * @param listener called once when the update is committed or it fails. it can be null
+     */
+    public void addMembers(String groupId, Map<String, Integer> toAdd, ChatGroupUpdatedListener listener) {
+        Map<String, Object> updates = new HashMap<>();
+        for (Map.Entry<String, Integer> member : toAdd.entrySet()) {
+            updates.put(groupId + "/members/" + member.getKey(), member.getValue());
+        }
 
-            // update local chatGroups
-            chatGroups.set(index, chatGroup);
+        commitMembersUpdate(groupId, updates, toAdd, null, listener);
+    }
 
-            // notify all subscribers
-            if (chatGroupsListeners != null) {
-                for (ChatGroupsListener chatGroupsListener : chatGroupsListeners) {
-                    chatGroupsListener.onGroupChanged(chatGroup, null);
-                }
-            }
+    /**
+     * Remove the members from a group with a single atomic update: either all of them are removed or none.
+     *
+     * @param groupId   the id of the group
+     * @param memberIds the ids of the members to remove
+     * @param listener  called once when the update is committed or it fails. it can be null
+     */
+    public void removeMembers(String groupId, Collection<String> memberIds, ChatGroupUpdatedListener listener) {
+        Map<String, Object> updates = new HashMap<>();
+        for (String memberId : memberIds) {
+            updates.put(groupId + "/members/" + memberId, null); // null deletes the path
         }
+
+        commitMembersUpdate(groupId, updates, null, memberIds, listener);
     }
 
-    public void addMembersToChatGroup(String groupId, Map<String, Integer> toAdd) {
-        ChatGroup chatGroup = getById(groupId);
+    private void commitMembersUpdate(final String groupId, Map<String, Object> updates,
+                                     final Map<String, Integer> added, final Collection<String> removed,
+                                     final ChatGroupUpdatedListener listener) {
+        Log.d(DEBUG_GROUPS, "GroupsSyncronizer.commitMembersUpdate: groupId == " + groupId +
+                ", paths == " + updates.size());
 
-        Map<String, Integer> chatGroupMembers = chatGroup.getMembers();
+        appGroupsNode.updateChildren(updates, new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
+                if (databaseError != null) {
+                    Log.e(DEBUG_GROUPS, "GroupsSyncronizer.commitMembersUpdate:" +
+                            " cannot update the members of " + groupId + ": " + databaseError.toException());
+                    if (listener != null) {
+                        listener.onChatGroupUpdated(getById(groupId),
+                                new ChatRuntimeException(databaseError.toException()));
+                    }
+                    return;
+                }
 
-        // add the news member to the existing members
-        // the map automatically override existing keys
-        chatGroupMembers.putAll(toAdd);
+                // apply the committed update to the local group
+                ChatGroup chatGroup = getById(groupId);
+                if (chatGroup != null) {
+                    unindexMembers(chatGroup);
+                    if (added != null) {
+                        chatGroup.addMembers(added);
+                    }
+                    if (removed != null) {
+                        for (String memberId : removed) {
+                            chatGroup.removeMember(memberId);
+                        }
+                    }
+                    indexMembers(chatGroup);
+
+                    // notify all subscribers
+                    if (chatGroupsListeners != null) {
+                        for (ChatGroupsListener chatGroupsListener : chatGroupsListeners) {
+                            chatGroupsListener.onGroupChanged(chatGroup, null);
+                        }
+                    }
+                }
 
-        appGroupsNode.child("/" + chatGroup.getGroupId() + "/members/").setValue(chatGroupMembers);
+                if (listener != null) {
+                    listener.onChatGroupUpdated(chatGroup, null);
+                }
+            }
+        });
     }
 
+    /**
+     * @deprecated use {@link #createGroup(String, Map, ChatGroupCreatedListener)}
+     */
+    @Deprecated
     public void createChatGroup(final String chatGroupName, Map<String, Integer> members,
                                 final ChatGroupCreatedListener chatGroupCreatedListener) {
+        createGroup(chatGroupName, members, chatGroupCreatedListener);
+    }
 
-        DatabaseReference newGroupReference = this.appGroupsNode.push();
-        String newGroupId = newGroupReference.getKey();
+    /**
+     * Create a group with its members with a single atomic update.
+     * The group is saved in memory at once, so it can be shown before the write is committed (ie. offline)
+     *
+     * @param chatGroupName            the name of the group
+     * @param members                  the members of the group
+     * @param chatGroupCreatedListener called once when the group is created or it fails. it can be null
+     * @return the new group
+     */
+    public ChatGroup createGroup(final String chatGroupName, Map<String, Integer> members,
+                                 final ChatGroupCreatedListener chatGroupCreatedListener) {
+
+        String newGroupId = this.appGroupsNode.push().getKey();
 
         final ChatGroup chatGroup = createGroupForFirebase(chatGroupName, members);
         chatGroup.setGroupId(newGroupId);
 
-        newGroupReference.setValue(chatGroup, new DatabaseReference.CompletionListener() {
+        // the whole group node, written in one round-trip
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(newGroupId + "/name", chatGroup.getName());
+        updates.put(newGroupId + "/owner", chatGroup.getOwner());
+        updates.put(newGroupId + "/createdOn", chatGroup.getCreatedOn());
+        for (Map.Entry<String, Integer> member : chatGroup.getMembers().entrySet()) {
+            updates.put(newGroupId + "/members/" + member.getKey(), member.getValue());
+        }
+
+        saveOrUpdateGroupInMemory(chatGroup);
+
+        this.appGroupsNode.updateChildren(updates, new DatabaseReference.CompletionListener() {
             @Override
             public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
                 if (databaseError == null) {
-                    Log.d(DEBUG_GROUPS, "GroupsSyncronizer.createChatGroup:" +
-                            " databaseReference == " + databaseReference.toString());
-
-                    saveOrUpdateGroupInMemory(chatGroup);
+                    Log.d(DEBUG_GROUPS, "GroupsSyncronizer.createGroup:" +
+                            " groupId == " + chatGroup.getGroupId());
 
                     if (chatGroupCreatedListener != null) {
                         chatGroupCreatedListener.onChatGroupCreated(chatGroup, null);
                     }
 
                 } else {
-                    Log.e(DEBUG_GROUPS, "GroupsSyncronizer.createChatGroup:" +
+                    Log.e(DEBUG_GROUPS, "GroupsSyncronizer.createGroup:" +
                             " cannot create chatGroup " + databaseError.toException());
+
+                    deleteGroupFromMemory(chatGroup);
+
                     if (chatGroupCreatedListener != null) {
                         chatGroupCreatedListener.onChatGroupCreated(null,
                                 new ChatRuntimeException(databaseError.toException()));
@@ -401,6 +585,8 @@ public class GroupsSyncronizer {
                 }
             }
         });
+
+        return chatGroup;
     }
 
     private ChatGroup createGroupForFirebase(String chatGroupName, Map<String, Integer> members) {
@@ -0,0 +1,24 @@
+package org.chat21.android.core.contacts.listeners;
+
+import org.chat21.android.core.exception.ChatRuntimeException;
+import org.chat21.android.core.users.models.IChatUser;
+
+import java.util.List;
+
+/**
+ * A {@link ContactListener} receiving the contacts downloaded by the synchronizer in batches.
+ * <p/>
+ * {@link #onContactReceived(IChatUser, ChatRuntimeException)} is called only for the contacts added with
+ * {@link org.chat21.android.core.contacts.synchronizers.ContactsSynchronizer#addContact(IChatUser)}.
+ * The plain {@link ContactListener}s receive the batches one contact at a time.
+ */
+public interface ContactsBatchListener extends ContactListener {
+
+    /**
+     * Called on the main thread once for each batch of received contacts
+     *
+     * @param contacts the contacts of the batch, null on error
+     * @param e        the error if any, null otherwise
+     */
+    void onContactsReceived(List<IChatUser> contacts, ChatRuntimeException e);
+}
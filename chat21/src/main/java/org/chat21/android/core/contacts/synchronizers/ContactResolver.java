@@ -0,0 +1,266 @@
+package org.chat21.android.core.contacts.synchronizers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import org.chat21.android.core.exception.ChatFieldNotFoundException;
+import org.chat21.android.core.exception.ChatRuntimeException;
+import org.chat21.android.core.users.models.IChatUser;
+import org.chat21.android.utils.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.chat21.android.utils.DebugConstants.DEBUG_CONTACTS_SYNC;
+
+/**
+ * Resolves the contacts by id, on demand.
+ * <p/>
+ * The contacts synchronized by {@link ContactsSynchronizer} are returned directly.
+ * The other ones are downloaded one by one: the concurrent requests for the same id share a single download
+ * and the result (a missing contact too) is cached for {@code ttlMillis}, in a cache bounded to {@code maxSize} contacts.
+ * <p/>
+ * It is used instead of the whole contacts synchronization when
+ * {@link org.chat21.android.core.ChatManager.Configuration#lazyContactResolution} is enabled.
+ * The callbacks are called on the main thread.
+ */
+public class ContactResolver {
+
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+    public static final int DEFAULT_MAX_SIZE = 500;
+
+    /**
+     * Receives a resolved contact
+     */
+    public interface OnContactResolvedCallback {
+
+        /**
+         * @param contact the contact, null if it does not exist or on error
+         * @param e       the error if any, null otherwise
+         */
+        void onContactResolved(IChatUser contact, ChatRuntimeException e);
+    }
+
+    private static class Entry {
+        final IChatUser contact; // null if the contact does not exist
+        final long expiresAt;
+
+        Entry(IChatUser contact, long expiresAt) {
+            this.contact = contact;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() >= expiresAt;
+        }
+    }
+
+    private final DatabaseReference contactsNode;
+    private final ContactsSynchronizer contactsSynchronizer;
+    private final long ttlMillis;
+    private final int maxSize;
+
+    // guarded by this. access ordered: the least recently used first
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    // contact id -> the callbacks waiting for the running download. guarded by this
+    private final Map<String, List<OnContactResolvedCallback>> pendingRequests = new HashMap<>();
+
+    // incremented by clear(): the downloads started before are discarded. guarded by this
+    private int generation = 0;
+
+    public ContactResolver(String firebaseUrl, String appId, ContactsSynchronizer contactsSynchronizer) {
+        this(firebaseUrl, appId, contactsSynchronizer, DEFAULT_TTL_MILLIS, DEFAULT_MAX_SIZE);
+    }
+
+    public ContactResolver(String firebaseUrl, String appId, ContactsSynchronizer contactsSynchronizer,
+                           long ttlMillis, int maxSize) {
+        this.contactsSynchronizer = contactsSynchronizer;
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+
+        if (StringUtils.isValid(firebaseUrl)) {
+            this.contactsNode = FirebaseDatabase.getInstance()
+                    .getReferenceFromUrl(firebaseUrl)
+                    .child("/apps/" + appId + "/contacts/");
+        } else {
+            this.contactsNode = FirebaseDatabase.getInstance()
+                    .getReference()
+                    .child("/apps/" + appId + "/contacts/");
+        }
+    }
+
+    /**
+     * Returns the contact if already known, otherwise it starts downloading it.
+     * It never blocks, so it can be called while binding a view.
+     *
+     * @param contactId the contact id
+     * @return the contact if known (even if its cache entry is expired), null otherwise
+     */
+    public IChatUser getCached(String contactId) {
+        IChatUser synced = contactsSynchronizer != null ? contactsSynchronizer.findById(contactId) : null;
+        if (synced != null || isSynchronized()) {
+            return synced;
+        }
+
+        Entry entry;
+        synchronized (this) {
+            entry = cache.get(contactId);
+        }
+
+        if (entry == null || entry.isExpired()) {
+            resolve(contactId, null);
+        }
+
+        return entry != null ? entry.contact : null;
+    }
+
+    /**
+     * Resolve a contact, downloading it only if it is not known or its cache entry is expired
+     *
+     * @param contactId the contact id
+     * @param callback  the callback, null to only warm the cache
+     */
+    public void resolve(final String contactId, OnContactResolvedCallback callback) {
+        IChatUser synced = contactsSynchronizer != null ? contactsSynchronizer.findById(contactId) : null;
+        if (synced != null || isSynchronized()) {
+            if (callback != null) {
+                callback.onContactResolved(synced, null);
+            }
+            return;
+        }
+
+        Entry entry;
+        boolean isFirstRequest;
+
+        synchronized (this) {
+            entry = cache.get(contactId);
+
+            if (entry != null && !entry.isExpired()) {
+                isFirstRequest = false;
+            } else {
+                entry = null;
+
+                List<OnContactResolvedCallback> callbacks = pendingRequests.get(contactId);
+                isFirstRequest = callbacks == null;
+                if (isFirstRequest) {
+                    callbacks = new ArrayList<>();
+                    pendingRequests.put(contactId, callbacks);
+                }
+                if (callback != null) {
+                    callbacks.add(callback);
+                }
+            }
+        }
+
+        if (entry != null) {
+            if (callback != null) {
+                callback.onContactResolved(entry.contact, null);
+            }
+            return;
+        }
+
+        if (isFirstRequest) {
+            int downloadGeneration;
+            synchronized (this) {
+                downloadGeneration = generation;
+            }
+            download(contactId, downloadGeneration);
+        }
+    }
+
+    // the synchronized contacts are authoritative: the missing ones are not downloaded.
+    // until the whole directory has been delivered (ie. after a cold start) they are downloaded one by one
+    private boolean isSynchronized() {
+        return contactsSynchronizer != null && contactsSynchronizer.isSynchronized();
+    }
+
+    private void download(final String contactId, final int downloadGeneration) {
+        Log.d(DEBUG_CONTACTS_SYNC, "ContactResolver.download: contactId: " + contactId);
+
+        contactsNode.child(contactId).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                IChatUser contact = null;
+                ChatRuntimeException exception = null;
+
+                if (dataSnapshot.exists()) {
+                    try {
+                        contact = ContactsSynchronizer.decodeContactSnapShop(dataSnapshot);
+                    } catch (ChatFieldNotFoundException cfnfe) {
+                        Log.w(DEBUG_CONTACTS_SYNC, "Error decoding contact " + contactId + ": " + cfnfe.getMessage());
+                    } catch (Exception e) {
+                        exception = new ChatRuntimeException(e);
+                    }
+                }
+
+                // a missing contact is cached too, so it is not downloaded on every bind
+                if (exception == null) {
+                    synchronized (ContactResolver.this) {
+                        if (downloadGeneration != generation) {
+                            return;
+                        }
+                        cache.put(contactId, new Entry(contact, SystemClock.elapsedRealtime() + ttlMillis));
+                    }
+                }
+
+                deliver(contactId, downloadGeneration, contact, exception);
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                deliver(contactId, downloadGeneration, null,
+                        new ChatRuntimeException(databaseError.toException()));
+            }
+        });
+    }
+
+    private void deliver(String contactId, int downloadGeneration,
+                         IChatUser contact, ChatRuntimeException exception) {
+        List<OnContactResolvedCallback> callbacks;
+        synchronized (this) {
+            // the contact has been downloaded for the previous user
+            if (downloadGeneration != generation) {
+                return;
+            }
+            callbacks = pendingRequests.remove(contactId);
+        }
+
+        if (callbacks != null) {
+            for (OnContactResolvedCallback callback : callbacks) {
+                callback.onContactResolved(contact, exception);
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached contacts, including the missing ones
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Forget the cached contacts, ie. on logout.
+     * The running downloads are discarded and their callbacks are not called
+     */
+    public synchronized void clear() {
+        generation++;
+        cache.clear();
+        pendingRequests.clear();
+    }
+}
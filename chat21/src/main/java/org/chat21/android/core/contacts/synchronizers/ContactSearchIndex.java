@@ -0,0 +1,250 @@
+package org.chat21.android.core.contacts.synchronizers;
+
+import org.chat21.android.core.users.models.IChatUser;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * A prefix search index over the contacts.
+ * <p/>
+ * Each contact is indexed by the tokens of its full name (first name and last names) and by its email.
+ * The tokens are lowercased and accent-folded, so "jose" finds "José".
+ * A query matches the contacts having a token starting with each of the query tokens,
+ * the results are ranked: first name matches first, then last name matches, then email matches.
+ * <p/>
+ * It is thread-safe: the {@link ContactsSynchronizer} updates it on its ingest thread, together with
+ * the contacts, and it can be queried from a {@link android.widget.Filter} thread.
+ */
+public class ContactSearchIndex {
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s]+");
+
+    // the match ranks, the lower the better
+    private static final int RANK_FIRST_NAME = 0;
+    private static final int RANK_LAST_NAME = 1;
+    private static final int RANK_EMAIL = 2;
+
+    private static class Entry {
+        final IChatUser contact;
+        final String foldedFullName;
+        final String foldedEmail;
+        final List<String> nameTokens;
+
+        Entry(IChatUser contact) {
+            this.contact = contact;
+            this.foldedFullName = fold(contact.getFullName());
+            this.foldedEmail = fold(contact.getEmail());
+            this.nameTokens = tokenize(foldedFullName);
+        }
+
+        List<String> tokens() {
+            List<String> tokens = new ArrayList<>(nameTokens);
+            if (!foldedEmail.isEmpty()) {
+                tokens.add(foldedEmail);
+            }
+            return tokens;
+        }
+
+        // the best rank of the tokens starting with prefix, -1 if none
+        int rankOf(String prefix) {
+            for (int i = 0; i < nameTokens.size(); i++) {
+                if (nameTokens.get(i).startsWith(prefix)) {
+                    return i == 0 ? RANK_FIRST_NAME : RANK_LAST_NAME;
+                }
+            }
+            return foldedEmail.startsWith(prefix) ? RANK_EMAIL : -1;
+        }
+    }
+
+    private static class Result {
+        final Entry entry;
+        final int rank;
+
+        Result(Entry entry, int rank) {
+            this.entry = entry;
+            this.rank = rank;
+        }
+    }
+
+    private static final Comparator<Result> RESULT_COMPARATOR = new Comparator<Result>() {
+        @Override
+        public int compare(Result first, Result second) {
+            if (first.rank != second.rank) {
+                return first.rank < second.rank ? -1 : 1;
+            }
+
+            int result = first.entry.foldedFullName.compareTo(second.entry.foldedFullName);
+            if (result == 0) {
+                result = first.entry.contact.getId().compareTo(second.entry.contact.getId());
+            }
+            return result;
+        }
+    };
+
+    // guarded by this
+    private final Map<String, Entry> entries = new HashMap<>(); // contact id -> entry
+    private final TreeMap<String, Set<String>> tokens = new TreeMap<>(); // token -> contact ids
+
+    /**
+     * Add the contact if not exists, reindex it otherwise
+     *
+     * @param contact the contact to index
+     */
+    public synchronized void index(IChatUser contact) {
+        unindex(contact.getId());
+
+        Entry entry = new Entry(contact);
+        entries.put(contact.getId(), entry);
+
+        for (String token : entry.tokens()) {
+            Set<String> ids = tokens.get(token);
+            if (ids == null) {
+                ids = new HashSet<>();
+                tokens.put(token, ids);
+            }
+            ids.add(contact.getId());
+        }
+    }
+
+    /**
+     * Index a batch of contacts at once
+     *
+     * @param contacts the contacts to index
+     */
+    public synchronized void indexAll(List<IChatUser> contacts) {
+        for (IChatUser contact : contacts) {
+            index(contact);
+        }
+    }
+
+    /**
+     * @param contactId the id of the contact to remove from the index
+     */
+    public synchronized void unindex(String contactId) {
+        Entry entry = entries.remove(contactId);
+        if (entry == null) {
+            return;
+        }
+
+        for (String token : entry.tokens()) {
+            Set<String> ids = tokens.get(token);
+            if (ids != null) {
+                ids.remove(contactId);
+                if (ids.isEmpty()) {
+                    tokens.remove(token);
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        tokens.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Search the contacts matching all the tokens of the query
+     *
+     * @param query the text typed by the user
+     * @return the matching contacts, the most relevant first. Empty if the query is blank
+     */
+    public synchronized List<IChatUser> search(String query) {
+        List<String> queryTokens = tokenize(fold(query));
+        if (queryTokens.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // the contacts matching every token. start from the most selective one
+        Set<String> candidates = null;
+        for (String queryToken : queryTokens) {
+            Set<String> matching = idsWithPrefix(queryToken);
+
+            if (candidates == null || matching.size() < candidates.size()) {
+                if (candidates != null) {
+                    matching.retainAll(candidates);
+                }
+                candidates = matching;
+            } else {
+                candidates.retainAll(matching);
+            }
+
+            if (candidates.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+
+        List<Result> results = new ArrayList<>(candidates.size());
+        for (String id : candidates) {
+            Entry entry = entries.get(id);
+            results.add(new Result(entry, rankOf(entry, queryTokens)));
+        }
+        Collections.sort(results, RESULT_COMPARATOR);
+
+        List<IChatUser> contacts = new ArrayList<>(results.size());
+        for (Result result : results) {
+            contacts.add(result.entry.contact);
+        }
+        return contacts;
+    }
+
+    // the sum of the ranks of each query token
+    private static int rankOf(Entry entry, List<String> queryTokens) {
+        int rank = 0;
+        for (String queryToken : queryTokens) {
+            rank += Math.max(0, entry.rankOf(queryToken));
+        }
+        return rank;
+    }
+
+    private Set<String> idsWithPrefix(String prefix) {
+        Set<String> ids = new HashSet<>();
+
+        SortedMap<String, Set<String>> matching = tokens.subMap(prefix, prefix + Character.MAX_VALUE);
+        for (Set<String> tokenIds : matching.values()) {
+            ids.addAll(tokenIds);
+        }
+
+        return ids;
+    }
+
+    /**
+     * @return the text lowercased and without accents, empty if null
+     */
+    static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT).trim();
+    }
+
+    private static List<String> tokenize(String foldedText) {
+        List<String> tokens = new ArrayList<>();
+
+        for (String token : SEPARATORS.split(foldedText)) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+
+        return tokens;
+    }
+}
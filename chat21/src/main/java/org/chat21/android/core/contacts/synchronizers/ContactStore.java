@@ -0,0 +1,132 @@
+package org.chat21.android.core.contacts.synchronizers;
+
+import org.chat21.android.core.users.models.IChatUser;
+import org.chat21.android.utils.collections.IndexedSortedList;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The in-memory contacts, indexed by id and sorted by full name.
+ * <p/>
+ * Thread-safe: the contacts are written by the synchronizer threads and read by the UI.
+ * {@link #findById(String)} is O(1) and never blocks.
+ * {@link #getSortedContacts()} returns an immutable snapshot, rebuilt only after a change,
+ * so the UI can iterate it while the store is updated.
+ */
+public class ContactStore {
+
+    private static final IndexedSortedList.KeyProvider<IChatUser> KEY_PROVIDER =
+            new IndexedSortedList.KeyProvider<IChatUser>() {
+                @Override
+                public String getKey(IChatUser contact) {
+                    return contact.getId();
+                }
+            };
+
+    // by full name, case insensitive. the contacts with the same name are sorted by id
+    private static final Comparator<IChatUser> FULL_NAME_COMPARATOR = new Comparator<IChatUser>() {
+        @Override
+        public int compare(IChatUser first, IChatUser second) {
+            String firstName = first.getFullName() != null ? first.getFullName() : "";
+            String secondName = second.getFullName() != null ? second.getFullName() : "";
+            return firstName.compareToIgnoreCase(secondName);
+        }
+    };
+
+    // id -> contact. read without locking
+    private final Map<String, IChatUser> contactsById = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private final IndexedSortedList<IChatUser> sortedContacts =
+            new IndexedSortedList<>(KEY_PROVIDER, FULL_NAME_COMPARATOR);
+
+    // null when the store has changed since the last snapshot
+    private volatile List<IChatUser> snapshot;
+
+    /**
+     * Add the contact if not exists, replace the existing one otherwise
+     *
+     * @param contact the contact to save
+     */
+    public synchronized void upsert(IChatUser contact) {
+        sortedContacts.upsert(contact);
+        contactsById.put(contact.getId(), contact);
+        snapshot = null;
+    }
+
+    /**
+     * Add or replace many contacts at once
+     *
+     * @param contacts the contacts to save
+     */
+    public synchronized void upsertAll(Collection<? extends IChatUser> contacts) {
+        for (IChatUser contact : contacts) {
+            sortedContacts.upsert(contact);
+            contactsById.put(contact.getId(), contact);
+        }
+        snapshot = null;
+    }
+
+    /**
+     * @param contactId the id of the contact to remove
+     * @return the removed contact if exists, null otherwise
+     */
+    public synchronized IChatUser remove(String contactId) {
+        IChatUser removed = sortedContacts.removeByKey(contactId);
+        contactsById.remove(contactId);
+        snapshot = null;
+        return removed;
+    }
+
+    /**
+     * Replace all the contacts
+     *
+     * @param contacts the new contacts
+     */
+    public synchronized void replaceAll(Collection<? extends IChatUser> contacts) {
+        sortedContacts.clear();
+        contactsById.clear();
+        upsertAll(contacts);
+    }
+
+    public synchronized void clear() {
+        sortedContacts.clear();
+        contactsById.clear();
+        snapshot = null;
+    }
+
+    /**
+     * @param contactId the contact id to looking for
+     * @return the contact if exists, null otherwise
+     */
+    public IChatUser findById(String contactId) {
+        return contactId != null ? contactsById.get(contactId) : null;
+    }
+
+    public int size() {
+        return contactsById.size();
+    }
+
+    /**
+     * @return an immutable snapshot of the contacts sorted by full name
+     */
+    public List<IChatUser> getSortedContacts() {
+        List<IChatUser> current = snapshot;
+
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = sortedContacts.snapshot();
+                    snapshot = current;
+                }
+            }
+        }
+
+        return current;
+    }
+}
@@ -0,0 +1,46 @@
+package org.chat21.android.core.contacts.synchronizers;
+
+import org.chat21.android.core.users.models.IChatUser;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The contacts serialized on disk by {@link ContactsSynchronizer},
+ * with the timestamp of the most recent contact change they include
+ * and the time of the last download of the whole contacts node.
+ */
+class ContactsSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final long NO_WATERMARK = -1;
+
+    private final long watermark;
+    private final long fullSyncTime;
+    private final ArrayList<IChatUser> contacts;
+
+    ContactsSnapshot(long watermark, long fullSyncTime, List<IChatUser> contacts) {
+        this.watermark = watermark;
+        this.fullSyncTime = fullSyncTime;
+        this.contacts = new ArrayList<>(contacts);
+    }
+
+    /**
+     * @return the max timestamp of the contacts, {@link #NO_WATERMARK} if unknown
+     */
+    long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * @return the device time of the last full download, 0 if never happened
+     */
+    long getFullSyncTime() {
+        return fullSyncTime;
+    }
+
+    List<IChatUser> getContacts() {
+        return contacts;
+    }
+}
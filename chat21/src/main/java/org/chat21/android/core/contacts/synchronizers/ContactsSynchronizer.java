@@ -1,6 +1,8 @@
 package org.chat21.android.core.contacts.synchronizers;
 
-import android.os.AsyncTask;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.google.firebase.database.ChildEventListener;
@@ -8,39 +10,137 @@ import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.chat21.android.core.ChatManager;
 import org.chat21.android.core.contacts.listeners.ContactListener;
+import org.chat21.android.core.contacts.listeners.ContactsBatchListener;
 import org.chat21.android.core.exception.ChatFieldNotFoundException;
 import org.chat21.android.core.exception.ChatRuntimeException;
 import org.chat21.android.core.users.models.ChatUser;
 import org.chat21.android.core.users.models.IChatUser;
+import org.chat21.android.utils.IOUtils;
+import org.chat21.android.utils.SnapshotUtils;
 import org.chat21.android.utils.StringUtils;
 
 import static org.chat21.android.utils.DebugConstants.DEBUG_CONTACTS_SYNC;
+import static org.chat21.android.utils.DebugConstants.DEBUG_DECODE;
 
 /**
  * Created by andrealeo on 04/01/18.
+ * <p/>
+ * The contacts changed since the persisted snapshot are queried by {@code timestamp}, so the database rules
+ * must index it, otherwise Firebase downloads the whole contacts node and filters it on the device:
+ * <pre>
+ * "apps": { "$appId": { "contacts": { ".indexOn": "timestamp" } } }
+ * </pre>
+ * The contacts deleted from Firebase are not returned by that query, so the whole contacts node
+ * is downloaded again every {@link #FULL_SYNC_INTERVAL_MILLIS} and the contacts not found in it are removed.
  */
 
 public class ContactsSynchronizer {
 
-    private List<IChatUser> contacts = new ArrayList<>(); // contacts in memory
+    // max number of contacts decoded and delivered together
+    public static final int MAX_BATCH_SIZE = 500;
+
+    // the max age of the persisted contacts before they are reconciled with the whole contacts node
+    public static final long FULL_SYNC_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    // the changes received within this delay are persisted together
+    private static final long SNAPSHOT_SAVE_DELAY_MILLIS = 2000;
+
+    private static final int EVENT_ADDED = 0;
+    private static final int EVENT_CHANGED = 1;
+    private static final int EVENT_REMOVED = 2;
+
+    private static final String TIMESTAMP_FIELD_KEY = "timestamp";
+    private static final String SNAPSHOT_FILE_PREFIX = "chat21_contacts_";
+
+    private final ContactStore contacts = new ContactStore(); // contacts in memory
+
+    // updated with the contacts on the ingest thread, before the listeners are notified
+    private final ContactSearchIndex searchIndex = new ContactSearchIndex();
 
     private DatabaseReference contactsNode;
 
     private ChildEventListener contactsChildEventListener;
 
+    // the query the listener is attached to, once the snapshot on disk has been loaded
+    private Query contactsQuery;
+    private boolean isConnected = false;
+
+    // the contacts existing when the query has been attached have been delivered
+    private boolean isSynchronized = false;
+
+    // null to not persist the contacts
+    private final Context context;
+    private final String snapshotFileName;
+
+    // the timestamp of the most recent contact change received. written on the ingest thread
+    private volatile long watermark = ContactsSnapshot.NO_WATERMARK;
+    private boolean isSnapshotChanged = false;
+    private boolean isSnapshotSaveScheduled = false;
+
+    // the whole contacts node is being downloaded. written on the ingest thread
+    private boolean isFullSync = false;
+    private long fullSyncTime = 0;
+    private final Set<String> fullSyncIds = new HashSet<>(); // the ids received during the full sync
+
     private List<ContactListener> contactListeners;
 
+    // the Firebase events waiting to be decoded, in arrival order. guarded by itself
+    private final Queue<ContactEvent> pendingEvents = new ArrayDeque<>();
+    private boolean isIngesting = false;
+
+    // decodes the events one batch at a time, so they are applied in order
+    private final ExecutorService ingestExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "chat21-contacts-sync");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    });
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // benchmark counters
+    private final AtomicLong ingestedCount = new AtomicLong();
+    private final AtomicLong ingestTimeNanos = new AtomicLong();
+    private final AtomicInteger batchCount = new AtomicInteger();
+    private final AtomicInteger callbackCount = new AtomicInteger();
+
     public ContactsSynchronizer(String firebaseUrl, String appId) {
+        this(null, firebaseUrl, appId);
+    }
+
+    /**
+     * @param context     the context used to persist the contacts, null to download them on every connection
+     * @param firebaseUrl the firebase url
+     * @param appId       the app id
+     */
+    public ContactsSynchronizer(Context context, String firebaseUrl, String appId) {
 
         contactListeners = new ArrayList<>();
 
+        this.context = context != null ? context.getApplicationContext() : null;
+        this.snapshotFileName = SNAPSHOT_FILE_PREFIX + appId;
+
         if (StringUtils.isValid(firebaseUrl)) {
             this.contactsNode = FirebaseDatabase.getInstance()
                     .getReferenceFromUrl(firebaseUrl)
@@ -50,7 +150,6 @@ public class ContactsSynchronizer {
                     .getReference()
                     .child("/apps/" + appId + "/contacts/");
         }
-        this.contactsNode.keepSynced(true);
 
         Log.d(DEBUG_CONTACTS_SYNC, "contactsNode : " + contactsNode.toString());
     }
@@ -62,83 +161,21 @@ public class ContactsSynchronizer {
 
             Log.d(DEBUG_CONTACTS_SYNC, "creating a new contactsChildEventListener");
 
-            contactsChildEventListener = contactsNode.orderByChild("firstname").addChildEventListener(new ChildEventListener() {
+            contactsChildEventListener = new ChildEventListener() {
                 @Override
                 public void onChildAdded(DataSnapshot dataSnapshot, String prevChildKey) {
-
-                    new AsyncTask<DataSnapshot, Void, Void>() {
-
-                        @Override
-                        protected Void doInBackground(DataSnapshot... snapshots) {
-                            Log.v(DEBUG_CONTACTS_SYNC, "ContactsSynchronizer.connect.onChildAdded");
-
-                            try {
-                                IChatUser contact = decodeContactSnapShop(snapshots[0]);
-                                Log.d(DEBUG_CONTACTS_SYNC, "ContactsSynchronizer.connect.onChildAdded.contact : " + contact);
-                                addContact(contact);
-                            } catch (ChatFieldNotFoundException cfnfe) {
-                                Log.w(DEBUG_CONTACTS_SYNC, "Error decoding contact on onChildAdded " + cfnfe.getMessage());
-//                                notifySubscriberAdded(null, new ChatRuntimeException(cfnfe));
-                            } catch (Exception e) {
-                                notifySubscriberAdded(null, new ChatRuntimeException(e));
-                            }
-                            return null;
-                        }
-
-                    }.execute(dataSnapshot);
+                    enqueueEvent(EVENT_ADDED, dataSnapshot);
                 }
 
                 //for return recepit
                 @Override
                 public void onChildChanged(DataSnapshot dataSnapshot, String prevChildKey) {
-
-//                    new AsyncTask<DataSnapshot, Void, Void>() {
-//                        @Override
-//                        protected Void doInBackground(DataSnapshot... snapshots) {
-//                            Log.v(DEBUG_CONTACTS_SYNC, "ContactsSynchronizer.connect.onChildChanged");
-
-                            try {
-                                IChatUser contact = decodeContactSnapShop(dataSnapshot);
-                                updateLoggedUser(contact);
-                                Log.d(DEBUG_CONTACTS_SYNC, "ContactsSynchronizer.connect.onChildChanged.contact : " + contact);
-                                updateContact(contact);
-                            } catch (ChatFieldNotFoundException cfnfe) {
-                                Log.w(DEBUG_CONTACTS_SYNC, "Error decoding contact on onChildChanged " + cfnfe.getMessage());
-//                                notifySubscriberChanged(null, new ChatRuntimeException(cfnfe));
-                            } catch (Exception e) {
-                                notifySubscriberChanged(null, new ChatRuntimeException(e));
-                            }
-//                            return null;
-//                        }
-//                    }.execute(dataSnapshot);
+                    enqueueEvent(EVENT_CHANGED, dataSnapshot);
                 }
 
                 @Override
                 public void onChildRemoved(DataSnapshot dataSnapshot) {
-                    Log.v(DEBUG_CONTACTS_SYNC, "ContactsSynchronizer.connect.onChildRemoved");
-
-                    try {
-                        IChatUser contact = decodeContactSnapShop(dataSnapshot);
-
-                        Log.d(DEBUG_CONTACTS_SYNC, "ContactsSynchronizer.connect.onChildRemoved.contact : " + contact);
-
-                        contacts.remove(contact);
-
-                        if (contactListeners != null) {
-                            for (ContactListener contactListener : contactListeners) {
-                                contactListener.onContactRemoved(contact, null);
-                            }
-                        }
-
-                    } catch (ChatFieldNotFoundException cfnfe) {
-                        Log.w(DEBUG_CONTACTS_SYNC, "Error decoding contact on onContactRemoved " + cfnfe.getMessage());
-                    } catch (Exception e) {
-                        if (contactListeners != null) {
-                            for (ContactListener contactListener : contactListeners) {
-                                contactListener.onContactRemoved(null, new ChatRuntimeException(e));
-                            }
-                        }
-                    }
+                    enqueueEvent(EVENT_REMOVED, dataSnapshot);
                 }
 
                 @Override
@@ -151,7 +188,11 @@ public class ContactsSynchronizer {
 //                Log.d(TAG, "observeMessages.onCancelled");
 
                 }
-            });
+            };
+            isConnected = true;
+
+            // the persisted contacts are delivered before the changes downloaded from Firebase
+            ingestExecutor.execute(loadSnapshotRunnable);
 
             Log.i(DEBUG_CONTACTS_SYNC, "connected for contacts ");
 
@@ -162,21 +203,375 @@ public class ContactsSynchronizer {
         return contactsChildEventListener;
     }
 
-    private void saveOrUpdateContactInMemory(IChatUser contact) {
-        Log.d(DEBUG_CONTACTS_SYNC, "saveOrUpdateContactInMemory  for contact : " + contact);
+    // called on the ingest thread
+    private final Runnable loadSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ContactsSnapshot snapshot = context != null ?
+                    (ContactsSnapshot) IOUtils.getObjectFromFile(context, snapshotFileName) : null;
 
-        int index = contacts.indexOf(contact);
+            if (snapshot != null) {
+                applyAdded(snapshot.getContacts());
 
-        if (index > -1) {
-            contacts.set(index, contact);
-            Log.v(DEBUG_CONTACTS_SYNC, "contact " + contact +
-                    "updated into contacts at position " + index);
+                // the deleted contacts are found only by downloading all the contacts
+                fullSyncTime = snapshot.getFullSyncTime();
+                if (System.currentTimeMillis() - fullSyncTime < FULL_SYNC_INTERVAL_MILLIS) {
+                    watermark = snapshot.getWatermark();
+                }
 
-        } else {
-            contacts.add(contact);
-            Log.v(DEBUG_CONTACTS_SYNC, "contact " + contact + "is not found into contacts." +
-                    " The contact was added at the end of the list");
+                Log.i(DEBUG_CONTACTS_SYNC, snapshot.getContacts().size() +
+                        " contacts loaded from disk. watermark: " + watermark);
+            }
+
+            isFullSync = watermark == ContactsSnapshot.NO_WATERMARK;
+            fullSyncIds.clear();
+
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    attachQuery();
+                }
+            });
+        }
+    };
+
+    /**
+     * @return true if connected, false otherwise. The contacts could still be downloading: see {@link #isSynchronized()}
+     */
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    /**
+     * @return true once the whole contacts directory has been downloaded and delivered to the listeners,
+     * so a contact not found by {@link #findById(String)} does not exist. It must be called from the main thread
+     */
+    public boolean isSynchronized() {
+        return isSynchronized;
+    }
+
+    // download only the contacts changed since the persisted snapshot.
+    // it needs the ".indexOn": "timestamp" rule on /apps/{appId}/contacts (see the class doc)
+    private void attachQuery() {
+        if (!isConnected || contactsQuery != null) {
+            return;
+        }
+
+        Query query = contactsNode.orderByChild(TIMESTAMP_FIELD_KEY);
+        if (watermark != ContactsSnapshot.NO_WATERMARK) {
+            // inclusive: the contacts changed at the same millisecond are downloaded again
+            query = query.startAt(watermark);
+        }
+        query.keepSynced(true);
+        query.addChildEventListener(contactsChildEventListener);
+
+        // delivered after the children of the first download
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                if (!isConnected) {
+                    return;
+                }
+
+                // after the children have been decoded and delivered
+                ingestExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFullSync) {
+                            removeDeletedContacts();
+                        }
+
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                isSynchronized = isConnected;
+                                Log.d(DEBUG_CONTACTS_SYNC, "contacts synchronized");
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Log.w(DEBUG_CONTACTS_SYNC, "contacts not synchronized: " + databaseError.getMessage());
+            }
+        });
+
+        contactsQuery = query;
+
+        Log.d(DEBUG_CONTACTS_SYNC, "contacts query attached from watermark: " + watermark);
+    }
+
+    private static class ContactEvent {
+        final int type;
+        final DataSnapshot snapshot;
+
+        ContactEvent(int type, DataSnapshot snapshot) {
+            this.type = type;
+            this.snapshot = snapshot;
+        }
+    }
+
+    // called on the main thread by the Firebase listener
+    private void enqueueEvent(int type, DataSnapshot dataSnapshot) {
+        synchronized (pendingEvents) {
+            pendingEvents.offer(new ContactEvent(type, dataSnapshot));
+
+            if (!isIngesting) {
+                isIngesting = true;
+                ingestExecutor.execute(ingestRunnable);
+            }
+        }
+    }
+
+    // drains the pending events one batch at a time.
+    // the events arrived while a batch is decoded are collected into the next batch
+    private final Runnable ingestRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                List<ContactEvent> batch = new ArrayList<>();
+
+                synchronized (pendingEvents) {
+                    while (batch.size() < MAX_BATCH_SIZE && !pendingEvents.isEmpty()) {
+                        batch.add(pendingEvents.poll());
+                    }
+
+                    if (batch.isEmpty()) {
+                        isIngesting = false;
+                        break;
+                    }
+                }
+
+                long start = System.nanoTime();
+                ingest(batch);
+                ingestTimeNanos.addAndGet(System.nanoTime() - start);
+                ingestedCount.addAndGet(batch.size());
+            }
+
+            // persist once all the pending events have been applied
+            if (isSnapshotChanged) {
+                scheduleSnapshotSave();
+            }
+        }
+    };
+
+    // called on the ingest thread, once the whole contacts node has been delivered
+    private void removeDeletedContacts() {
+        isFullSync = false;
+
+        for (IChatUser contact : contacts.getSortedContacts()) {
+            if (!fullSyncIds.contains(contact.getId())) {
+                contacts.remove(contact.getId());
+                searchIndex.unindex(contact.getId());
+                postRemoved(contact);
+            }
+        }
+        fullSyncIds.clear();
+
+        fullSyncTime = System.currentTimeMillis();
+        isSnapshotChanged = true;
+        scheduleSnapshotSave();
+    }
+
+    // called on the ingest thread. the whole contacts are written once per delay, not once per batch
+    private void scheduleSnapshotSave() {
+        if (context == null || isSnapshotSaveScheduled) {
+            return;
+        }
+        isSnapshotSaveScheduled = true;
+
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (!ingestExecutor.isShutdown()) {
+                    ingestExecutor.execute(saveSnapshotRunnable);
+                }
+            }
+        }, SNAPSHOT_SAVE_DELAY_MILLIS);
+    }
+
+    // called on the ingest thread
+    private final Runnable saveSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            isSnapshotSaveScheduled = false;
+
+            if (context == null || !isSnapshotChanged) {
+                return;
+            }
+            isSnapshotChanged = false;
+
+            ContactsSnapshot snapshot = new ContactsSnapshot(watermark, fullSyncTime,
+                    contacts.getSortedContacts());
+            IOUtils.saveObjectToFile(context, snapshotFileName, snapshot);
+        }
+    };
+
+    /**
+     * Delete the contacts persisted on disk, ie. on logout.
+     * The next connection downloads all the contacts again
+     */
+    public void deleteSnapshot() {
+        if (context == null) {
+            return;
+        }
+
+        // after the pending writes
+        ingestExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                watermark = ContactsSnapshot.NO_WATERMARK;
+                fullSyncTime = 0;
+                isSnapshotChanged = false;
+                IOUtils.deleteObject(context, snapshotFileName);
+            }
+        });
+    }
+
+    // called on the ingest thread
+    private void ingest(List<ContactEvent> batch) {
+        List<IChatUser> added = new ArrayList<>();
+
+        for (ContactEvent event : batch) {
+            IChatUser contact;
+            try {
+                Map<String, Object> map = SnapshotUtils.asMap(event.snapshot.getValue());
+                contact = decodeContact(event.snapshot.getKey(), map);
+
+                Long timestamp = SnapshotUtils.getLong(map, TIMESTAMP_FIELD_KEY);
+                if (timestamp != null && timestamp > watermark) {
+                    watermark = timestamp;
+                }
+                isSnapshotChanged = true;
+
+                if (isFullSync && event.type != EVENT_REMOVED) {
+                    fullSyncIds.add(contact.getId());
+                }
+            } catch (ChatFieldNotFoundException cfnfe) {
+                Log.w(DEBUG_CONTACTS_SYNC, "Error decoding contact " + cfnfe.getMessage());
+                continue;
+            } catch (Exception e) {
+                postError(event.type, new ChatRuntimeException(e));
+                continue;
+            }
+
+            if (event.type == EVENT_ADDED) {
+                added.add(contact);
+                continue;
+            }
+
+            // the added contacts are delivered before the change, so the order is preserved
+            applyAdded(added);
+            added = new ArrayList<>();
+
+            if (event.type == EVENT_CHANGED) {
+                contacts.upsert(contact);
+                searchIndex.index(contact);
+                postChanged(contact);
+            } else {
+                contacts.remove(contact.getId());
+                searchIndex.unindex(contact.getId());
+                postRemoved(contact);
+            }
+        }
+
+        applyAdded(added);
+    }
+
+    // the whole batch is saved at once and delivered with a single callback
+    private void applyAdded(final List<IChatUser> added) {
+        if (added.isEmpty()) {
+            return;
         }
+
+        contacts.upsertAll(added);
+        searchIndex.indexAll(added);
+        batchCount.incrementAndGet();
+
+        Log.d(DEBUG_CONTACTS_SYNC, "ContactsSynchronizer.applyAdded: " + added.size() + " contacts received");
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                notifySubscribersReceived(added, null);
+            }
+        });
+    }
+
+    private void postChanged(final IChatUser contact) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(DEBUG_CONTACTS_SYNC, "ContactsSynchronizer.connect.onChildChanged.contact : " + contact);
+
+                updateLoggedUser(contact);
+                notifySubscriberChanged(contact, null);
+            }
+        });
+    }
+
+    private void postRemoved(final IChatUser contact) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(DEBUG_CONTACTS_SYNC, "ContactsSynchronizer.connect.onChildRemoved.contact : " + contact);
+
+                notifySubscriberRemoved(contact, null);
+            }
+        });
+    }
+
+    private void postError(final int type, final ChatRuntimeException exception) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (type == EVENT_ADDED) {
+                    notifySubscribersReceived(null, exception);
+                } else if (type == EVENT_CHANGED) {
+                    notifySubscriberChanged(null, exception);
+                } else {
+                    notifySubscriberRemoved(null, exception);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of Firebase contact events decoded so far
+     */
+    public long getIngestedCount() {
+        return ingestedCount.get();
+    }
+
+    /**
+     * @return the number of batches of received contacts
+     */
+    public int getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return the number of listener callbacks invoked so far
+     */
+    public int getCallbackCount() {
+        return callbackCount.get();
+    }
+
+    /**
+     * @return the decoded contact events per second, excluding the time spent waiting for Firebase
+     */
+    public long getIngestThroughputPerSecond() {
+        long nanos = ingestTimeNanos.get();
+        return nanos == 0 ? 0 : ingestedCount.get() * 1000000000L / nanos;
+    }
+
+    private void saveOrUpdateContactInMemory(IChatUser contact) {
+        Log.d(DEBUG_CONTACTS_SYNC, "saveOrUpdateContactInMemory  for contact : " + contact);
+
+        contacts.upsert(contact);
+        searchIndex.index(contact);
     }
 
 //    private void saveOrUpdateContactOnStorage(IChatUser contact) {
@@ -196,12 +591,25 @@ public class ContactsSynchronizer {
 //        }
 //    }
 
+    /**
+     * @return an immutable snapshot of the contacts sorted by full name
+     */
     public List<IChatUser> getContacts() {
-        return contacts;
+        return contacts.getSortedContacts();
     }
 
     public void setContacts(List<IChatUser> contacts) {
-        this.contacts = contacts;
+        this.contacts.replaceAll(contacts);
+
+        searchIndex.clear();
+        searchIndex.indexAll(contacts);
+    }
+
+    /**
+     * @return the search index of the contacts, kept up to date with the synchronized contacts
+     */
+    public ContactSearchIndex getSearchIndex() {
+        return searchIndex;
     }
 
     public List<ContactListener> getContactListeners() {
@@ -271,6 +679,26 @@ public class ContactsSynchronizer {
         if (contactListeners != null) {
             for (ContactListener contactListener : contactListeners) {
                 contactListener.onContactReceived(contact, exception);
+                callbackCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void notifySubscribersReceived(List<IChatUser> contacts, ChatRuntimeException exception) {
+        if (contactListeners != null) {
+            for (ContactListener contactListener : contactListeners) {
+                if (contactListener instanceof ContactsBatchListener) {
+                    ((ContactsBatchListener) contactListener).onContactsReceived(contacts, exception);
+                    callbackCount.incrementAndGet();
+                } else if (contacts == null) {
+                    contactListener.onContactReceived(null, exception);
+                    callbackCount.incrementAndGet();
+                } else {
+                    for (IChatUser contact : contacts) {
+                        contactListener.onContactReceived(contact, null);
+                        callbackCount.incrementAndGet();
+                    }
+                }
             }
         }
     }
@@ -279,6 +707,16 @@ public class ContactsSynchronizer {
         if (contactListeners != null) {
             for (ContactListener contactListener : contactListeners) {
                 contactListener.onContactChanged(contact, exception);
+                callbackCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void notifySubscriberRemoved(IChatUser contact, ChatRuntimeException exception) {
+        if (contactListeners != null) {
+            for (ContactListener contactListener : contactListeners) {
+                contactListener.onContactRemoved(contact, exception);
+                callbackCount.incrementAndGet();
             }
         }
     }
@@ -290,12 +728,7 @@ public class ContactsSynchronizer {
      * @return the contact if exists, null otherwise
      */
     public IChatUser findById(String contactId) {
-        for (IChatUser contact : contacts) {
-            if (contact.getId().equals(contactId)) {
-                return contact;
-            }
-        }
-        return null;
+        return contacts.findById(contactId);
     }
 
     // update the serialized logged user
@@ -308,27 +741,27 @@ public class ContactsSynchronizer {
     }
 
     public static IChatUser decodeContactSnapShop(DataSnapshot dataSnapshot) throws ChatFieldNotFoundException {
-        Log.v(DEBUG_CONTACTS_SYNC, "decodeContactSnapShop called");
-
-        Map<String, Object> map = (Map<String, Object>) dataSnapshot.getValue();
-
-        String contactId = dataSnapshot.getKey();
+        return decodeContact(dataSnapshot.getKey(), SnapshotUtils.asMap(dataSnapshot.getValue()));
+    }
 
-        String uid = (String) map.get("uid");
+    /**
+     * Decode the raw contact values, as returned by {@link DataSnapshot#getValue()}.
+     * It can be called from any thread
+     *
+     * @param contactId the contact node key
+     * @param map       the contact values
+     * @return the decoded contact
+     */
+    public static IChatUser decodeContact(String contactId, Map<String, Object> map) throws ChatFieldNotFoundException {
+        String uid = map != null ? SnapshotUtils.getString(map, "uid") : null;
         if (uid == null) {
             throw new ChatFieldNotFoundException("Required uid field is null for contact id : " + contactId);
         }
 
-        String firstName = (String) map.get("firstname");
-        String lastName = (String) map.get("lastname");
-        String imageUrl = (String) map.get("imageurl");
-        String email = (String) map.get("email");
-
-
-        Long timestamp = null;
-        if (map.containsKey("timestamp")) {
-            timestamp = (Long) map.get("timestamp");
-        }
+        String firstName = SnapshotUtils.getString(map, "firstname");
+        String lastName = SnapshotUtils.getString(map, "lastname");
+        String imageUrl = SnapshotUtils.getString(map, "imageurl");
+        String email = SnapshotUtils.getString(map, "email");
 
         IChatUser contact = new ChatUser();
         contact.setId(uid);
@@ -336,13 +769,31 @@ public class ContactsSynchronizer {
         contact.setProfilePictureUrl(imageUrl);
         contact.setEmail(email);
 
-        Log.v(DEBUG_CONTACTS_SYNC, "decodeContactSnapShop.contact : " + contact);
+        if (Log.isLoggable(DEBUG_DECODE, Log.VERBOSE)) {
+            Log.v(DEBUG_DECODE, "decodeContact.contact : " + contact);
+        }
 
         return contact;
     }
 
     public void disconnect() {
-        this.contactsNode.removeEventListener(this.contactsChildEventListener);
+        isConnected = false;
+        isSynchronized = false;
+        if (contactsQuery != null) {
+            contactsQuery.removeEventListener(this.contactsChildEventListener);
+            contactsQuery.keepSynced(false);
+            contactsQuery = null;
+        }
         this.removeAllContactsListeners();
+
+        synchronized (pendingEvents) {
+            pendingEvents.clear();
+        }
+
+        // write the changes still waiting for the save delay
+        if (!ingestExecutor.isShutdown()) {
+            ingestExecutor.execute(saveSnapshotRunnable);
+            ingestExecutor.shutdown();
+        }
     }
 }
\ No newline at end of file
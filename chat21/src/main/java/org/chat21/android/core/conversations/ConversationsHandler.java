@@ -11,16 +11,21 @@ import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
 import org.chat21.android.core.ChatManager;
+import org.chat21.android.core.conversations.listeners.ConversationPositionListener;
 import org.chat21.android.core.conversations.listeners.ConversationsListener;
 import org.chat21.android.core.conversations.models.Conversation;
 import org.chat21.android.core.exception.ChatRuntimeException;
+import org.chat21.android.utils.SnapshotUtils;
 import org.chat21.android.utils.StringUtils;
+import org.chat21.android.utils.collections.IndexedSortedList;
+import org.chat21.android.utils.concurrent.DecodeQueue;
+
+import static org.chat21.android.utils.DebugConstants.DEBUG_DECODE;
 
 /**
  * Created by andrealeo on 18/12/17.
@@ -29,19 +34,23 @@ import org.chat21.android.utils.StringUtils;
 public class ConversationsHandler {
     private static final String TAG = ConversationsHandler.class.getName();
 
-    private List<Conversation> conversations;
+    private IndexedSortedList<Conversation> conversations;
     private DatabaseReference conversationsNode;
     private String appId;
-    private String currentUserId;
+    private final String currentUserId; // captured once: the snapshots are decoded on worker threads
     private List<ConversationsListener> conversationsListeners;
+    private List<ConversationPositionListener> conversationPositionListeners;
     private ChildEventListener conversationsChildEventListener;
     private Comparator<Conversation> conversationComparator;
 
     private String currentOpenConversationId;
 
+    // snapshots are decoded out of the main thread, in the order they are received
+    private final DecodeQueue decodeQueue = new DecodeQueue();
+
     public ConversationsHandler(String firebaseUrl, String appId, String currentUserId) {
         conversationsListeners = new ArrayList<ConversationsListener>();
-        conversations = new ArrayList<>(); // conversations in memory
+        conversationPositionListeners = new ArrayList<>();
 
         this.appId = appId;
         this.currentUserId = currentUserId;
@@ -57,19 +66,31 @@ public class ConversationsHandler {
         }
         this.conversationsNode.keepSynced(true);
 
+        // the most recent conversation first.
+        // conversations without timestamp are kept at the end of the list
         conversationComparator = new Comparator<Conversation>() {
             @Override
             public int compare(Conversation o1, Conversation o2) {
-                try {
-                    return o2.getTimestampLong().compareTo(o1.getTimestampLong());
-                } catch (Exception e) {
-                    Log.e(TAG, "ConversationHandler.sortConversationsInMemory: " +
-                            "cannot compare conversations timestamp", e);
-                    return 0;
+                Long first = o1.getTimestampLong();
+                Long second = o2.getTimestampLong();
+
+                if (first == null) {
+                    return second == null ? 0 : 1;
+                } else if (second == null) {
+                    return -1;
                 }
+                return second.compareTo(first);
             }
         };
 
+        // conversations in memory, indexed by id and sorted by timestamp
+        conversations = new IndexedSortedList<>(new IndexedSortedList.KeyProvider<Conversation>() {
+            @Override
+            public String getKey(Conversation conversation) {
+                return conversation.getConversationId();
+            }
+        }, conversationComparator);
+
 //        Log.d(TAG, "ConversationsHandler.conversationsNode == " + conversationsNode.toString());
     }
 
@@ -84,21 +105,34 @@ public class ConversationsHandler {
 
             this.conversationsChildEventListener = conversationsNode.addChildEventListener(new ChildEventListener() {
                 @Override
-                public void onChildAdded(DataSnapshot dataSnapshot, String prevChildKey) {
+                public void onChildAdded(final DataSnapshot dataSnapshot, String prevChildKey) {
                     Log.d(TAG, "ConversationsHandler.connect.onChildAdded");
 
-                    try {
-                        Conversation conversation = decodeConversationFromSnapshot(dataSnapshot);
+                    decodeQueue.enqueue(new DecodeQueue.Task<Conversation>() {
+                        @Override
+                        public Conversation decode() {
+                            return decodeConversationFromSnapshot(dataSnapshot, currentUserId);
+                        }
 
-                        // it sets the conversation as read if the person whom are talking to is the current user
-                        if (currentUserId.equals(conversation.getSender())) {
-                            setConversationRead(conversation.getConversationId());
+                        @Override
+                        public void onDecoded(Conversation conversation) {
+                            try {
+                                // it sets the conversation as read if the person whom are talking to is the current user
+                                if (currentUserId.equals(conversation.getSender())) {
+                                    setConversationRead(conversation.getConversationId());
+                                }
+
+                                addConversation(conversation);
+                            } catch (Exception e) {
+                                notifyConversationAdded(null, new ChatRuntimeException(e));
+                            }
                         }
 
-                        addConversation(conversation);
-                    } catch (Exception e) {
-                        notifyConversationAdded(null, new ChatRuntimeException(e));
-                    }
+                        @Override
+                        public void onDecodeFailed(Exception e) {
+                            notifyConversationAdded(null, new ChatRuntimeException(e));
+                        }
+                    });
 
 //                    try {
 //                        Conversation conversation = decodeConversationFromSnapshot(dataSnapshot);
@@ -128,15 +162,25 @@ public class ConversationsHandler {
 
                 //for return receipt
                 @Override
-                public void onChildChanged(DataSnapshot dataSnapshot, String prevChildKey) {
+                public void onChildChanged(final DataSnapshot dataSnapshot, String prevChildKey) {
                     Log.d(TAG, "observeMessages.onChildChanged");
 
-                    try {
-                        Conversation conversation = decodeConversationFromSnapshot(dataSnapshot);
-                        updateConversation(conversation);
-                    } catch (Exception e) {
-                        notifyConversationChanged(null, new ChatRuntimeException(e));
-                    }
+                    decodeQueue.enqueue(new DecodeQueue.Task<Conversation>() {
+                        @Override
+                        public Conversation decode() {
+                            return decodeConversationFromSnapshot(dataSnapshot, currentUserId);
+                        }
+
+                        @Override
+                        public void onDecoded(Conversation conversation) {
+                            updateConversation(conversation);
+                        }
+
+                        @Override
+                        public void onDecodeFailed(Exception e) {
+                            notifyConversationChanged(null, new ChatRuntimeException(e));
+                        }
+                    });
 
 //                    try {
 //                        Conversation conversation = decodeConversationFromSnapshot(dataSnapshot);
@@ -208,66 +252,32 @@ public class ConversationsHandler {
         this.currentOpenConversationId = currentOpenConversationId;
     }
 
+    /**
+     * @return the conversations sorted by timestamp, the most recent first
+     */
     public List<Conversation> getConversations() {
-        sortConversationsInMemory(); // ensure to return a sorted list
         return conversations;
     }
 
     // it checks if the conversation already exists.
-    // if the conversation exists update it, add it otherwise
+    // if the conversation exists update it and move it to its new position, add it otherwise
     private void saveOrUpdateConversationInMemory(Conversation newConversation) {
+        int oldPosition = conversations.indexOfKey(newConversation.getConversationId());
+        int newPosition = conversations.upsert(newConversation);
 
-        // look for the conversation
-        int index = -1;
-        for (Conversation tempConversation : conversations) {
-            if (tempConversation.equals(newConversation)) {
-                index = conversations.indexOf(tempConversation);
-                break;
-            }
-        }
-
-        if (index != -1) {
-            // conversation already exists
-            conversations.set(index, newConversation); // update the existing conversation
-        } else {
-            // conversation not exists
-            conversations.add(newConversation); // insert a new conversation
-        }
+        notifyConversationPositionChanged(newConversation, oldPosition, newPosition);
     }
 
     // it checks if the conversation already exists.
     // if the conversation exists delete it
     private void deleteConversationFromMemory(Conversation conversationToDelete) {
-        // look for the conversation
-        int index = -1;
-        for (Conversation tempConversation : conversations) {
-            if (tempConversation.equals(conversationToDelete)) {
-                index = conversations.indexOf(tempConversation);
-                break;
-            }
-        }
-
-        if (index != -1) {
-            // conversation already exists
-            conversations.remove(index); // delete existing conversation
-        }
-    }
-
-    private void sortConversationsInMemory() {
-        Log.d(TAG, "ConversationHandler.sortConversationsInMemory");
-
-        // check if the list has al least 1 item.
-        // 1 item is already sorted
-        if (conversations.size() > 1) {
-            Collections.sort(conversations, conversationComparator);
-        }
+        conversations.removeByKey(conversationToDelete.getConversationId());
     }
 
     public void addConversation(Conversation conversation) {
 
         try {
             saveOrUpdateConversationInMemory(conversation);
-            sortConversationsInMemory();
             notifyConversationAdded(conversation, null);
         } catch (Exception e) {
             notifyConversationAdded(null, new ChatRuntimeException(e));
@@ -278,7 +288,6 @@ public class ConversationsHandler {
 
         try {
             saveOrUpdateConversationInMemory(conversation);
-            sortConversationsInMemory();
             notifyConversationChanged(conversation, null);
         } catch (Exception e) {
             notifyConversationChanged(null, new ChatRuntimeException(e));
@@ -301,96 +310,82 @@ public class ConversationsHandler {
         }
     }
 
-    public static Conversation decodeConversationFromSnapshot(DataSnapshot dataSnapshot) {
-        Log.d(TAG, "ConversationHandler.decodeConversationFromSnapshop");
-
-        Conversation conversation = new Conversation();
-
-        // conversationId
-        conversation.setConversationId(dataSnapshot.getKey());
-        Log.d(TAG, "ConversationsHandler.decodeConversationSnapshop: conversationId = " +
-                conversation.getConversationId());
-
-        Map<String, Object> map = (Map<String, Object>) dataSnapshot.getValue();
-
-        // is_new
-        try {
-            boolean is_new = (boolean) map.get("is_new");
-            conversation.setIs_new(is_new);
-        } catch (Exception e) {
-            Log.e(TAG, "ConversationsHandler.decodeConversationSnapshop:" +
-                    " cannot retrieve is_new");
+    private void notifyConversationPositionChanged(Conversation conversation, int oldPosition, int newPosition) {
+        if (conversationPositionListeners != null) {
+            for (ConversationPositionListener conversationPositionListener : conversationPositionListeners) {
+                conversationPositionListener.onConversationPositionChanged(conversation, oldPosition, newPosition);
+            }
         }
+    }
 
-        // last_message_text
-        try {
-            String last_message_text = (String) map.get("last_message_text");
-            conversation.setLast_message_text(last_message_text);
-        } catch (Exception e) {
-            Log.e(TAG, "ConversationsHandler.decodeConversationSnapshop: " +
-                    "cannot retrieve last_message_text");
-        }
+    /**
+     * Decode the conversation of the logged user. It must be called from the main thread
+     *
+     * @param dataSnapshot the datasnapshot to decode
+     * @return the decoded conversation
+     * @deprecated read the logged user once on the main thread and use
+     * {@link #decodeConversationFromSnapshot(DataSnapshot, String)} instead
+     */
+    @Deprecated
+    public static Conversation decodeConversationFromSnapshot(DataSnapshot dataSnapshot) {
+        return decodeConversationFromSnapshot(dataSnapshot,
+                ChatManager.getInstance().getLoggedUser().getId());
+    }
 
-        // recipient
-        try {
-            String recipient = (String) map.get("recipient");
-            conversation.setRecipient(recipient);
-        } catch (Exception e) {
-            Log.e(TAG, "ConversationsHandler.decodeConversationSnapshop:" +
-                    " cannot retrieve recipient");
-        }
+    /**
+     * It can be called from any thread
+     *
+     * @param dataSnapshot  the datasnapshot to decode
+     * @param currentUserId the id of the logged user, owner of the conversation
+     * @return the decoded conversation
+     */
+    public static Conversation decodeConversationFromSnapshot(DataSnapshot dataSnapshot, String currentUserId) {
+        return decodeConversation(dataSnapshot.getKey(), SnapshotUtils.asMap(dataSnapshot.getValue()),
+                currentUserId);
+    }
 
-        // rrecipient_fullname
-        try {
-            String recipientFullName = (String) map.get("recipient_fullname");
-            conversation.setRecipientFullName(recipientFullName);
-        } catch (Exception e) {
-            Log.e(TAG, "cannot retrieve recipient_fullname");
-        }
+    /**
+     * Decode the raw conversation values, as returned by {@link DataSnapshot#getValue()}.
+     * Missing fields are left unset.
+     * It can be called from any thread
+     *
+     * @param conversationId the conversation id
+     * @param map            the conversation values
+     * @param currentUserId  the id of the logged user, owner of the conversation
+     * @return the decoded conversation
+     */
+    public static Conversation decodeConversation(String conversationId, Map<String, Object> map,
+                                                  String currentUserId) {
+        Conversation conversation = new Conversation();
 
-        // sender
-        try {
-            String sender = (String) map.get("sender");
-            conversation.setSender(sender);
-        } catch (Exception e) {
-            Log.e(TAG, "cannot retrieve sender");
-        }
+        // conversationId
+        conversation.setConversationId(conversationId);
 
-        // sender_fullname
-        try {
-            String sender_fullname = (String) map.get("sender_fullname");
-            conversation.setSender_fullname(sender_fullname);
-        } catch (Exception e) {
-            Log.e(TAG, "cannot retrieve sender_fullname");
-        }
+        if (map != null) {
+            Boolean is_new = SnapshotUtils.getBoolean(map, "is_new");
+            if (is_new != null) {
+                conversation.setIs_new(is_new);
+            }
 
-        // status
-        try {
-            long status = (long) map.get("status");
-            conversation.setStatus((int) status);
-        } catch (Exception e) {
-            Log.e(TAG, "cannot retrieve status");
-        }
+            conversation.setLast_message_text(SnapshotUtils.getString(map, "last_message_text"));
+            conversation.setRecipient(SnapshotUtils.getString(map, "recipient"));
+            conversation.setRecipientFullName(SnapshotUtils.getString(map, "recipient_fullname"));
+            conversation.setSender(SnapshotUtils.getString(map, "sender"));
+            conversation.setSender_fullname(SnapshotUtils.getString(map, "sender_fullname"));
 
-        // timestamp
-        try {
-            long timestamp = (long) map.get("timestamp");
-            conversation.setTimestamp(timestamp);
-        } catch (Exception e) {
-            Log.e(TAG, "cannot retrieve timestamp");
-        }
+            Long status = SnapshotUtils.getLong(map, "status");
+            if (status != null) {
+                conversation.setStatus(status.intValue());
+            }
 
-        try {
-            String channelType = (String) map.get("channel_type");
-            conversation.setChannelType(channelType);
-        } catch (Exception e) {
-            Log.e(TAG, "cannot retrieve channel_type");
+            conversation.setTimestamp(SnapshotUtils.getLong(map, "timestamp"));
+            conversation.setChannelType(SnapshotUtils.getInternedString(map, "channel_type"));
+        } else if (Log.isLoggable(DEBUG_DECODE, Log.WARN)) {
+            Log.w(DEBUG_DECODE, "decodeConversation: no values for conversationId = " + conversationId);
         }
 
-
         // convers with
-        if (conversation.getRecipient()
-                .equals(ChatManager.getInstance().getLoggedUser().getId())) {
+        if (conversation.getRecipient() != null && conversation.getRecipient().equals(currentUserId)) {
             conversation.setConvers_with(conversation.getSender());
             conversation.setConvers_with_fullname(conversation.getSender_fullname());
         } else {
@@ -398,6 +393,10 @@ public class ConversationsHandler {
             conversation.setConvers_with_fullname(conversation.getRecipientFullName());
         }
 
+        if (Log.isLoggable(DEBUG_DECODE, Log.VERBOSE)) {
+            Log.v(DEBUG_DECODE, "decodeConversation: conversationId = " + conversationId);
+        }
+
         return conversation;
     }
 
@@ -462,7 +461,7 @@ public class ConversationsHandler {
     public void upsertConversationsListener(ConversationsListener conversationsListener) {
         Log.v(TAG, "  upsertGroupsListener called");
 
-        if (conversations.contains(conversationsListener)) {
+        if (conversationsListeners.contains(conversationsListener)) {
             this.removeConversationsListener(conversationsListener);
             this.addConversationsListener(conversationsListener);
             Log.i(TAG, "  conversationsListener with hashCode: " +
@@ -477,15 +476,36 @@ public class ConversationsHandler {
 
     public void removeAllConversationsListeners() {
         this.conversationsListeners = null;
+        this.conversationPositionListeners = null;
         Log.i(TAG, "Removed all ConversationsListeners");
     }
 
+    public void addConversationPositionListener(ConversationPositionListener conversationPositionListener) {
+        if (conversationPositionListeners != null &&
+                !conversationPositionListeners.contains(conversationPositionListener)) {
+            this.conversationPositionListeners.add(conversationPositionListener);
+        }
+    }
+
+    public void removeConversationPositionListener(ConversationPositionListener conversationPositionListener) {
+        if (conversationPositionListeners != null)
+            this.conversationPositionListeners.remove(conversationPositionListener);
+    }
+
     public ChildEventListener getConversationsChildEventListener() {
         return conversationsChildEventListener;
     }
 
+    /**
+     * @return the queue decoding the conversations snapshots. Useful to measure the decode time
+     */
+    public DecodeQueue getDecodeQueue() {
+        return decodeQueue;
+    }
+
     public void disconnect() {
         this.conversationsNode.removeEventListener(this.conversationsChildEventListener);
+        this.decodeQueue.cancel();
         this.removeAllConversationsListeners();
     }
 
@@ -522,11 +542,6 @@ public class ConversationsHandler {
      * @return the conversation if exists, null otherwise
      */
     public Conversation getById(String conversationId) {
-        for (Conversation conversation : conversations) {
-            if (conversation.getConversationId().equals(conversationId)) {
-                return conversation;
-            }
-        }
-        return null;
+        return conversations.getByKey(conversationId);
     }
 }
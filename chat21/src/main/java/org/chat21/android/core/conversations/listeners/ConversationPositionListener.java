@@ -0,0 +1,17 @@
+package org.chat21.android.core.conversations.listeners;
+
+import org.chat21.android.core.conversations.models.Conversation;
+
+/**
+ * Notified every time a conversation is added or updated into the sorted conversations list.
+ * It allows the adapters to animate a single insert/move instead of refreshing the whole list.
+ */
+public interface ConversationPositionListener {
+
+    /**
+     * @param conversation the added or updated conversation
+     * @param oldPosition  the position before the update, -1 if the conversation is new
+     * @param newPosition  the position after the update
+     */
+    void onConversationPositionChanged(Conversation conversation, int oldPosition, int newPosition);
+}
@@ -0,0 +1,119 @@
+package org.chat21.android.core.messages.cache;
+
+import org.chat21.android.core.messages.models.Message;
+
+import java.util.List;
+
+/**
+ * On-device storage of the conversations messages.
+ * <p/>
+ * It is used by {@link org.chat21.android.core.messages.handlers.ConversationMessagesHandler}
+ * to render the last messages of a conversation before the Firebase listener is attached
+ * and to download only the messages newer than the last cached one.
+ * <p/>
+ * Implement it to plug a different backend (ie. an in-memory fake for unit tests).
+ */
+public interface MessageCache {
+
+    long NO_TIMESTAMP = -1;
+
+    /**
+     * Tags enclosing the matching words of a {@link MessageSearchResult#getSnippet()}.
+     * The rest of the snippet is html escaped
+     */
+    String SNIPPET_MATCH_START = "<b>";
+    String SNIPPET_MATCH_END = "</b>";
+
+    interface OnCachedMessagesLoadedCallback {
+
+        /**
+         * Called on the main thread
+         *
+         * @param messages      the last messages of the conversation, the oldest first
+         * @param lastTimestamp the timestamp of the last message received from the server,
+         *                      {@link #NO_TIMESTAMP} if not exists
+         */
+        void onCachedMessagesLoaded(List<Message> messages, long lastTimestamp);
+    }
+
+    /**
+     * Read the last messages and the last timestamp of a conversation out of the main thread,
+     * after the messages saved before this call
+     *
+     * @param conversationId the conversation id
+     * @param limit          the max number of messages to return. 0 to read only the last timestamp
+     * @param callback       called on the main thread
+     */
+    void loadLastMessages(String conversationId, int limit, OnCachedMessagesLoadedCallback callback);
+
+    /**
+     * Returns the last messages of a conversation.
+     * <p/>
+     * It reads the storage synchronously: call it out of the main thread.
+     *
+     * @param conversationId the conversation id
+     * @param limit          the max number of messages to return
+     * @return the messages sorted by timestamp, the oldest first
+     */
+    List<Message> getLastMessages(String conversationId, int limit);
+
+    /**
+     * Returns the timestamp of the last message received from the server.
+     * Local messages not sent yet are not considered.
+     * <p/>
+     * It reads the storage synchronously: call it out of the main thread.
+     *
+     * @param conversationId the conversation id
+     * @return the timestamp if exists, {@link #NO_TIMESTAMP} otherwise
+     */
+    long getLastTimestamp(String conversationId);
+
+    /**
+     * Add the message if not exists, update it otherwise
+     *
+     * @param conversationId the conversation id
+     * @param message        the message to save
+     */
+    void saveMessage(String conversationId, Message message);
+
+    /**
+     * Full-text search over the text of the cached messages of all the conversations.
+     * Each word of the query matches the words starting with it.
+     * <p/>
+     * It reads the storage synchronously: call it out of the main thread.
+     *
+     * @param query  the words to search
+     * @param offset the number of results to skip
+     * @param limit  the max number of results to return
+     * @return the matching messages, the most recent first
+     */
+    List<MessageSearchResult> searchMessages(String query, int offset, int limit);
+
+    /**
+     * Delete all the messages of a conversation
+     *
+     * @param conversationId the conversation id
+     */
+    void deleteConversation(String conversationId);
+
+    /**
+     * Delete the messages of a conversation older than a timestamp,
+     * ie. when the history between them and the newer messages has not been downloaded
+     *
+     * @param conversationId the conversation id
+     * @param timestamp      the messages with a lower timestamp are deleted
+     */
+    void deleteMessagesBefore(String conversationId, long timestamp);
+
+    /**
+     * Delete all the cached messages, ie. on logout.
+     * They are deleted after the pending writes, a read started after this call finds no messages
+     */
+    void clear();
+
+    /**
+     * Release the storage after the pending operations, ie. on logout.
+     * The cache cannot be used anymore
+     */
+    void close();
+}
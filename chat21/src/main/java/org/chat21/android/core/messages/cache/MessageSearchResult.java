@@ -0,0 +1,50 @@
+package org.chat21.android.core.messages.cache;
+
+/**
+ * A message matching a full-text search over the cached messages
+ */
+public class MessageSearchResult {
+
+    private final String conversationId;
+    private final String messageId;
+    private final String snippet;
+    private final long timestamp;
+
+    public MessageSearchResult(String conversationId, String messageId, String snippet, long timestamp) {
+        this.conversationId = conversationId;
+        this.messageId = messageId;
+        this.snippet = snippet;
+        this.timestamp = timestamp;
+    }
+
+    public String getConversationId() {
+        return conversationId;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return the html escaped text around the matching words, with the matching words enclosed by
+     * {@link MessageCache#SNIPPET_MATCH_START} and {@link MessageCache#SNIPPET_MATCH_END}.
+     * It is safe to pass it to {@link android.text.Html#fromHtml(String)}
+     */
+    public String getSnippet() {
+        return snippet;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageSearchResult{" +
+                "conversationId='" + conversationId + '\'' +
+                ", messageId='" + messageId + '\'' +
+                ", snippet='" + snippet + '\'' +
+                ", timestamp=" + timestamp +
+                '}';
+    }
+}
@@ -0,0 +1,507 @@
+package org.chat21.android.core.messages.cache;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.chat21.android.core.messages.models.Message;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link MessageCache} backed by a SQLite database.
+ * <p/>
+ * Each user has its own database, so the messages of a user are never restored for another one.
+ * Writes and {@link #loadLastMessages(String, int, OnCachedMessagesLoadedCallback)} are serialized
+ * on a background thread, keeping the main thread and the Firebase callbacks fast,
+ * and a read sees all the messages saved before it.
+ * <p/>
+ * Call {@link #close()} when the user logs out: the database and the background thread are released
+ * after the pending writes.
+ * <p/>
+ * The message texts are indexed by a FTS4 table, updated with the messages in the same transaction
+ * and only when the text changes (the status updates are not reindexed).
+ */
+public class SQLiteMessageCache extends SQLiteOpenHelper implements MessageCache {
+    private static final String TAG = SQLiteMessageCache.class.getName();
+
+    private static final String DATABASE_NAME_PREFIX = "chat21_messages_";
+    private static final String DATABASE_NAME_SUFFIX = ".db";
+    private static final int DATABASE_VERSION = 1;
+
+    // control characters cannot be typed in a message, so they mark the matches safely
+    // until the snippet text is escaped
+    private static final String RAW_MATCH_START = "\u0001";
+    private static final String RAW_MATCH_END = "\u0002";
+
+    static final String TABLE_MESSAGES = "messages";
+    static final String TABLE_MESSAGES_FTS = "messages_fts";
+
+    static final String COLUMN_ROW_ID = "_id";
+    static final String COLUMN_ID = "id";
+    static final String COLUMN_CONVERSATION_ID = "conversation_id";
+    static final String COLUMN_SENDER = "sender";
+    static final String COLUMN_SENDER_FULLNAME = "sender_fullname";
+    static final String COLUMN_RECIPIENT = "recipient";
+    static final String COLUMN_RECIPIENT_FULLNAME = "recipient_fullname";
+    static final String COLUMN_TEXT = "text";
+    static final String COLUMN_STATUS = "status";
+    static final String COLUMN_TIMESTAMP = "timestamp";
+    static final String COLUMN_TYPE = "type";
+    static final String COLUMN_CHANNEL_TYPE = "channel_type";
+    static final String COLUMN_METADATA = "metadata";
+
+    private static final String[] MESSAGE_COLUMNS = {
+            COLUMN_ID, COLUMN_SENDER, COLUMN_SENDER_FULLNAME, COLUMN_RECIPIENT,
+            COLUMN_RECIPIENT_FULLNAME, COLUMN_TEXT, COLUMN_STATUS, COLUMN_TIMESTAMP,
+            COLUMN_TYPE, COLUMN_CHANNEL_TYPE, COLUMN_METADATA};
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param userId the id of the logged user, owner of the cached messages
+     */
+    public SQLiteMessageCache(Context context, String userId) {
+        super(context.getApplicationContext(), getDatabaseName(userId), null, DATABASE_VERSION);
+    }
+
+    // the user id is a firebase key: only the chars not allowed in a file name are replaced
+    private static String getDatabaseName(String userId) {
+        return DATABASE_NAME_PREFIX + userId.replaceAll("[^A-Za-z0-9_-]", "_") + DATABASE_NAME_SUFFIX;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " (" +
+                COLUMN_ROW_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_CONVERSATION_ID + " TEXT NOT NULL, " +
+                COLUMN_ID + " TEXT NOT NULL, " +
+                COLUMN_SENDER + " TEXT, " +
+                COLUMN_SENDER_FULLNAME + " TEXT, " +
+                COLUMN_RECIPIENT + " TEXT, " +
+                COLUMN_RECIPIENT_FULLNAME + " TEXT, " +
+                COLUMN_TEXT + " TEXT, " +
+                COLUMN_STATUS + " INTEGER, " +
+                COLUMN_TIMESTAMP + " INTEGER, " +
+                COLUMN_TYPE + " TEXT, " +
+                COLUMN_CHANNEL_TYPE + " TEXT, " +
+                COLUMN_METADATA + " TEXT, " +
+                "UNIQUE (" + COLUMN_CONVERSATION_ID + ", " + COLUMN_ID + "))");
+
+        db.execSQL("CREATE INDEX idx_" + TABLE_MESSAGES + "_timestamp ON " + TABLE_MESSAGES +
+                " (" + COLUMN_CONVERSATION_ID + ", " + COLUMN_TIMESTAMP + ")");
+
+        // the fts docid is the message row id
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_MESSAGES_FTS + " USING fts4(" + COLUMN_TEXT + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // it is a cache: drop it and download the messages again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES_FTS);
+        onCreate(db);
+    }
+
+    @Override
+    public void loadLastMessages(final String conversationId, final int limit,
+                                 final OnCachedMessagesLoadedCallback callback) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Message> messages = limit > 0 ?
+                        getLastMessages(conversationId, limit) : new ArrayList<Message>();
+                final long lastTimestamp = getLastTimestamp(conversationId);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCachedMessagesLoaded(messages, lastTimestamp);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public List<Message> getLastMessages(String conversationId, int limit) {
+        List<Message> messages = new ArrayList<>();
+
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(TABLE_MESSAGES, MESSAGE_COLUMNS,
+                    COLUMN_CONVERSATION_ID + " = ?", new String[]{conversationId},
+                    null, null, COLUMN_TIMESTAMP + " DESC", String.valueOf(limit));
+
+            while (cursor.moveToNext()) {
+                messages.add(decodeMessage(cursor));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "SQLiteMessageCache.getLastMessages: cannot read the messages of " +
+                    conversationId, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        // the oldest first
+        Collections.reverse(messages);
+
+        return messages;
+    }
+
+    @Override
+    public long getLastTimestamp(String conversationId) {
+        long lastTimestamp = NO_TIMESTAMP;
+
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().rawQuery("SELECT MAX(" + COLUMN_TIMESTAMP + ") FROM " +
+                            TABLE_MESSAGES + " WHERE " + COLUMN_CONVERSATION_ID + " = ? AND " +
+                            COLUMN_STATUS + " >= ?",
+                    new String[]{conversationId, String.valueOf(Message.STATUS_SENT)});
+
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                lastTimestamp = cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "SQLiteMessageCache.getLastTimestamp: cannot read the last timestamp of " +
+                    conversationId, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return lastTimestamp;
+    }
+
+    @Override
+    public void saveMessage(final String conversationId, Message message) {
+        // encode the message now, it could be updated while waiting to be written
+        final ContentValues values = encodeMessage(conversationId, message);
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getWritableDatabase();
+
+                db.beginTransaction();
+                try {
+                    upsertMessage(db, conversationId, values);
+                    db.setTransactionSuccessful();
+                } catch (Exception e) {
+                    Log.e(TAG, "SQLiteMessageCache.saveMessage: cannot save the message into " +
+                            conversationId, e);
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    // insert or update the message and index its text if changed
+    private static void upsertMessage(SQLiteDatabase db, String conversationId, ContentValues values) {
+        String messageId = values.getAsString(COLUMN_ID);
+        String text = values.getAsString(COLUMN_TEXT);
+
+        long rowId = -1;
+        String indexedText = null;
+
+        Cursor cursor = db.query(TABLE_MESSAGES, new String[]{COLUMN_ROW_ID, COLUMN_TEXT},
+                COLUMN_CONVERSATION_ID + " = ? AND " + COLUMN_ID + " = ?",
+                new String[]{conversationId, messageId}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                rowId = cursor.getLong(0);
+                indexedText = cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (rowId == -1) {
+            rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+            indexText(db, rowId, text);
+            return;
+        }
+
+        db.update(TABLE_MESSAGES, values, COLUMN_ROW_ID + " = ?", new String[]{String.valueOf(rowId)});
+
+        if (text == null ? indexedText != null : !text.equals(indexedText)) {
+            db.delete(TABLE_MESSAGES_FTS, "docid = ?", new String[]{String.valueOf(rowId)});
+            indexText(db, rowId, text);
+        }
+    }
+
+    private static void indexText(SQLiteDatabase db, long rowId, String text) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put("docid", rowId);
+        values.put(COLUMN_TEXT, text);
+        db.insertOrThrow(TABLE_MESSAGES_FTS, null, values);
+    }
+
+    @Override
+    public List<MessageSearchResult> searchMessages(String query, int offset, int limit) {
+        List<MessageSearchResult> results = new ArrayList<>();
+
+        String matchQuery = toMatchQuery(query);
+        if (matchQuery == null) {
+            return results;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().rawQuery("SELECT m." + COLUMN_CONVERSATION_ID +
+                            ", m." + COLUMN_ID +
+                            ", snippet(" + TABLE_MESSAGES_FTS + ", ?, ?, '...', -1, 12)" +
+                            ", m." + COLUMN_TIMESTAMP +
+                            " FROM " + TABLE_MESSAGES_FTS + " JOIN " + TABLE_MESSAGES + " m" +
+                            " ON m." + COLUMN_ROW_ID + " = " + TABLE_MESSAGES_FTS + ".docid" +
+                            " WHERE " + TABLE_MESSAGES_FTS + " MATCH ?" +
+                            " ORDER BY m." + COLUMN_TIMESTAMP + " DESC" +
+                            " LIMIT " + limit + " OFFSET " + offset,
+                    new String[]{RAW_MATCH_START, RAW_MATCH_END, matchQuery});
+
+            while (cursor.moveToNext()) {
+                results.add(new MessageSearchResult(cursor.getString(0), cursor.getString(1),
+                        toSnippet(cursor.getString(2)), cursor.isNull(3) ? 0 : cursor.getLong(3)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "SQLiteMessageCache.searchMessages: cannot search " + query, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return results;
+    }
+
+    // the message text is html escaped, then the raw markers become the match tags
+    private static String toSnippet(String rawSnippet) {
+        if (rawSnippet == null) {
+            return null;
+        }
+
+        return TextUtils.htmlEncode(rawSnippet)
+                .replace(RAW_MATCH_START, SNIPPET_MATCH_START)
+                .replace(RAW_MATCH_END, SNIPPET_MATCH_END);
+    }
+
+    // each word becomes a prefix term. the fts operators typed by the user are dropped
+    private static String toMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        StringBuilder matchQuery = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty() || word.equals("AND") || word.equals("OR") || word.equals("NOT")
+                    || word.equals("NEAR")) {
+                continue;
+            }
+
+            if (matchQuery.length() > 0) {
+                matchQuery.append(' ');
+            }
+            matchQuery.append(word).append('*');
+        }
+
+        return matchQuery.length() > 0 ? matchQuery.toString() : null;
+    }
+
+    @Override
+    public void deleteConversation(final String conversationId) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getWritableDatabase();
+
+                db.beginTransaction();
+                try {
+                    db.delete(TABLE_MESSAGES_FTS, "docid IN (SELECT " + COLUMN_ROW_ID + " FROM " +
+                                    TABLE_MESSAGES + " WHERE " + COLUMN_CONVERSATION_ID + " = ?)",
+                            new String[]{conversationId});
+                    db.delete(TABLE_MESSAGES,
+                            COLUMN_CONVERSATION_ID + " = ?", new String[]{conversationId});
+                    db.setTransactionSuccessful();
+                } catch (Exception e) {
+                    Log.e(TAG, "SQLiteMessageCache.deleteConversation: cannot delete " +
+                            conversationId, e);
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void deleteMessagesBefore(final String conversationId, final long timestamp) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getWritableDatabase();
+
+                String where = COLUMN_CONVERSATION_ID + " = ? AND " + COLUMN_TIMESTAMP + " < ?";
+                String[] whereArgs = new String[]{conversationId, String.valueOf(timestamp)};
+
+                db.beginTransaction();
+                try {
+                    db.delete(TABLE_MESSAGES_FTS, "docid IN (SELECT " + COLUMN_ROW_ID + " FROM " +
+                            TABLE_MESSAGES + " WHERE " + where + ")", whereArgs);
+                    db.delete(TABLE_MESSAGES, where, whereArgs);
+                    db.setTransactionSuccessful();
+                } catch (Exception e) {
+                    Log.e(TAG, "SQLiteMessageCache.deleteMessagesBefore: cannot delete the messages of " +
+                            conversationId, e);
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void clear() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getWritableDatabase();
+
+                db.beginTransaction();
+                try {
+                    db.delete(TABLE_MESSAGES_FTS, null, null);
+                    db.delete(TABLE_MESSAGES, null, null);
+                    db.setTransactionSuccessful();
+                } catch (Exception e) {
+                    Log.e(TAG, "SQLiteMessageCache.clear: cannot clear the messages", e);
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteMessageCache.super.close();
+            }
+        });
+
+        // the queued tasks are still executed
+        executor.shutdown();
+    }
+
+    // the tasks submitted after close() are dropped
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "SQLiteMessageCache.execute: the cache has been closed");
+        }
+    }
+
+    private static ContentValues encodeMessage(String conversationId, Message message) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_CONVERSATION_ID, conversationId);
+        values.put(COLUMN_ID, message.getId());
+        values.put(COLUMN_SENDER, message.getSender());
+        values.put(COLUMN_SENDER_FULLNAME, message.getSenderFullname());
+        values.put(COLUMN_RECIPIENT, message.getRecipient());
+        values.put(COLUMN_RECIPIENT_FULLNAME, message.getRecipientFullname());
+        values.put(COLUMN_TEXT, message.getText());
+        values.put(COLUMN_STATUS, message.getStatus());
+        values.put(COLUMN_TIMESTAMP, message.getTimestamp());
+        values.put(COLUMN_TYPE, message.getType());
+        values.put(COLUMN_CHANNEL_TYPE, message.getChannelType());
+
+        if (message.getMetadata() != null) {
+            values.put(COLUMN_METADATA, new JSONObject(message.getMetadata()).toString());
+        }
+
+        return values;
+    }
+
+    private static Message decodeMessage(Cursor cursor) {
+        Message message = new Message();
+        message.setId(cursor.getString(0));
+        message.setSender(cursor.getString(1));
+        message.setSenderFullname(cursor.getString(2));
+        message.setRecipient(cursor.getString(3));
+        message.setRecipientFullname(cursor.getString(4));
+        message.setText(cursor.getString(5));
+        message.setStatus(cursor.isNull(6) ? null : cursor.getLong(6));
+        message.setTimestamp(cursor.isNull(7) ? null : cursor.getLong(7));
+        message.setType(cursor.getString(8));
+        message.setChannelType(cursor.getString(9));
+
+        if (!cursor.isNull(10)) {
+            try {
+                message.setMetadata(toMap(new JSONObject(cursor.getString(10))));
+            } catch (JSONException e) {
+                Log.w(TAG, "SQLiteMessageCache.decodeMessage: cannot decode metadata for message " +
+                        message.getId());
+            }
+        }
+
+        return message;
+    }
+
+    // convert the json to the same types returned by Firebase
+    private static Map<String, Object> toMap(JSONObject json) throws JSONException {
+        Map<String, Object> map = new HashMap<>();
+
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            map.put(key, toValue(json.get(key)));
+        }
+
+        return map;
+    }
+
+    private static Object toValue(Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            return toMap((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                list.add(toValue(array.get(i)));
+            }
+            return list;
+        } else if (value instanceof Integer) {
+            return ((Integer) value).longValue();
+        } else if (value == JSONObject.NULL) {
+            return null;
+        }
+        return value;
+    }
+}
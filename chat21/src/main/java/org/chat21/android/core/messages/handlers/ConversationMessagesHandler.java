@@ -8,20 +8,32 @@ import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
 
 import org.chat21.android.core.exception.ChatFieldNotFoundException;
 import org.chat21.android.core.exception.ChatRuntimeException;
+import org.chat21.android.core.messages.cache.MessageCache;
 import org.chat21.android.core.messages.listeners.ConversationMessagesListener;
+import org.chat21.android.core.messages.listeners.OnOlderMessagesLoadedCallback;
 import org.chat21.android.core.messages.listeners.SendMessageListener;
 import org.chat21.android.core.messages.models.Message;
 import org.chat21.android.core.users.models.IChatUser;
+import org.chat21.android.utils.SnapshotUtils;
 import org.chat21.android.utils.StringUtils;
+import org.chat21.android.utils.collections.IndexedSortedList;
+import org.chat21.android.utils.concurrent.DecodeQueue;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import static org.chat21.android.utils.DebugConstants.DEBUG_DECODE;
 
 /**
  * Created by andrealeo on 05/12/17.
@@ -30,21 +42,65 @@ import java.util.Map;
 public class ConversationMessagesHandler {
     private static final String TAG = ConversationMessagesHandler.class.getName();
 
-    private List<Message> messages = new ArrayList<Message>(); // messages in memory
+    // max number of messages restored from the cache when the conversation is opened
+    private static final int CACHED_MESSAGES_LIMIT = 100;
+
+    // messages in memory, indexed by id and sorted by timestamp
+    private IndexedSortedList<Message> messages = new IndexedSortedList<>(
+            new IndexedSortedList.KeyProvider<Message>() {
+                @Override
+                public String getKey(Message message) {
+                    return message.getId();
+                }
+            },
+            new Comparator<Message>() {
+                @Override
+                public int compare(Message o1, Message o2) {
+                    return compareTimestamps(o1.getTimestamp(), o2.getTimestamp());
+                }
+            });
 
     private IChatUser currentUser;
     private IChatUser recipient;
 
     private DatabaseReference conversationMessagesNode;
+    private Query conversationMessagesQuery;
 
     private ChildEventListener conversationMessagesChildEventListener;
 
+    private MessageCache messageCache;
+
+    // number of messages downloaded when the conversation is opened. 0 to download all of them
+    private int pageSize = 0;
+    private boolean hasOlderMessages = false;
+    private boolean isLoadingOlderMessages = false;
+
+    // the cached messages are read in background: they are discarded if disconnected meanwhile
+    private boolean isDisconnected = false;
+
+    // snapshots are decoded out of the main thread, in the order they are received
+    private final DecodeQueue decodeQueue = new DecodeQueue();
+
+    // received and seen acknowledgements are written in batches
+    private MessageStatusBatcher statusBatcher;
+    private Set<String> seenMessageIds = new HashSet<>();
+
     private List<ConversationMessagesListener> conversationMessagesListeners;
 
     public ConversationMessagesHandler(String firebaseUrl, String appId, IChatUser currentUser, IChatUser recipient) {
+        this(firebaseUrl, appId, currentUser, recipient, null);
+    }
+
+    /**
+     * @param messageCache the on-device messages storage. it can be null to disable the cache
+     */
+    public ConversationMessagesHandler(String firebaseUrl, String appId, IChatUser currentUser,
+                                       IChatUser recipient, MessageCache messageCache) {
 
         conversationMessagesListeners = new ArrayList<>();
 
+        this.messageCache = messageCache;
+
         this.currentUser = currentUser;
 
         this.recipient = recipient;
@@ -59,7 +115,10 @@ public class ConversationMessagesHandler {
                     .child("/apps/" + appId + "/users/" + currentUser.getId() + "/messages/" + recipient.getId());
         }
 
-        this.conversationMessagesNode.keepSynced(true);
+        // the cache already stores the messages: keeping the whole node synced
+        // would download all of them again
+        this.conversationMessagesNode.keepSynced(messageCache == null);
+        this.statusBatcher = new MessageStatusBatcher(conversationMessagesNode);
         Log.d(TAG, "conversationMessagesNode : " + conversationMessagesNode.toString());
 
 //        this.conversationMessagesListeners = new ArrayList<ConversationsListener>();
@@ -161,33 +220,200 @@ public class ConversationMessagesHandler {
     private void saveOrUpdateMessageInMemory(Message newMessage) {
         Log.d(TAG, "saveOrUpdateMessageInMemory  for message : " + newMessage);
 
-        // look for the message
+        int position = messages.upsert(newMessage);
+        Log.v(TAG, "message " + newMessage + " saved into messages at position " + position);
 
-        int index = -1;
-        for (Message tempMessage : messages) {
-            if (tempMessage.equals(newMessage)) {
-                index = messages.indexOf(tempMessage);
-                break;
+        if (messageCache != null) {
+            messageCache.saveMessage(recipient.getId(), newMessage);
+        }
+    }
+
+    // load the last cached messages into memory, so they can be rendered
+    // before the Firebase listener is attached
+    private void restoreCachedMessages(List<Message> cachedMessages) {
+        for (Message cachedMessage : cachedMessages) {
+            // the messages in memory are newer than the cached ones
+            if (!messages.containsKey(cachedMessage.getId())) {
+                messages.upsert(cachedMessage);
             }
         }
 
-        if (index != -1) {
-            // message already exists
-            messages.set(index, newMessage); // update the existing message
-            Log.v(TAG, "message " + newMessage + "updated into messages at position " + index);
+        Log.d(TAG, cachedMessages.size() + " messages restored from cache for recipientId: " +
+                recipient.getId());
 
-        } else {
-            // message not exists
-            messages.add(newMessage); // insert a new message
-            Log.v(TAG, "message " + newMessage + "is not found into messages. The message was added at the end of the list");
+        // the listeners redraw the whole list and show the newest message
+        if (!cachedMessages.isEmpty()) {
+            notifyMessageReceived(cachedMessages.get(cachedMessages.size() - 1), null);
+        }
+    }
 
+    // messages without timestamp are kept at the end of the list
+    private static int compareTimestamps(Long first, Long second) {
+        if (first == null) {
+            return second == null ? 0 : 1;
+        } else if (second == null) {
+            return -1;
         }
+        return first.compareTo(second);
     }
 
     public List<Message> getMessages() {
         return messages;
     }
 
+    /**
+     * Enable the paged history loading.
+     * It must be called before {@link #connect()}.
+     *
+     * @param pageSize the number of the newest messages downloaded on connect.
+     *                 0 to download all the messages
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return true if older messages could exist on the server, false if the history is complete
+     */
+    public boolean hasOlderMessages() {
+        return hasOlderMessages;
+    }
+
+    public boolean isLoadingOlderMessages() {
+        return isLoadingOlderMessages;
+    }
+
+    /**
+     * Load the messages older than the oldest message in memory.
+     * The loaded messages are added to the conversation messages.
+     *
+     * @param count    the max number of messages to load
+     * @param callback the callback called on completion
+     */
+    public void loadOlder(final int count, final OnOlderMessagesLoadedCallback callback) {
+        Log.d(TAG, "loadOlder: count == " + count + " for recipientId : " + recipient.getId());
+
+        if (isLoadingOlderMessages) {
+            Log.d(TAG, "loadOlder: already loading for recipientId : " + recipient.getId());
+            return;
+        }
+
+        if (!hasOlderMessages || messages.isEmpty() || messages.get(0).getTimestamp() == null) {
+            if (callback != null) {
+                callback.onOlderMessagesLoaded(new ArrayList<Message>(), false, null);
+            }
+            return;
+        }
+
+        isLoadingOlderMessages = true;
+
+        // the oldest message is included in the result: request one more message
+        final Message oldestMessage = messages.get(0);
+        Query olderMessagesQuery = conversationMessagesNode
+                .orderByChild(Message.TIMESTAMP_FIELD_KEY)
+                .endAt(oldestMessage.getTimestamp(), oldestMessage.getId())
+                .limitToLast(count + 1);
+
+        olderMessagesQuery.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(final DataSnapshot dataSnapshot) {
+                decodeQueue.enqueue(new DecodeQueue.Task<List<Message>>() {
+                    @Override
+                    public List<Message> decode() {
+                        List<Message> olderMessages = new ArrayList<>();
+
+                        for (DataSnapshot child : dataSnapshot.getChildren()) {
+                            if (child.getKey().equals(oldestMessage.getId())) {
+                                continue;
+                            }
+
+                            try {
+                                olderMessages.add(decodeMessageSnapShop(child));
+                            } catch (ChatFieldNotFoundException cfnfe) {
+                                Log.w(TAG, "Error decoding message on loadOlder " + cfnfe.getMessage());
+                            }
+                        }
+
+                        return olderMessages;
+                    }
+
+                    @Override
+                    public void onDecoded(List<Message> olderMessages) {
+                        for (Message message : olderMessages) {
+                            acknowledgeReceived(message);
+                            saveOrUpdateMessageInMemory(message);
+                        }
+
+                        hasOlderMessages = dataSnapshot.getChildrenCount() > count;
+                        isLoadingOlderMessages = false;
+
+                        Log.d(TAG, "loadOlder: " + olderMessages.size() + " messages loaded, hasOlderMessages == " +
+                                hasOlderMessages + " for recipientId : " + recipient.getId());
+
+                        if (callback != null) {
+                            callback.onOlderMessagesLoaded(olderMessages, hasOlderMessages, null);
+                        }
+                    }
+
+                    @Override
+                    public void onDecodeFailed(Exception e) {
+                        isLoadingOlderMessages = false;
+
+                        if (callback != null) {
+                            callback.onOlderMessagesLoaded(null, hasOlderMessages, new ChatRuntimeException(e));
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Log.e(TAG, "loadOlder.onCancelled: " + databaseError.getMessage());
+
+                isLoadingOlderMessages = false;
+
+                if (callback != null) {
+                    callback.onOlderMessagesLoaded(null, hasOlderMessages,
+                            new ChatRuntimeException(databaseError.toException()));
+                }
+            }
+        });
+    }
+
+    // mark the incoming direct messages as received from the recipient client
+    private void acknowledgeReceived(Message message) {
+        if (message.getStatus() != null
+                && message.getStatus() < Message.STATUS_RECEIVED_FROM_RECIPIENT_CLIENT
+                && !message.getSender().equals(currentUser.getId())
+                && message.isDirectChannel()) {
+
+            statusBatcher.setStatus(message.getId(), Message.STATUS_RECEIVED_FROM_RECIPIENT_CLIENT);
+        }
+    }
+
+    /**
+     * Mark the incoming direct messages as seen.
+     * The updates are written in batches, so it can be called every time the visible messages change.
+     *
+     * @param visibleMessages the messages shown to the user
+     */
+    public void markAsSeen(List<Message> visibleMessages) {
+        for (Message message : visibleMessages) {
+            if (message.getStatus() != null
+                    && message.getStatus() < Message.STATUS_SEEN
+                    && !message.getSender().equals(currentUser.getId())
+                    && message.isDirectChannel()
+                    && seenMessageIds.add(message.getId())) {
+
+                statusBatcher.setStatus(message.getId(), Message.STATUS_SEEN);
+            }
+        }
+    }
+
     public ChildEventListener connect(ConversationMessagesListener conversationMessagesListener) {
         this.upsertConversationMessagesListener(conversationMessagesListener);
 
@@ -203,72 +429,78 @@ public class ConversationMessagesHandler {
         if (conversationMessagesChildEventListener == null) {
             Log.d(TAG, "creating a new conversationMessagesChildEventListener");
 
-            conversationMessagesChildEventListener = conversationMessagesNode.orderByChild(Message.TIMESTAMP_FIELD_KEY).addChildEventListener(new ChildEventListener() {
+            conversationMessagesChildEventListener = new ChildEventListener() {
                 @Override
-                public void onChildAdded(DataSnapshot dataSnapshot, String prevChildKey) {
+                public void onChildAdded(final DataSnapshot dataSnapshot, String prevChildKey) {
                     Log.v(TAG, "ConversationMessagesHandler.connect.onChildAdded");
 
-                    try {
-                        Message message = decodeMessageSnapShop(dataSnapshot);
-                        Log.d(TAG, "ConversationMessagesHandler.connect.onChildAdded.message : " + message);
+                    decodeQueue.enqueue(new DecodeQueue.Task<Message>() {
+                        @Override
+                        public Message decode() throws Exception {
+                            return decodeMessageSnapShop(dataSnapshot);
+                        }
 
+                        @Override
+                        public void onDecoded(Message message) {
+                            Log.d(TAG, "ConversationMessagesHandler.connect.onChildAdded.message : " + message);
 
-                        if (message.getStatus() < Message.STATUS_RECEIVED_FROM_RECIPIENT_CLIENT
-                                && !message.getSender().equals(currentUser.getId())
-                                && message.isDirectChannel()) {
+                            try {
+                                acknowledgeReceived(message);
 
-                            dataSnapshot.getRef().child(Message.STATUS_FIELD_KEY).setValue(Message.STATUS_RECEIVED_FROM_RECIPIENT_CLIENT);
-                            Log.d(TAG, "Message with id : " + message.getId() + " is received from the recipient client and the status field of the message has beed set to " + Message.STATUS_RECEIVED_FROM_RECIPIENT_CLIENT);
-                        }
+                                saveOrUpdateMessageInMemory(message);
 
-                        saveOrUpdateMessageInMemory(message);
+                                notifyMessageReceived(message, null);
 
-                        if (conversationMessagesListeners != null) {
-                            for (ConversationMessagesListener conversationMessagesListener : conversationMessagesListeners) {
-                                conversationMessagesListener.onConversationMessageReceived(message, null);
+                                //TODO settare status a 200 qui
+                            } catch (Exception e) {
+                                notifyMessageReceived(null, new ChatRuntimeException(e));
                             }
                         }
 
-                        //TODO settare status a 200 qui
-
-                    } catch (ChatFieldNotFoundException cfnfe) {
-                        Log.w(TAG, "Error decoding message on onChildAdded " + cfnfe.getMessage());
-                    } catch (Exception e) {
-                        if (conversationMessagesListeners != null) {
-                            for (ConversationMessagesListener conversationMessagesListener : conversationMessagesListeners) {
-                                conversationMessagesListener.onConversationMessageReceived(null, new ChatRuntimeException(e));
+                        @Override
+                        public void onDecodeFailed(Exception e) {
+                            if (e instanceof ChatFieldNotFoundException) {
+                                Log.w(TAG, "Error decoding message on onChildAdded " + e.getMessage());
+                            } else {
+                                notifyMessageReceived(null, new ChatRuntimeException(e));
                             }
                         }
-                    }
+                    });
                 }
 
                 //for return recepit
                 @Override
-                public void onChildChanged(DataSnapshot dataSnapshot, String prevChildKey) {
+                public void onChildChanged(final DataSnapshot dataSnapshot, String prevChildKey) {
                     Log.v(TAG, "ConversationMessagesHandler.connect.onChildChanged");
 
-                    try {
-                        Message message = decodeMessageSnapShop(dataSnapshot);
+                    decodeQueue.enqueue(new DecodeQueue.Task<Message>() {
+                        @Override
+                        public Message decode() throws Exception {
+                            return decodeMessageSnapShop(dataSnapshot);
+                        }
 
-                        Log.d(TAG, "ConversationMessagesHandler.connect.onChildChanged.message : " + message);
+                        @Override
+                        public void onDecoded(Message message) {
+                            Log.d(TAG, "ConversationMessagesHandler.connect.onChildChanged.message : " + message);
 
-                        saveOrUpdateMessageInMemory(message);
+                            try {
+                                saveOrUpdateMessageInMemory(message);
 
-                        if (conversationMessagesListeners != null) {
-                            for (ConversationMessagesListener conversationMessagesListener : conversationMessagesListeners) {
-                                conversationMessagesListener.onConversationMessageChanged(message, null);
+                                notifyMessageChanged(message, null);
+                            } catch (Exception e) {
+                                notifyMessageChanged(null, new ChatRuntimeException(e));
                             }
                         }
 
-                    } catch (ChatFieldNotFoundException cfnfe) {
-                        Log.w(TAG, "Error decoding message on onChildChanged " + cfnfe.getMessage());
-                    } catch (Exception e) {
-                        if (conversationMessagesListeners != null) {
-                            for (ConversationMessagesListener conversationMessagesListener : conversationMessagesListeners) {
-                                conversationMessagesListener.onConversationMessageChanged(null, new ChatRuntimeException(e));
+                        @Override
+                        public void onDecodeFailed(Exception e) {
+                            if (e instanceof ChatFieldNotFoundException) {
+                                Log.w(TAG, "Error decoding message on onChildChanged " + e.getMessage());
+                            } else {
+                                notifyMessageChanged(null, new ChatRuntimeException(e));
                             }
                         }
-                    }
+                    });
                 }
 
                 @Override
@@ -286,7 +518,25 @@ public class ConversationMessagesHandler {
 //                Log.d(TAG, "observeMessages.onCancelled");
 
                 }
-            });
+            };
+
+            if (messageCache == null) {
+                listen(MessageCache.NO_TIMESTAMP);
+            } else {
+                // render the cached messages, then download the newer ones
+                messageCache.loadLastMessages(recipient.getId(), CACHED_MESSAGES_LIMIT,
+                        new MessageCache.OnCachedMessagesLoadedCallback() {
+                            @Override
+                            public void onCachedMessagesLoaded(List<Message> cachedMessages, long lastTimestamp) {
+                                if (isDisconnected) {
+                                    return;
+                                }
+
+                                restoreCachedMessages(cachedMessages);
+                                listen(lastTimestamp);
+                            }
+                        });
+            }
 
             Log.i(TAG, "connected for recipientId: " + recipient.getId());
 
@@ -297,52 +547,171 @@ public class ConversationMessagesHandler {
         return conversationMessagesChildEventListener;
     }
 
+    // attach the listener to the messages newer than the last cached one
+    private void listen(final long lastCachedTimestamp) {
+        conversationMessagesQuery = conversationMessagesNode.orderByChild(Message.TIMESTAMP_FIELD_KEY);
+
+        // download only the messages newer than the last cached one.
+        // the last cached message is included to catch messages with the same timestamp
+        if (lastCachedTimestamp != MessageCache.NO_TIMESTAMP) {
+            conversationMessagesQuery = conversationMessagesQuery.startAt(lastCachedTimestamp);
+
+            if (pageSize > 0) {
+                // at most a page, even if the conversation has been closed for a long time
+                conversationMessagesQuery = conversationMessagesQuery.limitToLast(pageSize);
+                checkCacheGap(conversationMessagesQuery, lastCachedTimestamp);
+            }
+        } else if (pageSize > 0) {
+            // download only the newest page. the older ones are loaded with loadOlder
+            conversationMessagesQuery = conversationMessagesQuery.limitToLast(pageSize);
+        }
+
+        // the cache or the first page could not contain the whole history
+        hasOlderMessages = pageSize > 0 || !messages.isEmpty();
+
+        conversationMessagesQuery.addChildEventListener(conversationMessagesChildEventListener);
+    }
+
+    // a full page of messages newer than the last cached one can leave a gap between them and the cached messages:
+    // the cached history is dropped and loaded again with loadOlder
+    private void checkCacheGap(Query query, final long lastCachedTimestamp) {
+        // delivered after the children of the first download
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(final DataSnapshot dataSnapshot) {
+                if (dataSnapshot.getChildrenCount() < pageSize) {
+                    return;
+                }
+
+                // after the children of the page have been decoded and saved
+                decodeQueue.enqueue(new DecodeQueue.Task<Long>() {
+                    @Override
+                    public Long decode() {
+                        // the children are ordered by timestamp: the first one is the oldest
+                        Iterator<DataSnapshot> children = dataSnapshot.getChildren().iterator();
+                        return children.hasNext() ?
+                                children.next().child(Message.TIMESTAMP_FIELD_KEY).getValue(Long.class) : null;
+                    }
+
+                    @Override
+                    public void onDecoded(Long oldestTimestamp) {
+                        if (oldestTimestamp == null || oldestTimestamp <= lastCachedTimestamp) {
+                            return; // the page starts from the last cached message: no gap
+                        }
+
+                        dropMessagesBefore(oldestTimestamp);
+                    }
+
+                    @Override
+                    public void onDecodeFailed(Exception e) {
+                        Log.w(TAG, "checkCacheGap: cannot read the oldest timestamp " + e.getMessage());
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Log.w(TAG, "checkCacheGap.onCancelled: " + databaseError.getMessage());
+            }
+        });
+    }
+
+    private void dropMessagesBefore(long timestamp) {
+        List<String> droppedIds = new ArrayList<>();
+        for (Message message : messages) {
+            if (message.getTimestamp() != null && message.getTimestamp() < timestamp) {
+                droppedIds.add(message.getId());
+            }
+        }
+
+        for (String droppedId : droppedIds) {
+            messages.removeByKey(droppedId);
+        }
+
+        messageCache.deleteMessagesBefore(recipient.getId(), timestamp);
+        hasOlderMessages = true;
+
+        Log.d(TAG, "dropMessagesBefore: " + droppedIds.size() + " cached messages dropped for recipientId: " +
+                recipient.getId());
+
+        // the listeners redraw the whole list on a change
+        if (!droppedIds.isEmpty() && !messages.isEmpty()) {
+            notifyMessageChanged(messages.get(0), null);
+        }
+    }
+
+    private void notifyMessageReceived(Message message, ChatRuntimeException exception) {
+        if (conversationMessagesListeners != null) {
+            for (ConversationMessagesListener conversationMessagesListener : conversationMessagesListeners) {
+                conversationMessagesListener.onConversationMessageReceived(message, exception);
+            }
+        }
+    }
+
+    private void notifyMessageChanged(Message message, ChatRuntimeException exception) {
+        if (conversationMessagesListeners != null) {
+            for (ConversationMessagesListener conversationMessagesListener : conversationMessagesListeners) {
+                conversationMessagesListener.onConversationMessageChanged(message, exception);
+            }
+        }
+    }
 
     /**
+     * @return the queue decoding the snapshots of this conversation. Useful to measure the decode time
+     */
+    public DecodeQueue getDecodeQueue() {
+        return decodeQueue;
+    }
+
+
+    /**
+     * It can be called from any thread
+     *
      * @param dataSnapshot the datasnapshot to decode
      * @return the decoded message
      */
     public static Message decodeMessageSnapShop(DataSnapshot dataSnapshot) throws ChatFieldNotFoundException {
-        Log.v(TAG, "decodeMessageSnapShop called");
-
-        Map<String, Object> map = (Map<String, Object>) dataSnapshot.getValue();
+        return decodeMessage(dataSnapshot.getKey(), SnapshotUtils.asMap(dataSnapshot.getValue()));
+    }
 
-        String messageId = dataSnapshot.getKey();
+    /**
+     * Decode the raw message values, as returned by {@link DataSnapshot#getValue()}.
+     * It can be called from any thread
+     *
+     * @param messageId the message id
+     * @param map       the message values
+     * @return the decoded message
+     */
+    public static Message decodeMessage(String messageId, Map<String, Object> map) throws ChatFieldNotFoundException {
+        if (map == null) {
+            throw new ChatFieldNotFoundException("No values for message id : " + messageId);
+        }
 
-        String sender = (String) map.get("sender");
+        String sender = SnapshotUtils.getString(map, "sender");
         if (sender == null) {
             throw new ChatFieldNotFoundException("Required sender field is null for message id : " + messageId);
         }
 
-        String recipient = (String) map.get("recipient");
+        String recipient = SnapshotUtils.getString(map, "recipient");
         if (recipient == null) {
             throw new ChatFieldNotFoundException("Required recipient field is null for message id : " + messageId);
         }
 
-        String sender_fullname = (String) map.get("sender_fullname");
-        String recipient_fullname = (String) map.get("recipient_fullname");
+        String sender_fullname = SnapshotUtils.getString(map, "sender_fullname");
+        String recipient_fullname = SnapshotUtils.getString(map, "recipient_fullname");
 
-        Long status = null;
-        if (map.containsKey("status")) {
-            status = (Long) map.get("status");
-        }
+        Long status = SnapshotUtils.getLong(map, "status");
 
-        String text = (String) map.get("text");
+        String text = SnapshotUtils.getString(map, "text");
 
-        Long timestamp = null;
-        if (map.containsKey("timestamp")) {
-            timestamp = (Long) map.get("timestamp");
-        }
+        Long timestamp = SnapshotUtils.getLong(map, "timestamp");
 
-        String type = (String) map.get("type");
+        String type = SnapshotUtils.getInternedString(map, "type");
 
-        String channelType = (String) map.get("channel_type");
+        String channelType = SnapshotUtils.getInternedString(map, "channel_type");
 
         // if metadata is a string ignore it
-        Map<String, Object> metadata = null;
-        if (map.containsKey("metadata") && !(map.get("metadata") instanceof String)) {
-            metadata = (Map<String, Object>) map.get("metadata");
-        }
+        Map<String, Object> metadata = SnapshotUtils.getMap(map, "metadata");
 
         Message message = new Message();
 
@@ -358,9 +727,9 @@ public class ConversationMessagesHandler {
         message.setChannelType(channelType);
         if (metadata != null) message.setMetadata(metadata);
 
-        Log.v(TAG, "decodeMessageSnapShop.message : " + message);
-
-//        Log.d(TAG, "message >: " + dataSnapshot.toString());
+        if (Log.isLoggable(DEBUG_DECODE, Log.VERBOSE)) {
+            Log.v(DEBUG_DECODE, "decodeMessage.message : " + message);
+        }
 
         return message;
     }
@@ -401,6 +770,13 @@ public class ConversationMessagesHandler {
         Log.i(TAG, "  conversationMessagesListener with hashCode: " + conversationMessagesListener.hashCode() + " removed");
     }
 
+    /**
+     * @return true if at least a listener is attached, false otherwise
+     */
+    public boolean hasConversationMessagesListeners() {
+        return conversationMessagesListeners != null && !conversationMessagesListeners.isEmpty();
+    }
+
     public void removeAllConversationMessagesListeners() {
         this.conversationMessagesListeners = null;
         Log.i(TAG, "Removed all ConversationMessagesListeners");
@@ -411,7 +787,14 @@ public class ConversationMessagesHandler {
     }
 
     public void disconnect() {
-        this.conversationMessagesNode.removeEventListener(conversationMessagesChildEventListener);
+        isDisconnected = true;
+        if (conversationMessagesQuery != null && conversationMessagesChildEventListener != null) {
+            this.conversationMessagesQuery.removeEventListener(conversationMessagesChildEventListener);
+        }
+        decodeQueue.cancel();
+        statusBatcher.flush();
+        // stop keeping the messages of a closed conversation in sync
+        conversationMessagesNode.keepSynced(false);
         this.removeAllConversationMessagesListeners();
     }
 }
\ No newline at end of file
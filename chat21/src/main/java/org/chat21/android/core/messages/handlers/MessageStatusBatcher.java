@@ -0,0 +1,115 @@
+package org.chat21.android.core.messages.handlers;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+
+import org.chat21.android.core.messages.models.Message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the status updates of the messages of a conversation and writes them
+ * with a single multi-path {@link DatabaseReference#updateChildren(Map)}.
+ * <p/>
+ * The pending updates are flushed when {@code maxBatchSize} messages are pending
+ * or {@code flushDelayMillis} after the first pending update, whichever comes first.
+ * A status is never downgraded: if a message is both received and seen only the seen status is written.
+ * <p/>
+ * It must be used from the main thread.
+ */
+public class MessageStatusBatcher {
+    private static final String TAG = MessageStatusBatcher.class.getName();
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final long DEFAULT_FLUSH_DELAY_MILLIS = 500;
+
+    private final DatabaseReference conversationMessagesNode;
+    private final int maxBatchSize;
+    private final long flushDelayMillis;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // path (messageId/status) -> status
+    private Map<String, Object> pendingUpdates = new HashMap<>();
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public MessageStatusBatcher(DatabaseReference conversationMessagesNode) {
+        this(conversationMessagesNode, DEFAULT_MAX_BATCH_SIZE, DEFAULT_FLUSH_DELAY_MILLIS);
+    }
+
+    public MessageStatusBatcher(DatabaseReference conversationMessagesNode,
+                                int maxBatchSize, long flushDelayMillis) {
+        this.conversationMessagesNode = conversationMessagesNode;
+        this.maxBatchSize = maxBatchSize;
+        this.flushDelayMillis = flushDelayMillis;
+    }
+
+    /**
+     * Schedule the status update of a message
+     *
+     * @param messageId the message id
+     * @param status    the new status
+     */
+    public void setStatus(String messageId, long status) {
+        String path = messageId + "/" + Message.STATUS_FIELD_KEY;
+
+        Long pendingStatus = (Long) pendingUpdates.get(path);
+        if (pendingStatus != null && pendingStatus >= status) {
+            return;
+        }
+
+        boolean isFirstUpdate = pendingUpdates.isEmpty();
+        pendingUpdates.put(path, status);
+
+        if (pendingUpdates.size() >= maxBatchSize) {
+            flush();
+        } else if (isFirstUpdate) {
+            handler.postDelayed(flushRunnable, flushDelayMillis);
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    public int getPendingCount() {
+        return pendingUpdates.size();
+    }
+
+    /**
+     * Write all the pending updates now
+     */
+    public void flush() {
+        handler.removeCallbacks(flushRunnable);
+
+        if (pendingUpdates.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Object> updates = pendingUpdates;
+        pendingUpdates = new HashMap<>();
+
+        conversationMessagesNode.updateChildren(updates, new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
+                if (databaseError != null) {
+                    Log.e(TAG, "cannot update the status of " + updates.size() + " messages: " +
+                            databaseError.getMessage());
+                } else {
+                    Log.d(TAG, "status updated for " + updates.size() + " messages of " +
+                            databaseReference.getKey());
+                }
+            }
+        });
+    }
+}
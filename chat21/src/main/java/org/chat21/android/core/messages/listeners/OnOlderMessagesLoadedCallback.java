@@ -0,0 +1,20 @@
+package org.chat21.android.core.messages.listeners;
+
+import org.chat21.android.core.exception.ChatRuntimeException;
+import org.chat21.android.core.messages.models.Message;
+
+import java.util.List;
+
+/**
+ * Callback of {@link org.chat21.android.core.messages.handlers.ConversationMessagesHandler#loadOlder}
+ */
+public interface OnOlderMessagesLoadedCallback {
+
+    /**
+     * @param messages the loaded messages sorted by timestamp, the oldest first.
+     *                 they have already been added at the top of the conversation messages
+     * @param hasMore  true if there are other older messages to load, false otherwise
+     * @param e        the error, null on success
+     */
+    void onOlderMessagesLoaded(List<Message> messages, boolean hasMore, ChatRuntimeException e);
+}
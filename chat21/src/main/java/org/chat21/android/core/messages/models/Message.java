@@ -33,6 +33,14 @@ public class Message implements Serializable, Cloneable {
     public static final String TYPE_IMAGE = "image";
     public static final String TYPE_FILE = "file";
 
+    // image metadata
+    public static final String METADATA_SRC = "src"; // the original image url
+    public static final String METADATA_THUMBNAIL = "thumbnail"; // the thumbnail url, shown in the list
+    public static final String METADATA_WIDTH = "width";
+    public static final String METADATA_HEIGHT = "height";
+    public static final String METADATA_BLUR_HASH = "blurhash"; // the placeholder until the thumbnail is loaded
+    public static final String METADATA_UID = "uid";
+
     @Exclude
     String id;
 
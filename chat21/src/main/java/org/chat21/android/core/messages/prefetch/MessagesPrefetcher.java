@@ -0,0 +1,383 @@
+package org.chat21.android.core.messages.prefetch;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import org.chat21.android.connectivity.AbstractNetworkReceiver;
+import org.chat21.android.connectivity.NetworkReceiver;
+import org.chat21.android.connectivity.ObservableNetwork;
+import org.chat21.android.core.ChatManager;
+import org.chat21.android.core.conversations.ConversationsHandler;
+import org.chat21.android.core.conversations.models.Conversation;
+import org.chat21.android.core.exception.ChatFieldNotFoundException;
+import org.chat21.android.core.messages.cache.MessageCache;
+import org.chat21.android.core.messages.handlers.ConversationMessagesHandler;
+import org.chat21.android.core.messages.handlers.MessageStatusBatcher;
+import org.chat21.android.core.messages.models.Message;
+import org.chat21.android.utils.StringUtils;
+import org.chat21.android.utils.concurrent.DecodeQueue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Downloads the newest messages of the most recent conversations into the {@link MessageCache},
+ * so a conversation opened from the list is rendered immediately
+ * and {@link ConversationMessagesHandler#connect()} only has to download the newer messages.
+ * <p/>
+ * It works only while started (ie. while the conversations list is visible) and the wifi is connected.
+ * One conversation is prefetched at a time and the whole prefetch stops when the download budget is exhausted.
+ * <p/>
+ * It must be used from the main thread.
+ */
+public class MessagesPrefetcher implements Observer {
+    private static final String TAG = MessagesPrefetcher.class.getName();
+
+    public static final int DEFAULT_CONVERSATIONS_COUNT = 5;
+    public static final long DEFAULT_DOWNLOAD_BUDGET_BYTES = 1024 * 1024;
+
+    // wait for the conversations list to settle before choosing what to prefetch
+    private static final long SCHEDULE_DELAY_MILLIS = 1000;
+
+    // rough size of a decoded message, text excluded
+    private static final long MESSAGE_OVERHEAD_BYTES = 512;
+
+    private final Context context;
+    private final String currentUserId;
+    private final DatabaseReference userMessagesNode;
+    private final ConversationsHandler conversationsHandler;
+    private final MessageCache messageCache;
+
+    private int conversationsCount = DEFAULT_CONVERSATIONS_COUNT;
+    private final int pageSize;
+    private long downloadBudgetBytes = DEFAULT_DOWNLOAD_BUDGET_BYTES;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final DecodeQueue decodeQueue = new DecodeQueue();
+
+    private boolean isStarted = false;
+    private long usedBytes = 0;
+
+    // conversations already prefetched, with the prefetched conversation timestamp
+    private final Set<String> prefetchedKeys = new HashSet<>();
+    private final Queue<Conversation> pendingConversations = new ArrayDeque<>();
+
+    // the conversation being prefetched, from the cache read to the save of its messages
+    private Conversation runningConversation;
+    private Query runningQuery;
+    private ValueEventListener runningListener;
+
+    private final Runnable scheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            enqueueTopConversations();
+            prefetchNext();
+        }
+    };
+
+    public MessagesPrefetcher(Context context, String firebaseUrl, String appId, String currentUserId,
+                              ConversationsHandler conversationsHandler, MessageCache messageCache,
+                              int pageSize) {
+        this.context = context.getApplicationContext();
+        this.currentUserId = currentUserId;
+        this.conversationsHandler = conversationsHandler;
+        this.messageCache = messageCache;
+        // never download a whole history in background
+        this.pageSize = pageSize > 0 ? pageSize : ChatManager.Configuration.DEFAULT_MESSAGES_PAGE_SIZE;
+
+        if (StringUtils.isValid(firebaseUrl)) {
+            this.userMessagesNode = FirebaseDatabase.getInstance()
+                    .getReferenceFromUrl(firebaseUrl)
+                    .child("/apps/" + appId + "/users/" + currentUserId + "/messages/");
+        } else {
+            this.userMessagesNode = FirebaseDatabase.getInstance()
+                    .getReference()
+                    .child("/apps/" + appId + "/users/" + currentUserId + "/messages/");
+        }
+    }
+
+    /**
+     * @param conversationsCount the number of most recent conversations to prefetch
+     */
+    public void setConversationsCount(int conversationsCount) {
+        this.conversationsCount = conversationsCount;
+    }
+
+    /**
+     * @param downloadBudgetBytes the max estimated size of the messages downloaded while started
+     */
+    public void setDownloadBudgetBytes(long downloadBudgetBytes) {
+        this.downloadBudgetBytes = downloadBudgetBytes;
+    }
+
+    /**
+     * Start prefetching, ie. when the conversations list becomes visible
+     */
+    public void start() {
+        if (isStarted) {
+            return;
+        }
+        isStarted = true;
+        usedBytes = 0;
+
+        ObservableNetwork.getInstance().addObserver(this);
+        schedule();
+    }
+
+    /**
+     * Stop and cancel the running prefetch, ie. when the conversations list is hidden
+     */
+    public void stop() {
+        if (!isStarted) {
+            return;
+        }
+        isStarted = false;
+
+        ObservableNetwork.getInstance().deleteObserver(this);
+        cancel();
+    }
+
+    /**
+     * Choose again the conversations to prefetch, ie. when the conversations change
+     */
+    public void schedule() {
+        if (!isStarted || messageCache == null || conversationsCount <= 0) {
+            return;
+        }
+
+        handler.removeCallbacks(scheduleRunnable);
+        handler.postDelayed(scheduleRunnable, SCHEDULE_DELAY_MILLIS);
+    }
+
+    @Override
+    public void update(Observable observable, final Object network) {
+        // the connectivity changes are broadcasted on the main thread
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (NetworkReceiver.NETWORK_WIFI.equals(network)) {
+                    schedule();
+                } else {
+                    Log.d(TAG, "wifi disconnected, prefetch cancelled");
+                    cancel();
+                }
+            }
+        });
+    }
+
+    private void cancel() {
+        handler.removeCallbacks(scheduleRunnable);
+        pendingConversations.clear();
+        decodeQueue.cancel();
+        runningConversation = null;
+
+        if (runningQuery != null) {
+            runningQuery.removeEventListener(runningListener);
+            runningQuery = null;
+            runningListener = null;
+        }
+    }
+
+    private void enqueueTopConversations() {
+        pendingConversations.clear();
+
+        List<Conversation> conversations = conversationsHandler.getConversations();
+        int count = Math.min(conversationsCount, conversations.size());
+
+        for (int i = 0; i < count; i++) {
+            Conversation conversation = conversations.get(i);
+
+            // prefetch again only if the conversation has new messages
+            if (conversation.getConvers_with() != null && !prefetchedKeys.contains(keyOf(conversation))) {
+                pendingConversations.offer(conversation);
+            }
+        }
+    }
+
+    private void prefetchNext() {
+        if (!isStarted || runningConversation != null) {
+            return;
+        }
+
+        if (!AbstractNetworkReceiver.isWifiConnected(context)) {
+            Log.d(TAG, "wifi not connected, nothing to prefetch");
+            pendingConversations.clear();
+            return;
+        }
+
+        if (usedBytes >= downloadBudgetBytes) {
+            Log.d(TAG, "download budget exhausted, prefetch stopped");
+            pendingConversations.clear();
+            return;
+        }
+
+        final Conversation conversation = pendingConversations.poll();
+        if (conversation == null) {
+            return;
+        }
+        runningConversation = conversation;
+
+        messageCache.loadLastMessages(conversation.getConvers_with(), 0,
+                new MessageCache.OnCachedMessagesLoadedCallback() {
+                    @Override
+                    public void onCachedMessagesLoaded(List<Message> messages, long lastTimestamp) {
+                        // cancelled meanwhile
+                        if (runningConversation == conversation) {
+                            prefetch(conversation, lastTimestamp);
+                        }
+                    }
+                });
+    }
+
+    private void prefetch(final Conversation conversation, final long lastCachedTimestamp) {
+        final String recipientId = conversation.getConvers_with();
+
+        Long conversationTimestamp = conversation.getTimestampLong();
+        if (lastCachedTimestamp != MessageCache.NO_TIMESTAMP && conversationTimestamp != null
+                && conversationTimestamp <= lastCachedTimestamp) {
+            // the cache is already up to date
+            prefetchedKeys.add(keyOf(conversation));
+            prefetchCompleted();
+            return;
+        }
+
+        final DatabaseReference conversationMessagesNode = userMessagesNode.child(recipientId);
+
+        // the newest page after the last cached message, which is included to detect a gap
+        Query query = conversationMessagesNode.orderByChild(Message.TIMESTAMP_FIELD_KEY);
+        if (lastCachedTimestamp != MessageCache.NO_TIMESTAMP) {
+            query = query.startAt(lastCachedTimestamp);
+        }
+        query = query.limitToLast(pageSize);
+
+        runningQuery = query;
+        runningListener = query.addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(final DataSnapshot dataSnapshot) {
+                // a single download is needed
+                cancelRunningQuery(this);
+
+                decodeQueue.enqueue(new DecodeQueue.Task<List<Message>>() {
+                    @Override
+                    public List<Message> decode() {
+                        List<Message> messages = new ArrayList<>();
+
+                        for (DataSnapshot child : dataSnapshot.getChildren()) {
+                            try {
+                                messages.add(ConversationMessagesHandler.decodeMessageSnapShop(child));
+                            } catch (ChatFieldNotFoundException cfnfe) {
+                                Log.w(TAG, "Error decoding message on prefetch " + cfnfe.getMessage());
+                            }
+                        }
+
+                        return messages;
+                    }
+
+                    @Override
+                    public void onDecoded(List<Message> messages) {
+                        dropCacheGap(recipientId, lastCachedTimestamp, messages);
+                        saveMessages(conversationMessagesNode, recipientId, messages);
+                        prefetchedKeys.add(keyOf(conversation));
+
+                        Log.d(TAG, messages.size() + " messages prefetched for recipientId: " +
+                                recipientId + ", used bytes: " + usedBytes);
+
+                        prefetchCompleted();
+                    }
+
+                    @Override
+                    public void onDecodeFailed(Exception e) {
+                        Log.w(TAG, "cannot prefetch the messages for recipientId: " + recipientId, e);
+                        prefetchCompleted();
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Log.w(TAG, "prefetch cancelled for recipientId: " + recipientId + ": " +
+                        databaseError.getMessage());
+
+                cancelRunningQuery(this);
+                prefetchCompleted();
+            }
+        });
+    }
+
+    private void prefetchCompleted() {
+        runningConversation = null;
+        prefetchNext();
+    }
+
+    // a full page not reaching the last cached message leaves a gap between them:
+    // the older cached messages are dropped, the conversation loads them again with loadOlder
+    private void dropCacheGap(String recipientId, long lastCachedTimestamp, List<Message> messages) {
+        if (lastCachedTimestamp == MessageCache.NO_TIMESTAMP || messages.size() < pageSize) {
+            return;
+        }
+
+        Long oldestTimestamp = messages.get(0).getTimestamp();
+        if (oldestTimestamp != null && oldestTimestamp > lastCachedTimestamp) {
+            Log.d(TAG, "the cached messages older than " + oldestTimestamp + " dropped for recipientId: " +
+                    recipientId);
+
+            messageCache.deleteMessagesBefore(recipientId, oldestTimestamp);
+        }
+    }
+
+    private void cancelRunningQuery(ValueEventListener listener) {
+        if (runningQuery != null && runningListener == listener) {
+            runningQuery.removeEventListener(listener);
+            runningQuery = null;
+            runningListener = null;
+        }
+    }
+
+    private void saveMessages(DatabaseReference conversationMessagesNode, String recipientId,
+                              List<Message> messages) {
+        MessageStatusBatcher statusBatcher = new MessageStatusBatcher(conversationMessagesNode);
+
+        for (Message message : messages) {
+            messageCache.saveMessage(recipientId, message);
+            usedBytes += sizeOf(message);
+
+            // the messages have been received by this device
+            if (message.getStatus() != null
+                    && message.getStatus() < Message.STATUS_RECEIVED_FROM_RECIPIENT_CLIENT
+                    && !currentUserId.equals(message.getSender())
+                    && message.isDirectChannel()) {
+                statusBatcher.setStatus(message.getId(), Message.STATUS_RECEIVED_FROM_RECIPIENT_CLIENT);
+            }
+        }
+
+        statusBatcher.flush();
+    }
+
+    private static long sizeOf(Message message) {
+        long size = MESSAGE_OVERHEAD_BYTES;
+        if (message.getText() != null) {
+            size += message.getText().length() * 2;
+        }
+        return size;
+    }
+
+    // a conversation is prefetched again when its timestamp changes
+    private static String keyOf(Conversation conversation) {
+        return conversation.getConversationId() + "@" + conversation.getTimestampLong();
+    }
+}
@@ -12,6 +12,7 @@ import com.google.firebase.database.ValueEventListener;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.chat21.android.core.ChatManager;
 import org.chat21.android.core.presence.listeners.MyPresenceListener;
 import org.chat21.android.utils.StringUtils;
 
@@ -39,9 +40,35 @@ public class MyPresenceHandler {
     // the device that is currently connected
     String deviceId = null;
 
+    // the connection of this device session. it is reused on every reconnection
+    private DatabaseReference connectionRef;
+
+    // filters the flaps of .info/connected
+    private PresenceDebouncer presenceDebouncer;
+
     public MyPresenceHandler(String firebaseUrl, String appId, String userId) {
+        this(firebaseUrl, appId, userId, new PresenceDebouncer.HandlerClock(),
+                ChatManager.Configuration.presenceOnlineDebounceMillis,
+                ChatManager.Configuration.presenceOfflineDebounceMillis);
+    }
+
+    /**
+     * @param clock               the clock of the connection state debouncer
+     * @param onlineWindowMillis  how long the connection must hold before going online
+     * @param offlineWindowMillis how long the disconnection must hold before going offline
+     */
+    public MyPresenceHandler(String firebaseUrl, String appId, String userId, PresenceDebouncer.Clock clock,
+                             long onlineWindowMillis, long offlineWindowMillis) {
         myPresenceListeners = new ArrayList<>();
 
+        presenceDebouncer = new PresenceDebouncer(clock, onlineWindowMillis, offlineWindowMillis,
+                new PresenceDebouncer.Callback() {
+                    @Override
+                    public void onSettled(boolean isConnected, boolean isChanged) {
+                        onConnectionSettled(isConnected, isChanged);
+                    }
+                });
+
         // since I can connect from multiple devices, we store each connection instance separately
         // any time that connectionsRef's value is null (i.e. has no children) I am offline
         database = FirebaseDatabase.getInstance();
@@ -116,28 +143,10 @@ public class MyPresenceHandler {
             valueEventListener = connectedRef.addValueEventListener(new ValueEventListener() {
                 @Override
                 public void onDataChange(DataSnapshot snapshot) {
-                    boolean connected = snapshot.getValue(Boolean.class);
-
-                    if (connected) {
-                        DatabaseReference con = connectionsRef.push();
-                        deviceId = con.getKey();
+                    Boolean connected = snapshot.getValue(Boolean.class);
 
-                        // when this device disconnects, remove it
-                        con.onDisconnect().removeValue();
-
-                        // when I disconnect, update the last time I was seen online
-                        lastOnlineRef.onDisconnect().setValue(ServerValue.TIMESTAMP);
-
-                        // add this device to my connections list
-                        // this value could contain info about the device or a timestamp too
-                        con.setValue(Boolean.TRUE);
-                    }
-
-                    if (myPresenceListeners != null && myPresenceListeners.size() > 0) {
-                        for (MyPresenceListener p : myPresenceListeners) {
-                            p.isLoggedUserOnline(connected, deviceId);
-                        }
-                    }
+                    // nothing is written or notified until the state holds for its window
+                    presenceDebouncer.onRawStateChanged(connected != null && connected);
                 }
 
                 @Override
@@ -159,7 +168,41 @@ public class MyPresenceHandler {
         return valueEventListener;
     }
 
+    // called once the connection state has held for its window
+    private void onConnectionSettled(boolean connected, boolean isChanged) {
+        Log.d(DEBUG_MY_PRESENCE, "MyPresenceHandler.onConnectionSettled: connected == " + connected +
+                ", isChanged == " + isChanged);
+
+        if (connected) {
+            // the server may have dropped the connection while offline: write it again.
+            // the key is the same of the session, so the connections list does not grow
+            if (connectionRef == null) {
+                connectionRef = connectionsRef.push();
+                deviceId = connectionRef.getKey();
+            }
+
+            // when this device disconnects, remove it
+            connectionRef.onDisconnect().removeValue();
+
+            // when I disconnect, update the last time I was seen online
+            lastOnlineRef.onDisconnect().setValue(ServerValue.TIMESTAMP);
+
+            // add this device to my connections list
+            // this value could contain info about the device or a timestamp too
+            connectionRef.setValue(Boolean.TRUE);
+        }
+
+        // a flap back to the settled state is not notified
+        if (isChanged && myPresenceListeners != null && myPresenceListeners.size() > 0) {
+            for (MyPresenceListener p : myPresenceListeners) {
+                p.isLoggedUserOnline(connected, deviceId);
+            }
+        }
+    }
+
     public void dispose() {
+        presenceDebouncer.reset();
+
         if (myPresenceListeners != null && myPresenceListeners.size() > 0) {
             myPresenceListeners.clear();
             Log.d(DEBUG_MY_PRESENCE, "MyPresenceHandler.disconnect:" +
@@ -172,6 +215,7 @@ public class MyPresenceHandler {
             Log.d(DEBUG_MY_PRESENCE, "MyPresenceHandler.disconnect: " +
                     "connectionsRef with deviceId: " + deviceId + " has been detached.");
         }
+        connectionRef = null; // the session is over
 
         // when the user is disconnect, update the last time he was seen online
         if (lastOnlineRef != null) {
@@ -0,0 +1,145 @@
+package org.chat21.android.core.presence;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Filters the flaps of the connection state.
+ * <p/>
+ * A new raw state settles only after it has held for its window: {@code onlineWindowMillis} to go online
+ * and {@code offlineWindowMillis} to go offline (hysteresis: a longer offline window hides short drops).
+ * Every raw change restarts the window, so a burst of flaps settles once.
+ * <p/>
+ * The time is provided by a {@link Clock}, so the state machine can be driven by a fake clock.
+ * The methods must be called on the thread of the clock.
+ */
+public class PresenceDebouncer {
+
+    /**
+     * The source of time and scheduling of the debouncer
+     */
+    public interface Clock {
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    public interface Callback {
+
+        /**
+         * Called when the raw state has held for its window
+         *
+         * @param isConnected the settled state
+         * @param isChanged   true if it differs from the previously settled state (or it is the first one),
+         *                    false if the raw state flapped back to the settled state
+         */
+        void onSettled(boolean isConnected, boolean isChanged);
+    }
+
+    /**
+     * The main thread clock
+     */
+    public static class HandlerClock implements Clock {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            handler.postDelayed(runnable, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            handler.removeCallbacks(runnable);
+        }
+    }
+
+    private enum State {
+        UNKNOWN, // nothing settled yet
+        OFFLINE,
+        GOING_ONLINE, // offline, waiting for the online window
+        ONLINE,
+        GOING_OFFLINE // online, waiting for the offline window
+    }
+
+    private final Clock clock;
+    private final Callback callback;
+    private final long onlineWindowMillis;
+    private final long offlineWindowMillis;
+
+    private State state = State.UNKNOWN;
+    private boolean rawState = false;
+    private boolean isSettling = false;
+
+    private final Runnable settleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            isSettling = false;
+            settle();
+        }
+    };
+
+    public PresenceDebouncer(Clock clock, long onlineWindowMillis, long offlineWindowMillis, Callback callback) {
+        this.clock = clock;
+        this.onlineWindowMillis = onlineWindowMillis;
+        this.offlineWindowMillis = offlineWindowMillis;
+        this.callback = callback;
+    }
+
+    /**
+     * @param isConnected the raw connection state, ie. the value of .info/connected
+     */
+    public void onRawStateChanged(boolean isConnected) {
+        rawState = isConnected;
+
+        switch (state) {
+            case UNKNOWN:
+            case GOING_ONLINE:
+            case GOING_OFFLINE:
+                // keep the pending state, the window restarts below
+                break;
+            case OFFLINE:
+                if (isConnected) {
+                    state = State.GOING_ONLINE;
+                }
+                break;
+            case ONLINE:
+                if (!isConnected) {
+                    state = State.GOING_OFFLINE;
+                }
+                break;
+        }
+
+        // restart the window
+        if (isSettling) {
+            clock.removeCallbacks(settleRunnable);
+        }
+        isSettling = true;
+        clock.postDelayed(settleRunnable, isConnected ? onlineWindowMillis : offlineWindowMillis);
+    }
+
+    private void settle() {
+        boolean wasConnected = state == State.ONLINE || state == State.GOING_OFFLINE;
+        boolean isChanged = state == State.UNKNOWN || wasConnected != rawState;
+
+        state = rawState ? State.ONLINE : State.OFFLINE;
+
+        callback.onSettled(rawState, isChanged);
+    }
+
+    /**
+     * @return the last settled state, false if nothing is settled yet
+     */
+    public boolean isConnected() {
+        return state == State.ONLINE || state == State.GOING_OFFLINE;
+    }
+
+    /**
+     * Cancel the pending window and forget the settled state
+     */
+    public void reset() {
+        clock.removeCallbacks(settleRunnable);
+        isSettling = false;
+        state = State.UNKNOWN;
+        rawState = false;
+    }
+}
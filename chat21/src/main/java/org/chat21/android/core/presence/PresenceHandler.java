@@ -2,56 +2,73 @@ package org.chat21.android.core.presence;
 
 import android.util.Log;
 
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import org.chat21.android.core.presence.listeners.OnPresenceChangedListener;
 import org.chat21.android.core.presence.listeners.PresenceListener;
-import org.chat21.android.utils.StringUtils;
 
 import static org.chat21.android.utils.DebugConstants.DEBUG_USER_PRESENCE;
 
 /**
  * Created by stefanodp91 on 09/01/18.
+ * <p/>
+ * The presence of a single user. It is subscribed through the shared {@link PresenceMultiplexer}.
  */
 
 public class PresenceHandler {
 
     public static final long LAST_ONLINE_UNDEFINED = -1;
 
-    // since I can connect from multiple devices, we store each connection instance separately
-    // any time that connectionsRef's value is null (i.e. has no children) I am offline
-    private FirebaseDatabase database;
+    private final PresenceMultiplexer presenceMultiplexer;
+    private final String userId;
+    private boolean isConnected = false;
 
-    private DatabaseReference userPresenceRef;
+    private List<PresenceListener> presenceListeners;
 
-    private ValueEventListener valueEventListener;
+    private final OnPresenceChangedListener onPresenceChangedListener = new OnPresenceChangedListener() {
+        @Override
+        public void onPresenceChanged(String userId, boolean isOnline, long lastOnline) {
+            Log.i(DEBUG_USER_PRESENCE, "PresenceHandler.onPresenceChanged: userId == " + userId +
+                    ", isOnline == " + isOnline + ", lastOnline == " + lastOnline);
 
-    private List<PresenceListener> presenceListeners;
+            // notify presence changes
+            if (presenceListeners != null && presenceListeners.size() > 0) {
+                for (PresenceListener p : new ArrayList<>(presenceListeners)) {
+                    p.isUserOnline(isOnline);
+                }
 
-    public PresenceHandler(String firebaseUrl, String appId, String userId) {
-        presenceListeners = new ArrayList<>();
+                for (PresenceListener p : new ArrayList<>(presenceListeners)) {
+                    p.userLastOnline(lastOnline);
+                }
+            }
+        }
 
-        // since I can connect from multiple devices, we store each connection instance separately
-        // any time that connectionsRef's value is null (i.e. has no children) I am offline
-        database = FirebaseDatabase.getInstance();
+        @Override
+        public void onPresenceError(String userId, Exception e) {
+            Log.w(DEBUG_USER_PRESENCE, "PresenceHandler.onPresenceError: " + e.toString());
 
-        if (StringUtils.isValid(firebaseUrl)) {
-            userPresenceRef = database.getReferenceFromUrl(firebaseUrl)
-                    .child("/apps/" + appId + "/presence/" + userId);
-        } else {
-            userPresenceRef = database.getReference()
-                    .child("/apps/" + appId + "/presence/" + userId);
+            for (PresenceListener p : new ArrayList<>(presenceListeners)) {
+                p.onPresenceError(e);
+            }
         }
+    };
+
+    /**
+     * @deprecated the handlers should share the multiplexer of the {@link org.chat21.android.core.ChatManager}
+     */
+    @Deprecated
+    public PresenceHandler(String firebaseUrl, String appId, String userId) {
+        this(new PresenceMultiplexer(firebaseUrl, appId), userId);
     }
 
+    public PresenceHandler(PresenceMultiplexer presenceMultiplexer, String userId) {
+        this.presenceMultiplexer = presenceMultiplexer;
+        this.userId = userId;
+        presenceListeners = new ArrayList<>();
+    }
     public void addPresenceListener(PresenceListener presenceListener) {
         if (!isListenerAdded(presenceListener))
             presenceListeners.add(presenceListener);
@@ -72,6 +89,13 @@ public class PresenceHandler {
         return presenceListeners.contains(presenceListener) ? true : false;
     }
 
+    /**
+     * @return true if at least a listener is attached, false otherwise
+     */
+    public boolean hasPresenceListeners() {
+        return presenceListeners != null && presenceListeners.size() > 0;
+    }
+
     public void upsertPresenceListener(PresenceListener presenceListener) {
         if (presenceListeners.contains(presenceListener)) {
             removePresenceListener(presenceListener);
@@ -85,68 +109,21 @@ public class PresenceHandler {
         }
     }
 
+    /**
+     * Subscribe the presence of the user
+     *
+     * @return the firebase listener of the user presence. It is shared with the other handlers
+     * of the same user: call {@link #disconnect()} instead of removing it
+     */
     public ValueEventListener connect() {
+        if (!isConnected) {
+            isConnected = true;
+            presenceMultiplexer.subscribe(userId, onPresenceChangedListener);
+        } else {
+            Log.d(DEBUG_USER_PRESENCE, "PresenceHandler.connect: already connected.");
+        }
 
-        valueEventListener = userPresenceRef.addValueEventListener(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
-                Log.i(DEBUG_USER_PRESENCE, "PresenceHandler.connect.onDataChange:" +
-                        " dataSnapshot == " + dataSnapshot);
-
-                long lastOnline = LAST_ONLINE_UNDEFINED;
-                boolean online = false;
-                Map<String, Boolean> connections = new HashMap<>();
-
-                if (dataSnapshot.getValue() != null) {
-                    // retrieve datasnapshot value
-                    Map<String, Object> value = (Map<String, Object>) dataSnapshot.getValue();
-
-                    // retrieve last online
-                    try {
-                        lastOnline = (long) value.get("lastOnline");
-                    } catch (Exception e) {
-                        Log.w(DEBUG_USER_PRESENCE, "PresenceHandler.connect.onDataChange:" +
-                                " Cannot retrieve lastOnline " + e.toString());
-                    }
-
-                    // retrieve connections
-                    try {
-                        connections = (Map<String, Boolean>) value.get("connections");
-                    } catch (Exception e) {
-                        Log.w(DEBUG_USER_PRESENCE, "PresenceHandler.connect.onDataChange:" +
-                                " Cannot retrieve connections " + e.toString());
-                    }
-
-                    // if exists at least one connection, the user is marked as online
-                    if (connections != null && connections.size() > 0) {
-                        online = true;
-                    }
-                }
-
-                // notify presence changes
-                if (presenceListeners != null && presenceListeners.size() > 0) {
-                    for (PresenceListener p : presenceListeners) {
-                        p.isUserOnline(online);
-                    }
-
-                    for (PresenceListener p : presenceListeners) {
-                        p.userLastOnline(lastOnline);
-                    }
-                }
-            }
-
-            @Override
-            public void onCancelled(DatabaseError databaseError) {
-                Log.w(DEBUG_USER_PRESENCE, "PresenceHandler.connect.onCancelled: " +
-                        databaseError.toString());
-
-                for (PresenceListener p : presenceListeners) {
-                    p.onPresenceError(databaseError.toException());
-                }
-            }
-        });
-
-        return valueEventListener;
+        return presenceMultiplexer.getOnlineListener(userId);
     }
 
     public void disconnect() {
@@ -154,8 +131,9 @@ public class PresenceHandler {
             presenceListeners.clear();
         }
 
-        if (userPresenceRef != null && valueEventListener != null) {
-            userPresenceRef.removeEventListener(valueEventListener);
+        if (isConnected) {
+            isConnected = false;
+            presenceMultiplexer.unsubscribe(userId, onPresenceChangedListener);
         }
     }
-}
\ No newline at end of file
+}
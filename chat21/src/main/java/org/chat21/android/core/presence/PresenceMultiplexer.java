@@ -0,0 +1,329 @@
+package org.chat21.android.core.presence;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import org.chat21.android.core.presence.listeners.OnPresenceChangedListener;
+import org.chat21.android.utils.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.chat21.android.utils.DebugConstants.DEBUG_USER_PRESENCE;
+
+/**
+ * Shares the presence subscriptions of the users among all the interested listeners.
+ * <p/>
+ * For each user it listens only to what a row needs: the first child of /presence/{userId}/connections
+ * (the user is online if it exists) and /presence/{userId}/lastOnline,
+ * instead of downloading the whole presence subtree on every change.
+ * <p/>
+ * The subscriptions are reference counted: the firebase listeners of a user are attached by the first
+ * {@link #subscribe(String, OnPresenceChangedListener)} and detached a while after the last
+ * {@link #unsubscribe(String, OnPresenceChangedListener)}, so scrolling a list back and forth does not
+ * attach and detach them continuously.
+ * The changes are delivered to the listeners at most once every {@code throttleMillis}, coalesced by user.
+ * <p/>
+ * All the methods must be called from the main thread.
+ */
+public class PresenceMultiplexer {
+
+    public static final long DEFAULT_THROTTLE_MILLIS = 500;
+    public static final long DEFAULT_LINGER_MILLIS = 5000;
+
+    /**
+     * The presence of a user, as known so far
+     */
+    public static class Presence {
+        private boolean online = false;
+        private long lastOnline = PresenceHandler.LAST_ONLINE_UNDEFINED;
+
+        public boolean isOnline() {
+            return online;
+        }
+
+        public long getLastOnline() {
+            return lastOnline;
+        }
+    }
+
+    private class Subscription {
+        final String userId;
+        final List<OnPresenceChangedListener> listeners = new ArrayList<>(); // one entry for each subscribe
+        final Presence presence = new Presence();
+        boolean isOnlineKnown = false;
+        boolean isLastOnlineKnown = false;
+
+        final Query onlineQuery;
+        final DatabaseReference lastOnlineRef;
+        ValueEventListener onlineListener;
+        ValueEventListener lastOnlineListener;
+
+        final Runnable detachRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (listeners.isEmpty()) {
+                    detach(Subscription.this);
+                }
+            }
+        };
+
+        Subscription(String userId) {
+            this.userId = userId;
+
+            DatabaseReference userPresenceRef = presenceNode.child(userId);
+            this.onlineQuery = userPresenceRef.child("connections").limitToFirst(1);
+            this.lastOnlineRef = userPresenceRef.child("lastOnline");
+        }
+
+        boolean isKnown() {
+            return isOnlineKnown && isLastOnlineKnown;
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final DatabaseReference presenceNode;
+    private final long throttleMillis;
+    private final long lingerMillis;
+
+    private final Map<String, Subscription> subscriptions = new HashMap<>();
+
+    // the users changed since the last delivery
+    private final Set<String> changedUserIds = new LinkedHashSet<>();
+    private boolean isDeliveryScheduled = false;
+
+    private final Runnable deliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            isDeliveryScheduled = false;
+            deliverChanges();
+        }
+    };
+
+    public PresenceMultiplexer(String firebaseUrl, String appId) {
+        this(firebaseUrl, appId, DEFAULT_THROTTLE_MILLIS, DEFAULT_LINGER_MILLIS);
+    }
+
+    public PresenceMultiplexer(String firebaseUrl, String appId, long throttleMillis, long lingerMillis) {
+        this.throttleMillis = throttleMillis;
+        this.lingerMillis = lingerMillis;
+
+        if (StringUtils.isValid(firebaseUrl)) {
+            presenceNode = FirebaseDatabase.getInstance().getReferenceFromUrl(firebaseUrl)
+                    .child("/apps/" + appId + "/presence/");
+        } else {
+            presenceNode = FirebaseDatabase.getInstance().getReference()
+                    .child("/apps/" + appId + "/presence/");
+        }
+    }
+
+    /**
+     * Start receiving the presence changes of a user.
+     * If the presence is already known it is delivered immediately.
+     * Each call must be balanced by a call to {@link #unsubscribe(String, OnPresenceChangedListener)}
+     *
+     * @param userId   the id of the user
+     * @param listener the listener
+     */
+    public void subscribe(String userId, OnPresenceChangedListener listener) {
+        Subscription subscription = subscriptions.get(userId);
+        if (subscription == null) {
+            subscription = new Subscription(userId);
+            subscriptions.put(userId, subscription);
+        }
+
+        handler.removeCallbacks(subscription.detachRunnable);
+        subscription.listeners.add(listener);
+
+        if (subscription.onlineListener == null) {
+            attach(subscription);
+        } else if (subscription.isKnown()) {
+            Presence presence = subscription.presence;
+            listener.onPresenceChanged(userId, presence.isOnline(), presence.getLastOnline());
+        }
+    }
+
+    /**
+     * @param userId   the id of the user
+     * @param listener the listener passed to {@link #subscribe(String, OnPresenceChangedListener)}
+     */
+    public void unsubscribe(String userId, OnPresenceChangedListener listener) {
+        Subscription subscription = subscriptions.get(userId);
+        if (subscription == null) {
+            return;
+        }
+
+        subscription.listeners.remove(listener);
+
+        if (subscription.listeners.isEmpty()) {
+            handler.removeCallbacks(subscription.detachRunnable);
+            handler.postDelayed(subscription.detachRunnable, lingerMillis);
+        }
+    }
+
+    /**
+     * @param userId the id of the user
+     * @return the presence of the user if it is subscribed and known, null otherwise
+     */
+    public Presence getPresence(String userId) {
+        Subscription subscription = subscriptions.get(userId);
+        return subscription != null && subscription.isKnown() ? subscription.presence : null;
+    }
+
+    /**
+     * @param userId the id of the user
+     * @return the firebase listener of the user connections, null if it is not attached
+     */
+    ValueEventListener getOnlineListener(String userId) {
+        Subscription subscription = subscriptions.get(userId);
+        return subscription != null ? subscription.onlineListener : null;
+    }
+
+    /**
+     * @return the number of users whose firebase listeners are attached
+     */
+    public int getAttachedCount() {
+        int count = 0;
+        for (Subscription subscription : subscriptions.values()) {
+            if (subscription.onlineListener != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Detach all the firebase listeners and forget all the subscriptions
+     */
+    public void dispose() {
+        handler.removeCallbacksAndMessages(null);
+        isDeliveryScheduled = false;
+        changedUserIds.clear();
+
+        for (Subscription subscription : new ArrayList<>(subscriptions.values())) {
+            detach(subscription);
+        }
+        subscriptions.clear();
+    }
+
+    private void attach(final Subscription subscription) {
+        Log.d(DEBUG_USER_PRESENCE, "PresenceMultiplexer.attach: userId == " + subscription.userId);
+
+        subscription.onlineListener = subscription.onlineQuery.addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                // if exists at least one connection, the user is marked as online
+                boolean online = dataSnapshot.hasChildren();
+
+                boolean changed = !subscription.isOnlineKnown || subscription.presence.online != online;
+                subscription.presence.online = online;
+                subscription.isOnlineKnown = true;
+
+                if (changed) {
+                    onChanged(subscription);
+                }
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                onError(subscription, databaseError);
+            }
+        });
+
+        subscription.lastOnlineListener = subscription.lastOnlineRef.addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                long lastOnline = PresenceHandler.LAST_ONLINE_UNDEFINED;
+                if (dataSnapshot.getValue() instanceof Long) {
+                    lastOnline = (Long) dataSnapshot.getValue();
+                }
+
+                boolean changed = !subscription.isLastOnlineKnown || subscription.presence.lastOnline != lastOnline;
+                subscription.presence.lastOnline = lastOnline;
+                subscription.isLastOnlineKnown = true;
+
+                if (changed) {
+                    onChanged(subscription);
+                }
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                onError(subscription, databaseError);
+            }
+        });
+    }
+
+    private void detach(Subscription subscription) {
+        Log.d(DEBUG_USER_PRESENCE, "PresenceMultiplexer.detach: userId == " + subscription.userId);
+
+        if (subscription.onlineListener != null) {
+            subscription.onlineQuery.removeEventListener(subscription.onlineListener);
+            subscription.onlineListener = null;
+        }
+
+        if (subscription.lastOnlineListener != null) {
+            subscription.lastOnlineRef.removeEventListener(subscription.lastOnlineListener);
+            subscription.lastOnlineListener = null;
+        }
+
+        if (subscription.listeners.isEmpty()) {
+            subscriptions.remove(subscription.userId);
+            changedUserIds.remove(subscription.userId);
+        }
+    }
+
+    private void onChanged(Subscription subscription) {
+        // wait until both the fields are known, so a user is never shown offline while loading
+        if (!subscription.isKnown()) {
+            return;
+        }
+
+        changedUserIds.add(subscription.userId);
+
+        if (!isDeliveryScheduled) {
+            isDeliveryScheduled = true;
+            handler.postDelayed(deliverRunnable, throttleMillis);
+        }
+    }
+
+    private void deliverChanges() {
+        List<String> userIds = new ArrayList<>(changedUserIds);
+        changedUserIds.clear();
+
+        for (String userId : userIds) {
+            Subscription subscription = subscriptions.get(userId);
+            if (subscription == null) {
+                continue;
+            }
+
+            Presence presence = subscription.presence;
+
+            // the listeners can unsubscribe while notified
+            for (OnPresenceChangedListener listener : new ArrayList<>(subscription.listeners)) {
+                listener.onPresenceChanged(userId, presence.isOnline(), presence.getLastOnline());
+            }
+        }
+    }
+
+    private void onError(Subscription subscription, DatabaseError databaseError) {
+        Log.w(DEBUG_USER_PRESENCE, "PresenceMultiplexer.onCancelled: userId == " + subscription.userId +
+                ", " + databaseError.toString());
+
+        for (OnPresenceChangedListener listener : new ArrayList<>(subscription.listeners)) {
+            listener.onPresenceError(subscription.userId, databaseError.toException());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.chat21.android.core.presence.listeners;
+
+/**
+ * Receives the presence changes of the users subscribed to a
+ * {@link org.chat21.android.core.presence.PresenceMultiplexer}
+ */
+public interface OnPresenceChangedListener {
+
+    /**
+     * @param userId     the id of the user
+     * @param isOnline   true if the user is online, false otherwise
+     * @param lastOnline the user last online timestamp
+     */
+    void onPresenceChanged(String userId, boolean isOnline, long lastOnline);
+
+    void onPresenceError(String userId, Exception e);
+}
@@ -60,30 +60,99 @@ public class StorageHandler {
     }
 
     // compress the image keeping ratio and quality
-    private static void compressImage(final Context context, Uri file, final String type,
+    private static void compressImage(final Context context, final Uri file, final String type,
                                       final OnUploadedCallback callback) {
-        ImageCompressor.compress(context.getContentResolver(), file, new ImageCompressor.OnImageCompressListener() {
+        File destination = new File(getCompressedImagesDir(context), System.currentTimeMillis() + ".jpg");
+
+        ImageCompressor.compress(context.getContentResolver(), file, destination,
+                new ImageCompressor.OnImageCompressedListener() {
+                    @Override
+                    public void onImageCompressed(ImageCompressor.Result result) {
+                        Log.d(TAG, "compressImage: " + result.getWidth() + "x" + result.getHeight() +
+                                ", peak memory: " + result.getPeakMemoryBytes() + " bytes");
+                        performUpload(result.getUri(), type,
+                                deleteWhenDone(new File(result.getUri().getPath()), callback));
+                    }
+
+                    @Override
+                    public void onImageCompressFailed(Exception e) {
+                        // upload the original image
+                        performUpload(file, type, callback);
+                    }
+                });
+    }
+
+    // the compressed copy is useless once the upload succeeded or failed
+    private static OnUploadedCallback deleteWhenDone(final File file, final OnUploadedCallback callback) {
+        return new OnUploadedCallback() {
             @Override
-            public void onImageCompressed(Uri path) {
-                performUpload(path, type, callback);
+            public void onUploadSuccess(String uid, Uri downloadUrl, String type) {
+                delete(file);
+                callback.onUploadSuccess(uid, downloadUrl, type);
             }
-        });
+
+            @Override
+            public void onProgress(double progress) {
+                callback.onProgress(progress);
+            }
+
+            @Override
+            public void onUploadFailed(Exception e) {
+                delete(file);
+                callback.onUploadFailed(e);
+            }
+        };
     }
 
-    // execute the upload
-    private static void performUpload(Uri file, final String type,
-                                      final OnUploadedCallback callback) {
-        // public storage folder
-        StorageReference storageReference;
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "cannot delete the compressed image " + file);
+        }
+    }
+
+    // the compressed images waiting to be uploaded
+    static File getCompressedImagesDir(Context context) {
+        File dir = new File(context.getCacheDir(), "chat21_compressed_images");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    // public storage folder
+    static StorageReference getStorageReference() {
         if (StringUtils.isValid(ChatManager.Configuration.storageBucket)) {
-            storageReference = FirebaseStorage.getInstance()
+            return FirebaseStorage.getInstance()
                     .getReferenceFromUrl(ChatManager.Configuration.storageBucket)
                     .child("public");
         } else {
-            storageReference = FirebaseStorage.getInstance()
+            return FirebaseStorage.getInstance()
                     .getReference()
                     .child("public");
         }
+    }
+
+    // execute the upload, unless the same content has already been uploaded
+    private static void performUpload(final Uri file, final String type,
+                                      final OnUploadedCallback callback) {
+        ChatManager.getInstance().getUploadCache().lookup(new File(file.getPath()),
+                new UploadCache.OnLookupListener() {
+                    @Override
+                    public void onCacheHit(String hash, UploadCache.Entry entry) {
+                        callback.onProgress(100);
+                        callback.onUploadSuccess(entry.getUid(), Uri.parse(entry.getDownloadUrl()), type);
+                    }
+
+                    @Override
+                    public void onCacheMiss(String hash) {
+                        performUpload(file, type, hash, callback);
+                    }
+                });
+    }
+
+    private static void performUpload(Uri file, final String type, final String hash,
+                                      final OnUploadedCallback callback) {
+        StorageReference storageReference = getStorageReference();
 
         // random uid.
         // this is used to generate an unique folder in which
@@ -127,6 +196,10 @@ public class StorageHandler {
                 Uri downloadUrl = taskSnapshot.getDownloadUrl();
                 Log.d(TAG, "addOnFailureListener.onSuccess - downloadUrl: " + downloadUrl);
 
+                if (downloadUrl != null) {
+                    ChatManager.getInstance().getUploadCache().put(hash, downloadUrl.toString(), uuid);
+                }
+
                 callback.onUploadSuccess(uuid, downloadUrl, type);
             }
         });
@@ -291,7 +364,7 @@ public class StorageHandler {
      * @param file the file which wants to get the type
      * @return Type.Image if the file extensions if one between (jpg, jpeg, gif, png) - Type.File otherwise
      */
-    private static Type getType(File file) {
+    public static Type getType(File file) {
 
         // retrieve the extension from the file uri
         String extension = getExtensionFromUri(file);
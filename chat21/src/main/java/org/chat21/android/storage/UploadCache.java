@@ -0,0 +1,400 @@
+package org.chat21.android.storage;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+
+import org.chat21.android.utils.IOUtils;
+import org.chat21.android.utils.concurrent.DecodeQueue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Remembers the download url of the files already uploaded, by the SHA-256 hash of their content.
+ * <p/>
+ * A file with the same content of an uploaded one (ie. the same image forwarded to another conversation)
+ * is resolved to the existing url instead of being uploaded again.
+ * The hashes are computed out of the main thread and the cache is serialized on disk in background,
+ * keeping the {@link #MAX_ENTRIES} most recently used entries. It is read from disk out of the main thread
+ * on the first use, and the operations requested meanwhile are applied once it has been read.
+ * All the methods must be called from the main thread.
+ */
+public class UploadCache {
+    private static final String TAG = UploadCache.class.getName();
+
+    static final int MAX_ENTRIES = 1000;
+
+    private static final String _SERIALIZED_UPLOAD_CACHE = "_SERIALIZED_UPLOAD_CACHE";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final DecodeQueue HASH_QUEUE = new DecodeQueue();
+
+    // the cache is loaded, written and deleted one operation at a time, in order
+    private static final ExecutorService DISK_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    // incremented by delete(). main thread only
+    private static int generation = 0;
+
+    /**
+     * An uploaded file
+     */
+    public static class Entry implements Serializable {
+        private final String downloadUrl;
+        private final String uid; // the unique storage folder of the uploaded file
+        private final String thumbnailUrl; // null if no thumbnail has been uploaded
+
+        Entry(String downloadUrl, String uid, String thumbnailUrl) {
+            this.downloadUrl = downloadUrl;
+            this.uid = uid;
+            this.thumbnailUrl = thumbnailUrl;
+        }
+
+        public String getDownloadUrl() {
+            return downloadUrl;
+        }
+
+        public String getUid() {
+            return uid;
+        }
+
+        public String getThumbnailUrl() {
+            return thumbnailUrl;
+        }
+    }
+
+    public interface OnLookupListener {
+
+        /**
+         * The file has already been uploaded
+         *
+         * @param hash  the hash of the file content
+         * @param entry the uploaded file
+         */
+        void onCacheHit(String hash, Entry entry);
+
+        /**
+         * The file must be uploaded
+         *
+         * @param hash the hash of the file content, null if the file cannot be read
+         */
+        void onCacheMiss(String hash);
+    }
+
+    private final Context context;
+
+    // access ordered: the least recently used entry first. null until loaded
+    private LinkedHashMap<String, Entry> entries;
+    private boolean isLoading = false;
+
+    // the operations waiting for the entries to be loaded, in order
+    private final List<Runnable> pendingOperations = new ArrayList<>();
+
+    // the generation this cache writes to. the files of the older generations are deleted
+    private int cacheGeneration;
+
+    public UploadCache(Context context) {
+        this.context = context.getApplicationContext();
+        this.cacheGeneration = generation;
+    }
+
+    /**
+     * Hash a file and look for its upload
+     *
+     * @param file     the file to upload
+     * @param listener called on the main thread
+     */
+    public void lookup(final File file, final OnLookupListener listener) {
+        // read from disk while hashing
+        load();
+
+        HASH_QUEUE.enqueue(new DecodeQueue.Task<String>() {
+            @Override
+            public String decode() throws Exception {
+                return hash(file);
+            }
+
+            @Override
+            public void onDecoded(String hash) {
+                lookup(hash, listener);
+            }
+
+            @Override
+            public void onDecodeFailed(Exception e) {
+                Log.w(TAG, "lookup: cannot hash " + file + ": " + e.getMessage());
+                listener.onCacheMiss(null);
+            }
+        });
+    }
+
+    /**
+     * Look for the upload of an already hashed file.
+     * A cached url is returned only if its file still exists on the storage,
+     * otherwise it is forgotten and the file must be uploaded again
+     *
+     * @param hash     the hash of the file content
+     * @param listener called on the main thread
+     */
+    public void lookup(final String hash, final OnLookupListener listener) {
+        whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = entries.get(hash);
+                if (entry != null) {
+                    verify(hash, entry, listener);
+                } else {
+                    listener.onCacheMiss(hash);
+                }
+            }
+        });
+    }
+
+    // the uploaded file could have been deleted from the storage since it has been cached
+    private void verify(final String hash, final Entry entry, final OnLookupListener listener) {
+        StorageReference reference;
+        try {
+            reference = FirebaseStorage.getInstance().getReferenceFromUrl(entry.getDownloadUrl());
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "verify: cannot check " + entry.getDownloadUrl() + ": " + e.getMessage());
+            listener.onCacheHit(hash, entry);
+            return;
+        }
+
+        reference.getMetadata().addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
+            @Override
+            public void onSuccess(StorageMetadata storageMetadata) {
+                Log.d(TAG, "verify: already uploaded to " + entry.getDownloadUrl());
+                listener.onCacheHit(hash, entry);
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                if (e instanceof StorageException &&
+                        ((StorageException) e).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND) {
+                    Log.d(TAG, "verify: " + entry.getDownloadUrl() + " not found, upload again");
+                    remove(hash);
+                    listener.onCacheMiss(hash);
+                } else {
+                    // ie. offline: the url is probably still valid
+                    listener.onCacheHit(hash, entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remember an uploaded file
+     *
+     * @param hash        the hash of the file content
+     * @param downloadUrl the download url of the uploaded file
+     * @param uid         the unique storage folder of the uploaded file
+     */
+    public void put(String hash, String downloadUrl, String uid) {
+        put(hash, downloadUrl, uid, null);
+    }
+
+    /**
+     * Remember an uploaded image and its thumbnail
+     *
+     * @param hash         the hash of the file content
+     * @param downloadUrl  the download url of the uploaded file
+     * @param uid          the unique storage folder of the uploaded file
+     * @param thumbnailUrl the download url of the uploaded thumbnail
+     */
+    public void put(final String hash, String downloadUrl, String uid, String thumbnailUrl) {
+        if (hash == null || downloadUrl == null) {
+            return;
+        }
+
+        final Entry entry = new Entry(downloadUrl, uid, thumbnailUrl);
+        whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                entries.put(hash, entry);
+                persist();
+            }
+        });
+    }
+
+    /**
+     * Forget an uploaded file, ie. when its url is not valid anymore
+     */
+    public void remove(final String hash) {
+        whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                if (entries.remove(hash) != null) {
+                    persist();
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget all the uploaded files
+     */
+    public void clear() {
+        entries = newEntries();
+        delete(context);
+        cacheGeneration = generation;
+
+        runPendingOperations();
+    }
+
+    /**
+     * Delete the cache on disk, even if it has never been loaded, ie. on logout.
+     * It is deleted after the pending writes and before the next loads,
+     * and the caches created before this call do not write anymore
+     */
+    public static void delete(final Context context) {
+        generation++;
+
+        DISK_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOUtils.deleteObject(context.getApplicationContext(), _SERIALIZED_UPLOAD_CACHE);
+            }
+        });
+    }
+
+    /**
+     * @return the number of remembered uploads, 0 until they have been loaded
+     */
+    public int size() {
+        return entries != null ? entries.size() : 0;
+    }
+
+    // run the operation now if the entries have been loaded, once loaded otherwise
+    private void whenLoaded(Runnable operation) {
+        if (entries != null) {
+            operation.run();
+            return;
+        }
+
+        pendingOperations.add(operation);
+        load();
+    }
+
+    // read from disk on the disk thread, after the pending writes and deletes
+    private void load() {
+        if (entries != null || isLoading) {
+            return;
+        }
+        isLoading = true;
+
+        DISK_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Object serialized = IOUtils.getObjectFromFile(context, _SERIALIZED_UPLOAD_CACHE);
+
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        isLoading = false;
+                        if (entries == null) {
+                            entries = restore(serialized);
+                        }
+                        runPendingOperations();
+                    }
+                });
+            }
+        });
+    }
+
+    private void runPendingOperations() {
+        List<Runnable> operations = new ArrayList<>(pendingOperations);
+        pendingOperations.clear();
+
+        for (Runnable operation : operations) {
+            operation.run();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LinkedHashMap<String, Entry> restore(Object serialized) {
+        LinkedHashMap<String, Entry> restored = newEntries();
+        if (serialized instanceof Map) {
+            restored.putAll((Map<String, Entry>) serialized);
+        }
+        return restored;
+    }
+
+    private static LinkedHashMap<String, Entry> newEntries() {
+        return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    private void persist() {
+        // the cache has been deleted meanwhile, ie. the user logged out
+        if (cacheGeneration != generation) {
+            return;
+        }
+
+        // serialize a plain copy, not the anonymous subclass, taken now: the entries change meanwhile
+        final LinkedHashMap<String, Entry> copy = new LinkedHashMap<>(entries);
+
+        DISK_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOUtils.saveObjectToFile(context, _SERIALIZED_UPLOAD_CACHE, copy);
+            }
+        });
+    }
+
+    /**
+     * @return the hex SHA-256 hash of the file content
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,195 @@
+package org.chat21.android.storage;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A file waiting to be uploaded by the {@link UploadQueue} and then sent as a message.
+ * It is serialized on disk with its resumable session, so it survives the process death.
+ */
+public class UploadJob implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final String sourcePath; // the file picked by the user
+    private final String type; // StorageHandler.Type, lowercase
+    private final String uid; // the unique storage folder, preserving the file name
+
+    // the message sent once uploaded
+    private final String recipientId;
+    private final String recipientFullName;
+    private final String channelType;
+    private final String text;
+
+    private String uploadPath; // the file actually uploaded: the compressed image or the source file
+    private int width;
+    private int height;
+    private String hash; // the content hash of the upload file, null until hashed
+    private String thumbnailPath; // the thumbnail of an image, null if not created
+    private String blurHash;
+
+    private String sessionUri; // the firebase storage resumable session, null until started
+    private int attempts = 0;
+
+    // not persisted: rebuilt while uploading
+    private transient long bytesTransferred;
+    private transient long totalBytes;
+    private transient long nextAttemptAt;
+
+    UploadJob(String sourcePath, String type, String recipientId, String recipientFullName,
+              String channelType, String text) {
+        this.id = UUID.randomUUID().toString();
+        this.uid = UUID.randomUUID().toString();
+        this.sourcePath = sourcePath;
+        this.type = type;
+        this.recipientId = recipientId;
+        this.recipientFullName = recipientFullName;
+        this.channelType = channelType;
+        this.text = text;
+    }
+
+    // a copy of the persisted state, serialized out of the main thread
+    UploadJob(UploadJob job) {
+        this.id = job.id;
+        this.uid = job.uid;
+        this.sourcePath = job.sourcePath;
+        this.type = job.type;
+        this.recipientId = job.recipientId;
+        this.recipientFullName = job.recipientFullName;
+        this.channelType = job.channelType;
+        this.text = job.text;
+        this.uploadPath = job.uploadPath;
+        this.width = job.width;
+        this.height = job.height;
+        this.hash = job.hash;
+        this.thumbnailPath = job.thumbnailPath;
+        this.blurHash = job.blurHash;
+        this.sessionUri = job.sessionUri;
+        this.attempts = job.attempts;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSourcePath() {
+        return sourcePath;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    public String getRecipientId() {
+        return recipientId;
+    }
+
+    public String getRecipientFullName() {
+        return recipientFullName;
+    }
+
+    public String getChannelType() {
+        return channelType;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getUploadPath() {
+        return uploadPath;
+    }
+
+    void setUploadPath(String uploadPath) {
+        this.uploadPath = uploadPath;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public String getThumbnailPath() {
+        return thumbnailPath;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    void setThumbnail(String thumbnailPath, String blurHash) {
+        this.thumbnailPath = thumbnailPath;
+        this.blurHash = blurHash;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    String getSessionUri() {
+        return sessionUri;
+    }
+
+    void setSessionUri(String sessionUri) {
+        this.sessionUri = sessionUri;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    void incrementAttempts() {
+        attempts++;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    void setProgress(long bytesTransferred, long totalBytes) {
+        this.bytesTransferred = bytesTransferred;
+        this.totalBytes = totalBytes;
+    }
+
+    long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    void setNextAttemptAt(long nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadJob{" +
+                "id='" + id + '\'' +
+                ", sourcePath='" + sourcePath + '\'' +
+                ", type='" + type + '\'' +
+                ", recipientId='" + recipientId + '\'' +
+                ", uploadPath='" + uploadPath + '\'' +
+                ", hash='" + hash + '\'' +
+                ", sessionUri='" + sessionUri + '\'' +
+                ", attempts=" + attempts +
+                '}';
+    }
+}
@@ -0,0 +1,636 @@
+package org.chat21.android.storage;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.firebase.storage.OnProgressListener;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+
+import org.chat21.android.core.ChatManager;
+import org.chat21.android.core.messages.models.Message;
+import org.chat21.android.utils.IOUtils;
+import org.chat21.android.utils.image.ImageCompressor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A persistent queue of attachments to upload and send.
+ * <p/>
+ * Up to {@code maxConcurrentUploads} files are uploaded at the same time, the others wait in order.
+ * The queue is serialized on disk together with the resumable session of each upload,
+ * so the uploads interrupted by the process death continue where they stopped when the queue is created again.
+ * A failed upload is retried with an exponential backoff, up to {@link #MAX_ATTEMPTS} times.
+ * <p/>
+ * Once uploaded, the attachment is sent as a message to the recipient of its job,
+ * so a job completes even if the screen which enqueued it is gone.
+ * <p/>
+ * Before the upload the content of the (compressed) file is hashed: a content already uploaded is sent
+ * with its cached url (see {@link UploadCache}), and the jobs with the same content of a running upload
+ * wait for its url instead of uploading it again.
+ * <p/>
+ * The images are sent with a small thumbnail, uploaded next to the image, and with their width, height
+ * and blurhash, so the message list can size the previews and show a placeholder before loading the thumbnail.
+ * All the methods must be called from the main thread.
+ */
+public class UploadQueue {
+    private static final String TAG = UploadQueue.class.getName();
+
+    public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 3;
+
+    static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MILLIS = 2000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    private static final String _SERIALIZED_UPLOAD_QUEUE = "_SERIALIZED_UPLOAD_QUEUE";
+
+    // writes the queue file in order, out of the main thread
+    private static final ExecutorService PERSIST_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    public interface OnUploadQueueListener {
+
+        /**
+         * The progress of all the pending uploads
+         *
+         * @param pendingCount     the number of attachments not uploaded yet
+         * @param bytesTransferred the bytes uploaded so far
+         * @param totalBytes       the bytes to upload. it grows as the uploads start
+         */
+        void onUploadProgress(int pendingCount, long bytesTransferred, long totalBytes);
+
+        void onUploadCompleted(UploadJob job, Uri downloadUrl);
+
+        /**
+         * Called when a job is dropped after its last attempt
+         */
+        void onUploadFailed(UploadJob job, Exception e);
+    }
+
+    private final Context context;
+    private final int maxConcurrentUploads;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // the pending jobs by id, in order
+    private final LinkedHashMap<String, UploadJob> jobs = new LinkedHashMap<>();
+
+    // the running uploads by job id. a job preparing its file is running with a null task
+    private final Map<String, UploadTask> runningTasks = new HashMap<>();
+
+    // the job uploading each content hash, and the jobs with the same content waiting for its url
+    private final Map<String, String> uploadingJobIds = new HashMap<>();
+    private final Map<String, List<UploadJob>> waitingJobs = new HashMap<>();
+
+    private final List<OnUploadQueueListener> listeners = new ArrayList<>();
+
+    private final Runnable scheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    public UploadQueue(Context context) {
+        this(context, DEFAULT_MAX_CONCURRENT_UPLOADS);
+    }
+
+    public UploadQueue(Context context, int maxConcurrentUploads) {
+        this.context = context.getApplicationContext();
+        this.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+
+        restore();
+        schedule();
+    }
+
+    public void addListener(OnUploadQueueListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(OnUploadQueueListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Enqueue a file to upload and send to a recipient. The images are compressed before the upload
+     *
+     * @param file              the file to send
+     * @param recipientId       the recipient id
+     * @param recipientFullName the recipient full name
+     * @param channelType       the channel type of the conversation
+     * @param text              the text of the message, ie. the localized type of the attachment
+     * @return the enqueued job
+     */
+    public UploadJob enqueue(File file, String recipientId, String recipientFullName,
+                             String channelType, String text) {
+        String type = StorageHandler.getType(file).toString().toLowerCase();
+
+        UploadJob job = new UploadJob(file.getAbsolutePath(), type, recipientId, recipientFullName,
+                channelType, text);
+        job.setProgress(0, file.length());
+
+        jobs.put(job.getId(), job);
+        Log.d(TAG, "enqueue: " + job.toString());
+
+        persist();
+        notifyProgress();
+        schedule();
+
+        return job;
+    }
+
+    /**
+     * @return the number of attachments not uploaded yet
+     */
+    public int getPendingCount() {
+        return jobs.size();
+    }
+
+    public long getBytesTransferred() {
+        long bytes = 0;
+        for (UploadJob job : jobs.values()) {
+            bytes += job.getBytesTransferred();
+        }
+        return bytes;
+    }
+
+    public long getTotalBytes() {
+        long bytes = 0;
+        for (UploadJob job : jobs.values()) {
+            bytes += job.getTotalBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Cancel all the uploads and forget the queue, ie. on logout
+     */
+    public void cancelAll() {
+        handler.removeCallbacks(scheduleRunnable);
+
+        for (UploadTask task : runningTasks.values()) {
+            if (task != null) {
+                task.cancel();
+            }
+        }
+        runningTasks.clear();
+        uploadingJobIds.clear();
+        waitingJobs.clear();
+
+        for (UploadJob job : jobs.values()) {
+            deleteCompressedFile(job);
+        }
+        jobs.clear();
+
+        IOUtils.deleteObject(context, _SERIALIZED_UPLOAD_QUEUE);
+    }
+
+    // start the jobs which are waiting and not backing off, up to the concurrency limit
+    private void schedule() {
+        handler.removeCallbacks(scheduleRunnable);
+
+        long now = SystemClock.elapsedRealtime();
+        long nextWakeUp = Long.MAX_VALUE;
+
+        for (UploadJob job : new ArrayList<>(jobs.values())) {
+            if (runningTasks.size() >= maxConcurrentUploads) {
+                return; // rescheduled when a running upload ends
+            }
+
+            if (runningTasks.containsKey(job.getId()) || isWaiting(job)) {
+                continue;
+            }
+
+            if (job.getNextAttemptAt() > now) {
+                nextWakeUp = Math.min(nextWakeUp, job.getNextAttemptAt());
+                continue;
+            }
+
+            start(job);
+        }
+
+        if (nextWakeUp != Long.MAX_VALUE) {
+            handler.postDelayed(scheduleRunnable, nextWakeUp - now);
+        }
+    }
+
+    private void start(final UploadJob job) {
+        runningTasks.put(job.getId(), null);
+
+        boolean isImage = job.getType().equals(StorageHandler.Type.Image.toString().toLowerCase());
+
+        if (isCompressedFileMissing(job)) {
+            // the system purged the cache dir while the job was queued: compress the source again
+            Log.d(TAG, "start: compressed file of " + job.getId() + " missing, compressing again");
+            resetCompression(job);
+        }
+
+        if (job.getUploadPath() != null) {
+            onPrepared(job);
+        } else if (isImage) {
+            // compress the image once. the compressed file is kept until the upload completes
+            File destination = new File(StorageHandler.getCompressedImagesDir(context), job.getId() + ".jpg");
+
+            ImageCompressor.compress(context.getContentResolver(), Uri.fromFile(new File(job.getSourcePath())),
+                    destination, new ImageCompressor.OnImageCompressedListener() {
+                        @Override
+                        public void onImageCompressed(ImageCompressor.Result result) {
+                            job.setUploadPath(result.getUri().getPath());
+                            job.setSize(result.getWidth(), result.getHeight());
+                            createThumbnail(job);
+                        }
+
+                        @Override
+                        public void onImageCompressFailed(Exception e) {
+                            // upload the original image
+                            job.setUploadPath(job.getSourcePath());
+                            readImageSize(job);
+                            createThumbnail(job);
+                        }
+                    });
+        } else {
+            job.setUploadPath(job.getSourcePath());
+            onPrepared(job);
+        }
+    }
+
+    // the thumbnail shown in the message list, with the blurhash shown while it is loading
+    private void createThumbnail(final UploadJob job) {
+        File destination = new File(StorageHandler.getCompressedImagesDir(context), job.getId() + "_thumbnail.jpg");
+
+        ImageCompressor.createThumbnail(context.getContentResolver(), Uri.fromFile(new File(job.getUploadPath())),
+                destination, new ImageCompressor.OnImageCompressedListener() {
+                    @Override
+                    public void onImageCompressed(ImageCompressor.Result result) {
+                        job.setThumbnail(result.getUri().getPath(), result.getBlurHash());
+                        onPrepared(job);
+                    }
+
+                    @Override
+                    public void onImageCompressFailed(Exception e) {
+                        // the list shows the original image
+                        onPrepared(job);
+                    }
+                });
+    }
+
+    private void onPrepared(final UploadJob job) {
+        if (!jobs.containsKey(job.getId())) {
+            deleteCompressedFile(job); // cancelled while compressing
+            return;
+        }
+
+        job.setProgress(0, new File(job.getUploadPath()).length());
+
+        UploadCache uploadCache = ChatManager.getInstance().getUploadCache();
+        UploadCache.OnLookupListener onLookupListener = new UploadCache.OnLookupListener() {
+            @Override
+            public void onCacheHit(String hash, UploadCache.Entry entry) {
+                resolve(job, hash, entry);
+            }
+
+            @Override
+            public void onCacheMiss(String hash) {
+                resolve(job, hash, null);
+            }
+        };
+
+        if (job.getHash() != null) {
+            // already hashed before the process death
+            uploadCache.lookup(job.getHash(), onLookupListener);
+        } else {
+            uploadCache.lookup(new File(job.getUploadPath()), onLookupListener);
+        }
+    }
+
+    // send the cached url, wait for the job uploading the same content or upload the file
+    private void resolve(UploadJob job, String hash, UploadCache.Entry entry) {
+        if (!jobs.containsKey(job.getId())) {
+            return; // cancelled while hashing
+        }
+
+        job.setHash(hash);
+
+        if (entry != null) {
+            Log.d(TAG, "resolve: " + job.getId() + " already uploaded to " + entry.getDownloadUrl());
+            complete(job, Uri.parse(entry.getDownloadUrl()), entry.getUid(), entry.getThumbnailUrl());
+            notifyProgress();
+            schedule();
+            return;
+        }
+
+        persist();
+
+        String uploadingJobId = hash != null ? uploadingJobIds.get(hash) : null;
+        if (uploadingJobId != null && !uploadingJobId.equals(job.getId())) {
+            Log.d(TAG, "resolve: " + job.getId() + " waits for the upload of " + uploadingJobId);
+
+            runningTasks.remove(job.getId());
+            List<UploadJob> waiting = waitingJobs.get(hash);
+            if (waiting == null) {
+                waiting = new ArrayList<>();
+                waitingJobs.put(hash, waiting);
+            }
+            waiting.add(job);
+
+            schedule();
+            return;
+        }
+
+        if (hash != null) {
+            uploadingJobIds.put(hash, job.getId());
+        }
+        upload(job);
+    }
+
+    private static boolean isCompressedFileMissing(UploadJob job) {
+        return job.getUploadPath() != null && !job.getUploadPath().equals(job.getSourcePath())
+                && !new File(job.getUploadPath()).exists();
+    }
+
+    // the hash and the resumable session belong to the compressed file
+    private void resetCompression(UploadJob job) {
+        releaseHash(job);
+        deleteCompressedFile(job);
+
+        job.setUploadPath(null);
+        job.setThumbnail(null, null);
+        job.setHash(null);
+        job.setSessionUri(null);
+        persist();
+    }
+
+    private boolean isWaiting(UploadJob job) {
+        List<UploadJob> waiting = job.getHash() != null ? waitingJobs.get(job.getHash()) : null;
+        return waiting != null && waiting.contains(job);
+    }
+
+    private void upload(final UploadJob job) {
+        final File file = new File(job.getUploadPath());
+        if (!file.exists()) {
+            // the source has been deleted: it cannot be uploaded anymore
+            remove(job);
+            notifyFailed(job, new IllegalStateException("The file " + file + " does not exist"));
+            notifyProgress();
+            schedule();
+            return;
+        }
+
+        StorageReference reference = StorageHandler.getStorageReference()
+                .child(job.getType() + "/" + job.getUid() + "/" + file.getName());
+
+        UploadTask task;
+        if (job.getSessionUri() != null) {
+            Log.d(TAG, "upload: resuming " + job.getId() + " from session " + job.getSessionUri());
+            task = reference.putFile(Uri.fromFile(file), new StorageMetadata.Builder().build(),
+                    Uri.parse(job.getSessionUri()));
+        } else {
+            task = reference.putFile(Uri.fromFile(file));
+        }
+
+        runningTasks.put(job.getId(), task);
+
+        task.addOnProgressListener(new OnProgressListener<UploadTask.TaskSnapshot>() {
+            @Override
+            public void onProgress(UploadTask.TaskSnapshot taskSnapshot) {
+                // keep the session to resume the upload after the process death
+                Uri sessionUri = taskSnapshot.getUploadSessionUri();
+                if (sessionUri != null && !sessionUri.toString().equals(job.getSessionUri())) {
+                    job.setSessionUri(sessionUri.toString());
+                    persist();
+                }
+
+                job.setProgress(taskSnapshot.getBytesTransferred(), taskSnapshot.getTotalByteCount());
+                notifyProgress();
+            }
+        }).addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
+            @Override
+            public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
+                Uri downloadUrl = taskSnapshot.getDownloadUrl();
+                Log.d(TAG, "upload: " + job.getId() + " uploaded to " + downloadUrl);
+
+                uploadThumbnail(job, downloadUrl);
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                onUploadFailed(job, e);
+            }
+        });
+    }
+
+    // upload the thumbnail next to the image. if it fails the image is sent without the thumbnail
+    private void uploadThumbnail(final UploadJob job, final Uri downloadUrl) {
+        if (job.getThumbnailPath() == null || !new File(job.getThumbnailPath()).exists()) {
+            onUploaded(job, downloadUrl, null);
+            return;
+        }
+
+        File thumbnail = new File(job.getThumbnailPath());
+        StorageReference reference = StorageHandler.getStorageReference()
+                .child(job.getType() + "/" + job.getUid() + "/thumbnails/" + thumbnail.getName());
+
+        UploadTask task = reference.putFile(Uri.fromFile(thumbnail));
+        runningTasks.put(job.getId(), task);
+
+        task.addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
+            @Override
+            public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
+                onUploaded(job, downloadUrl, taskSnapshot.getDownloadUrl());
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                Log.w(TAG, "uploadThumbnail: " + job.getId() + " sent without thumbnail: " + e.toString());
+                onUploaded(job, downloadUrl, null);
+            }
+        });
+    }
+
+    private void onUploaded(UploadJob job, Uri downloadUrl, Uri thumbnailUrl) {
+        if (!jobs.containsKey(job.getId())) {
+            return; // cancelled
+        }
+
+        String thumbnail = thumbnailUrl != null ? thumbnailUrl.toString() : null;
+
+        if (downloadUrl != null) {
+            ChatManager.getInstance().getUploadCache()
+                    .put(job.getHash(), downloadUrl.toString(), job.getUid(), thumbnail);
+        }
+
+        // the jobs with the same content are sent with the same urls
+        List<UploadJob> waiting = job.getHash() != null ?
+                waitingJobs.remove(job.getHash()) : null;
+
+        complete(job, downloadUrl, job.getUid(), thumbnail);
+        if (waiting != null) {
+            for (UploadJob waitingJob : waiting) {
+                complete(waitingJob, downloadUrl, job.getUid(), thumbnail);
+            }
+        }
+
+        notifyProgress();
+        schedule();
+    }
+
+    private void onUploadFailed(UploadJob job, Exception e) {
+        Log.w(TAG, "onUploadFailed: " + job.getId() + ", attempt " + (job.getAttempts() + 1) + ": " + e.toString());
+
+        runningTasks.remove(job.getId());
+
+        if (!jobs.containsKey(job.getId())) {
+            return; // cancelled
+        }
+
+        job.incrementAttempts();
+
+        // a network error keeps the session, any other one (ie. an expired session) restarts the upload
+        boolean isNetworkError = e instanceof StorageException &&
+                ((StorageException) e).getErrorCode() == StorageException.ERROR_RETRY_LIMIT_EXCEEDED;
+        if (!isNetworkError) {
+            job.setSessionUri(null);
+        }
+
+        if (job.getAttempts() >= MAX_ATTEMPTS) {
+            remove(job);
+            notifyFailed(job, e);
+        } else {
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << (job.getAttempts() - 1));
+            job.setNextAttemptAt(SystemClock.elapsedRealtime() + backoff);
+            persist();
+        }
+
+        notifyProgress();
+        schedule();
+    }
+
+    // send the uploaded attachment and forget the job
+    private void complete(UploadJob job, Uri downloadUrl, String uid, String thumbnailUrl) {
+        remove(job);
+        sendMessage(job, downloadUrl, uid, thumbnailUrl);
+
+        for (OnUploadQueueListener listener : new ArrayList<>(listeners)) {
+            listener.onUploadCompleted(job, downloadUrl);
+        }
+    }
+
+    private void sendMessage(UploadJob job, Uri downloadUrl, String uid, String thumbnailUrl) {
+        Map<String, Object> metadata = new HashMap<>();
+        if (job.getWidth() > 0 && job.getHeight() > 0) {
+            metadata.put(Message.METADATA_WIDTH, job.getWidth());
+            metadata.put(Message.METADATA_HEIGHT, job.getHeight());
+        }
+        metadata.put(Message.METADATA_SRC, downloadUrl.toString());
+        if (thumbnailUrl != null) {
+            metadata.put(Message.METADATA_THUMBNAIL, thumbnailUrl);
+        }
+        if (job.getBlurHash() != null) {
+            metadata.put(Message.METADATA_BLUR_HASH, job.getBlurHash());
+        }
+        metadata.put(Message.METADATA_UID, uid);
+
+        ChatManager.getInstance().sendImageMessage(job.getRecipientId(), job.getRecipientFullName(),
+                job.getText(), job.getChannelType(), metadata, null);
+    }
+
+    private void remove(UploadJob job) {
+        jobs.remove(job.getId());
+        runningTasks.remove(job.getId());
+
+        releaseHash(job);
+        deleteCompressedFile(job);
+        persist();
+    }
+
+    // the jobs waiting for the upload of this job, if any, upload the content by themselves
+    private void releaseHash(UploadJob job) {
+        if (job.getHash() != null && job.getId().equals(uploadingJobIds.get(job.getHash()))) {
+            uploadingJobIds.remove(job.getHash());
+            waitingJobs.remove(job.getHash());
+        }
+    }
+
+    // read the size of a not compressed image
+    private static void readImageSize(UploadJob job) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(job.getUploadPath(), options);
+        job.setSize(Math.max(0, options.outWidth), Math.max(0, options.outHeight));
+    }
+
+    private void deleteCompressedFile(UploadJob job) {
+        if (job.getUploadPath() != null && !job.getUploadPath().equals(job.getSourcePath())) {
+            new File(job.getUploadPath()).delete();
+        }
+        if (job.getThumbnailPath() != null) {
+            new File(job.getThumbnailPath()).delete();
+        }
+    }
+
+    private void notifyProgress() {
+        int pendingCount = getPendingCount();
+        long bytesTransferred = getBytesTransferred();
+        long totalBytes = getTotalBytes();
+
+        for (OnUploadQueueListener listener : new ArrayList<>(listeners)) {
+            listener.onUploadProgress(pendingCount, bytesTransferred, totalBytes);
+        }
+    }
+
+    private void notifyFailed(UploadJob job, Exception e) {
+        Log.e(TAG, "notifyFailed: " + job.toString() + " dropped: " + e.toString());
+
+        for (OnUploadQueueListener listener : new ArrayList<>(listeners)) {
+            listener.onUploadFailed(job, e);
+        }
+    }
+
+    // the jobs keep changing on the main thread, so a copy of them is serialized
+    private void persist() {
+        final List<UploadJob> snapshot = new ArrayList<>(jobs.size());
+        for (UploadJob job : jobs.values()) {
+            snapshot.add(new UploadJob(job));
+        }
+
+        PERSIST_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOUtils.saveObjectToFile(context, _SERIALIZED_UPLOAD_QUEUE, snapshot);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void restore() {
+        Object serialized = IOUtils.getObjectFromFile(context, _SERIALIZED_UPLOAD_QUEUE);
+        if (!(serialized instanceof List)) {
+            return;
+        }
+
+        for (UploadJob job : (List<UploadJob>) serialized) {
+            File source = new File(job.getUploadPath() != null ? job.getUploadPath() : job.getSourcePath());
+            job.setProgress(0, source.length());
+            jobs.put(job.getId(), job);
+        }
+
+        Log.i(TAG, "restore: " + jobs.size() + " uploads resumed");
+    }
+}
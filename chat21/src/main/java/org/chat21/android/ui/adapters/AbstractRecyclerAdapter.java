@@ -2,17 +2,33 @@ package org.chat21.android.ui.adapters;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
 import android.view.ViewGroup;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Custom abstrac adapter.
  * It requires just to create the viewholder and the methods "onBindViewHolder()" and "onCreateViewHolder".
  * <p/>
- * It works fine from RecyclerView v7:23.0.2 to v7:27.0.2
+ * It works fine from RecyclerView v7:24.2.0 to v7:27.0.2 (DiffUtil requires 24.2.0)
+ * <p/>
+ * The adapter displays a snapshot of the items.
+ * After the items have been changed call {@link #refresh()} (or {@link #update(Object)}):
+ * all the changes made within the same frame are coalesced, the diff between the displayed
+ * snapshot and the new items is computed on a background thread and only the inserted,
+ * removed, moved and changed rows are notified.
+ * All the methods must be called from the main thread.
  * <p/>
  * Created by stefanodp91 on 26/08/2015.
  *
@@ -21,22 +37,196 @@ import java.util.List;
  */
 public abstract class AbstractRecyclerAdapter<T extends Object, U extends RecyclerView.ViewHolder>
         extends RecyclerView.Adapter<U> {
+
+    // diffs are computed one at a time, shared by all the adapters
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
     private Context context;
     private Activity activity;
-    private List<T> items;
+    private List<T> items; // the source items
+    private List<T> displayedItems; // the snapshot bound to the views
+
+    // items explicitly updated since the last diff. they are rebound even if not replaced
+    private Set<T> changedItems = newIdentitySet();
+    private List<Runnable> commitCallbacks = new ArrayList<>();
+    private boolean isFrameScheduled = false;
+    private boolean isDiffRunning = false;
+    private boolean isRefreshPending = false;
+
+    public AbstractRecyclerAdapter(List<T> items) {
+        this.items = items;
+        this.displayedItems = copyOf(items);
+    }
 
     public AbstractRecyclerAdapter(Context context, List<T> items) {
+        this(items);
         this.context = context;
-        this.items = items;
     }
 
     public AbstractRecyclerAdapter(Activity activity, List<T> items) {
+        this(items);
         this.activity = activity;
-        this.items = items;
     }
 
+    /**
+     * Replace the source items and refresh the displayed ones
+     *
+     * @param mList the new items
+     */
     public void setList(List<T> mList) {
         this.items = mList;
+        refresh();
+    }
+
+    /**
+     * Refresh the displayed items with the source ones.
+     * The views are updated at the next frame.
+     */
+    public void refresh() {
+        refresh(null);
+    }
+
+    /**
+     * Refresh the displayed items with the source ones.
+     * The views are updated at the next frame.
+     *
+     * @param commitCallback called after the changes have been dispatched to the views. It can be null
+     */
+    public void refresh(Runnable commitCallback) {
+        if (commitCallback != null && !commitCallbacks.contains(commitCallback)) {
+            commitCallbacks.add(commitCallback);
+        }
+
+        if (!isFrameScheduled) {
+            isFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    }
+
+    /**
+     * Check if two items represent the same object.
+     * By default it uses {@link Object#equals(Object)}.
+     *
+     * @param oldItem the displayed item
+     * @param newItem the source item
+     * @return true if the items represent the same object, false otherwise
+     */
+    protected boolean areItemsTheSame(T oldItem, T newItem) {
+        return oldItem.equals(newItem);
+    }
+
+    /**
+     * Check if the row of an item has to be rebound.
+     * It is called only when {@link #areItemsTheSame(Object, Object)} returns true.
+     * By default only replaced items and items passed to {@link #update(Object)} are rebound.
+     *
+     * @param oldItem the displayed item
+     * @param newItem the source item
+     * @return true if the row does not need to be rebound, false otherwise
+     */
+    protected boolean areContentsTheSame(T oldItem, T newItem) {
+        return oldItem == newItem;
+    }
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            isFrameScheduled = false;
+            dispatchDiff();
+        }
+    };
+
+    private void dispatchDiff() {
+        if (isDiffRunning) {
+            // diffs are computed against the displayed items:
+            // wait for the running diff to be dispatched
+            isRefreshPending = true;
+            return;
+        }
+        isDiffRunning = true;
+
+        final List<T> oldItems = displayedItems;
+        final List<T> newItems = copyOf(items);
+        final Set<T> changed = changedItems;
+        final List<Runnable> callbacks = commitCallbacks;
+        changedItems = newIdentitySet();
+        commitCallbacks = new ArrayList<>();
+
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result = DiffUtil.calculateDiff(
+                        new ItemsDiffCallback(oldItems, newItems, changed));
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        displayedItems = newItems;
+                        result.dispatchUpdatesTo(AbstractRecyclerAdapter.this);
+                        isDiffRunning = false;
+
+                        for (Runnable callback : callbacks) {
+                            callback.run();
+                        }
+
+                        // changes arrived while the diff was running
+                        if (isRefreshPending) {
+                            isRefreshPending = false;
+                            refresh();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private class ItemsDiffCallback extends DiffUtil.Callback {
+        private final List<T> oldItems;
+        private final List<T> newItems;
+        private final Set<T> changed;
+
+        ItemsDiffCallback(List<T> oldItems, List<T> newItems, Set<T> changed) {
+            this.oldItems = oldItems;
+            this.newItems = newItems;
+            this.changed = changed;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return AbstractRecyclerAdapter.this.areItemsTheSame(
+                    oldItems.get(oldItemPosition), newItems.get(newItemPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            T newItem = newItems.get(newItemPosition);
+
+            return !changed.contains(newItem) && AbstractRecyclerAdapter.this.areContentsTheSame(
+                    oldItems.get(oldItemPosition), newItem);
+        }
+    }
+
+    private static <T> List<T> copyOf(List<T> list) {
+        if (list == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(list);
+    }
+
+    private static <T> Set<T> newIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
     }
 
 
@@ -47,21 +237,18 @@ public abstract class AbstractRecyclerAdapter<T extends Object, U extends Recycl
     public abstract void onBindViewHolder(U holder, final int position);
 
     /**
-     * Return the item in the selected position
+     * Return the displayed item in the selected position
      *
      * @param position the item's position
      * @return
      */
     public T getItem(int position) {
-        return items.get(position);
+        return displayedItems.get(position);
     }
 
     @Override
     public int getItemCount() {
-        if (items == null)
-            return 0;
-
-        return items.size();
+        return displayedItems.size();
     }
 
     public Context getContext() {
@@ -73,7 +260,9 @@ public abstract class AbstractRecyclerAdapter<T extends Object, U extends Recycl
     }
 
     /**
-     * @return the list of items
+     * Call {@link #refresh()} after changing the returned list.
+     *
+     * @return the list of source items
      */
     public List<T> getItems() {
         List<T> mList = new ArrayList<>();
@@ -92,8 +281,8 @@ public abstract class AbstractRecyclerAdapter<T extends Object, U extends Recycl
      */
     public void remove(int position) {
         if (items != null && items.size() > 0) {
-            items.remove(position);
-            notifyItemRemoved(position);
+            items.remove(getItem(position));
+            refresh();
         }
     }
 
@@ -106,7 +295,7 @@ public abstract class AbstractRecyclerAdapter<T extends Object, U extends Recycl
         int position = 0;
         if (item != null) {
             items.add(position, item);
-            notifyItemInserted(position);
+            refresh();
         }
     }
 
@@ -120,7 +309,7 @@ public abstract class AbstractRecyclerAdapter<T extends Object, U extends Recycl
             int position = items.size();
             if (item != null) {
                 items.add(position, item);
-                notifyItemInserted(position);
+                refresh();
             }
         }
     }
@@ -134,7 +323,7 @@ public abstract class AbstractRecyclerAdapter<T extends Object, U extends Recycl
         if (items != null) {
             if (item != null) {
                 items.add(position, item);
-                notifyItemInserted(position);
+                refresh();
             }
         }
     }
@@ -147,18 +336,22 @@ public abstract class AbstractRecyclerAdapter<T extends Object, U extends Recycl
             if (items.size() > 0) {
                 items.clear();
             }
-            notifyDataSetChanged();
+            refresh();
         }
     }
 
     /**
-     * Update an item with a new value
+     * Update an item with a new value.
+     * The item is added if not exists and its row is rebound at the next frame.
      *
      * @param item the item
      */
     public void update(T item) {
         if (item != null) {
-            List<T> list = getItems();
+            if (items == null) {
+                items = new ArrayList<>();
+            }
+            List<T> list = items;
 
             int itemPosition = list.indexOf(item);
 
@@ -167,7 +360,8 @@ public abstract class AbstractRecyclerAdapter<T extends Object, U extends Recycl
             } else {
                 list.add(item);
             }
-            notifyDataSetChanged();
+            changedItems.add(item);
+            refresh();
         }
     }
 }
\ No newline at end of file
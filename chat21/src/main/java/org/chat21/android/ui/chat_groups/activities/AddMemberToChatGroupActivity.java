@@ -1,5 +1,6 @@
 package org.chat21.android.ui.chat_groups.activities;
 
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
@@ -13,10 +14,13 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Toast;
 
 import org.chat21.android.R;
 import org.chat21.android.core.ChatManager;
+import org.chat21.android.core.chat_groups.listeners.ChatGroupUpdatedListener;
 import org.chat21.android.core.chat_groups.models.ChatGroup;
+import org.chat21.android.core.exception.ChatRuntimeException;
 import org.chat21.android.core.users.models.IChatUser;
 import org.chat21.android.ui.chat_groups.WizardNewGroup;
 import org.chat21.android.ui.chat_groups.adapters.SelectedContactListAdapter;
@@ -101,10 +105,10 @@ public class AddMemberToChatGroupActivity extends AppCompatActivity implements O
             rvSelectedList.setAdapter(selectedContactsListAdapter);
         } else {
             selectedContactsListAdapter.setList(list);
-            selectedContactsListAdapter.notifyDataSetChanged();
         }
 
-        if (selectedContactsListAdapter.getItemCount() > 0) {
+        // the adapter is updated at the next frame, check the list
+        if (list.size() > 0) {
             cvSelectedContacts.setVisibility(View.VISIBLE);
             if (actionNextMenuItem != null) {
                 actionNextMenuItem.setVisible(true);
@@ -151,9 +155,22 @@ public class AddMemberToChatGroupActivity extends AppCompatActivity implements O
         Map<String, Integer> membersMap = convertListToMap(selectedList);
 
         if (chatGroup != null) {
+            // all the members are added with a single update.
+            // back to previous activity at once, even offline: a failure is reported when the write is rejected
+            final Context appContext = getApplicationContext();
             ChatManager.getInstance().getGroupsSyncronizer()
-                    .addMembersToChatGroup(chatGroup.getGroupId(), membersMap);
-            finish(); // back to previous activity
+                    .addMembers(chatGroup.getGroupId(), membersMap, new ChatGroupUpdatedListener() {
+                        @Override
+                        public void onChatGroupUpdated(ChatGroup chatGroup, ChatRuntimeException chatException) {
+                            if (chatException != null) {
+                                Log.e(TAG, "onActionNextClicked: cannot add the members: "
+                                        + chatException.getLocalizedMessage());
+                                Toast.makeText(appContext, chatException.getLocalizedMessage(),
+                                        Toast.LENGTH_LONG).show();
+                            }
+                        }
+                    });
+            finish();
         } else {
             WizardNewGroup.getInstance().getTempChatGroup().addMembers(membersMap);
             Intent intent = new Intent(this, NewGroupActivity.class);
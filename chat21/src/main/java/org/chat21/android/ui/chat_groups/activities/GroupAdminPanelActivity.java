@@ -214,7 +214,6 @@ public class GroupAdminPanelActivity extends AppCompatActivity implements
             mMemberList.setAdapter(mGroupMembersListAdapter);
         } else {
             mGroupMembersListAdapter.setList(members);
-            mGroupMembersListAdapter.notifyDataSetChanged();
         }
 
         for (IChatUser admin : groupAdmins) {
@@ -1,5 +1,6 @@
 package org.chat21.android.ui.chat_groups.activities;
 
+import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
@@ -10,6 +11,7 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.EditText;
+import android.widget.Toast;
 
 import java.util.Map;
 
@@ -109,35 +111,37 @@ public class NewGroupActivity extends AppCompatActivity {
         final String chatGroupName = WizardNewGroup.getInstance().getTempChatGroup().getName();
         Map<String, Integer> chatGroupMembers = WizardNewGroup.getInstance().getTempChatGroup().getMembers();
 
-        groupsSyncronizer.createChatGroup(chatGroupName, chatGroupMembers, new ChatGroupCreatedListener() {
-            @Override
-            public void onChatGroupCreated(ChatGroup chatGroup, ChatRuntimeException chatException) {
-                Log.d(DEBUG_GROUPS, "NewGroupActivity.onActionNextClicked.onChatGroupCreated");
-
-                // clear the wizard
-                WizardNewGroup.getInstance().dispose();
-
-                if (chatException == null) {
-                    Log.d(DEBUG_GROUPS, "NewGroupActivity.onActionNextClicked" +
-                            ".onChatGroupCreated: chatGroup == " + chatGroup.toString());
-
-                    // create a conversation on the fly
-                    Conversation conversation = createConversationForAdapter(chatGroup);
-
-                    // add the conversation to the conversation adapter
-                    ChatManager.getInstance().getConversationsHandler().addConversation(conversation);
-
-                    setResult(RESULT_OK);
-                    finish();
-                } else {
-                    Log.e(DEBUG_GROUPS, "NewGroupActivity.onActionNextClicked" +
-                            ".onChatGroupCreated: " + chatException.getLocalizedMessage());
-                    // TODO: 29/01/18
-                    setResult(RESULT_CANCELED);
-                    return;
-                }
-            }
-        });
+        // the group and its members are written with a single update.
+        // the group is shown at once, even offline: a failure is reported when the write is rejected
+        final Context appContext = getApplicationContext();
+        ChatGroup chatGroup = groupsSyncronizer.createGroup(chatGroupName, chatGroupMembers,
+                new ChatGroupCreatedListener() {
+                    @Override
+                    public void onChatGroupCreated(ChatGroup chatGroup, ChatRuntimeException chatException) {
+                        Log.d(DEBUG_GROUPS, "NewGroupActivity.onActionNextClicked.onChatGroupCreated");
+
+                        if (chatException != null) {
+                            Log.e(DEBUG_GROUPS, "NewGroupActivity.onActionNextClicked" +
+                                    ".onChatGroupCreated: " + chatException.getLocalizedMessage());
+                            Toast.makeText(appContext, chatException.getLocalizedMessage(),
+                                    Toast.LENGTH_LONG).show();
+                        }
+                    }
+                });
+
+        // clear the wizard
+        WizardNewGroup.getInstance().dispose();
+
+        Log.d(DEBUG_GROUPS, "NewGroupActivity.onActionNextClicked: chatGroup == " + chatGroup.toString());
+
+        // create a conversation on the fly
+        Conversation conversation = createConversationForAdapter(chatGroup);
+
+        // add the conversation to the conversation adapter
+        ChatManager.getInstance().getConversationsHandler().addConversation(conversation);
+
+        setResult(RESULT_OK);
+        finish();
     }
 
     // create a conversation on the fly
@@ -14,6 +14,7 @@ import org.chat21.android.R;
 import org.chat21.android.core.chat_groups.models.ChatGroup;
 import org.chat21.android.ui.adapters.AbstractRecyclerAdapter;
 import org.chat21.android.ui.chat_groups.listeners.OnGroupClickListener;
+import org.chat21.android.utils.collections.IndexedSortedList;
 import org.chat21.android.utils.image.CropCircleTransformation;
 
 import java.util.Collections;
@@ -52,10 +53,19 @@ public class ChatGroupsListAdapter extends AbstractRecyclerAdapter<ChatGroup, Ch
 
     @Override
     public void setList(List<ChatGroup> mList) {
-        sortItems(mList);
+        // the synchronized groups are already kept sorted
+        if (!(mList instanceof IndexedSortedList)) {
+            sortItems(mList);
+        }
         super.setList(mList);
     }
 
+    @Override
+    protected boolean areItemsTheSame(ChatGroup oldItem, ChatGroup newItem) {
+        // updated groups are new instances
+        return oldItem.getGroupId().equals(newItem.getGroupId());
+    }
+
     @Override
     public ChatGroupsListAdapter.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(parent.getContext())
@@ -16,12 +16,16 @@ import android.widget.TextView;
 
 import org.chat21.android.R;
 import org.chat21.android.core.ChatManager;
+import org.chat21.android.core.chat_groups.listeners.ChatGroupUpdatedListener;
 import org.chat21.android.core.chat_groups.models.ChatGroup;
 import org.chat21.android.core.chat_groups.syncronizers.GroupsSyncronizer;
+import org.chat21.android.core.exception.ChatRuntimeException;
 import org.chat21.android.core.users.models.IChatUser;
 import org.chat21.android.ui.messages.activities.MessageListActivity;
 import org.chat21.android.ui.users.activities.PublicProfileActivity;
 
+import java.util.Collections;
+
 import static org.chat21.android.ui.ChatUI.BUNDLE_RECIPIENT;
 
 /**
@@ -194,7 +198,17 @@ public class BottomSheetGroupAdminPanelMember extends BottomSheetDialogFragment
                 .setPositiveButton(positiveClickMessage, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        groupsSyncronizer.removeMemberFromChatGroup(chatGroup.getGroupId(), groupMember);
+                        groupsSyncronizer.removeMembers(chatGroup.getGroupId(),
+                                Collections.singleton(groupMember.getId()), new ChatGroupUpdatedListener() {
+                                    @Override
+                                    public void onChatGroupUpdated(ChatGroup chatGroup,
+                                                                   ChatRuntimeException chatException) {
+                                        if (chatException != null) {
+                                            Log.e(TAG, "showRemoveMemberAlertDialog: cannot remove the member: "
+                                                    + chatException.getLocalizedMessage());
+                                        }
+                                    }
+                                });
 
                         // dismiss the dialog
                         dialog.dismiss();
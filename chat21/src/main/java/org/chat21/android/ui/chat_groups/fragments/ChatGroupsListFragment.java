@@ -87,7 +87,6 @@ public class ChatGroupsListFragment extends Fragment implements ChatGroupsListen
             recyclerViewChatGroups.setAdapter(chatGroupsListAdapter);
         } else {
             chatGroupsListAdapter.setList(list);
-            chatGroupsListAdapter.notifyDataSetChanged();
         }
     }
 
@@ -116,7 +115,7 @@ public class ChatGroupsListFragment extends Fragment implements ChatGroupsListen
     @Override
     public void onGroupAdded(ChatGroup chatGroup, ChatRuntimeException e) {
         if (e == null) {
-            chatGroupsListAdapter.notifyDataSetChanged();
+            chatGroupsListAdapter.refresh();
         } else {
             Log.e(TAG, "ChatGroupsListFragment.onGroupAdded: e == " + e.toString());
         }
@@ -125,7 +124,7 @@ public class ChatGroupsListFragment extends Fragment implements ChatGroupsListen
     @Override
     public void onGroupChanged(ChatGroup chatGroup, ChatRuntimeException e) {
         if (e == null) {
-            chatGroupsListAdapter.notifyDataSetChanged();
+            chatGroupsListAdapter.refresh();
         } else {
             Log.e(TAG, "ChatGroupsListFragment.onGroupChanged: e == " + e.toString());
         }
@@ -135,7 +134,7 @@ public class ChatGroupsListFragment extends Fragment implements ChatGroupsListen
     @Override
     public void onGroupRemoved(ChatRuntimeException e) {
         if (e == null) {
-            chatGroupsListAdapter.notifyDataSetChanged();
+            chatGroupsListAdapter.refresh();
         } else {
             Log.e(TAG, "ChatGroupsListFragment.onGroupRemoved: e == " + e.toString());
         }
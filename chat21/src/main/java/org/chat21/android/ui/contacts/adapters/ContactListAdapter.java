@@ -12,10 +12,14 @@ import android.widget.TextView;
 import com.bumptech.glide.Glide;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.chat21.android.R;
+import org.chat21.android.core.contacts.synchronizers.ContactSearchIndex;
 import org.chat21.android.core.users.models.IChatUser;
+import org.chat21.android.ui.adapters.AbstractRecyclerAdapter;
 import org.chat21.android.ui.contacts.listeners.OnContactClickListener;
 import org.chat21.android.utils.image.CropCircleTransformation;
 
@@ -25,22 +29,37 @@ import org.chat21.android.utils.image.CropCircleTransformation;
  * Created by stefanodp91 on 05/01/17.
  */
 
-public class ContactListAdapter extends RecyclerView.Adapter<ContactListAdapter.ViewHolder>
+public class ContactListAdapter extends AbstractRecyclerAdapter<IChatUser, ContactListAdapter.ViewHolder>
         implements Filterable {
 
     private List<IChatUser> contactList;
 
-    private List<IChatUser> contactListFiltered;
+    // the displayed contacts are the filtered ones
+    private String query = "";
+
+    // null to search with a linear scan of the contacts
+    private ContactSearchIndex searchIndex;
 
     private OnContactClickListener onContactClickListener;
 
     public ContactListAdapter(List<IChatUser> contactList) {
+        super(contactList);
         this.contactList = contactList;
-        this.contactListFiltered = contactList;
     }
 
+    @Override
     public void setList(List<IChatUser> list) {
         this.contactList = list;
+        super.setList(filterContacts(list, query));
+    }
+
+    /**
+     * Search the contacts using the index instead of scanning the whole list
+     *
+     * @param searchIndex the index of the contacts of this adapter
+     */
+    public void setSearchIndex(ContactSearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
     }
 
     public void setOnContactClickListener(OnContactClickListener onContactClickListener) {
@@ -60,7 +79,7 @@ public class ContactListAdapter extends RecyclerView.Adapter<ContactListAdapter.
 
     @Override
     public void onBindViewHolder(ContactListAdapter.ViewHolder holder, final int position) {
-        final IChatUser contact = contactListFiltered.get(position);
+        final IChatUser contact = getItem(position);
         holder.mContactFullName.setText(contact.getFullName());
         holder.mContactUsername.setText(contact.getId());
 
@@ -78,11 +97,6 @@ public class ContactListAdapter extends RecyclerView.Adapter<ContactListAdapter.
         });
     }
 
-    @Override
-    public int getItemCount() {
-        return contactListFiltered.size();
-    }
-
     @Override
     public Filter getFilter() {
         return new Filter() {
@@ -91,33 +105,60 @@ public class ContactListAdapter extends RecyclerView.Adapter<ContactListAdapter.
                 String charString = charSequence.toString();
 //                Log.d(TAG_CONTACTS_SEARCH, "ContactListAdapter.getFilter.performFiltering: " +
 //                        "charString == " + charString);
-                if (charString.isEmpty()) {
-                    contactListFiltered = contactList;
-                } else {
-                    List<IChatUser> filteredList = new ArrayList<>();
-                    for (IChatUser row : contactList) {
-                        // search on the user fullname
-                        if (row.getFullName().toLowerCase().contains(charString.toLowerCase())) {
-                            filteredList.add(row);
-                        }
-                    }
-
-                    contactListFiltered = filteredList;
-                }
 
                 FilterResults filterResults = new FilterResults();
-                filterResults.values = contactListFiltered;
+                filterResults.values = filterContacts(contactList, charString);
                 return filterResults;
             }
 
             @Override
             protected void publishResults(CharSequence charSequence, FilterResults filterResults) {
-                contactListFiltered = (ArrayList<IChatUser>) filterResults.values;
-                notifyDataSetChanged();
+                query = charSequence.toString();
+                ContactListAdapter.super.setList((List<IChatUser>) filterResults.values);
             }
         };
     }
 
+    // search on the user fullname
+    private List<IChatUser> filterContacts(List<IChatUser> contacts, String query) {
+        if (contacts == null || query.trim().isEmpty()) {
+            return contacts;
+        }
+
+        if (searchIndex != null) {
+            return retainContacts(searchIndex.search(query), contacts);
+        }
+
+        String lowerCaseQuery = query.toLowerCase();
+
+        List<IChatUser> filteredList = new ArrayList<>();
+        for (IChatUser row : contacts) {
+            if (row.getFullName().toLowerCase().contains(lowerCaseQuery)) {
+                filteredList.add(row);
+            }
+        }
+
+        return filteredList;
+    }
+
+    // the index holds all the synchronized contacts: keep only the ones of this adapter, in the index order
+    private static List<IChatUser> retainContacts(List<IChatUser> results, List<IChatUser> contacts) {
+        Map<String, IChatUser> contactsById = new HashMap<>(contacts.size());
+        for (IChatUser contact : contacts) {
+            contactsById.put(contact.getId(), contact);
+        }
+
+        List<IChatUser> retained = new ArrayList<>();
+        for (IChatUser result : results) {
+            IChatUser contact = contactsById.get(result.getId());
+            if (contact != null) {
+                retained.add(contact);
+            }
+        }
+
+        return retained;
+    }
+
     public class ViewHolder extends RecyclerView.ViewHolder {
         private final TextView mContactFullName;
         private final TextView mContactUsername;
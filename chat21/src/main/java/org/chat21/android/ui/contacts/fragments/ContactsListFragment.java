@@ -19,7 +19,9 @@ import android.widget.RelativeLayout;
 
 import org.chat21.android.R;
 import org.chat21.android.core.ChatManager;
+import org.chat21.android.core.contacts.listeners.ContactsBatchListener;
 import org.chat21.android.core.contacts.synchronizers.ContactsSynchronizer;
+import org.chat21.android.core.exception.ChatRuntimeException;
 import org.chat21.android.core.users.models.IChatUser;
 import org.chat21.android.ui.contacts.adapters.ContactListAdapter;
 import org.chat21.android.ui.contacts.listeners.OnContactClickListener;
@@ -59,6 +61,51 @@ public class ContactsListFragment extends Fragment {
         setHasOptionsMenu(true);
 
         contactsSynchronizer = ChatManager.getInstance().getContactsSynchronizer();
+        contactsSynchronizer.upsertContactsListener(contactsListener);
+
+        // with the lazy contact resolution the contacts are synchronized only once the list is opened
+        if (!contactsSynchronizer.isConnected()) {
+            contactsSynchronizer.connect();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        contactsSynchronizer.removeContactsListener(contactsListener);
+        super.onDestroy();
+    }
+
+    // refresh the list while the contacts are downloaded
+    private final ContactsBatchListener contactsListener = new ContactsBatchListener() {
+        @Override
+        public void onContactsReceived(List<IChatUser> contacts, ChatRuntimeException e) {
+            refreshContacts();
+        }
+
+        @Override
+        public void onContactReceived(IChatUser contact, ChatRuntimeException e) {
+            refreshContacts();
+        }
+
+        @Override
+        public void onContactChanged(IChatUser contact, ChatRuntimeException e) {
+            refreshContacts();
+        }
+
+        @Override
+        public void onContactRemoved(IChatUser contact, ChatRuntimeException e) {
+            refreshContacts();
+        }
+    };
+
+    private void refreshContacts() {
+        if (contactsListAdapter == null) {
+            return;
+        }
+
+        List<IChatUser> contacts = contactsSynchronizer.getContacts();
+        updateContactListAdapter(contacts);
+        toggleNoContactsLayoutVisibility(contacts.size());
     }
 
     @Nullable
@@ -87,12 +134,12 @@ public class ContactsListFragment extends Fragment {
         if (contactsListAdapter == null) {
             // init RecyclerView adapter
             contactsListAdapter = new ContactListAdapter(list);
+            contactsListAdapter.setSearchIndex(contactsSynchronizer.getSearchIndex());
             if (getOnContactClickListener() != null)
                 contactsListAdapter.setOnContactClickListener(getOnContactClickListener());
             recyclerViewContacts.setAdapter(contactsListAdapter);
         } else {
             contactsListAdapter.setList(list);
-            contactsListAdapter.notifyDataSetChanged();
         }
     }
 
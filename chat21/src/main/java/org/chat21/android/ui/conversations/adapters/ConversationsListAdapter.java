@@ -14,12 +14,19 @@ import android.widget.Toast;
 import com.bumptech.glide.Glide;
 import com.vanniktech.emoji.EmojiTextView;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.chat21.android.R;
 import org.chat21.android.core.ChatManager;
 import org.chat21.android.core.chat_groups.models.ChatGroup;
+import org.chat21.android.core.contacts.synchronizers.ContactResolver;
 import org.chat21.android.core.conversations.models.Conversation;
+import org.chat21.android.core.exception.ChatRuntimeException;
+import org.chat21.android.core.presence.PresenceMultiplexer;
+import org.chat21.android.core.presence.listeners.OnPresenceChangedListener;
 import org.chat21.android.core.users.models.IChatUser;
 import org.chat21.android.ui.adapters.AbstractRecyclerAdapter;
 import org.chat21.android.ui.conversations.listeners.OnConversationClickListener;
@@ -37,6 +44,9 @@ public class ConversationsListAdapter extends AbstractRecyclerAdapter<Conversati
     private OnConversationClickListener onConversationClickListener;
     private OnConversationLongClickListener onConversationLongClickListener;
 
+    // the view holders subscribed to a presence
+    private final Set<ViewHolder> presenceHolders = new HashSet<>();
+
     public OnConversationClickListener getOnConversationClickListener() {
         return onConversationClickListener;
     }
@@ -75,6 +85,8 @@ public class ConversationsListAdapter extends AbstractRecyclerAdapter<Conversati
 
         setRecipientPicture(holder, conversation);
 
+        setRecipientPresence(holder, conversation);
+
         setRecipientDisplayName(holder, conversation.getConvers_with_fullname(), conversation.getConvers_with());
 
         setGroupSenderName(holder, conversation);
@@ -88,18 +100,31 @@ public class ConversationsListAdapter extends AbstractRecyclerAdapter<Conversati
         setConversationLongCLickAction(holder, conversation, position);
     }
 
-    private void setRecipientPicture(ViewHolder holder, Conversation conversation) {
+    private void setRecipientPicture(ViewHolder holder, final Conversation conversation) {
         String picture = "";
         if (conversation.isDirectChannel()) {
 
             // retrieve the contact
             IChatUser contact = ChatManager.getInstance()
-                    .getContactsSynchronizer()
-                    .findById(conversation.getConvers_with());
+                    .getContactResolver()
+                    .getCached(conversation.getConvers_with());
 
             // retrieve the contact picture
             if (contact != null) {
                 picture = contact.getProfilePictureUrl();
+            } else {
+                // bind the row again once the contact is downloaded.
+                // the conversation can change meanwhile: only its current row is rebound, the model is untouched
+                final String conversationId = conversation.getConversationId();
+                ChatManager.getInstance().getContactResolver().resolve(conversation.getConvers_with(),
+                        new ContactResolver.OnContactResolvedCallback() {
+                            @Override
+                            public void onContactResolved(IChatUser resolved, ChatRuntimeException e) {
+                                if (resolved != null) {
+                                    rebindConversation(conversationId);
+                                }
+                            }
+                        });
             }
 
             // show the contact picture
@@ -130,6 +155,37 @@ public class ConversationsListAdapter extends AbstractRecyclerAdapter<Conversati
         }
     }
 
+    // rebind the displayed row of a conversation, if any
+    private void rebindConversation(String conversationId) {
+        for (int position = 0; position < getItemCount(); position++) {
+            if (conversationId.equals(getItem(position).getConversationId())) {
+                notifyItemChanged(position);
+                return;
+            }
+        }
+    }
+
+    // show the online indicator of the direct conversations.
+    // the rows share the presence subscriptions, so binding a row is cheap
+    private void setRecipientPresence(ViewHolder holder, Conversation conversation) {
+        holder.bindPresence(conversation.isDirectChannel() ? conversation.getConvers_with() : null);
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        holder.bindPresence(null);
+        super.onViewRecycled(holder);
+    }
+
+    /**
+     * Unsubscribe all the rows from the presences. Call it when the list is destroyed
+     */
+    public void releasePresences() {
+        for (ViewHolder holder : new ArrayList<>(presenceHolders)) {
+            holder.bindPresence(null);
+        }
+    }
+
     // set the recipient display name whom are talking with
     private void setRecipientDisplayName(ViewHolder holder, String recipientFullName, String recipientId) {
         String displayName = StringUtils.isValid(recipientFullName) ? recipientFullName : recipientId;
@@ -224,8 +280,9 @@ public class ConversationsListAdapter extends AbstractRecyclerAdapter<Conversati
         });
     }
 
-    public class ViewHolder extends RecyclerView.ViewHolder {
+    public class ViewHolder extends RecyclerView.ViewHolder implements OnPresenceChangedListener {
         private ImageView recipientPicture;
+        private View recipientOnline;
         private TextView recipientDisplayName;
         private TextView senderDisplayName;
         private EmojiTextView lastTextMessage;
@@ -239,6 +296,43 @@ public class ConversationsListAdapter extends AbstractRecyclerAdapter<Conversati
             senderDisplayName = itemView.findViewById(R.id.sender_display_name);
             lastTextMessage = itemView.findViewById(R.id.last_text_message);
             lastMessageTimestamp = itemView.findViewById(R.id.last_message_timestamp);
+            recipientOnline = itemView.findViewById(R.id.recipient_online);
+        }
+
+        private String presenceUserId;
+
+        // subscribe the row to the presence of the user, null to unsubscribe it
+        void bindPresence(String userId) {
+            if (userId != null ? userId.equals(presenceUserId) : presenceUserId == null) {
+                return;
+            }
+
+            PresenceMultiplexer presenceMultiplexer = ChatManager.getInstance().getPresenceMultiplexer();
+
+            if (presenceUserId != null) {
+                presenceMultiplexer.unsubscribe(presenceUserId, this);
+                presenceHolders.remove(this);
+            }
+
+            presenceUserId = userId;
+            recipientOnline.setVisibility(View.GONE);
+
+            if (userId != null) {
+                presenceHolders.add(this);
+                presenceMultiplexer.subscribe(userId, this);
+            }
+        }
+
+        @Override
+        public void onPresenceChanged(String userId, boolean isOnline, long lastOnline) {
+            if (userId.equals(presenceUserId)) {
+                recipientOnline.setVisibility(isOnline ? View.VISIBLE : View.GONE);
+            }
+        }
+
+        @Override
+        public void onPresenceError(String userId, Exception e) {
+            Log.w(TAG, "ConversationsListAdapter.onPresenceError: userId == " + userId + ", " + e.toString());
         }
     }
 }
\ No newline at end of file
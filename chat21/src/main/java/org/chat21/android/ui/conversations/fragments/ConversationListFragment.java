@@ -22,6 +22,7 @@ import org.chat21.android.core.conversations.ConversationsHandler;
 import org.chat21.android.core.conversations.listeners.ConversationsListener;
 import org.chat21.android.core.conversations.models.Conversation;
 import org.chat21.android.core.exception.ChatRuntimeException;
+import org.chat21.android.core.messages.prefetch.MessagesPrefetcher;
 import org.chat21.android.core.presence.MyPresenceHandler;
 import org.chat21.android.core.presence.listeners.MyPresenceListener;
 import org.chat21.android.core.users.models.ChatUser;
@@ -50,6 +51,9 @@ public class ConversationListFragment extends Fragment implements
     private ConversationsHandler conversationsHandler;
     private MyPresenceHandler myPresenceHandler;
 
+    // null if the messages cache is disabled
+    private MessagesPrefetcher messagesPrefetcher;
+
     // conversation list recyclerview
     private RecyclerView recyclerViewConversations;
     private LinearLayoutManager rvConversationsLayoutManager;
@@ -95,6 +99,7 @@ public class ConversationListFragment extends Fragment implements
 
         conversationsHandler = ChatManager.getInstance().getConversationsHandler();
         myPresenceHandler = ChatManager.getInstance().getMyPresenceHandler();
+        messagesPrefetcher = ChatManager.getInstance().getMessagesPrefetcher();
     }
 
 
@@ -153,6 +158,25 @@ public class ConversationListFragment extends Fragment implements
 //                ChatManager.getInstance().getLoggedUser().getId(), onMyPresenceListener);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        // warm the messages cache of the most recent conversations while the list is visible
+        if (messagesPrefetcher != null) {
+            messagesPrefetcher.start();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        if (messagesPrefetcher != null) {
+            messagesPrefetcher.stop();
+        }
+
+        super.onPause();
+    }
+
     @Override
     public void onDestroy() {
 
@@ -162,6 +186,8 @@ public class ConversationListFragment extends Fragment implements
         myPresenceHandler.removePresenceListener(this);
         Log.d(DEBUG_MY_PRESENCE, "ConversationListFragment.onDestroy: myPresenceHandler detached");
 
+        conversationsListAdapter.releasePresences();
+
         super.onDestroy();
     }
 
@@ -219,9 +245,8 @@ public class ConversationListFragment extends Fragment implements
 
         Log.d(TAG, "ConversationListFragment.onConversationAdded");
 
-        conversationsListAdapter.notifyDataSetChanged();
-
-        toggleNoConversationLayoutVisibility(conversationsListAdapter.getItemCount());
+        conversationsListAdapter.refresh(toggleNoConversationLayoutCallback);
+        schedulePrefetch();
     }
 
     @Override
@@ -230,17 +255,30 @@ public class ConversationListFragment extends Fragment implements
 
         Log.d(TAG, "ConversationListFragment.onConversationChanged");
 
-        conversationsListAdapter.notifyDataSetChanged();
-
-        toggleNoConversationLayoutVisibility(conversationsListAdapter.getItemCount());
+        conversationsListAdapter.refresh(toggleNoConversationLayoutCallback);
+        schedulePrefetch();
     }
 
     @Override
     public void onConversationRemoved(ChatRuntimeException e) {
-        conversationsListAdapter.notifyDataSetChanged();
-        toggleNoConversationLayoutVisibility(conversationsListAdapter.getItemCount());
+        conversationsListAdapter.refresh(toggleNoConversationLayoutCallback);
     }
 
+    // the most recent conversations may have changed
+    private void schedulePrefetch() {
+        if (messagesPrefetcher != null) {
+            messagesPrefetcher.schedule();
+        }
+    }
+
+    // the item count changes only once the adapter has dispatched the diff
+    private final Runnable toggleNoConversationLayoutCallback = new Runnable() {
+        @Override
+        public void run() {
+            toggleNoConversationLayoutVisibility(conversationsListAdapter.getItemCount());
+        }
+    };
+
     @Override
     public void onConversationClicked(Conversation conversation, int position) {
         // click on conversation
@@ -31,13 +31,11 @@ import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 
-import java.util.Map;
-
 import org.chat21.android.R;
 import org.chat21.android.core.ChatManager;
 import org.chat21.android.core.authentication.task.RefreshFirebaseInstanceIdTask;
+import org.chat21.android.core.contacts.synchronizers.ContactsSynchronizer;
 import org.chat21.android.core.exception.ChatFieldNotFoundException;
-import org.chat21.android.core.users.models.ChatUser;
 import org.chat21.android.core.users.models.IChatUser;
 import org.chat21.android.ui.ChatUI;
 import org.chat21.android.ui.contacts.activites.ContactListActivity;
@@ -423,7 +421,7 @@ public class ChatLoginActivity extends AppCompatActivity implements View.OnClick
 
                 if (dataSnapshot.getValue() != null) {
                     try {
-                        IChatUser loggedUser = decodeContactSnapShop(dataSnapshot);
+                        IChatUser loggedUser = ContactsSynchronizer.decodeContactSnapShop(dataSnapshot);
                         Log.d(DEBUG_LOGIN, "ChatLoginActivity.lookUpContactById.onDataChange: loggedUser == " + loggedUser.toString());
                         onUserLookUpComplete.onUserRetrievedSuccess(loggedUser);
                     } catch (ChatFieldNotFoundException e) {
@@ -440,35 +438,4 @@ public class ChatLoginActivity extends AppCompatActivity implements View.OnClick
             }
         });
     }
-
-    private static IChatUser decodeContactSnapShop(DataSnapshot dataSnapshot) throws ChatFieldNotFoundException {
-        Log.v(TAG, "decodeContactSnapShop called");
-
-        Map<String, Object> map = (Map<String, Object>) dataSnapshot.getValue();
-
-//        String contactId = dataSnapshot.getKey();
-
-        String uid = (String) map.get("uid");
-        if (uid == null) {
-            throw new ChatFieldNotFoundException("Required uid field is null for contact id : " + uid);
-        }
-
-//        String timestamp = (String) map.get("timestamp");
-
-        String lastname = (String) map.get("lastname");
-        String firstname = (String) map.get("firstname");
-        String imageurl = (String) map.get("imageurl");
-        String email = (String) map.get("email");
-
-
-        IChatUser contact = new ChatUser();
-        contact.setId(uid);
-        contact.setEmail(email);
-        contact.setFullName(firstname + " " + lastname);
-        contact.setProfilePictureUrl(imageurl);
-
-        Log.v(TAG, "decodeContactSnapShop.contact : " + contact);
-
-        return contact;
-    }
 }
\ No newline at end of file
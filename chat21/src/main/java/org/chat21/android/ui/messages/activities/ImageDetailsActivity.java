@@ -13,6 +13,7 @@ import com.bumptech.glide.Glide;
 import com.bumptech.glide.request.animation.GlideAnimation;
 import com.bumptech.glide.request.target.SimpleTarget;
 
+import java.io.File;
 import java.util.Map;
 
 import org.chat21.android.R;
@@ -31,6 +32,7 @@ public class ImageDetailsActivity extends AppCompatActivity {
     private static final String TAG = ImageDetailsActivity.class.getName();
 
     private Message message;
+    private boolean isOriginalLoaded = false;
 
 //    private FloatingActionButton mBtnShare;
 //    private FloatingActionButton mBtnDownload;
@@ -52,8 +54,9 @@ public class ImageDetailsActivity extends AppCompatActivity {
         registerViews();
 
         // ### begin image
-        String imgUrl = getImageUrl(message);
-        setImage(imgUrl);
+        String imgUrl = getMetadataUrl(message, Message.METADATA_SRC);
+        String thumbnailUrl = getMetadataUrl(message, Message.METADATA_THUMBNAIL);
+        setImage(imgUrl, thumbnailUrl);
         // ### end image
 
         // ### begin title
@@ -120,18 +123,19 @@ public class ImageDetailsActivity extends AppCompatActivity {
 //    };
 
 
-    private String getImageUrl(Message message) {
+    private String getMetadataUrl(Message message, String key) {
         String imgUrl = "";
 
         Map<String, Object> metadata = message.getMetadata();
-        if (metadata != null) {
-            imgUrl = (String) metadata.get("src");
+        if (metadata != null && metadata.get(key) != null) {
+            imgUrl = (String) metadata.get(key);
         }
 
         return imgUrl;
     }
 
-    private void setImage(String imgUrl) {
+    // the original image, in tiled mode. the small thumbnail is shown until it is loaded
+    private void setImage(String imgUrl, String thumbnailUrl) {
         Log.i(TAG, "setImage");
 
         final TouchImageView mImage = findViewById(R.id.image);
@@ -145,15 +149,30 @@ public class ImageDetailsActivity extends AppCompatActivity {
             }
         });
 
+        if (StringUtils.isValid(thumbnailUrl)) {
+            // https://github.com/MikeOrtiz/TouchImageView/issues/135
+            Glide.with(this)
+                    .load(thumbnailUrl)
+                    .asBitmap()
+                    .into(new SimpleTarget<Bitmap>() {
+                        @Override
+                        public void onResourceReady(Bitmap resource, GlideAnimation<? super Bitmap> glideAnimation) {
+                            if (!isOriginalLoaded) {
+                                mImage.setImageBitmap(resource);
+                            }
+                        }
+                    });
+        }
 
-        // https://github.com/MikeOrtiz/TouchImageView/issues/135
+        // the original is not decoded by glide, which would downscale it to the view:
+        // the downloaded file is decoded by tiles at the zoom level
         Glide.with(this)
                 .load(imgUrl)
-                .asBitmap()
-                .into(new SimpleTarget<Bitmap>() {
+                .downloadOnly(new SimpleTarget<File>() {
                     @Override
-                    public void onResourceReady(Bitmap resource, GlideAnimation<? super Bitmap> glideAnimation) {
-                        mImage.setImageBitmap(resource);
+                    public void onResourceReady(File resource, GlideAnimation<? super File> glideAnimation) {
+                        isOriginalLoaded = true;
+                        mImage.setImageFile(resource);
                     }
                 });
 
@@ -1,10 +1,9 @@
 package org.chat21.android.ui.messages.activities;
 
 import android.annotation.TargetApi;
-import android.app.ProgressDialog;
+import android.content.ClipData;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.graphics.PorterDuff;
 import android.net.Uri;
 import android.os.Bundle;
@@ -27,13 +26,12 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.bumptech.glide.Glide;
-import com.bumptech.glide.request.animation.GlideAnimation;
-import com.bumptech.glide.request.target.SimpleTarget;
 import com.vanniktech.emoji.EmojiEditText;
 import com.vanniktech.emoji.EmojiImageView;
 import com.vanniktech.emoji.EmojiPopup;
@@ -51,13 +49,15 @@ import org.chat21.android.core.chat_groups.models.ChatGroup;
 import org.chat21.android.core.exception.ChatRuntimeException;
 import org.chat21.android.core.messages.handlers.ConversationMessagesHandler;
 import org.chat21.android.core.messages.listeners.ConversationMessagesListener;
+import org.chat21.android.core.messages.listeners.OnOlderMessagesLoadedCallback;
 import org.chat21.android.core.messages.listeners.SendMessageListener;
 import org.chat21.android.core.messages.models.Message;
 import org.chat21.android.core.presence.PresenceHandler;
 import org.chat21.android.core.presence.listeners.PresenceListener;
 import org.chat21.android.core.users.models.IChatUser;
-import org.chat21.android.storage.OnUploadedCallback;
 import org.chat21.android.storage.StorageHandler;
+import org.chat21.android.storage.UploadJob;
+import org.chat21.android.storage.UploadQueue;
 import org.chat21.android.ui.ChatUI;
 import org.chat21.android.ui.chat_groups.activities.GroupAdminPanelActivity;
 import org.chat21.android.ui.messages.adapters.MessageListAdapter;
@@ -69,8 +69,8 @@ import org.chat21.android.utils.TimeUtils;
 import org.chat21.android.utils.image.CropCircleTransformation;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.chat21.android.ui.ChatUI.BUNDLE_CHANNEL_TYPE;
 import static org.chat21.android.utils.DebugConstants.DEBUG_NOTIFICATION;
@@ -85,6 +85,9 @@ public class MessageListActivity extends AppCompatActivity
 
     public static final int _INTENT_ACTION_GET_PICTURE = 853;
 
+    // load the older messages when the first visible message is within this distance from the top
+    private static final int OLDER_MESSAGES_PREFETCH_DISTANCE = 10;
+
     private PresenceHandler presenceHandler = null;
     private ConversationMessagesHandler conversationMessagesHandler;
     private boolean conversWithOnline = false;
@@ -107,6 +110,7 @@ public class MessageListActivity extends AppCompatActivity
     private ImageView attachButton;
     private ImageView sendButton;
     private LinearLayout mEmojiBar;
+    private ProgressBar mUploadProgressBar;
 
     /**
      * {@code recipient} is the real contact whom is talking with.
@@ -199,6 +203,12 @@ public class MessageListActivity extends AppCompatActivity
 
         // panel which contains the edittext, the emoji button and the attach button
         initInputPanel();
+
+        // the aggregate progress of the attachments being sent
+        UploadQueue uploadQueue = ChatManager.getInstance().getUploadQueue();
+        uploadQueue.addListener(uploadQueueListener);
+        uploadQueueListener.onUploadProgress(uploadQueue.getPendingCount(),
+                uploadQueue.getBytesTransferred(), uploadQueue.getTotalBytes());
     }
 
     @Override
@@ -216,6 +226,16 @@ public class MessageListActivity extends AppCompatActivity
                 .setConversationRead(recipient.getId());
     }
 
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+
+        // the visible messages are seen when the chat comes back to foreground
+        if (hasFocus && mLinearLayoutManager != null) {
+            markVisibleMessagesAsSeen();
+        }
+    }
+
     @Override
     protected void onPause() {
         // unset the active conversation
@@ -256,6 +276,8 @@ public class MessageListActivity extends AppCompatActivity
 
         // detach the conversation messages listener
         conversationMessagesHandler.removeConversationMessagesListener(this);
+
+        ChatManager.getInstance().getUploadQueue().removeListener(uploadQueueListener);
     }
 
     private void registerViews() {
@@ -276,6 +298,7 @@ public class MessageListActivity extends AppCompatActivity
         sendButton = (ImageView) findViewById(R.id.main_activity_send);
         recyclerView = (RecyclerView) findViewById(R.id.main_activity_recycler_view);
         mEmojiBar = (LinearLayout) findViewById(R.id.main_activity_emoji_bar);
+        mUploadProgressBar = (ProgressBar) findViewById(R.id.main_activity_upload_progress);
     }
 
     private void initDirectToolbar(final IChatUser recipient) {
@@ -341,6 +364,85 @@ public class MessageListActivity extends AppCompatActivity
         mLinearLayoutManager.setStackFromEnd(true);  // put adding from bottom
         recyclerView.setLayoutManager(mLinearLayoutManager);
         initRecyclerViewAdapter(recyclerView);
+
+        recyclerView.addOnScrollListener(onOlderMessagesScrollListener);
+        recyclerView.addOnScrollListener(onVisibleMessagesScrollListener);
+    }
+
+    /**
+     * Mark the visible messages as seen.
+     * It is called on scroll and every time the layout changes the visible range (ie. a new message).
+     */
+    private RecyclerView.OnScrollListener onVisibleMessagesScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            markVisibleMessagesAsSeen();
+        }
+    };
+
+    private void markVisibleMessagesAsSeen() {
+        // the messages are not seen if the chat is not in foreground
+        if (!hasWindowFocus()) {
+            return;
+        }
+
+        int first = mLinearLayoutManager.findFirstVisibleItemPosition();
+        int last = mLinearLayoutManager.findLastVisibleItemPosition();
+
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+            return;
+        }
+
+        List<Message> visibleMessages = new ArrayList<>(last - first + 1);
+        for (int position = first; position <= last; position++) {
+            visibleMessages.add(messageListAdapter.getItem(position));
+        }
+
+        conversationMessagesHandler.markAsSeen(visibleMessages);
+    }
+
+    /**
+     * Prefetch the older messages while the user scrolls up.
+     */
+    private RecyclerView.OnScrollListener onOlderMessagesScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            // scrolling up
+            if (dy < 0 && mLinearLayoutManager.findFirstVisibleItemPosition() <= OLDER_MESSAGES_PREFETCH_DISTANCE) {
+                loadOlderMessages();
+            }
+        }
+    };
+
+    private void loadOlderMessages() {
+        if (!conversationMessagesHandler.hasOlderMessages() ||
+                conversationMessagesHandler.isLoadingOlderMessages()) {
+            return;
+        }
+
+        int pageSize = conversationMessagesHandler.getPageSize() > 0 ?
+                conversationMessagesHandler.getPageSize() :
+                ChatManager.Configuration.DEFAULT_MESSAGES_PAGE_SIZE;
+
+        conversationMessagesHandler.loadOlder(pageSize, new OnOlderMessagesLoadedCallback() {
+            @Override
+            public void onOlderMessagesLoaded(List<Message> messages, boolean hasMore, ChatRuntimeException e) {
+                if (e == null) {
+                    Log.d(TAG, "loadOlderMessages: " + messages.size() + " messages loaded");
+
+                    List<Message> items = conversationMessagesHandler.getMessages();
+                    if (messages.size() > 0 && messages.size() < items.size()) {
+                        // the older messages are at the top of the list.
+                        // the first previously loaded message could need a new date header
+                        messageListAdapter.update(items.get(messages.size()));
+                    } else if (messages.size() > 0) {
+                        messageListAdapter.refresh();
+                    }
+                } else {
+                    Log.w(TAG, "Error loadOlderMessages ", e);
+                }
+            }
+        });
     }
 
     private void initRecyclerViewAdapter(RecyclerView recyclerView) {
@@ -461,7 +563,7 @@ public class MessageListActivity extends AppCompatActivity
                                     Log.d(TAG, "sendTextMessage.onBeforeMessageSent.message.recipient: " + message.getRecipient());
 
                                     messageListAdapter.updateMessage(message);
-                                    scrollToBottom();
+                                    messageListAdapter.refresh(scrollToBottomCallback);
                                 } else {
 
                                     Toast.makeText(MessageListActivity.this,
@@ -507,7 +609,7 @@ public class MessageListActivity extends AppCompatActivity
 
         if (e == null) {
             messageListAdapter.updateMessage(message);
-            scrollToBottom();
+            messageListAdapter.refresh(scrollToBottomCallback);
         } else {
             Log.w(TAG, "Error onConversationMessageReceived ", e);
         }
@@ -519,13 +621,21 @@ public class MessageListActivity extends AppCompatActivity
 
         if (e == null) {
             messageListAdapter.updateMessage(message);
-            scrollToBottom();
+            messageListAdapter.refresh(scrollToBottomCallback);
 
         } else {
             Log.w(TAG, "Error onConversationMessageReceived ", e);
         }
     }
 
+    // scroll once the changes have been dispatched to the recyclerview
+    private final Runnable scrollToBottomCallback = new Runnable() {
+        @Override
+        public void run() {
+            scrollToBottom();
+        }
+    };
+
     private void scrollToBottom() {
         // scroll to last position
         if (messageListAdapter.getItemCount() > 0) {
@@ -583,13 +693,31 @@ public class MessageListActivity extends AppCompatActivity
             data) {
 
         if (requestCode == _INTENT_ACTION_GET_PICTURE) {
-            if (data != null && data.getData() != null && resultCode == RESULT_OK) {
+            if (data != null && resultCode == RESULT_OK) {
+
+                // the picked files: one or more, if the picker supports the multiple selection
+                List<Uri> uris = new ArrayList<>();
+                if (data.getClipData() != null) {
+                    ClipData clipData = data.getClipData();
+                    for (int i = 0; i < clipData.getItemCount(); i++) {
+                        uris.add(clipData.getItemAt(i).getUri());
+                    }
+                } else if (data.getData() != null) {
+                    uris.add(data.getData());
+                }
 
-                Uri uri = data.getData();
+                // convert the streams to files
+                List<File> filesToUpload = new ArrayList<>();
+                for (Uri uri : uris) {
+                    String filePath = StorageHandler.getFilePathFromUri(this, uri);
+                    if (StringUtils.isValid(filePath)) {
+                        filesToUpload.add(new File(filePath));
+                    }
+                }
 
-                // convert the stream to a file
-                File fileToUpload = new File(StorageHandler.getFilePathFromUri(this, uri));
-                showConfirmUploadDialog(fileToUpload);
+                if (filesToUpload.size() > 0) {
+                    showConfirmUploadDialog(filesToUpload);
+                }
             }
         } else {
             super.onActivityResult(requestCode, resultCode, data);
@@ -598,17 +726,21 @@ public class MessageListActivity extends AppCompatActivity
 
     // bugfix Issue #64
     private void showConfirmUploadDialog(
-            final File file) {
+            final List<File> files) {
         Log.d(TAG, "uploadFile");
 
+        String message = files.size() == 1 ?
+                getString(R.string.activity_message_list_confirm_dialog_upload_message_label) :
+                getString(R.string.activity_message_list_confirm_dialog_upload_multiple_message_label, files.size());
+
         new AlertDialog.Builder(this)
                 .setTitle(getString(R.string.activity_message_list_confirm_dialog_upload_title_label))
-                .setMessage(getString(R.string.activity_message_list_confirm_dialog_upload_message_label))
+                .setMessage(message)
                 .setPositiveButton(getString(android.R.string.yes), new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        // upload the file
-                        uploadFile(file);
+                        // upload the files
+                        uploadFiles(files);
                     }
                 })
                 .setNegativeButton(getString(android.R.string.no), new DialogInterface.OnClickListener() {
@@ -620,81 +752,51 @@ public class MessageListActivity extends AppCompatActivity
     }
 
     // bugfix Issue #15
-    private void uploadFile(File file) {
-        Log.d(TAG, "uploadFile");
+    // the files are uploaded and sent by the upload queue, even if the activity is closed
+    private void uploadFiles(List<File> files) {
+        Log.d(TAG, "uploadFiles: " + files.size() + " files");
 
-        // bugfix Issue #45
-        final ProgressDialog progressDialog = new ProgressDialog(MessageListActivity.this);
-        progressDialog.setMessage(getString(R.string.activity_message_list_progress_dialog_upload));
-        progressDialog.setCancelable(false);
-        progressDialog.show();
-
-        StorageHandler.uploadFile(this, file, new OnUploadedCallback() {
-            @Override
-            public void onUploadSuccess(final String uid, final Uri downloadUrl, final String type) {
-                Log.d(TAG, "uploadFile.onUploadSuccess - downloadUrl: " + downloadUrl);
-
-                progressDialog.dismiss(); // bugfix Issue #45
-
-                Glide.with(getApplicationContext())
-                        .load(downloadUrl)
-                        .asBitmap()
-                        .into(new SimpleTarget<Bitmap>() {
-                            @Override
-                            public void onResourceReady(Bitmap bitmap, GlideAnimation<? super Bitmap> glideAnimation) {
-                                int width = bitmap.getWidth();
-                                int height = bitmap.getHeight();
-
-                                Log.d(TAG, " MessageListActivity.uploadFile:" +
-                                        " width == " + width + " - height == " + height);
-
-                                Map<String, Object> metadata = new HashMap<>();
-                                metadata.put("width", width);
-                                metadata.put("height", height);
-                                metadata.put("src", downloadUrl.toString());
-                                metadata.put("uid", uid);
-
-                                Log.d(TAG, " MessageListActivity.uploadFile:" +
-                                        " metadata == " + metadata);
-
-                                // get the localized type
-                                String lastMessageText = "";
-                                if (type.toLowerCase().equals(StorageHandler.Type.Image.toString().toLowerCase())) {
-                                    lastMessageText = getString(R.string.activity_message_list_type_image_label);
-                                } else if (type.equals(StorageHandler.Type.File)) {
-                                    lastMessageText = getString(R.string.activity_message_list_type_file_label);
-                                }
+        UploadQueue uploadQueue = ChatManager.getInstance().getUploadQueue();
 
-                                // TODO: 13/02/18 add image message to the adapter  (like text message)
-                                ChatManager.getInstance().sendImageMessage(recipient.getId(),
-                                        recipient.getFullName(), lastMessageText, channelType,
-                                        metadata, null);
-                            }
-                        });
+        for (File file : files) {
+            // get the localized type
+            String lastMessageText;
+            if (StorageHandler.getType(file).equals(StorageHandler.Type.Image)) {
+                lastMessageText = getString(R.string.activity_message_list_type_image_label);
+            } else {
+                lastMessageText = getString(R.string.activity_message_list_type_file_label);
             }
 
-            @Override
-            public void onProgress(double progress) {
-                Log.d(TAG, "uploadFile.onProgress - progress: " + progress);
-
-                // bugfix Issue #45
-                progressDialog.setProgress((int) progress);
+            uploadQueue.enqueue(file, recipient.getId(), recipient.getFullName(), channelType, lastMessageText);
+        }
+    }
 
-                // TODO: 06/09/17 progress within viewholder
+    private final UploadQueue.OnUploadQueueListener uploadQueueListener = new UploadQueue.OnUploadQueueListener() {
+        @Override
+        public void onUploadProgress(int pendingCount, long bytesTransferred, long totalBytes) {
+            // bugfix Issue #45
+            if (pendingCount > 0) {
+                mUploadProgressBar.setVisibility(View.VISIBLE);
+                mUploadProgressBar.setProgress(totalBytes > 0 ? (int) (100 * bytesTransferred / totalBytes) : 0);
+            } else {
+                mUploadProgressBar.setVisibility(View.GONE);
             }
+        }
 
-            @Override
-            public void onUploadFailed(Exception e) {
-                Log.e(TAG, "uploadFile.onUploadFailed: " + e.getMessage());
+        @Override
+        public void onUploadCompleted(UploadJob job, Uri downloadUrl) {
+            Log.d(TAG, "uploadFiles.onUploadCompleted - downloadUrl: " + downloadUrl);
+        }
 
-                progressDialog.dismiss(); // bugfix Issue #45
+        @Override
+        public void onUploadFailed(UploadJob job, Exception e) {
+            Log.e(TAG, "uploadFiles.onUploadFailed: " + e.getMessage());
 
-                Toast.makeText(MessageListActivity.this,
-                        getString(R.string.activity_message_list_progress_dialog_upload_failed),
-                        Toast.LENGTH_SHORT).show();
-            }
-        });
-    }
+            Toast.makeText(MessageListActivity.this,
+                    getString(R.string.activity_message_list_progress_dialog_upload_failed),
+                    Toast.LENGTH_SHORT).show();
+        }
+    };
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
@@ -0,0 +1,139 @@
+package org.chat21.android.ui.messages.adapters;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.support.v4.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.ProgressBar;
+
+import com.bumptech.glide.DrawableRequestBuilder;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.resource.drawable.GlideDrawable;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.Target;
+
+import java.util.Map;
+
+import org.chat21.android.core.messages.models.Message;
+import org.chat21.android.utils.StringUtils;
+import org.chat21.android.utils.image.BlurHash;
+
+/**
+ * Loads the preview of the image messages in the list.
+ * <p/>
+ * The preview is sized by the width and height of the metadata before anything is loaded,
+ * shows the blurhash of the metadata as placeholder and loads the thumbnail.
+ * The original image is loaded only by the messages sent before the thumbnails.
+ */
+class ImagePreviewLoader {
+
+    // the size of the decoded blurhash, stretched to the preview
+    private static final int PLACEHOLDER_SIZE = 32;
+
+    // the height of a preview is at most this ratio of its width
+    private static final float MAX_ASPECT_RATIO = 2f;
+
+    // the decoded placeholders, by hash
+    private static final LruCache<String, Bitmap> PLACEHOLDERS = new LruCache<>(64);
+
+    static void load(ImageView preview, final ProgressBar progressBar, Message message) {
+        Map<String, Object> metadata = message.getMetadata();
+
+        String src = getString(metadata, Message.METADATA_SRC);
+        String thumbnail = getString(metadata, Message.METADATA_THUMBNAIL);
+        String blurHash = getString(metadata, Message.METADATA_BLUR_HASH);
+        int width = getInt(metadata, Message.METADATA_WIDTH);
+        int height = getInt(metadata, Message.METADATA_HEIGHT);
+
+        // reserve the space of the image, so the list does not jump when it is loaded
+        ViewGroup.LayoutParams params = preview.getLayoutParams();
+        if (width > 0 && height > 0 && params.width > 0) {
+            params.height = Math.round(params.width * Math.min(MAX_ASPECT_RATIO, (float) height / width));
+        } else {
+            params.height = ViewGroup.LayoutParams.WRAP_CONTENT;
+        }
+        preview.setLayoutParams(params);
+
+        // Resolve Issue #52
+        progressBar.setVisibility(View.VISIBLE);
+
+        DrawableRequestBuilder<String> request = Glide.with(preview.getContext())
+                .load(StringUtils.isValid(thumbnail) ? thumbnail : src)
+                .listener(new RequestListener<String, GlideDrawable>() {
+                    @Override
+                    public boolean onException(
+                            Exception e,
+                            String model,
+                            Target<GlideDrawable> target,
+                            boolean isFirstResource) {
+                        progressBar.setVisibility(View.GONE);
+                        return false;
+                    }
+
+                    @Override
+                    public boolean onResourceReady(
+                            GlideDrawable resource,
+                            String model,
+                            Target<GlideDrawable> target,
+                            boolean isFromMemoryCache,
+                            boolean isFirstResource) {
+                        progressBar.setVisibility(View.GONE);
+                        return false;
+                    }
+                });
+
+        Bitmap placeholder = getPlaceholder(blurHash, width, height);
+        if (placeholder != null) {
+            request = request.placeholder(new BitmapDrawable(preview.getResources(), placeholder));
+        }
+
+        request.into(preview);
+    }
+
+    /**
+     * Restore the size of a preview used by another kind of message
+     */
+    static void resetSize(ImageView preview) {
+        ViewGroup.LayoutParams params = preview.getLayoutParams();
+        params.height = ViewGroup.LayoutParams.WRAP_CONTENT;
+        preview.setLayoutParams(params);
+    }
+
+    private static Bitmap getPlaceholder(String blurHash, int width, int height) {
+        if (!StringUtils.isValid(blurHash)) {
+            return null;
+        }
+
+        Bitmap placeholder = PLACEHOLDERS.get(blurHash);
+        if (placeholder == null) {
+            int placeholderHeight = PLACEHOLDER_SIZE;
+            if (width > 0 && height > 0) {
+                placeholderHeight = Math.max(1, Math.round(PLACEHOLDER_SIZE *
+                        Math.min(MAX_ASPECT_RATIO, (float) height / width)));
+            }
+
+            placeholder = BlurHash.decode(blurHash, PLACEHOLDER_SIZE, placeholderHeight);
+            if (placeholder != null) {
+                PLACEHOLDERS.put(blurHash, placeholder);
+            }
+        }
+        return placeholder;
+    }
+
+    private static String getString(Map<String, Object> metadata, String key) {
+        if (metadata != null && metadata.get(key) instanceof String) {
+            return (String) metadata.get(key);
+        }
+        return null;
+    }
+
+    // the numbers are read back from firebase as longs
+    private static int getInt(Map<String, Object> metadata, String key) {
+        if (metadata != null && metadata.get(key) instanceof Number) {
+            return ((Number) metadata.get(key)).intValue();
+        }
+        return 0;
+    }
+}
@@ -44,7 +44,7 @@ public class MessageListAdapter extends AbstractRecyclerAdapter<Message, Recycle
     public int getItemViewType(int position) {
 //        Log.d(TAG, "position: " + position);
 
-        Message message = getItems().get(position);
+        Message message = getItem(position);
 //        Log.d(TAG, "message.id: " + message.getId());
 //        Log.d(TAG, "message.sender: " + message.getSender());
 
@@ -81,7 +81,7 @@ public class MessageListAdapter extends AbstractRecyclerAdapter<Message, Recycle
 
     @Override
     public void onBindViewHolder(final RecyclerView.ViewHolder holder, int position) {
-        Message message = getItems().get(position);
+        Message message = getItem(position);
 
         // retrieve the previous message, if exists
         Message previousMessage = null;
@@ -100,22 +100,11 @@ public class MessageListAdapter extends AbstractRecyclerAdapter<Message, Recycle
 
     /**
      * Update only a single message.
+     * Only its row is rebound, at the next frame.
      *
      * @param message the message to update
      */
     public void updateMessage(Message message) {
-        List<Message> messageList = getItems();
-
-        int messagePosition = messageList.indexOf(message);
-
-        if (messagePosition >= 0 && messagePosition < messageList.size()) {
-            messageList.set(messagePosition, message);
-        } else {
-            messageList.add(message);
-//            int lastPosition = messageList.size() - 1;
-
-//            messageList.add(lastPosition, message);
-        }
-        notifyDataSetChanged();
+        update(message);
     }
 }
\ No newline at end of file
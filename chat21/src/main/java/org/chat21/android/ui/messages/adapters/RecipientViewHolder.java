@@ -13,13 +13,9 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.resource.drawable.GlideDrawable;
-import com.bumptech.glide.request.RequestListener;
-import com.bumptech.glide.request.target.Target;
 import com.vanniktech.emoji.EmojiTextView;
 
 import java.util.Date;
-import java.util.Map;
 import org.chat21.android.R;
 import org.chat21.android.core.messages.models.Message;
 import org.chat21.android.ui.ChatUI;
@@ -90,49 +86,11 @@ class RecipientViewHolder extends RecyclerView.ViewHolder {
         setOnMessageClickListener(onMessageClickListener);
     }
 
-    private String getImageUrl(Message message) {
-        String imgUrl = "";
-
-        Map<String, Object> metadata = message.getMetadata();
-        if (metadata != null) {
-            imgUrl = (String) metadata.get("src");
-        }
-
-        return imgUrl;
-    }
-
     // Resolve Issue #32
     private void setPreview(final Message message) {
 
-        // Resolve Issue #52
-        mProgressBar.setVisibility(View.VISIBLE);
-
-        Glide.with(itemView.getContext())
-                .load(getImageUrl(message))
-                .listener(new RequestListener<String, GlideDrawable>() {
-                    @Override
-                    public boolean onException(
-                            Exception e,
-                            String model,
-                            Target<GlideDrawable> target,
-                            boolean isFirstResource) {
-                        mProgressBar.setVisibility(View.GONE);
-                        return false;
-                    }
-
-                    @Override
-                    public boolean onResourceReady(
-                            GlideDrawable resource,
-                            String model,
-                            Target<GlideDrawable> target,
-                            boolean isFromMemoryCache,
-                            boolean isFirstResource) {
-                        mProgressBar.setVisibility(View.GONE);
-                        return false;
-                    }
-                })
-                .into(mPreview);
-
+        // the thumbnail, with the blurhash placeholder. the original is loaded by ImageDetailsActivity
+        ImagePreviewLoader.load(mPreview, mProgressBar, message);
 
         mPreview.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -143,6 +101,7 @@ class RecipientViewHolder extends RecyclerView.ViewHolder {
     }
 
     private void setFilePreview(final Message message) {
+        ImagePreviewLoader.resetSize(mPreview);
 
         Glide.with(itemView.getContext())
                 .load(message.getText())
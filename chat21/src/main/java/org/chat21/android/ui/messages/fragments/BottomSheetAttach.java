@@ -1,6 +1,7 @@
 package org.chat21.android.ui.messages.fragments;
 
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
@@ -10,9 +11,13 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.TextView;
 
 import org.chat21.android.R;
+import org.chat21.android.core.ChatManager;
 import org.chat21.android.core.users.models.IChatUser;
+import org.chat21.android.storage.UploadJob;
+import org.chat21.android.storage.UploadQueue;
 import org.chat21.android.ui.ChatUI;
 import org.chat21.android.ui.messages.listeners.OnAttachDocumentsClickListener;
 
@@ -34,6 +39,31 @@ public class BottomSheetAttach extends BottomSheetDialogFragment implements
 
     private Button mAttachImagesView;
     private Button mAttachDocumentsView;
+    private TextView mUploadProgressView;
+
+    private final UploadQueue.OnUploadQueueListener uploadQueueListener = new UploadQueue.OnUploadQueueListener() {
+        @Override
+        public void onUploadProgress(int pendingCount, long bytesTransferred, long totalBytes) {
+            if (pendingCount > 0) {
+                int percent = totalBytes > 0 ? (int) (100 * bytesTransferred / totalBytes) : 0;
+                mUploadProgressView.setText(getString(R.string.bottom_sheet_attach_upload_progress_label,
+                        pendingCount, percent));
+                mUploadProgressView.setVisibility(View.VISIBLE);
+            } else {
+                mUploadProgressView.setVisibility(View.GONE);
+            }
+        }
+
+        @Override
+        public void onUploadCompleted(UploadJob job, Uri downloadUrl) {
+            // the progress is updated by onUploadProgress
+        }
+
+        @Override
+        public void onUploadFailed(UploadJob job, Exception e) {
+            // the error is shown by the conversation
+        }
+    };
 
     public static BottomSheetAttach newInstance(IChatUser recipient, String channelType) {
         BottomSheetAttach f = new BottomSheetAttach();
@@ -66,6 +96,7 @@ public class BottomSheetAttach extends BottomSheetDialogFragment implements
     private void registerViews(View rootView) {
         mAttachImagesView = rootView.findViewById(R.id.btn_attach_images);
         mAttachDocumentsView = rootView.findViewById(R.id.btn_attach_documents);
+        mUploadProgressView = rootView.findViewById(R.id.upload_progress);
     }
 
     private void initViews() {
@@ -80,6 +111,23 @@ public class BottomSheetAttach extends BottomSheetDialogFragment implements
         mAttachDocumentsView.setOnClickListener(this);
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+
+        UploadQueue uploadQueue = ChatManager.getInstance().getUploadQueue();
+        uploadQueue.addListener(uploadQueueListener);
+        uploadQueueListener.onUploadProgress(uploadQueue.getPendingCount(),
+                uploadQueue.getBytesTransferred(), uploadQueue.getTotalBytes());
+    }
+
+    @Override
+    public void onStop() {
+        ChatManager.getInstance().getUploadQueue().removeListener(uploadQueueListener);
+
+        super.onStop();
+    }
+
 
     @Override
     public void onClick(View view) {
@@ -130,6 +178,11 @@ public class BottomSheetAttach extends BottomSheetDialogFragment implements
         intent.putExtra(Intent.EXTRA_LOCAL_ONLY, true);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
 
+        // more images are sent together by the upload queue
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        }
+
         // set MIME type for image
 //        intent.setType("*/*"); // all files
         intent.setType("image/*");
@@ -13,6 +13,8 @@ import com.bumptech.glide.Glide;
 
 import org.chat21.android.R;
 import org.chat21.android.core.ChatManager;
+import org.chat21.android.core.contacts.synchronizers.ContactResolver;
+import org.chat21.android.core.exception.ChatRuntimeException;
 import org.chat21.android.core.presence.PresenceHandler;
 import org.chat21.android.core.presence.listeners.PresenceListener;
 import org.chat21.android.core.users.models.IChatUser;
@@ -34,7 +36,9 @@ public class PublicProfileActivity extends AppCompatActivity implements Presence
     private boolean conversWithOnline = false;
     private long conversWithLastOnline = -1;
 
+    private TextView mToolbarTitle;
     private TextView mToolbarSubTitle;
+    private TextView mEmail;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -51,7 +55,7 @@ public class PublicProfileActivity extends AppCompatActivity implements Presence
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
 
         // fullname as title
-        TextView mToolbarTitle = findViewById(R.id.toolbar_title);
+        mToolbarTitle = findViewById(R.id.toolbar_title);
         mToolbarTitle.setText(contact.getFullName());
 
         // connection status (online/offline) as subtitle
@@ -59,7 +63,7 @@ public class PublicProfileActivity extends AppCompatActivity implements Presence
         mToolbarSubTitle.setText("");
 
         // set user email
-        TextView mEmail = findViewById(R.id.email);
+        mEmail = findViewById(R.id.email);
         mEmail.setText(contact.getEmail());
 
         // set user id
@@ -71,6 +75,21 @@ public class PublicProfileActivity extends AppCompatActivity implements Presence
 
         presenceHandler.upsertPresenceListener(this);
         presenceHandler.connect();
+
+        // the recipient passed by the caller may be partial (ie. only id and fullname)
+        ChatManager.getInstance().getContactResolver().resolve(contact.getId(),
+                new ContactResolver.OnContactResolvedCallback() {
+                    @Override
+                    public void onContactResolved(IChatUser resolved, ChatRuntimeException e) {
+                        if (resolved != null && !isFinishing()) {
+                            contact = resolved;
+
+                            mToolbarTitle.setText(contact.getFullName());
+                            mEmail.setText(contact.getEmail());
+                            initProfilePicture();
+                        }
+                    }
+                });
     }
 
     @Override
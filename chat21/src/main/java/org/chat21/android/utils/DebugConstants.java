@@ -14,4 +14,5 @@ public class DebugConstants {
     public static final String DEBUG_GROUPS = "CHAT21_D_GROUPS";
     public static final String DEBUG_USER_PRESENCE = "CHAT21_D_USER_PRESENCE";
     public static final String DEBUG_MY_PRESENCE = "CHAT21_D_MY_PRESENCE";
+    public static final String DEBUG_DECODE = "CHAT21_D_DECODE";
 }
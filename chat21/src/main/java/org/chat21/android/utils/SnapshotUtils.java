@@ -0,0 +1,92 @@
+package org.chat21.android.utils;
+
+import org.chat21.android.core.messages.models.Message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Type safe readers for the raw values returned by {@link com.google.firebase.database.DataSnapshot#getValue()}.
+ * <p/>
+ * A missing field or a field with an unexpected type is returned as null:
+ * the decoders check the value type instead of catching a {@link ClassCastException} for each field.
+ */
+public class SnapshotUtils {
+
+    // the values repeated on every snapshot. they are replaced by the shared constants
+    private static final Map<String, String> INTERNED_VALUES = new HashMap<>();
+
+    static {
+        intern(Message.DIRECT_CHANNEL_TYPE);
+        intern(Message.GROUP_CHANNEL_TYPE);
+        intern(Message.TYPE_TEXT);
+        intern(Message.TYPE_IMAGE);
+        intern(Message.TYPE_FILE);
+    }
+
+    private static void intern(String value) {
+        INTERNED_VALUES.put(value, value);
+    }
+
+    /**
+     * @return the string value of {@code key}, null if it is missing or it is not a string
+     */
+    public static String getString(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Same as {@link #getString(Map, String)}, but the well known values (channel types, message types)
+     * are replaced by the shared constants, so the decoded objects do not retain a copy of them
+     */
+    public static String getInternedString(Map<String, Object> map, String key) {
+        String value = getString(map, key);
+
+        if (value == null) {
+            return null;
+        }
+
+        String interned = INTERNED_VALUES.get(value);
+        return interned != null ? interned : value;
+    }
+
+    /**
+     * @return the long value of {@code key}, null if it is missing or it is not a number
+     */
+    public static Long getLong(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+
+        if (value instanceof Long) {
+            return (Long) value;
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return null;
+    }
+
+    /**
+     * @return the boolean value of {@code key}, null if it is missing or it is not a boolean
+     */
+    public static Boolean getBoolean(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof Boolean ? (Boolean) value : null;
+    }
+
+    /**
+     * @return the map value of {@code key}, null if it is missing or it is not a map
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> Map<String, V> getMap(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof Map ? (Map<String, V>) value : null;
+    }
+
+    /**
+     * @return the value as a map, null if it is not a map (ie. the snapshot does not exist)
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> asMap(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : null;
+    }
+}
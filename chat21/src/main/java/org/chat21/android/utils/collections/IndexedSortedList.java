@@ -0,0 +1,327 @@
+package org.chat21.android.utils.collections;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list keyed by a unique id and kept sorted by a comparator.
+ * <p/>
+ * Lookups by key are O(1), the position of an item is found with a binary search (O(log n))
+ * and new items are inserted directly in their sorted position.
+ * Items arriving in order (ie. messages sorted by timestamp) are simply appended.
+ * <p/>
+ * It can be used wherever a plain {@link List} is expected: {@link #add(Object)} and
+ * {@link #set(int, Object)} behave as an upsert, so the list never contains two items
+ * with the same key and is always sorted.
+ *
+ * @param <T> the item class
+ */
+public class IndexedSortedList<T> extends AbstractList<T> implements RandomAccess {
+
+    /**
+     * Returns the unique key of an item
+     *
+     * @param <T> the item class
+     */
+    public interface KeyProvider<T> {
+        String getKey(T item);
+    }
+
+    private final List<T> items = new ArrayList<>(); // sorted items
+    private final Map<String, T> index = new HashMap<>(); // key -> item
+
+    private final KeyProvider<T> keyProvider;
+    private final Comparator<T> comparator;
+
+    public IndexedSortedList(KeyProvider<T> keyProvider, Comparator<T> comparator) {
+        this.keyProvider = keyProvider;
+        this.comparator = comparator;
+    }
+
+    /**
+     * Add the item if its key not exists, replace the existing item otherwise.
+     * The item is moved to its sorted position.
+     *
+     * @param item the item to add or update
+     * @return the new position of the item
+     */
+    public int upsert(T item) {
+        String key = keyProvider.getKey(item);
+
+        T existing = index.get(key);
+        if (existing != null) {
+            int oldPosition = positionOf(existing);
+
+            if (oldPosition >= 0) {
+                // fast path: the item has not moved
+                if (isInPlace(item, oldPosition)) {
+                    items.set(oldPosition, item);
+                    index.put(key, item);
+                    return oldPosition;
+                }
+
+                items.remove(oldPosition);
+            }
+        }
+
+        int position = insertionPointOf(item);
+        items.add(position, item);
+        index.put(key, item);
+        modCount++;
+
+        return position;
+    }
+
+    /**
+     * @param key the key to looking for
+     * @return the item with {@code key} if exists, null otherwise
+     */
+    public T getByKey(String key) {
+        return index.get(key);
+    }
+
+    /**
+     * @param key the key to looking for
+     * @return true if an item with {@code key} exists, false otherwise
+     */
+    public boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @param key the key to looking for
+     * @return the position of the item with {@code key} if exists, -1 otherwise
+     */
+    public int indexOfKey(String key) {
+        T existing = index.get(key);
+
+        if (existing == null) {
+            return -1;
+        }
+
+        return positionOf(existing);
+    }
+
+    /**
+     * Remove the item with {@code key}
+     *
+     * @param key the key of the item to remove
+     * @return the removed item if exists, null otherwise
+     */
+    public T removeByKey(String key) {
+        T existing = index.get(key);
+
+        if (existing == null) {
+            return null;
+        }
+
+        int position = positionOf(existing);
+        if (position >= 0) {
+            items.remove(position);
+        }
+        index.remove(key);
+        modCount++;
+
+        return existing;
+    }
+
+    /**
+     * @return an immutable copy of the sorted items
+     */
+    public List<T> snapshot() {
+        return Collections.unmodifiableList(new ArrayList<>(items));
+    }
+
+    @Override
+    public T get(int position) {
+        return items.get(position);
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Behaves as {@link #upsert(Object)}.
+     *
+     * @return always true
+     */
+    @Override
+    public boolean add(T item) {
+        upsert(item);
+        return true;
+    }
+
+    /**
+     * Behaves as {@link #upsert(Object)}. The position is ignored to keep the list sorted.
+     */
+    @Override
+    public void add(int position, T item) {
+        upsert(item);
+    }
+
+    /**
+     * Replace the item at {@code position} and move the new item to its sorted position.
+     *
+     * @return the replaced item
+     */
+    @Override
+    public T set(int position, T item) {
+        T old = items.get(position);
+
+        String oldKey = keyProvider.getKey(old);
+        if (!oldKey.equals(keyProvider.getKey(item))) {
+            items.remove(position);
+            index.remove(oldKey);
+            modCount++;
+        }
+
+        upsert(item);
+
+        return old;
+    }
+
+    @Override
+    public T remove(int position) {
+        T removed = items.remove(position);
+        index.remove(keyProvider.getKey(removed));
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public boolean remove(Object object) {
+        int position = indexOf(object);
+
+        if (position >= 0) {
+            remove(position);
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public int indexOf(Object object) {
+        if (object == null) {
+            return -1;
+        }
+
+        try {
+            return indexOfKey(keyProvider.getKey((T) object));
+        } catch (ClassCastException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int lastIndexOf(Object object) {
+        return indexOf(object); // keys are unique
+    }
+
+    @Override
+    public boolean contains(Object object) {
+        return indexOf(object) >= 0;
+    }
+
+    @Override
+    public void clear() {
+        items.clear();
+        index.clear();
+        modCount++;
+    }
+
+    // sorts by comparator and then by key, so each item has exactly one position
+    private int compare(T first, T second) {
+        int result = comparator.compare(first, second);
+
+        if (result == 0) {
+            result = keyProvider.getKey(first).compareTo(keyProvider.getKey(second));
+        }
+
+        return result;
+    }
+
+    // check if the item can replace the one at position without breaking the sorting
+    private boolean isInPlace(T item, int position) {
+        if (position > 0 && compare(items.get(position - 1), item) > 0) {
+            return false;
+        }
+
+        if (position < items.size() - 1 && compare(item, items.get(position + 1)) > 0) {
+            return false;
+        }
+
+        return true;
+    }
+
+    // find the position where the item has to be inserted
+    private int insertionPointOf(T item) {
+        int size = items.size();
+
+        // items usually arrive sorted: append them
+        if (size == 0 || compare(items.get(size - 1), item) <= 0) {
+            return size;
+        }
+
+        int low = 0;
+        int high = size - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int result = compare(items.get(middle), item);
+
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return low;
+    }
+
+    // find the position of an item stored into the list
+    private int positionOf(T stored) {
+        int low = 0;
+        int high = items.size() - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            T current = items.get(middle);
+
+            if (current == stored) {
+                return middle;
+            }
+
+            int result = compare(current, stored);
+
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                break;
+            }
+        }
+
+        // the stored item has been mutated in place and its sort key has changed.
+        // fallback to a linear scan
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i) == stored) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,134 @@
+package org.chat21.android.utils.collections;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A map of handlers bounded by a max size.
+ * <p/>
+ * When the max size is exceeded the least recently used handlers are evicted,
+ * except the ones still in use (ie. with listeners attached), which are evicted
+ * as soon as they are not used anymore and a new handler is added.
+ * <p/>
+ * Not thread-safe: it must be used from the main thread.
+ *
+ * @param <V> the handler class
+ */
+public class LruRegistry<V> {
+
+    /**
+     * Decides which handlers can be evicted and releases them
+     *
+     * @param <V> the handler class
+     */
+    public interface EvictionPolicy<V> {
+
+        /**
+         * @param value the handler
+         * @return true if the handler cannot be evicted, false otherwise
+         */
+        boolean isInUse(V value);
+
+        /**
+         * Release the resources of an evicted handler (ie. detach the Firebase listeners)
+         *
+         * @param key   the handler key
+         * @param value the evicted handler
+         */
+        void onEvicted(String key, V value);
+    }
+
+    // access ordered: the least recently used first
+    private final LinkedHashMap<String, V> values = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final EvictionPolicy<V> evictionPolicy;
+    private int maxSize;
+
+    /**
+     * @param maxSize        the max number of handlers. 0 or less for unbounded
+     * @param evictionPolicy the eviction policy
+     */
+    public LruRegistry(int maxSize, EvictionPolicy<V> evictionPolicy) {
+        this.maxSize = maxSize;
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * @param key the handler key
+     * @return the handler if exists, null otherwise. The handler becomes the most recently used
+     */
+    public V get(String key) {
+        return values.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * Add a handler as the most recently used and evict the exceeding ones
+     *
+     * @param key   the handler key
+     * @param value the handler
+     */
+    public void put(String key, V value) {
+        values.put(key, value);
+        trimToSize(key);
+    }
+
+    /**
+     * Remove a handler without evicting it
+     *
+     * @param key the handler key
+     * @return the removed handler if exists, null otherwise
+     */
+    public V remove(String key) {
+        return values.remove(key);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        trimToSize(null);
+    }
+
+    /**
+     * @return a copy of the entries, the least recently used first
+     */
+    public List<Map.Entry<String, V>> entries() {
+        return new ArrayList<>(values.entrySet());
+    }
+
+    public void clear() {
+        values.clear();
+    }
+
+    // evict the least recently used handlers not in use. the handler with keepKey is never evicted
+    private void trimToSize(String keepKey) {
+        if (maxSize <= 0) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, V>> iterator = values.entrySet().iterator();
+        while (values.size() > maxSize && iterator.hasNext()) {
+            Map.Entry<String, V> entry = iterator.next();
+
+            if (entry.getKey().equals(keepKey) || evictionPolicy.isInUse(entry.getValue())) {
+                continue;
+            }
+
+            iterator.remove();
+            evictionPolicy.onEvicted(entry.getKey(), entry.getValue());
+        }
+    }
+}
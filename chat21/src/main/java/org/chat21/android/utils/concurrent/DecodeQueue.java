@@ -0,0 +1,182 @@
+package org.chat21.android.utils.concurrent;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes the Firebase snapshots out of the main thread.
+ * <p/>
+ * Each queue runs its tasks one at a time, in the order they have been enqueued,
+ * on a small worker pool shared by all the queues.
+ * The results are delivered on the main thread in the same order,
+ * so the in-memory stores and the listeners see the events as Firebase dispatched them.
+ */
+public class DecodeQueue {
+
+    private static final int POOL_SIZE =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ExecutorService WORKERS = createWorkers();
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * A decode step, run on a worker thread, followed by a delivery step, run on the main thread.
+     *
+     * @param <T> the decoded object class
+     */
+    public interface Task<T> {
+
+        /**
+         * Called on a worker thread
+         *
+         * @return the decoded object
+         */
+        T decode() throws Exception;
+
+        /**
+         * Called on the main thread
+         *
+         * @param result the decoded object
+         */
+        void onDecoded(T result);
+
+        /**
+         * Called on the main thread
+         *
+         * @param e the exception thrown by {@link #decode()}
+         */
+        void onDecodeFailed(Exception e);
+    }
+
+    private final Queue<Runnable> pendingTasks = new ArrayDeque<>();
+    private Runnable runningTask;
+
+    // incremented on cancel. the results of the previous generations are discarded
+    private volatile int generation = 0;
+
+    private final AtomicInteger decodedCount = new AtomicInteger();
+    private final AtomicLong decodeTimeNanos = new AtomicLong();
+
+    /**
+     * Enqueue a task. It is decoded after all the tasks previously enqueued
+     *
+     * @param task the task
+     */
+    public <T> void enqueue(final Task<T> task) {
+        final int taskGeneration = generation;
+
+        synchronized (this) {
+            pendingTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        decodeAndPost(task, taskGeneration);
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+
+            if (runningTask == null) {
+                scheduleNext();
+            }
+        }
+    }
+
+    /**
+     * Discard the pending tasks and the results not delivered yet
+     */
+    public void cancel() {
+        synchronized (this) {
+            generation++;
+            pendingTasks.clear();
+        }
+    }
+
+    /**
+     * @return the number of decoded tasks
+     */
+    public int getDecodedCount() {
+        return decodedCount.get();
+    }
+
+    /**
+     * @return the average time spent decoding a task, in microseconds
+     */
+    public long getAverageDecodeTimeMicros() {
+        int count = decodedCount.get();
+        return count == 0 ? 0 : decodeTimeNanos.get() / 1000L / count;
+    }
+
+    private synchronized void scheduleNext() {
+        runningTask = pendingTasks.poll();
+
+        if (runningTask != null) {
+            WORKERS.execute(runningTask);
+        }
+    }
+
+    private <T> void decodeAndPost(final Task<T> task, final int taskGeneration) {
+        if (taskGeneration != generation) {
+            return;
+        }
+
+        T result = null;
+        Exception exception = null;
+
+        long start = System.nanoTime();
+        try {
+            result = task.decode();
+        } catch (Exception e) {
+            exception = e;
+        }
+        decodeTimeNanos.addAndGet(System.nanoTime() - start);
+        decodedCount.incrementAndGet();
+
+        final T decoded = result;
+        final Exception decodeException = exception;
+
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                if (taskGeneration != generation) {
+                    return;
+                }
+
+                if (decodeException == null) {
+                    task.onDecoded(decoded);
+                } else {
+                    task.onDecodeFailed(decodeException);
+                }
+            }
+        });
+    }
+
+    private static ExecutorService createWorkers() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "chat21-decoder-" + count.getAndIncrement());
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,87 @@
+package org.chat21.android.utils.image;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * A small pool of mutable bitmaps, reused by exact size and config.
+ * <p/>
+ * The released bitmaps are kept up to {@code maxBytes}, the least recently released ones are recycled first.
+ * It is thread-safe.
+ */
+public class BitmapPool {
+
+    private final long maxBytes;
+    private long currentBytes = 0;
+
+    // the most recently released first. guarded by this
+    private final Deque<Bitmap> bitmaps = new ArrayDeque<>();
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return a released bitmap with the given size and config, or a new one.
+     * The content of a reused bitmap is not cleared.
+     */
+    public Bitmap acquire(int width, int height, Bitmap.Config config) {
+        synchronized (this) {
+            Iterator<Bitmap> it = bitmaps.iterator();
+            while (it.hasNext()) {
+                Bitmap bitmap = it.next();
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                    it.remove();
+                    currentBytes -= bitmap.getAllocationByteCount();
+                    return bitmap;
+                }
+            }
+        }
+
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Give back a bitmap to the pool. It must not be used anymore by the caller
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+
+        int bytes = bitmap.getAllocationByteCount();
+        if (bytes > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (this) {
+            bitmaps.addFirst(bitmap);
+            currentBytes += bytes;
+
+            while (currentBytes > maxBytes) {
+                Bitmap eldest = bitmaps.removeLast();
+                currentBytes -= eldest.getAllocationByteCount();
+                eldest.recycle();
+            }
+        }
+    }
+
+    /**
+     * Recycle all the pooled bitmaps
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+        bitmaps.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+}
@@ -0,0 +1,255 @@
+package org.chat21.android.utils.image;
+
+import android.graphics.Bitmap;
+
+/**
+ * A compact text representation of a blurred image (see https://blurha.sh).
+ * <p/>
+ * The image is encoded as a few DCT components in a short base 83 string,
+ * which is stored in the message metadata and decoded as the placeholder of the image until it is loaded.
+ */
+public class BlurHash {
+
+    private static final String BASE83_CHARS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+
+    /**
+     * Encode the pixels of an image. It is cpu bound: pass a small image, ie. 32 pixels wide
+     *
+     * @param pixels      the ARGB pixels
+     * @param width       the image width
+     * @param height      the image height
+     * @param componentsX the horizontal components, between 1 and 9
+     * @param componentsY the vertical components, between 1 and 9
+     * @return the hash
+     */
+    public static String encode(int[] pixels, int width, int height, int componentsX, int componentsY) {
+        if (componentsX < 1 || componentsX > 9 || componentsY < 1 || componentsY > 9) {
+            throw new IllegalArgumentException("The components must be between 1 and 9");
+        }
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("The pixels do not match the size");
+        }
+
+        // the linear rgb of each pixel, converted once
+        int pixelsCount = width * height;
+        float[] linear = new float[pixelsCount * 3];
+        for (int p = 0; p < pixelsCount; p++) {
+            int pixel = pixels[p];
+            linear[p * 3] = sRGBToLinear((pixel >> 16) & 0xff);
+            linear[p * 3 + 1] = sRGBToLinear((pixel >> 8) & 0xff);
+            linear[p * 3 + 2] = sRGBToLinear(pixel & 0xff);
+        }
+
+        float[][] factors = new float[componentsX * componentsY][];
+        for (int j = 0; j < componentsY; j++) {
+            for (int i = 0; i < componentsX; i++) {
+                factors[j * componentsX + i] = multiplyBasisFunction(linear, width, height, i, j);
+            }
+        }
+
+        StringBuilder hash = new StringBuilder();
+
+        int sizeFlag = (componentsX - 1) + (componentsY - 1) * 9;
+        encode83(hash, sizeFlag, 1);
+
+        float maximumValue;
+        if (factors.length > 1) {
+            float actualMaximumValue = 0;
+            for (int k = 1; k < factors.length; k++) {
+                for (float value : factors[k]) {
+                    actualMaximumValue = Math.max(actualMaximumValue, Math.abs(value));
+                }
+            }
+
+            int quantisedMaximumValue = (int) Math.max(0, Math.min(82, Math.floor(actualMaximumValue * 166 - 0.5)));
+            maximumValue = (quantisedMaximumValue + 1) / 166f;
+            encode83(hash, quantisedMaximumValue, 1);
+        } else {
+            maximumValue = 1;
+            encode83(hash, 0, 1);
+        }
+
+        float[] dc = factors[0];
+        encode83(hash, (linearToSRGB(dc[0]) << 16) + (linearToSRGB(dc[1]) << 8) + linearToSRGB(dc[2]), 4);
+
+        for (int k = 1; k < factors.length; k++) {
+            float[] ac = factors[k];
+            int quantR = quantiseAC(ac[0], maximumValue);
+            int quantG = quantiseAC(ac[1], maximumValue);
+            int quantB = quantiseAC(ac[2], maximumValue);
+            encode83(hash, quantR * 19 * 19 + quantG * 19 + quantB, 2);
+        }
+
+        return hash.toString();
+    }
+
+    /**
+     * Decode a hash to a small bitmap, to be stretched as a placeholder
+     *
+     * @param hash   the hash
+     * @param width  the bitmap width, ie. 32
+     * @param height the bitmap height
+     * @return the bitmap, or null if the hash is not valid
+     */
+    public static Bitmap decode(String hash, int width, int height) {
+        int[] pixels = decodePixels(hash, width, height);
+        if (pixels == null) {
+            return null;
+        }
+
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Decode a hash to the pixels of a small image
+     *
+     * @param hash   the hash
+     * @param width  the image width
+     * @param height the image height
+     * @return the opaque ARGB pixels, or null if the hash is not valid
+     */
+    public static int[] decodePixels(String hash, int width, int height) {
+        if (hash == null || hash.length() < 6 || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        int sizeFlag = decode83(hash, 0, 1);
+        int componentsY = sizeFlag / 9 + 1;
+        int componentsX = sizeFlag % 9 + 1;
+
+        if (sizeFlag < 0 || hash.length() != 4 + 2 * componentsX * componentsY) {
+            return null;
+        }
+
+        int quantisedMaximumValue = decode83(hash, 1, 2);
+        float maximumValue = (quantisedMaximumValue + 1) / 166f;
+
+        float[][] colors = new float[componentsX * componentsY][];
+        for (int k = 0; k < colors.length; k++) {
+            if (k == 0) {
+                int value = decode83(hash, 2, 6);
+                if (value < 0) {
+                    return null;
+                }
+                colors[k] = new float[]{
+                        sRGBToLinear(value >> 16),
+                        sRGBToLinear((value >> 8) & 0xff),
+                        sRGBToLinear(value & 0xff)};
+            } else {
+                int value = decode83(hash, 4 + k * 2, 6 + k * 2);
+                if (value < 0) {
+                    return null;
+                }
+                colors[k] = new float[]{
+                        signPow(((value / (19 * 19)) - 9) / 9f, 2) * maximumValue,
+                        signPow((((value / 19) % 19) - 9) / 9f, 2) * maximumValue,
+                        signPow(((value % 19) - 9) / 9f, 2) * maximumValue};
+            }
+        }
+
+        // the cosines along each axis, computed once
+        float[] cosX = new float[width * componentsX];
+        for (int x = 0; x < width; x++) {
+            for (int i = 0; i < componentsX; i++) {
+                cosX[x * componentsX + i] = (float) Math.cos(Math.PI * x * i / width);
+            }
+        }
+        float[] cosY = new float[height * componentsY];
+        for (int y = 0; y < height; y++) {
+            for (int j = 0; j < componentsY; j++) {
+                cosY[y * componentsY + j] = (float) Math.cos(Math.PI * y * j / height);
+            }
+        }
+
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float r = 0, g = 0, b = 0;
+                for (int j = 0; j < componentsY; j++) {
+                    for (int i = 0; i < componentsX; i++) {
+                        float basis = cosX[x * componentsX + i] * cosY[y * componentsY + j];
+                        float[] color = colors[j * componentsX + i];
+                        r += color[0] * basis;
+                        g += color[1] * basis;
+                        b += color[2] * basis;
+                    }
+                }
+                pixels[y * width + x] = 0xff000000 |
+                        (linearToSRGB(r) << 16) | (linearToSRGB(g) << 8) | linearToSRGB(b);
+            }
+        }
+
+        return pixels;
+    }
+
+    private static float[] multiplyBasisFunction(float[] linear, int width, int height, int i, int j) {
+        float r = 0, g = 0, b = 0;
+        float normalisation = (i == 0 && j == 0) ? 1 : 2;
+
+        for (int y = 0; y < height; y++) {
+            float cosY = (float) Math.cos(Math.PI * j * y / height);
+            for (int x = 0; x < width; x++) {
+                float basis = normalisation * (float) Math.cos(Math.PI * i * x / width) * cosY;
+                int p = (y * width + x) * 3;
+                r += basis * linear[p];
+                g += basis * linear[p + 1];
+                b += basis * linear[p + 2];
+            }
+        }
+
+        float scale = 1f / (width * height);
+        return new float[]{r * scale, g * scale, b * scale};
+    }
+
+    private static int quantiseAC(float value, float maximumValue) {
+        return (int) Math.max(0, Math.min(18, Math.floor(signPow(value / maximumValue, 0.5f) * 9 + 9.5)));
+    }
+
+    private static float sRGBToLinear(int value) {
+        float v = value / 255f;
+        if (v <= 0.04045f) {
+            return v / 12.92f;
+        } else {
+            return (float) Math.pow((v + 0.055f) / 1.055f, 2.4f);
+        }
+    }
+
+    private static int linearToSRGB(float value) {
+        float v = Math.max(0, Math.min(1, value));
+        if (v <= 0.0031308f) {
+            return (int) (v * 12.92f * 255 + 0.5f);
+        } else {
+            return (int) ((1.055f * Math.pow(v, 1 / 2.4f) - 0.055f) * 255 + 0.5f);
+        }
+    }
+
+    private static float signPow(float value, float exp) {
+        return Math.copySign((float) Math.pow(Math.abs(value), exp), value);
+    }
+
+    private static void encode83(StringBuilder hash, int value, int length) {
+        int divisor = 1;
+        for (int i = 1; i < length; i++) {
+            divisor *= 83;
+        }
+
+        for (int i = 0; i < length; i++) {
+            hash.append(BASE83_CHARS.charAt((value / divisor) % 83));
+            divisor /= 83;
+        }
+    }
+
+    // -1 if a char is not valid
+    private static int decode83(String hash, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = BASE83_CHARS.indexOf(hash.charAt(i));
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * 83 + digit;
+        }
+        return value;
+    }
+}
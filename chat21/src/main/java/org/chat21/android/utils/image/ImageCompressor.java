@@ -4,213 +4,568 @@ import android.content.ContentResolver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.media.ExifInterface;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.chat21.android.core.ChatManager;
+import org.chat21.android.utils.concurrent.DecodeQueue;
 
 /**
  * Created by stefanodp91 on 02/08/17.
+ * <p/>
+ * Compresses the images to JPEG within {@link #MAX_WIDTH}x{@link #MAX_HEIGHT}, with a bounded memory.
+ * <p/>
+ * The image is never decoded at full size: it is decoded with the largest power of two sample size
+ * which keeps it bigger than the target, one strip of {@link #STRIP_ROWS} rows at a time with a
+ * {@link BitmapRegionDecoder}, and each strip is drawn scaled and rotated (by the EXIF orientation)
+ * straight into the target bitmap, which is then encoded to the output stream.
+ * The formats not supported by the region decoder (ie. GIF) are decoded whole, still sampled.
+ * <p/>
+ * The images are compressed one at a time and the bitmaps are reused from a pool,
+ * so the peak memory of a compression is about the target bitmap plus a strip, whatever the source resolution.
+ * It is reported by {@link Result#getPeakMemoryBytes()}.
+ * <p/>
+ * The same pipeline creates the thumbnails shown in the message list, within {@link #THUMBNAIL_SIZE},
+ * together with the {@link BlurHash} shown while the thumbnail is loading.
  */
 public class ImageCompressor {
-    public static void compress(ContentResolver contentResolver, Uri uri, OnImageCompressListener callback) {
-        new Compressor.CompressorTask(contentResolver, callback).execute(uri);
+    private static final String TAG = ImageCompressor.class.getName();
+
+    // max width and height of the compressed image, as displayed
+    public static final int MAX_WIDTH = 612;
+    public static final int MAX_HEIGHT = 816;
+
+    private static final int JPEG_QUALITY = 80;
+
+    // max width and height of the thumbnail
+    public static final int THUMBNAIL_SIZE = 320;
+    private static final int THUMBNAIL_JPEG_QUALITY = 70;
+
+    // the blurhash is encoded from an image within this size, and its components
+    private static final int BLUR_HASH_SIZE = 32;
+    private static final int BLUR_HASH_COMPONENTS_MAX = 4;
+    private static final int BLUR_HASH_COMPONENTS_MIN = 3;
+
+    // the height of the strips decoded at a time, in sampled pixels
+    private static final int STRIP_ROWS = 128;
+
+    // the target bitmap and a couple of strips
+    private static final BitmapPool BITMAP_POOL = new BitmapPool(4 * 1024 * 1024);
+
+    // one image at a time, to bound the peak memory
+    private static final DecodeQueue COMPRESS_QUEUE = new DecodeQueue();
+
+    /**
+     * The outcome of a compression
+     */
+    public static class Result {
+        private Uri uri;
+        private int width;
+        private int height;
+        private int sampleSize;
+        private long peakMemoryBytes;
+        private long elapsedMillis;
+        private String blurHash;
+
+        /**
+         * @return the uri of the compressed image. null if compressed to a stream
+         */
+        public Uri getUri() {
+            return uri;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        /**
+         * @return the max bytes allocated by the bitmaps at the same time during the compression
+         */
+        public long getPeakMemoryBytes() {
+            return peakMemoryBytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return the blurhash of the image. only set for the thumbnails
+         */
+        public String getBlurHash() {
+            return blurHash;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "uri=" + uri +
+                    ", width=" + width +
+                    ", height=" + height +
+                    ", sampleSize=" + sampleSize +
+                    ", peakMemoryBytes=" + peakMemoryBytes +
+                    ", elapsedMillis=" + elapsedMillis +
+                    ", blurHash='" + blurHash + '\'' +
+                    '}';
+        }
+    }
+
+    // tracks the bytes of the bitmaps in use
+    private static class MemoryMeter {
+        long liveBytes = 0;
+        long peakBytes = 0;
+
+        void allocated(Bitmap bitmap) {
+            liveBytes += bitmap.getAllocationByteCount();
+            peakBytes = Math.max(peakBytes, liveBytes);
+        }
+
+        void released(Bitmap bitmap) {
+            liveBytes -= bitmap.getAllocationByteCount();
+        }
+    }
+
+    /**
+     * @deprecated use {@link #compress(ContentResolver, Uri, File, OnImageCompressedListener)}
+     */
+    @Deprecated
+    public static void compress(ContentResolver contentResolver, final Uri uri,
+                                final OnImageCompressListener callback) {
+        File destination = new File(getFilename(ChatManager.getInstance().getAppId() + "/images/sent"));
+
+        compress(contentResolver, uri, destination, new OnImageCompressedListener() {
+            @Override
+            public void onImageCompressed(Result result) {
+                callback.onImageCompressed(result.getUri());
+            }
+
+            @Override
+            public void onImageCompressFailed(Exception e) {
+                // fallback to the original image
+                callback.onImageCompressed(uri);
+            }
+        });
     }
 
-    private static class Compressor {
-        private static class CompressorTask extends AsyncTask<Uri, Uri, Uri> {
-            private ContentResolver contentResolver;
-            private OnImageCompressListener callback;
+    /**
+     * Compress an image to a file in background. The callback is called on the main thread
+     *
+     * @param contentResolver the content resolver
+     * @param uri             the uri of the image to compress
+     * @param destination     the jpeg file to write
+     * @param callback        the callback
+     */
+    public static void compress(final ContentResolver contentResolver, final Uri uri, final File destination,
+                                final OnImageCompressedListener callback) {
+        COMPRESS_QUEUE.enqueue(new DecodeQueue.Task<Result>() {
+            @Override
+            public Result decode() throws Exception {
+                return compressToFile(contentResolver, uri, destination, MAX_WIDTH, MAX_HEIGHT, JPEG_QUALITY);
+            }
 
-            private CompressorTask(ContentResolver contentResolver, OnImageCompressListener callback) {
-                this.contentResolver = contentResolver;
-                this.callback = callback;
+            @Override
+            public void onDecoded(Result result) {
+                Log.d(TAG, "compress: " + result.toString());
+                callback.onImageCompressed(result);
             }
 
             @Override
-            protected Uri doInBackground(Uri... uris) {
-                return compressImage(contentResolver, uris[0]);
+            public void onDecodeFailed(Exception e) {
+                Log.e(TAG, "compress: cannot compress " + uri + ": " + e.toString());
+                destination.delete();
+                callback.onImageCompressFailed(e);
+            }
+        });
+    }
+
+    /**
+     * Create the thumbnail of an image and its blurhash in background. The callback is called on the main thread
+     *
+     * @param contentResolver the content resolver
+     * @param uri             the uri of the image, ie. the compressed one
+     * @param destination     the jpeg file to write
+     * @param callback        the callback. the result has the thumbnail size and the blurhash
+     */
+    public static void createThumbnail(final ContentResolver contentResolver, final Uri uri, final File destination,
+                                       final OnImageCompressedListener callback) {
+        COMPRESS_QUEUE.enqueue(new DecodeQueue.Task<Result>() {
+            @Override
+            public Result decode() throws Exception {
+                Result result = compressToFile(contentResolver, uri, destination,
+                        THUMBNAIL_SIZE, THUMBNAIL_SIZE, THUMBNAIL_JPEG_QUALITY);
+                result.blurHash = encodeBlurHash(destination);
+                return result;
             }
 
             @Override
-            protected void onPostExecute(Uri path) {
-                // super.onPostExecute(s);
-                callback.onImageCompressed(path);
+            public void onDecoded(Result result) {
+                Log.d(TAG, "createThumbnail: " + result.toString());
+                callback.onImageCompressed(result);
             }
+
+            @Override
+            public void onDecodeFailed(Exception e) {
+                Log.e(TAG, "createThumbnail: cannot create the thumbnail of " + uri + ": " + e.toString());
+                destination.delete();
+                callback.onImageCompressFailed(e);
+            }
+        });
+    }
+
+    private static Result compressToFile(ContentResolver contentResolver, Uri uri, File destination,
+                                         int maxWidth, int maxHeight, int quality) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(destination));
+        Result result;
+        try {
+            result = compressTo(contentResolver, uri, out, maxWidth, maxHeight, quality);
+        } finally {
+            out.close();
         }
 
+        result.uri = Uri.fromFile(destination);
+        return result;
+    }
 
-        private static Uri compressImage(ContentResolver contentResolver, Uri imageUri) {
-            String filePath = getRealPathFromURI(contentResolver, imageUri);
-            Bitmap scaledBitmap = null;
+    // the thumbnail is small: it is decoded whole, sampled close to the blurhash size
+    private static String encodeBlurHash(File thumbnail) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(thumbnail.getPath(), bounds);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(bounds.outWidth, bounds.outHeight,
+                BLUR_HASH_SIZE, BLUR_HASH_SIZE);
+        Bitmap sampled = BitmapFactory.decodeFile(thumbnail.getPath(), options);
+        if (sampled == null) {
+            throw new IOException("Cannot decode " + thumbnail);
+        }
 
-            BitmapFactory.Options options = new BitmapFactory.Options();
+        float scale = Math.min(1f, (float) BLUR_HASH_SIZE / Math.max(sampled.getWidth(), sampled.getHeight()));
+        int width = Math.max(1, Math.round(sampled.getWidth() * scale));
+        int height = Math.max(1, Math.round(sampled.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled, width, height, true);
 
-            // by setting this field as true, the actual bitmap pixels are not loaded in the memory. Just the bounds are loaded. If
-            // you try the use the bitmap here, you will get null.
-            options.inJustDecodeBounds = true;
-            Bitmap bmp = BitmapFactory.decodeFile(filePath, options);
+        int[] pixels = new int[width * height];
+        scaled.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (scaled != sampled) {
+            scaled.recycle();
+        }
+        sampled.recycle();
 
-            int actualHeight = options.outHeight;
-            int actualWidth = options.outWidth;
+        // more components along the longer side
+        boolean isLandscape = width >= height;
+        return BlurHash.encode(pixels, width, height,
+                isLandscape ? BLUR_HASH_COMPONENTS_MAX : BLUR_HASH_COMPONENTS_MIN,
+                isLandscape ? BLUR_HASH_COMPONENTS_MIN : BLUR_HASH_COMPONENTS_MAX);
+    }
 
-            //  max Height and width values of the compressed image is taken as 816x612
-            float maxHeight = 816.0f;
-            float maxWidth = 612.0f;
-            float imgRatio = actualWidth / actualHeight;
-            float maxRatio = maxWidth / maxHeight;
+    /**
+     * Compress an image, writing the jpeg to a stream. It must be called out of the main thread.
+     *
+     * @param contentResolver the content resolver
+     * @param imageUri        the uri of the image to compress
+     * @param out             the stream to write. it is not closed
+     * @return the compression result
+     * @throws IOException if the image cannot be read or decoded
+     */
+    public static Result compressTo(ContentResolver contentResolver, Uri imageUri, OutputStream out)
+            throws IOException {
+        return compressTo(contentResolver, imageUri, out, MAX_WIDTH, MAX_HEIGHT, JPEG_QUALITY);
+    }
 
-            // width and height values are set maintaining the aspect ratio of the image
-            if (actualHeight > maxHeight || actualWidth > maxWidth) {
-                if (imgRatio < maxRatio) {
-                    imgRatio = maxHeight / actualHeight;
-                    actualWidth = (int) (imgRatio * actualWidth);
-                    actualHeight = (int) maxHeight;
-                } else if (imgRatio > maxRatio) {
-                    imgRatio = maxWidth / actualWidth;
-                    actualHeight = (int) (imgRatio * actualHeight);
-                    actualWidth = (int) maxWidth;
-                } else {
-                    actualHeight = (int) maxHeight;
-                    actualWidth = (int) maxWidth;
+    private static Result compressTo(ContentResolver contentResolver, Uri imageUri, OutputStream out,
+                                     int maxWidth, int maxHeight, int quality) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+
+        // by setting this field as true, the actual bitmap pixels are not loaded in the memory.
+        // just the bounds are loaded
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        InputStream in = contentResolver.openInputStream(imageUri);
+        try {
+            BitmapFactory.decodeStream(in, null, bounds);
+        } finally {
+            closeQuietly(in);
+        }
 
-                }
-            }
+        int sourceWidth = bounds.outWidth;
+        int sourceHeight = bounds.outHeight;
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new IOException("Cannot decode the bounds of " + imageUri);
+        }
 
-            // setting inSampleSize value allows to load a scaled down version of the original image
-            options.inSampleSize = calculateInSampleSize(options, actualWidth, actualHeight);
+        // the size as displayed, after the rotation
+        int rotation = getRotationDegrees(contentResolver, imageUri);
+        boolean isSwapped = rotation == 90 || rotation == 270;
+        int shownWidth = isSwapped ? sourceHeight : sourceWidth;
+        int shownHeight = isSwapped ? sourceWidth : sourceHeight;
 
-            // nJustDecodeBounds set to false to load the actual bitmap
-            options.inJustDecodeBounds = false;
+        // width and height values are set maintaining the aspect ratio of the image
+        float scale = Math.min(1f, Math.min((float) maxWidth / shownWidth, (float) maxHeight / shownHeight));
+        int outputWidth = Math.max(1, Math.round(shownWidth * scale));
+        int outputHeight = Math.max(1, Math.round(shownHeight * scale));
 
-            // this options allow android to claim the bitmap memory if it runs low on memory
-            options.inPurgeable = true;
-            options.inInputShareable = true;
-            options.inTempStorage = new byte[16 * 1024];
+        // the target size before the rotation
+        int targetWidth = isSwapped ? outputHeight : outputWidth;
+        int targetHeight = isSwapped ? outputWidth : outputHeight;
 
-            try {
-                // load the bitmap from its path
-                bmp = BitmapFactory.decodeFile(filePath, options);
-            } catch (OutOfMemoryError exception) {
-                exception.printStackTrace();
+        int sampleSize = calculateInSampleSize(sourceWidth, sourceHeight, targetWidth, targetHeight);
+
+        MemoryMeter meter = new MemoryMeter();
+        Bitmap output = BITMAP_POOL.acquire(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
+        meter.allocated(output);
+
+        try {
+            Canvas canvas = new Canvas(output);
+            canvas.drawColor(Color.WHITE); // the jpeg has no alpha, and the pooled bitmaps are not cleared
+            canvas.concat(getOrientationMatrix(rotation, outputWidth, outputHeight));
+
+            float scaleY = (float) targetHeight / sourceHeight;
 
+            if (!drawByStrips(contentResolver, imageUri, canvas, sourceWidth, sourceHeight,
+                    targetWidth, scaleY, sampleSize, meter)) {
+                drawSampled(contentResolver, imageUri, canvas, targetWidth, targetHeight, sampleSize, meter);
             }
-            try {
-                scaledBitmap = Bitmap.createBitmap(actualWidth, actualHeight, Bitmap.Config.ARGB_8888);
-            } catch (OutOfMemoryError exception) {
-                exception.printStackTrace();
+
+            // write the compressed bitmap to the stream
+            if (!output.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                throw new IOException("Cannot encode " + imageUri);
             }
+        } finally {
+            meter.released(output);
+            BITMAP_POOL.release(output);
+        }
 
-            float ratioX = actualWidth / (float) options.outWidth;
-            float ratioY = actualHeight / (float) options.outHeight;
-            float middleX = actualWidth / 2.0f;
-            float middleY = actualHeight / 2.0f;
+        Result result = new Result();
+        result.width = outputWidth;
+        result.height = outputHeight;
+        result.sampleSize = sampleSize;
+        result.peakMemoryBytes = meter.peakBytes;
+        result.elapsedMillis = SystemClock.elapsedRealtime() - startTime;
+        return result;
+    }
 
-            Matrix scaleMatrix = new Matrix();
-            scaleMatrix.setScale(ratioX, ratioY, middleX, middleY);
+    // decode the image one strip at a time. false if the format is not supported by the region decoder
+    private static boolean drawByStrips(ContentResolver contentResolver, Uri imageUri, Canvas canvas,
+                                        int sourceWidth, int sourceHeight, int targetWidth, float scaleY,
+                                        int sampleSize, MemoryMeter meter) throws IOException {
+        BitmapRegionDecoder decoder;
+        InputStream in = contentResolver.openInputStream(imageUri);
+        try {
+            decoder = BitmapRegionDecoder.newInstance(in, false);
+        } catch (IOException e) {
+            Log.d(TAG, "drawByStrips: region decoding not supported for " + imageUri + ": " + e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
 
-            Canvas canvas = new Canvas(scaledBitmap);
-            canvas.setMatrix(scaleMatrix);
-            canvas.drawBitmap(bmp, middleX - bmp.getWidth() / 2, middleY - bmp.getHeight() / 2, new Paint(Paint.FILTER_BITMAP_FLAG));
+        int stripSourceRows = STRIP_ROWS * sampleSize;
+        int stripWidth = (sourceWidth + sampleSize - 1) / sampleSize;
 
-            // check the rotation of the image and display it properly
-            ExifInterface exif;
-            try {
-                exif = new ExifInterface(filePath);
-
-                int orientation = exif.getAttributeInt(
-                        ExifInterface.TAG_ORIENTATION, 0);
-                Log.d("EXIF", "Exif: " + orientation);
-                Matrix matrix = new Matrix();
-                if (orientation == 6) {
-                    matrix.postRotate(90);
-                    Log.d("EXIF", "Exif: " + orientation);
-                } else if (orientation == 3) {
-                    matrix.postRotate(180);
-                    Log.d("EXIF", "Exif: " + orientation);
-                } else if (orientation == 8) {
-                    matrix.postRotate(270);
-                    Log.d("EXIF", "Exif: " + orientation);
+        Bitmap strip = BITMAP_POOL.acquire(stripWidth, STRIP_ROWS, Bitmap.Config.ARGB_8888);
+        meter.allocated(strip);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inBitmap = strip;
+
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect region = new Rect();
+        Rect src = new Rect();
+        RectF dst = new RectF();
+
+        try {
+            for (int top = 0; top < sourceHeight; top += stripSourceRows) {
+                int bottom = Math.min(sourceHeight, top + stripSourceRows);
+                region.set(0, top, sourceWidth, bottom);
+
+                Bitmap decoded = decoder.decodeRegion(region, options);
+                if (decoded == null) {
+                    throw new IOException("Cannot decode the region " + region + " of " + imageUri);
                 }
-                scaledBitmap = Bitmap.createBitmap(scaledBitmap, 0, 0,
-                        scaledBitmap.getWidth(), scaledBitmap.getHeight(), matrix,
-                        true);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
 
-            FileOutputStream out = null;
-            String filename = getFilename(ChatManager.getInstance().getAppId() + "/images/sent");
-            try {
-                out = new FileOutputStream(filename);
+                boolean isReused = decoded == strip;
+                if (!isReused) {
+                    meter.allocated(decoded);
+                }
 
-                // write the compressed bitmap at the destination specified by filename.
-                scaledBitmap.compress(Bitmap.CompressFormat.JPEG, 80, out);
+                // a reused bitmap can be bigger than the decoded region
+                int rows = (bottom - top + sampleSize - 1) / sampleSize;
+                src.set(0, 0, Math.min(stripWidth, decoded.getWidth()), Math.min(rows, decoded.getHeight()));
+                dst.set(0, top * scaleY, targetWidth, bottom * scaleY);
+                canvas.drawBitmap(decoded, src, dst, paint);
 
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+                if (!isReused) {
+                    meter.released(decoded);
+                    decoded.recycle();
+                }
             }
+        } finally {
+            decoder.recycle();
+            meter.released(strip);
+            BITMAP_POOL.release(strip);
+        }
 
-            // add scheme
-            filename = "file://" + filename;
+        return true;
+    }
 
-            return Uri.parse(filename);
+    // decode the whole image, sampled
+    private static void drawSampled(ContentResolver contentResolver, Uri imageUri, Canvas canvas,
+                                    int targetWidth, int targetHeight, int sampleSize, MemoryMeter meter)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Bitmap decoded;
+        InputStream in = contentResolver.openInputStream(imageUri);
+        try {
+            decoded = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            closeQuietly(in);
         }
 
-        private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-            final int height = options.outHeight;
-            final int width = options.outWidth;
-            int inSampleSize = 1;
+        if (decoded == null) {
+            throw new IOException("Cannot decode " + imageUri);
+        }
+        meter.allocated(decoded);
 
-            if (height > reqHeight || width > reqWidth) {
-                final int heightRatio = Math.round((float) height / (float) reqHeight);
-                final int widthRatio = Math.round((float) width / (float) reqWidth);
-                inSampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
-            }
+        canvas.drawBitmap(decoded, null, new RectF(0, 0, targetWidth, targetHeight),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
 
-            final float totalPixels = width * height;
-            final float totalReqPixelsCap = reqWidth * reqHeight * 2;
-            while (totalPixels / (inSampleSize * inSampleSize) > totalReqPixelsCap) {
-                inSampleSize++;
-            }
-            return inSampleSize;
+        meter.released(decoded);
+        decoded.recycle();
+    }
+
+    // maps the target (not rotated) coordinates to the output ones
+    private static Matrix getOrientationMatrix(int rotation, int outputWidth, int outputHeight) {
+        Matrix matrix = new Matrix();
+        matrix.postRotate(rotation);
+
+        if (rotation == 90) {
+            matrix.postTranslate(outputWidth, 0);
+        } else if (rotation == 180) {
+            matrix.postTranslate(outputWidth, outputHeight);
+        } else if (rotation == 270) {
+            matrix.postTranslate(0, outputHeight);
         }
 
-        private static String getFilename(String folderPath) {
-//            File file = new File(Environment.getExternalStorageDirectory().getPath(), folderPath + "/images/sent");
-            File file = new File(Environment.getExternalStorageDirectory().getPath(), folderPath);
-            if (!file.exists()) {
-                file.mkdirs();
+        return matrix;
+    }
+
+    // the largest power of two keeping the sampled image at least as big as the target.
+    // the sampled image is less than twice the target on each side
+    private static int calculateInSampleSize(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        int inSampleSize = 1;
+        while (sourceWidth / (inSampleSize * 2) >= targetWidth
+                && sourceHeight / (inSampleSize * 2) >= targetHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    // check the rotation of the image to display it properly
+    private static int getRotationDegrees(ContentResolver contentResolver, Uri imageUri) {
+        String filePath = getRealPathFromURI(contentResolver, imageUri);
+        if (filePath == null) {
+            return 0;
+        }
+
+        try {
+            ExifInterface exif = new ExifInterface(filePath);
+            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            Log.d("EXIF", "Exif: " + orientation);
+
+            if (orientation == ExifInterface.ORIENTATION_ROTATE_90) {
+                return 90;
+            } else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) {
+                return 180;
+            } else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) {
+                return 270;
             }
-            String uriSting = (file.getAbsolutePath() + "/" + System.currentTimeMillis() + ".jpg");
-            return uriSting;
+        } catch (IOException e) {
+            Log.w(TAG, "getRotationDegrees: cannot read the exif of " + filePath + ": " + e.getMessage());
+        }
+
+        return 0;
+    }
+
+    private static String getFilename(String folderPath) {
+        File file = new File(Environment.getExternalStorageDirectory().getPath(), folderPath);
+        if (!file.exists()) {
+            file.mkdirs();
         }
+        String uriSting = (file.getAbsolutePath() + "/" + System.currentTimeMillis() + ".jpg");
+        return uriSting;
     }
 
     private static String getRealPathFromURI(ContentResolver contentResolver, Uri contentUri) {
+        if ("file".equalsIgnoreCase(contentUri.getScheme())) {
+            return contentUri.getPath();
+        }
+
         Cursor cursor = contentResolver.query(contentUri, null, null, null, null);
         if (cursor == null) {
             return contentUri.getPath();
-        } else {
-            cursor.moveToFirst();
+        }
+
+        try {
             int index = cursor.getColumnIndex(MediaStore.Images.ImageColumns.DATA);
-            return cursor.getString(index);
+            return cursor.moveToFirst() && index != -1 ? cursor.getString(index) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
+    /**
+     * @deprecated use {@link OnImageCompressedListener}
+     */
+    @Deprecated
     public interface OnImageCompressListener {
         void onImageCompressed(Uri path);
     }
-}
\ No newline at end of file
+
+    public interface OnImageCompressedListener {
+        void onImageCompressed(Result result);
+
+        void onImageCompressFailed(Exception e);
+    }
+}
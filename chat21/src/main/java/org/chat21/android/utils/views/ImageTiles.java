@@ -0,0 +1,510 @@
+package org.chat21.android.utils.views;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The tiled rendering of a large image, used by {@link TouchImageView#setImageFile(File)}.
+ * <p/>
+ * The whole image is decoded once, sampled within the screen size, as a base drawable with the size of the
+ * original image, so the view keeps working in original image coordinates.
+ * The EXIF rotation is applied to the base and to the tiles: the coordinates are the ones of the rotated image.
+ * When the zoom needs more detail than the base, the visible area is drawn over the base with tiles of
+ * {@link #TILE_SIZE} pixels, decoded by a {@link BitmapRegionDecoder} at the sample size of the zoom level.
+ * <p/>
+ * The tiles are decoded on a single background thread, the most recently requested first, and the tiles
+ * not visible anymore when their turn comes are skipped, so a fling does not queue stale work.
+ * The base and the decoded tiles are kept within {@link #getCacheBytes()}: the tiles in an LRU cache
+ * sized by the memory left by the base, the evicted ones are recycled. When the visible tiles do not fit
+ * in the cache they are decoded with less detail, so they do not evict each other while drawn.
+ * All the methods must be called from the main thread.
+ */
+class ImageTiles {
+    private static final String TAG = ImageTiles.class.getName();
+
+    // the side of a decoded tile, in pixels
+    static final int TILE_SIZE = 512;
+
+    // the base and the tiles are opaque photos: half the memory of ARGB_8888
+    private static final Bitmap.Config BITMAP_CONFIG = Bitmap.Config.RGB_565;
+
+    private static final int BYTES_PER_PIXEL = 2;
+
+    private static final long TILE_BYTES = (long) TILE_SIZE * TILE_SIZE * BYTES_PER_PIXEL;
+
+    private static final int MAX_CACHE_BYTES = 32 * 1024 * 1024;
+
+    interface Callback {
+
+        /**
+         * The base drawable is ready. Its intrinsic size is the size of the original image
+         */
+        void onBaseReady(Drawable base, int imageWidth, int imageHeight);
+
+        /**
+         * A tile has been decoded: the view must be drawn again
+         */
+        void onTileReady();
+
+        void onError(Exception e);
+    }
+
+    private static class Tile {
+        final String key;
+        final int sampleSize;
+        final Rect region; // in original image pixels
+
+        Tile(int sampleSize, int column, int row, Rect region) {
+            this.key = sampleSize + "/" + column + "/" + row;
+            this.sampleSize = sampleSize;
+            this.region = region;
+        }
+    }
+
+    private final Resources resources;
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // one decode at a time: the region decoder is not meant to be used concurrently
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+    // guarded by itself. the newest request is decoded first
+    private final Deque<Tile> requests = new ArrayDeque<>();
+
+    // the keys of the tiles visible at the last draw, read by the worker to skip the stale requests
+    private volatile Set<String> visibleKeys = Collections.emptySet();
+
+    // the requested tiles not delivered yet. main thread only
+    private final Set<String> pendingKeys = new HashSet<>();
+
+    // created with the base, within the memory left by it
+    private LruCache<String, Bitmap> cache;
+
+    private volatile boolean isRecycled = false;
+
+    // set by the worker before the base is delivered
+    private BitmapRegionDecoder decoder;
+    private int imageWidth; // rotated
+    private int imageHeight; // rotated
+    private int baseSampleSize;
+
+    // the EXIF rotation, and the mapping from the rotated image to the decoded one. worker only
+    private final Matrix rotation = new Matrix();
+    private final Matrix toDecoded = new Matrix();
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix inverse = new Matrix();
+    private final RectF visibleRect = new RectF();
+    private final RectF tileRect = new RectF();
+
+    ImageTiles(Resources resources, Callback callback) {
+        this.resources = resources;
+        this.callback = callback;
+    }
+
+    private static LruCache<String, Bitmap> createCache(int maxBytes) {
+        return new LruCache<String, Bitmap>(Math.max(1, maxBytes)) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                // tiles are only drawn on the main thread, where they are evicted
+                oldValue.recycle();
+            }
+        };
+    }
+
+    /**
+     * @return the memory budget of the base and the decoded tiles
+     */
+    static long getCacheBytes() {
+        return Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    /**
+     * @param cacheBytes the whole memory budget
+     * @param baseBytes  the size of the decoded base
+     * @return the size of the tiles cache. The base takes at most half the budget
+     */
+    static int getTilesCacheBytes(long cacheBytes, int baseBytes) {
+        return (int) Math.max(cacheBytes / 2, cacheBytes - baseBytes);
+    }
+
+    /**
+     * Open the image and decode the base in background
+     */
+    void open(final File file) {
+        DisplayMetrics metrics = resources.getDisplayMetrics();
+        final int baseMaxSize = Math.max(metrics.widthPixels, metrics.heightPixels);
+
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Bitmap base = decodeBase(file, baseMaxSize);
+
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isRecycled) {
+                                base.recycle();
+                                return;
+                            }
+
+                            cache = createCache(getTilesCacheBytes(getCacheBytes(), base.getByteCount()));
+
+                            BitmapDrawable drawable = new BitmapDrawable(resources, base) {
+                                @Override
+                                public int getIntrinsicWidth() {
+                                    return imageWidth;
+                                }
+
+                                @Override
+                                public int getIntrinsicHeight() {
+                                    return imageHeight;
+                                }
+                            };
+                            drawable.setFilterBitmap(true);
+
+                            callback.onBaseReady(drawable, imageWidth, imageHeight);
+                        }
+                    });
+                } catch (final Exception e) {
+                    Log.e(TAG, "open: cannot decode " + file + ": " + e.toString());
+
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isRecycled) {
+                                callback.onError(e);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // called on the worker
+    private Bitmap decodeBase(File file, int baseMaxSize) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Cannot decode the bounds of " + file);
+        }
+
+        int decodedWidth = bounds.outWidth;
+        int decodedHeight = bounds.outHeight;
+
+        // the base takes at most half the budget, the tiles use the rest
+        baseSampleSize = 1;
+        while (Math.max(decodedWidth, decodedHeight) / baseSampleSize > baseMaxSize
+                || (long) (decodedWidth / baseSampleSize) * (decodedHeight / baseSampleSize) * BYTES_PER_PIXEL
+                > getCacheBytes() / 2) {
+            baseSampleSize *= 2;
+        }
+
+        // the size of the rotated image, and the mapping of its coordinates to the decoded image
+        rotation.setRotate(getRotationDegrees(file));
+        RectF rotated = new RectF(0, 0, decodedWidth, decodedHeight);
+        rotation.mapRect(rotated);
+        imageWidth = Math.round(rotated.width());
+        imageHeight = Math.round(rotated.height());
+
+        Matrix toRotated = new Matrix(rotation);
+        toRotated.postTranslate(-rotated.left, -rotated.top);
+        toRotated.invert(toDecoded);
+
+        // the formats not supported by the region decoder (ie. GIF) are shown by the base only
+        try {
+            decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+        } catch (IOException e) {
+            Log.d(TAG, "decodeBase: region decoding not supported for " + file + ": " + e.getMessage());
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = baseSampleSize;
+        options.inPreferredConfig = BITMAP_CONFIG;
+        Bitmap base = BitmapFactory.decodeFile(file.getPath(), options);
+        if (base == null) {
+            throw new IOException("Cannot decode " + file);
+        }
+
+        Log.d(TAG, "decodeBase: " + imageWidth + "x" + imageHeight + ", base sample size " + baseSampleSize);
+        return rotate(base);
+    }
+
+    // called on the worker
+    private Bitmap rotate(Bitmap bitmap) {
+        if (rotation.isIdentity()) {
+            return bitmap;
+        }
+
+        // a right angle rotation keeps the config of the bitmap
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), rotation, true);
+        if (rotated != bitmap) {
+            bitmap.recycle();
+        }
+        return rotated;
+    }
+
+    // the images without EXIF (ie. PNG) are not rotated
+    private static int getRotationDegrees(File file) {
+        try {
+            ExifInterface exif = new ExifInterface(file.getPath());
+            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+
+            if (orientation == ExifInterface.ORIENTATION_ROTATE_90) {
+                return 90;
+            } else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) {
+                return 180;
+            } else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) {
+                return 270;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "getRotationDegrees: cannot read the exif of " + file + ": " + e.getMessage());
+        }
+
+        return 0;
+    }
+
+    /**
+     * Draw the visible tiles over the base, and request the missing ones
+     *
+     * @param canvas     the canvas of the view
+     * @param matrix     the matrix mapping the original image to the view
+     * @param viewWidth  the view width
+     * @param viewHeight the view height
+     */
+    void draw(Canvas canvas, Matrix matrix, int viewWidth, int viewHeight) {
+        if (decoder == null || cache == null || isRecycled) {
+            return;
+        }
+
+        float[] values = new float[9];
+        matrix.getValues(values);
+        int sampleSize = getSampleSize(values[Matrix.MSCALE_X]);
+
+        if (sampleSize >= baseSampleSize) {
+            // the base is detailed enough
+            visibleKeys = Collections.emptySet();
+            return;
+        }
+
+        // the visible area, in original image pixels
+        if (!matrix.invert(inverse)) {
+            return;
+        }
+        visibleRect.set(0, 0, viewWidth, viewHeight);
+        inverse.mapRect(visibleRect);
+        if (!visibleRect.intersect(0, 0, imageWidth, imageHeight)) {
+            return;
+        }
+
+        sampleSize = fitSampleSize(sampleSize, baseSampleSize, visibleRect.left, visibleRect.top,
+                visibleRect.right, visibleRect.bottom, cache.maxSize());
+        if (sampleSize >= baseSampleSize) {
+            visibleKeys = Collections.emptySet();
+            return;
+        }
+
+        int tileSide = TILE_SIZE * sampleSize;
+        int firstColumn = (int) (visibleRect.left / tileSide);
+        int lastColumn = (int) ((visibleRect.right - 1) / tileSide);
+        int firstRow = (int) (visibleRect.top / tileSide);
+        int lastRow = (int) ((visibleRect.bottom - 1) / tileSide);
+
+        Set<String> keys = new HashSet<>();
+        List<Tile> missingTiles = new ArrayList<>();
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                Rect region = new Rect(column * tileSide, row * tileSide,
+                        Math.min(imageWidth, (column + 1) * tileSide),
+                        Math.min(imageHeight, (row + 1) * tileSide));
+                Tile tile = new Tile(sampleSize, column, row, region);
+                keys.add(tile.key);
+
+                Bitmap bitmap = cache.get(tile.key);
+                if (bitmap != null) {
+                    tileRect.set(region);
+                    matrix.mapRect(tileRect);
+                    canvas.drawBitmap(bitmap, null, tileRect, paint);
+                } else if (!pendingKeys.contains(tile.key)) {
+                    missingTiles.add(tile);
+                }
+            }
+        }
+
+        // before the requests, read by the worker
+        visibleKeys = keys;
+
+        for (Tile tile : missingTiles) {
+            request(tile);
+        }
+    }
+
+    /**
+     * @param scale the scale of the original image in the view
+     * @return the largest power of two keeping at least one decoded pixel per view pixel
+     */
+    static int getSampleSize(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * All the visible tiles must fit in the cache, otherwise they would be decoded and evicted forever
+     *
+     * @param sampleSize     the sample size of the current scale
+     * @param baseSampleSize the sample size of the base
+     * @param maxCacheBytes  the size of the tiles cache
+     * @return the smallest sample size, not less than {@code sampleSize}, whose tiles covering
+     * the visible area fit in the cache. {@code baseSampleSize} or more if the base must be shown
+     */
+    static int fitSampleSize(int sampleSize, int baseSampleSize, float left, float top, float right, float bottom,
+                             long maxCacheBytes) {
+        while (sampleSize < baseSampleSize
+                && countTiles(left, top, right, bottom, sampleSize) * TILE_BYTES > maxCacheBytes) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return the number of tiles covering the area, in original image pixels, at the sample size
+     */
+    static int countTiles(float left, float top, float right, float bottom, int sampleSize) {
+        int tileSide = TILE_SIZE * sampleSize;
+        int columns = (int) ((right - 1) / tileSide) - (int) (left / tileSide) + 1;
+        int rows = (int) ((bottom - 1) / tileSide) - (int) (top / tileSide) + 1;
+        return columns * rows;
+    }
+
+    private void request(Tile tile) {
+        pendingKeys.add(tile.key);
+
+        synchronized (requests) {
+            requests.addLast(tile);
+        }
+
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                Tile next;
+                synchronized (requests) {
+                    next = requests.pollLast();
+                }
+                if (next != null) {
+                    decodeTile(next);
+                }
+            }
+        });
+    }
+
+    // called on the worker
+    private void decodeTile(final Tile tile) {
+        Bitmap bitmap = null;
+
+        if (!isRecycled && visibleKeys.contains(tile.key)) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = tile.sampleSize;
+            options.inPreferredConfig = BITMAP_CONFIG;
+
+            // the region of the decoded image shown by the tile of the rotated one
+            RectF region = new RectF(tile.region);
+            toDecoded.mapRect(region);
+            Rect decodedRegion = new Rect();
+            region.round(decodedRegion);
+
+            try {
+                bitmap = decoder.decodeRegion(decodedRegion, options);
+                if (bitmap != null) {
+                    bitmap = rotate(bitmap);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "decodeTile: cannot decode " + tile.key + ": " + e.toString());
+            }
+        }
+
+        final Bitmap decoded = bitmap;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                pendingKeys.remove(tile.key);
+
+                if (decoded == null) {
+                    return; // skipped: requested again if visible at the next draw
+                }
+
+                if (isRecycled) {
+                    decoded.recycle();
+                    return;
+                }
+
+                cache.put(tile.key, decoded);
+                callback.onTileReady();
+            }
+        });
+    }
+
+    /**
+     * Release the decoder and the tiles. The instance cannot be used anymore
+     */
+    void recycle() {
+        isRecycled = true;
+
+        synchronized (requests) {
+            requests.clear();
+        }
+        if (cache != null) {
+            cache.evictAll();
+        }
+        pendingKeys.clear();
+
+        // after the running decode
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (decoder != null) {
+                    decoder.recycle();
+                }
+            }
+        });
+        worker.shutdown();
+    }
+}
@@ -8,6 +8,7 @@
  * Updated By: singpolyma
  * -------------------
  * Extends Android ImageView to include pinch zooming, panning, fling and double tap zoom.
+ * Large images can be shown in tiled mode by setImageFile(File), see ImageTiles.
  *
  * source : https://github.com/MikeOrtiz/TouchImageView
  */
@@ -30,6 +31,7 @@ import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -39,10 +41,19 @@ import android.widget.ImageView;
 import android.widget.OverScroller;
 import android.widget.Scroller;
 
+import java.io.File;
+
 public class TouchImageView extends ImageView {
+    private static final String TAG = TouchImageView.class.getName();
 
 //    private static final String DEBUG = "DEBUG";
 
+    //
+    // In tiled mode the max zoom shows the original pixels at least at this size.
+    //
+    private static final float TILED_MAX_PIXEL_SCALE = 2f;
+    private static final float TILED_DOUBLE_TAP_ZOOM = 3f;
+
     //
     // SuperMin and SuperMax multipliers. Determine how much the image can be
     // zoomed below or above the zoom boundaries, before animating back to the
@@ -71,6 +82,7 @@ public class TouchImageView extends ImageView {
 
     private float minScale;
     private float maxScale;
+    private float userMaxScale; // the max zoom set by setMaxZoom, raised in tiled mode
     private float superMinScale;
     private float superMaxScale;
     private float[] m;
@@ -101,6 +113,13 @@ public class TouchImageView extends ImageView {
     private OnTouchListener userTouchListener = null;
     private OnTouchImageViewListener touchImageViewListener = null;
 
+    //
+    // The tiles of the image set by setImageFile, null if not in tiled mode.
+    //
+    private ImageTiles tiles;
+    private boolean isSettingTiledBase;
+    private int tiledImageWidth, tiledImageHeight; // 0 until the base is ready
+
     public TouchImageView(Context context) {
         super(context);
         sharedConstructing(context);
@@ -130,6 +149,7 @@ public class TouchImageView extends ImageView {
         }
         minScale = 1;
         maxScale = 3;
+        userMaxScale = maxScale;
         superMinScale = SUPER_MIN_MULTIPLIER * minScale;
         superMaxScale = SUPER_MAX_MULTIPLIER * maxScale;
         setImageMatrix(matrix);
@@ -154,6 +174,7 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageResource(int resId) {
+        releaseTiles();
         super.setImageResource(resId);
         savePreviousImageValues();
         fitImageToView();
@@ -161,6 +182,7 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageBitmap(Bitmap bm) {
+        releaseTiles();
         super.setImageBitmap(bm);
         savePreviousImageValues();
         fitImageToView();
@@ -168,6 +190,9 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageDrawable(Drawable drawable) {
+        if (!isSettingTiledBase) {
+            releaseTiles();
+        }
         super.setImageDrawable(drawable);
         savePreviousImageValues();
         fitImageToView();
@@ -175,11 +200,68 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageURI(Uri uri) {
+        releaseTiles();
         super.setImageURI(uri);
         savePreviousImageValues();
         fitImageToView();
     }
 
+    /**
+     * Show a large image in tiled mode, within a fixed memory budget.
+     * <p/>
+     * A sampled copy of the whole image is shown first, then the zoomed areas are drawn with tiles
+     * decoded at the sample size of the zoom level. The current image is kept until the sampled copy is ready.
+     *
+     * @param file the image file, ie. downloaded by Glide
+     */
+    public void setImageFile(File file) {
+        releaseTiles();
+
+        tiles = new ImageTiles(getResources(), new ImageTiles.Callback() {
+            @Override
+            public void onBaseReady(Drawable base, int imageWidth, int imageHeight) {
+                isSettingTiledBase = true;
+                setImageDrawable(base);
+                isSettingTiledBase = false;
+
+                // let the zoom reach the original pixels. if the view has not been measured yet
+                // it is raised by onMeasure
+                tiledImageWidth = imageWidth;
+                tiledImageHeight = imageHeight;
+                updateMaxScale();
+            }
+
+            @Override
+            public void onTileReady() {
+                invalidate();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "setImageFile: cannot show the image in tiled mode: " + e.getMessage());
+            }
+        });
+        tiles.open(file);
+    }
+
+    private void releaseTiles() {
+        if (tiles != null) {
+            tiles.recycle();
+            tiles = null;
+        }
+
+        // back to the max zoom of the not tiled images
+        tiledImageWidth = 0;
+        tiledImageHeight = 0;
+        updateMaxScale();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        releaseTiles();
+        super.onDetachedFromWindow();
+    }
+
     @Override
     public void setScaleType(ScaleType type) {
         if (type == ScaleType.FIT_START || type == ScaleType.FIT_END) {
@@ -289,6 +371,11 @@ public class TouchImageView extends ImageView {
             delayedZoomVariables = null;
         }
         super.onDraw(canvas);
+
+        // the zoomed area, over the sampled image
+        if (tiles != null) {
+            tiles.draw(canvas, matrix, viewWidth, viewHeight);
+        }
     }
 
     @Override
@@ -312,7 +399,20 @@ public class TouchImageView extends ImageView {
      * @param max max zoom multiplier.
      */
     public void setMaxZoom(float max) {
-        maxScale = max;
+        userMaxScale = max;
+        updateMaxScale();
+    }
+
+    //
+    // In tiled mode the max zoom is raised to reach the original pixels, once both the
+    // image and the view sizes are known. Otherwise it is the one set by setMaxZoom.
+    //
+    private void updateMaxScale() {
+        maxScale = userMaxScale;
+        if (tiles != null && tiledImageWidth > 0 && tiledImageHeight > 0 && viewWidth > 0 && viewHeight > 0) {
+            float fitScale = Math.min((float) viewWidth / tiledImageWidth, (float) viewHeight / tiledImageHeight);
+            maxScale = Math.max(userMaxScale, TILED_MAX_PIXEL_SCALE / fitScale);
+        }
         superMaxScale = SUPER_MAX_MULTIPLIER * maxScale;
     }
 
@@ -542,6 +642,7 @@ public class TouchImageView extends ImageView {
         int heightMode = MeasureSpec.getMode(heightMeasureSpec);
         viewWidth = setViewSize(widthMode, widthSize, drawableWidth);
         viewHeight = setViewSize(heightMode, heightSize, drawableHeight);
+        updateMaxScale();
 
         //
         // Set view dimensions
@@ -800,7 +901,9 @@ public class TouchImageView extends ImageView {
                 consumed = doubleTapListener.onDoubleTap(e);
             }
             if (state == State.NONE) {
-                float targetZoom = (normalizedScale == minScale) ? maxScale : minScale;
+                // in tiled mode the max zoom can be far: double tap zooms as much as in normal mode
+                float zoomIn = tiles != null ? Math.min(maxScale, TILED_DOUBLE_TAP_ZOOM) : maxScale;
+                float targetZoom = (normalizedScale == minScale) ? zoomIn : minScale;
                 DoubleTapZoom doubleTap = new DoubleTapZoom(targetZoom, e.getX(), e.getY(), false);
                 compatPostOnAnimation(doubleTap);
                 consumed = true;
@@ -0,0 +1,96 @@
+package org.chat21.android.core.contacts.synchronizers;
+
+import org.chat21.android.core.users.models.ChatUser;
+import org.chat21.android.core.users.models.IChatUser;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContactSearchIndexTest {
+
+    private ContactSearchIndex index;
+
+    @Before
+    public void setUp() {
+        index = new ContactSearchIndex();
+        index.indexAll(Arrays.asList(
+                contact("u1", "Jos\u00e9 Mart\u00ednez", "jmartinez@example.com"),
+                contact("u2", "Maria Rossi", "maria@example.com"),
+                contact("u3", "Marco Jose", "marco@example.com"),
+                contact("u4", "Anna Bianchi", "josephine@example.com")));
+    }
+
+    @Test
+    public void foldLowercasesAndRemovesTheAccents() {
+        assertEquals("jose martinez", ContactSearchIndex.fold("  Jos\u00e9 MART\u00cdNEZ "));
+        assertEquals("", ContactSearchIndex.fold(null));
+    }
+
+    @Test
+    public void matchesTheTokenPrefixes() {
+        assertIds(index.search("mar"), "u3", "u2", "u1");
+        assertIds(index.search("ross"), "u2");
+        assertIds(index.search("xyz"));
+    }
+
+    @Test
+    public void queryIsFolded() {
+        assertIds(index.search("JOS\u00c9 mart"), "u1");
+    }
+
+    @Test
+    public void everyQueryTokenMustMatch() {
+        assertIds(index.search("maria rossi"), "u2");
+        assertIds(index.search("maria bianchi"));
+    }
+
+    @Test
+    public void firstNameMatchesRankBeforeLastNameAndEmailMatches() {
+        // first name, last name, email
+        assertIds(index.search("jos"), "u1", "u3", "u4");
+    }
+
+    @Test
+    public void blankQueryMatchesNothing() {
+        assertTrue(index.search("   ").isEmpty());
+        assertTrue(index.search(null).isEmpty());
+    }
+
+    @Test
+    public void reindexReplacesTheOldTokens() {
+        index.index(contact("u2", "Maria Verdi", "maria@example.com"));
+
+        assertIds(index.search("rossi"));
+        assertIds(index.search("verdi"), "u2");
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    public void unindex() {
+        index.unindex("u2");
+
+        assertIds(index.search("maria"));
+        assertEquals(3, index.size());
+
+        index.clear();
+        assertEquals(0, index.size());
+    }
+
+    private static IChatUser contact(String id, String fullName, String email) {
+        ChatUser contact = new ChatUser(id, fullName);
+        contact.setEmail(email);
+        return contact;
+    }
+
+    private static void assertIds(List<IChatUser> contacts, String... ids) {
+        assertEquals(ids.length, contacts.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], contacts.get(i).getId());
+        }
+    }
+}
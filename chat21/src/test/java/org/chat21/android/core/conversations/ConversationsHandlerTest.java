@@ -0,0 +1,93 @@
+package org.chat21.android.core.conversations;
+
+import org.chat21.android.core.conversations.models.Conversation;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ConversationsHandlerTest {
+
+    private static final String CURRENT_USER_ID = "u1";
+
+    @Test
+    public void conversWithIsTheSenderWhenTheCurrentUserIsTheRecipient() {
+        Conversation conversation = ConversationsHandler.decodeConversation("u2",
+                conversationValues("u2", "Jane Doe", CURRENT_USER_ID, "Me"), CURRENT_USER_ID);
+
+        assertEquals("u2", conversation.getConvers_with());
+        assertEquals("Jane Doe", conversation.getConvers_with_fullname());
+    }
+
+    @Test
+    public void conversWithIsTheRecipientWhenTheCurrentUserIsTheSender() {
+        Conversation conversation = ConversationsHandler.decodeConversation("u2",
+                conversationValues(CURRENT_USER_ID, "Me", "u2", "Jane Doe"), CURRENT_USER_ID);
+
+        assertEquals("u2", conversation.getConvers_with());
+        assertEquals("Jane Doe", conversation.getConvers_with_fullname());
+    }
+
+    @Test
+    public void decodesAllTheFields() {
+        Map<String, Object> values = conversationValues("u2", "Jane Doe", CURRENT_USER_ID, "Me");
+
+        Conversation conversation = ConversationsHandler.decodeConversation("u2", values, CURRENT_USER_ID);
+
+        assertEquals("u2", conversation.getConversationId());
+        assertEquals("hello", conversation.getLast_message_text());
+        assertEquals(Boolean.TRUE, conversation.getIs_new());
+        assertEquals(Conversation.CONVERSATION_STATUS_LAST_MESSAGE, conversation.getStatus());
+        assertEquals(Long.valueOf(1000), conversation.getTimestampLong());
+        assertSame("the channel type is interned", "direct", conversation.getChannelType());
+        assertFalse(conversation.isGroupChannel());
+    }
+
+    @Test
+    public void missingValuesDecodeAnEmptyConversation() {
+        Conversation conversation = ConversationsHandler.decodeConversation("u2", null, CURRENT_USER_ID);
+
+        assertEquals("u2", conversation.getConversationId());
+        assertNull(conversation.getLast_message_text());
+        assertNull(conversation.getConvers_with());
+    }
+
+    @Test
+    public void decodesOnAWorkerThread() throws InterruptedException {
+        final Conversation[] decoded = new Conversation[1];
+
+        // the decoding must not depend on the main thread or on the ChatManager instance
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decoded[0] = ConversationsHandler.decodeConversation("u2",
+                        conversationValues("u2", "Jane Doe", CURRENT_USER_ID, "Me"), CURRENT_USER_ID);
+            }
+        });
+        worker.start();
+        worker.join();
+
+        assertEquals("u2", decoded[0].getConvers_with());
+    }
+
+    private static Map<String, Object> conversationValues(String sender, String senderFullName,
+                                                          String recipient, String recipientFullName) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("sender", sender);
+        values.put("sender_fullname", senderFullName);
+        values.put("recipient", recipient);
+        values.put("recipient_fullname", recipientFullName);
+        values.put("last_message_text", "hello");
+        values.put("is_new", true);
+        values.put("status", (long) Conversation.CONVERSATION_STATUS_LAST_MESSAGE);
+        values.put("timestamp", 1000L);
+        // a new string, as decoded from the json
+        values.put("channel_type", new String("direct"));
+        return values;
+    }
+}
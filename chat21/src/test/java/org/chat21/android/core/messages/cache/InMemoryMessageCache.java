@@ -0,0 +1,243 @@
+package org.chat21.android.core.messages.cache;
+
+import org.chat21.android.core.messages.models.Message;
+import org.chat21.android.utils.collections.IndexedSortedList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link MessageCache} backed by memory, for the unit tests of its clients.
+ * <p/>
+ * It follows the contract of the {@link SQLiteMessageCache}, but every operation is synchronous:
+ * the callbacks are called before the methods return.
+ */
+public class InMemoryMessageCache implements MessageCache {
+
+    private static final IndexedSortedList.KeyProvider<Message> KEY_PROVIDER =
+            new IndexedSortedList.KeyProvider<Message>() {
+                @Override
+                public String getKey(Message message) {
+                    return message.getId();
+                }
+            };
+
+    private static final Comparator<Message> TIMESTAMP_COMPARATOR = new Comparator<Message>() {
+        @Override
+        public int compare(Message first, Message second) {
+            long firstTimestamp = timestampOf(first);
+            long secondTimestamp = timestampOf(second);
+            return firstTimestamp < secondTimestamp ? -1 : (firstTimestamp == secondTimestamp ? 0 : 1);
+        }
+    };
+
+    private final Map<String, IndexedSortedList<Message>> conversations = new HashMap<>();
+    private boolean isClosed = false;
+
+    @Override
+    public void loadLastMessages(String conversationId, int limit, OnCachedMessagesLoadedCallback callback) {
+        List<Message> messages = limit > 0 ?
+                getLastMessages(conversationId, limit) : Collections.<Message>emptyList();
+        callback.onCachedMessagesLoaded(messages, getLastTimestamp(conversationId));
+    }
+
+    @Override
+    public List<Message> getLastMessages(String conversationId, int limit) {
+        checkOpen();
+
+        IndexedSortedList<Message> messages = conversations.get(conversationId);
+        if (messages == null) {
+            return new ArrayList<>();
+        }
+
+        int from = Math.max(0, messages.size() - limit);
+        return new ArrayList<>(messages.subList(from, messages.size()));
+    }
+
+    @Override
+    public long getLastTimestamp(String conversationId) {
+        checkOpen();
+
+        long lastTimestamp = NO_TIMESTAMP;
+
+        IndexedSortedList<Message> messages = conversations.get(conversationId);
+        if (messages != null) {
+            for (Message message : messages) {
+                // the local messages not sent yet are not considered
+                if (message.getStatus() != null && message.getStatus() >= Message.STATUS_SENT) {
+                    lastTimestamp = Math.max(lastTimestamp, timestampOf(message));
+                }
+            }
+        }
+
+        return lastTimestamp;
+    }
+
+    @Override
+    public void saveMessage(String conversationId, Message message) {
+        checkOpen();
+
+        IndexedSortedList<Message> messages = conversations.get(conversationId);
+        if (messages == null) {
+            messages = new IndexedSortedList<>(KEY_PROVIDER, TIMESTAMP_COMPARATOR);
+            conversations.put(conversationId, messages);
+        }
+
+        // a copy, as the sqlite backend encodes the message when it is saved
+        messages.upsert((Message) message.clone());
+    }
+
+    @Override
+    public List<MessageSearchResult> searchMessages(String query, int offset, int limit) {
+        checkOpen();
+
+        List<String> prefixes = words(query);
+        List<MessageSearchResult> results = new ArrayList<>();
+        if (prefixes.isEmpty()) {
+            return results;
+        }
+
+        List<Map.Entry<String, Message>> matching = new ArrayList<>();
+        for (Map.Entry<String, IndexedSortedList<Message>> conversation : conversations.entrySet()) {
+            for (Message message : conversation.getValue()) {
+                if (matchesAll(words(message.getText()), prefixes)) {
+                    matching.add(new HashMap.SimpleEntry<>(conversation.getKey(), message));
+                }
+            }
+        }
+
+        // the most recent first
+        Collections.sort(matching, new Comparator<Map.Entry<String, Message>>() {
+            @Override
+            public int compare(Map.Entry<String, Message> first, Map.Entry<String, Message> second) {
+                return TIMESTAMP_COMPARATOR.compare(second.getValue(), first.getValue());
+            }
+        });
+
+        for (int i = offset; i < matching.size() && results.size() < limit; i++) {
+            Message message = matching.get(i).getValue();
+            results.add(new MessageSearchResult(matching.get(i).getKey(), message.getId(),
+                    snippet(message.getText(), prefixes), timestampOf(message)));
+        }
+
+        return results;
+    }
+
+    @Override
+    public void deleteConversation(String conversationId) {
+        checkOpen();
+        conversations.remove(conversationId);
+    }
+
+    @Override
+    public void deleteMessagesBefore(String conversationId, long timestamp) {
+        checkOpen();
+
+        IndexedSortedList<Message> messages = conversations.get(conversationId);
+        if (messages == null) {
+            return;
+        }
+
+        Iterator<Message> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            if (timestampOf(iterator.next()) < timestamp) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        checkOpen();
+        conversations.clear();
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        conversations.clear();
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    private void checkOpen() {
+        if (isClosed) {
+            throw new IllegalStateException("The cache is closed");
+        }
+    }
+
+    private static long timestampOf(Message message) {
+        return message.getTimestamp() != null ? message.getTimestamp() : 0;
+    }
+
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static boolean matchesAll(List<String> words, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (!startsAny(words, prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsAny(List<String> words, String prefix) {
+        for (String word : words) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the whole text, with the matching words enclosed by the match tags
+    private static String snippet(String text, List<String> prefixes) {
+        StringBuilder snippet = new StringBuilder();
+
+        for (String token : text.split("(?<=[^\\p{L}\\p{N}])|(?=[^\\p{L}\\p{N}])")) {
+            String escaped = escape(token);
+            if (matchesPrefix(token, prefixes)) {
+                snippet.append(SNIPPET_MATCH_START).append(escaped).append(SNIPPET_MATCH_END);
+            } else {
+                snippet.append(escaped);
+            }
+        }
+
+        return snippet.toString();
+    }
+
+    private static boolean matchesPrefix(String token, List<String> prefixes) {
+        String word = token.toLowerCase(Locale.ROOT);
+        for (String prefix : prefixes) {
+            if (!word.isEmpty() && word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&#39;");
+    }
+}
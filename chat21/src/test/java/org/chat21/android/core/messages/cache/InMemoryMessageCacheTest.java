@@ -0,0 +1,155 @@
+package org.chat21.android.core.messages.cache;
+
+import org.chat21.android.core.messages.models.Message;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pins the {@link MessageCache} contract on the in-memory fake, so the clients tested with it
+ * see the same behavior of the {@link SQLiteMessageCache}
+ */
+public class InMemoryMessageCacheTest {
+
+    private InMemoryMessageCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new InMemoryMessageCache();
+    }
+
+    @Test
+    public void lastMessagesAreTheNewestOldestFirst() {
+        cache.saveMessage("c1", message("m3", 30, Message.STATUS_SENT, "three"));
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SENT, "one"));
+        cache.saveMessage("c1", message("m2", 20, Message.STATUS_SENT, "two"));
+        cache.saveMessage("c2", message("m4", 40, Message.STATUS_SENT, "four"));
+
+        List<Message> messages = cache.getLastMessages("c1", 2);
+
+        assertEquals(2, messages.size());
+        assertEquals("m2", messages.get(0).getId());
+        assertEquals("m3", messages.get(1).getId());
+    }
+
+    @Test
+    public void saveMessageUpdatesTheExistingMessage() {
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SENDING, "one"));
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SEEN, "one"));
+
+        List<Message> messages = cache.getLastMessages("c1", 10);
+
+        assertEquals(1, messages.size());
+        assertEquals(Message.STATUS_SEEN, (long) messages.get(0).getStatus());
+    }
+
+    @Test
+    public void saveMessageStoresACopy() {
+        Message message = message("m1", 10, Message.STATUS_SENT, "one");
+        cache.saveMessage("c1", message);
+
+        message.setText("changed");
+
+        assertEquals("one", cache.getLastMessages("c1", 1).get(0).getText());
+    }
+
+    @Test
+    public void lastTimestampIgnoresTheMessagesNotSent() {
+        assertEquals(MessageCache.NO_TIMESTAMP, cache.getLastTimestamp("c1"));
+
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SENT, "one"));
+        cache.saveMessage("c1", message("m2", 20, Message.STATUS_SENDING, "two"));
+
+        assertEquals(10, cache.getLastTimestamp("c1"));
+    }
+
+    @Test
+    public void loadLastMessagesWithZeroLimitReadsOnlyTheTimestamp() {
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SENT, "one"));
+
+        final long[] lastTimestamp = new long[1];
+        final int[] count = new int[1];
+        cache.loadLastMessages("c1", 0, new MessageCache.OnCachedMessagesLoadedCallback() {
+            @Override
+            public void onCachedMessagesLoaded(List<Message> messages, long timestamp) {
+                count[0] = messages.size();
+                lastTimestamp[0] = timestamp;
+            }
+        });
+
+        assertEquals(0, count[0]);
+        assertEquals(10, lastTimestamp[0]);
+    }
+
+    @Test
+    public void deleteMessagesBefore() {
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SENT, "one"));
+        cache.saveMessage("c1", message("m2", 20, Message.STATUS_SENT, "two"));
+        cache.saveMessage("c1", message("m3", 30, Message.STATUS_SENT, "three"));
+
+        cache.deleteMessagesBefore("c1", 20);
+
+        List<Message> messages = cache.getLastMessages("c1", 10);
+        assertEquals(2, messages.size());
+        assertEquals("m2", messages.get(0).getId());
+    }
+
+    @Test
+    public void searchMatchesWordPrefixesMostRecentFirst() {
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SENT, "see you tomorrow"));
+        cache.saveMessage("c2", message("m2", 20, Message.STATUS_SENT, "Tomorrow at noon"));
+        cache.saveMessage("c2", message("m3", 30, Message.STATUS_SENT, "today"));
+
+        List<MessageSearchResult> results = cache.searchMessages("tomo", 0, 10);
+
+        assertEquals(2, results.size());
+        assertEquals("m2", results.get(0).getMessageId());
+        assertEquals("c2", results.get(0).getConversationId());
+        assertEquals("m1", results.get(1).getMessageId());
+
+        assertEquals(1, cache.searchMessages("tomo", 1, 10).size());
+        assertEquals(1, cache.searchMessages("tomo noon", 0, 10).size());
+        assertEquals(0, cache.searchMessages("  ", 0, 10).size());
+    }
+
+    @Test
+    public void searchSnippetIsEscaped() {
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SENT, "<i>hello</i> world"));
+
+        String snippet = cache.searchMessages("hello", 0, 10).get(0).getSnippet();
+
+        assertEquals("&lt;i&gt;" + MessageCache.SNIPPET_MATCH_START + "hello" + MessageCache.SNIPPET_MATCH_END +
+                "&lt;/i&gt; world", snippet);
+    }
+
+    @Test
+    public void clearDeletesAllTheConversations() {
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SENT, "one"));
+        cache.saveMessage("c2", message("m2", 20, Message.STATUS_SENT, "two"));
+
+        cache.clear();
+
+        assertTrue(cache.getLastMessages("c1", 10).isEmpty());
+        assertTrue(cache.getLastMessages("c2", 10).isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedCacheCannotBeUsed() {
+        cache.close();
+        cache.saveMessage("c1", message("m1", 10, Message.STATUS_SENT, "one"));
+    }
+
+    private static Message message(String id, long timestamp, long status, String text) {
+        Message message = new Message();
+        message.setId(id);
+        message.setTimestamp(timestamp);
+        message.setStatus(status);
+        message.setText(text);
+        message.setType(Message.TYPE_TEXT);
+        return message;
+    }
+}
@@ -0,0 +1,90 @@
+package org.chat21.android.core.messages.handlers;
+
+import org.chat21.android.core.exception.ChatFieldNotFoundException;
+import org.chat21.android.core.messages.models.Message;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ConversationMessagesHandlerTest {
+
+    @Test
+    public void decodesAllTheFields() throws ChatFieldNotFoundException {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(Message.METADATA_WIDTH, 640L);
+
+        Map<String, Object> values = messageValues();
+        values.put("metadata", metadata);
+
+        Message message = ConversationMessagesHandler.decodeMessage("m1", values);
+
+        assertEquals("m1", message.getId());
+        assertEquals("u1", message.getSender());
+        assertEquals("John Doe", message.getSenderFullname());
+        assertEquals("u2", message.getRecipient());
+        assertEquals("Jane Doe", message.getRecipientFullname());
+        assertEquals(Long.valueOf(Message.STATUS_SENT), message.getStatus());
+        assertEquals("hello", message.getText());
+        assertEquals(Long.valueOf(1000), message.getTimestamp());
+        assertSame(Message.TYPE_TEXT, message.getType());
+        assertSame(Message.DIRECT_CHANNEL_TYPE, message.getChannelType());
+        assertSame(metadata, message.getMetadata());
+    }
+
+    @Test
+    public void wrongTypesAreDecodedAsMissingFields() throws ChatFieldNotFoundException {
+        Map<String, Object> values = messageValues();
+        values.put("status", "sent");
+        values.put("timestamp", "yesterday");
+        values.put("text", 42L);
+        values.put("metadata", "not a map");
+
+        Message message = ConversationMessagesHandler.decodeMessage("m1", values);
+
+        assertNull(message.getStatus());
+        assertNull(message.getTimestamp());
+        assertNull(message.getText());
+        assertNull(message.getMetadata());
+    }
+
+    @Test(expected = ChatFieldNotFoundException.class)
+    public void missingSenderIsRejected() throws ChatFieldNotFoundException {
+        Map<String, Object> values = messageValues();
+        values.remove("sender");
+
+        ConversationMessagesHandler.decodeMessage("m1", values);
+    }
+
+    @Test(expected = ChatFieldNotFoundException.class)
+    public void wronglyTypedRecipientIsRejected() throws ChatFieldNotFoundException {
+        Map<String, Object> values = messageValues();
+        values.put("recipient", 2L);
+
+        ConversationMessagesHandler.decodeMessage("m1", values);
+    }
+
+    @Test(expected = ChatFieldNotFoundException.class)
+    public void missingValuesAreRejected() throws ChatFieldNotFoundException {
+        ConversationMessagesHandler.decodeMessage("m1", null);
+    }
+
+    private static Map<String, Object> messageValues() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("sender", "u1");
+        values.put("sender_fullname", "John Doe");
+        values.put("recipient", "u2");
+        values.put("recipient_fullname", "Jane Doe");
+        values.put("status", Message.STATUS_SENT);
+        values.put("text", "hello");
+        values.put("timestamp", 1000L);
+        // new strings, as decoded from the json
+        values.put("type", new String("text"));
+        values.put("channel_type", new String("direct"));
+        return values;
+    }
+}
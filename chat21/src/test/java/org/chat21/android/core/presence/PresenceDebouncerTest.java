@@ -0,0 +1,177 @@
+package org.chat21.android.core.presence;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PresenceDebouncerTest {
+
+    private static final long ONLINE_WINDOW_MILLIS = 1000;
+    private static final long OFFLINE_WINDOW_MILLIS = 5000;
+
+    /**
+     * A clock moved forward by the test
+     */
+    private static class FakeClock implements PresenceDebouncer.Clock {
+
+        private static class Task {
+            final Runnable runnable;
+            final long runAt;
+
+            Task(Runnable runnable, long runAt) {
+                this.runnable = runnable;
+                this.runAt = runAt;
+            }
+        }
+
+        private final List<Task> tasks = new ArrayList<>();
+        private long now = 0;
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            tasks.add(new Task(runnable, now + delayMillis));
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            Iterator<Task> iterator = tasks.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().runnable == runnable) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        void advance(long millis) {
+            long until = now + millis;
+
+            Task next;
+            while ((next = nextTask(until)) != null) {
+                tasks.remove(next);
+                now = next.runAt;
+                next.runnable.run();
+            }
+
+            now = until;
+        }
+
+        int pendingCount() {
+            return tasks.size();
+        }
+
+        private Task nextTask(long until) {
+            Task next = null;
+            for (Task task : tasks) {
+                if (task.runAt <= until && (next == null || task.runAt < next.runAt)) {
+                    next = task;
+                }
+            }
+            return next;
+        }
+    }
+
+    private final List<String> settled = new ArrayList<>();
+
+    private FakeClock clock;
+    private PresenceDebouncer debouncer;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        debouncer = new PresenceDebouncer(clock, ONLINE_WINDOW_MILLIS, OFFLINE_WINDOW_MILLIS,
+                new PresenceDebouncer.Callback() {
+                    @Override
+                    public void onSettled(boolean isConnected, boolean isChanged) {
+                        settled.add((isConnected ? "online" : "offline") + (isChanged ? "" : " unchanged"));
+                    }
+                });
+    }
+
+    @Test
+    public void settlesAfterTheOnlineWindow() {
+        debouncer.onRawStateChanged(true);
+
+        clock.advance(ONLINE_WINDOW_MILLIS - 1);
+        assertTrue(settled.isEmpty());
+        assertFalse(debouncer.isConnected());
+
+        clock.advance(1);
+        assertSettled("online");
+        assertTrue(debouncer.isConnected());
+    }
+
+    @Test
+    public void shortDropsAreHidden() {
+        connect();
+
+        debouncer.onRawStateChanged(false);
+        clock.advance(OFFLINE_WINDOW_MILLIS - 1);
+        debouncer.onRawStateChanged(true);
+
+        // still online while the drop was pending
+        assertTrue(debouncer.isConnected());
+
+        clock.advance(ONLINE_WINDOW_MILLIS);
+        assertSettled("online", "online unchanged");
+    }
+
+    @Test
+    public void settlesOfflineAfterTheOfflineWindow() {
+        connect();
+
+        debouncer.onRawStateChanged(false);
+        clock.advance(OFFLINE_WINDOW_MILLIS);
+
+        assertSettled("online", "offline");
+        assertFalse(debouncer.isConnected());
+    }
+
+    @Test
+    public void aBurstOfFlapsSettlesOnce() {
+        for (int i = 0; i < 10; i++) {
+            debouncer.onRawStateChanged(i % 2 == 0);
+            clock.advance(100);
+        }
+
+        // the last raw state is offline: its window restarted with the last flap
+        assertEquals(1, clock.pendingCount());
+        clock.advance(OFFLINE_WINDOW_MILLIS);
+
+        assertSettled("offline");
+    }
+
+    @Test
+    public void resetForgetsTheSettledState() {
+        connect();
+
+        debouncer.onRawStateChanged(false);
+        debouncer.reset();
+
+        assertEquals(0, clock.pendingCount());
+        assertFalse(debouncer.isConnected());
+
+        // the first state after the reset is always a change
+        debouncer.onRawStateChanged(true);
+        clock.advance(ONLINE_WINDOW_MILLIS);
+        assertSettled("online", "online");
+    }
+
+    private void connect() {
+        debouncer.onRawStateChanged(true);
+        clock.advance(ONLINE_WINDOW_MILLIS);
+    }
+
+    private void assertSettled(String... states) {
+        assertEquals(states.length, settled.size());
+        for (int i = 0; i < states.length; i++) {
+            assertEquals(states[i], settled.get(i));
+        }
+    }
+}
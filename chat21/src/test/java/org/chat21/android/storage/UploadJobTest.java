@@ -0,0 +1,95 @@
+package org.chat21.android.storage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class UploadJobTest {
+
+    @Test
+    public void copyKeepsThePersistedState() {
+        UploadJob job = newStartedJob();
+
+        UploadJob copy = new UploadJob(job);
+
+        assertSameState(job, copy);
+    }
+
+    @Test
+    public void copyIsNotChangedByTheJob() {
+        UploadJob job = newStartedJob();
+        UploadJob copy = new UploadJob(job);
+
+        job.setSessionUri("https://storage.example.com/session/2");
+        job.incrementAttempts();
+
+        assertEquals("https://storage.example.com/session/1", copy.getSessionUri());
+        assertEquals(1, copy.getAttempts());
+    }
+
+    @Test
+    public void serializationKeepsThePersistedState() throws IOException, ClassNotFoundException {
+        UploadJob job = newStartedJob();
+        job.setProgress(100, 1000);
+        job.setNextAttemptAt(5000);
+
+        UploadJob restored = serializeAndRestore(job);
+
+        assertSameState(job, restored);
+
+        // the progress is rebuilt while uploading
+        assertEquals(0, restored.getBytesTransferred());
+        assertEquals(0, restored.getTotalBytes());
+        assertEquals(0, restored.getNextAttemptAt());
+    }
+
+    private static UploadJob newStartedJob() {
+        UploadJob job = new UploadJob("/sdcard/photo.jpg", "image", "u2", "Jane Doe", "direct", "a photo");
+        job.setUploadPath("/cache/compressed.jpg");
+        job.setSize(640, 480);
+        job.setHash("hash");
+        job.setThumbnail("/cache/thumbnail.jpg", "LEHV6nWB2yk8pyo0adR*.7kCMdnj");
+        job.setSessionUri("https://storage.example.com/session/1");
+        job.incrementAttempts();
+        return job;
+    }
+
+    private static UploadJob serializeAndRestore(UploadJob job) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(job);
+        output.close();
+
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (UploadJob) input.readObject();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void assertSameState(UploadJob expected, UploadJob actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getUid(), actual.getUid());
+        assertEquals(expected.getSourcePath(), actual.getSourcePath());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getRecipientId(), actual.getRecipientId());
+        assertEquals(expected.getRecipientFullName(), actual.getRecipientFullName());
+        assertEquals(expected.getChannelType(), actual.getChannelType());
+        assertEquals(expected.getText(), actual.getText());
+        assertEquals(expected.getUploadPath(), actual.getUploadPath());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getThumbnailPath(), actual.getThumbnailPath());
+        assertEquals(expected.getBlurHash(), actual.getBlurHash());
+        assertEquals(expected.getSessionUri(), actual.getSessionUri());
+        assertEquals(expected.getAttempts(), actual.getAttempts());
+    }
+}
@@ -0,0 +1,83 @@
+package org.chat21.android.utils;
+
+import org.chat21.android.core.messages.models.Message;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SnapshotUtilsTest {
+
+    @Test
+    public void getString() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("text", "hello");
+        map.put("number", 1L);
+
+        assertEquals("hello", SnapshotUtils.getString(map, "text"));
+        assertNull(SnapshotUtils.getString(map, "number"));
+        assertNull(SnapshotUtils.getString(map, "missing"));
+    }
+
+    @Test
+    public void getInternedStringReturnsTheSharedConstants() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("type", new String("image"));
+        map.put("other", new String("other"));
+
+        assertSame(Message.TYPE_IMAGE, SnapshotUtils.getInternedString(map, "type"));
+        assertEquals("other", SnapshotUtils.getInternedString(map, "other"));
+        assertNull(SnapshotUtils.getInternedString(map, "missing"));
+    }
+
+    @Test
+    public void getLongAcceptsAnyNumber() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("long", 100L);
+        map.put("double", 100.7d);
+        map.put("integer", 100);
+        map.put("text", "100");
+
+        assertEquals(Long.valueOf(100), SnapshotUtils.getLong(map, "long"));
+        assertEquals(Long.valueOf(100), SnapshotUtils.getLong(map, "double"));
+        assertEquals(Long.valueOf(100), SnapshotUtils.getLong(map, "integer"));
+        assertNull(SnapshotUtils.getLong(map, "text"));
+        assertNull(SnapshotUtils.getLong(map, "missing"));
+    }
+
+    @Test
+    public void getBoolean() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("flag", true);
+        map.put("text", "true");
+
+        assertEquals(Boolean.TRUE, SnapshotUtils.getBoolean(map, "flag"));
+        assertNull(SnapshotUtils.getBoolean(map, "text"));
+    }
+
+    @Test
+    public void getMapIgnoresTheOtherTypes() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("width", 100L);
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("metadata", metadata);
+        map.put("text", "metadata");
+
+        assertSame(metadata, SnapshotUtils.getMap(map, "metadata"));
+        assertNull(SnapshotUtils.getMap(map, "text"));
+    }
+
+    @Test
+    public void asMap() {
+        Map<String, Object> map = new HashMap<>();
+
+        assertSame(map, SnapshotUtils.asMap(map));
+        assertNull(SnapshotUtils.asMap("value"));
+        assertNull(SnapshotUtils.asMap(null));
+    }
+}
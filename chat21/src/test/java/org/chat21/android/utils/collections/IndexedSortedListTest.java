@@ -0,0 +1,188 @@
+package org.chat21.android.utils.collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IndexedSortedListTest {
+
+    private static class Item {
+        final String key;
+        long timestamp;
+
+        Item(String key, long timestamp) {
+            this.key = key;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final IndexedSortedList.KeyProvider<Item> KEY_PROVIDER =
+            new IndexedSortedList.KeyProvider<Item>() {
+                @Override
+                public String getKey(Item item) {
+                    return item.key;
+                }
+            };
+
+    private static final Comparator<Item> TIMESTAMP_COMPARATOR = new Comparator<Item>() {
+        @Override
+        public int compare(Item first, Item second) {
+            return first.timestamp < second.timestamp ? -1 : (first.timestamp == second.timestamp ? 0 : 1);
+        }
+    };
+
+    private IndexedSortedList<Item> list;
+
+    @Before
+    public void setUp() {
+        list = new IndexedSortedList<>(KEY_PROVIDER, TIMESTAMP_COMPARATOR);
+    }
+
+    @Test
+    public void upsertKeepsItemsSorted() {
+        list.upsert(new Item("c", 30));
+        list.upsert(new Item("a", 10));
+        list.upsert(new Item("d", 40));
+        list.upsert(new Item("b", 20));
+
+        assertKeys("a", "b", "c", "d");
+    }
+
+    @Test
+    public void upsertReturnsThePosition() {
+        assertEquals(0, list.upsert(new Item("a", 10)));
+        assertEquals(1, list.upsert(new Item("c", 30)));
+        assertEquals(1, list.upsert(new Item("b", 20)));
+        assertEquals(0, list.upsert(new Item("z", 5)));
+    }
+
+    @Test
+    public void upsertReplacesTheItemWithTheSameKey() {
+        list.upsert(new Item("a", 10));
+        list.upsert(new Item("b", 20));
+
+        Item updated = new Item("a", 10);
+        assertEquals(0, list.upsert(updated));
+
+        assertEquals(2, list.size());
+        assertSame(updated, list.get(0));
+        assertSame(updated, list.getByKey("a"));
+    }
+
+    @Test
+    public void upsertMovesAnUpdatedItem() {
+        list.upsert(new Item("a", 10));
+        list.upsert(new Item("b", 20));
+        list.upsert(new Item("c", 30));
+
+        assertEquals(2, list.upsert(new Item("a", 40)));
+
+        assertKeys("b", "c", "a");
+        assertEquals(2, list.indexOfKey("a"));
+    }
+
+    @Test
+    public void equalItemsAreSortedByKey() {
+        list.upsert(new Item("c", 10));
+        list.upsert(new Item("a", 10));
+        list.upsert(new Item("b", 10));
+
+        assertKeys("a", "b", "c");
+    }
+
+    @Test
+    public void addAndSetBehaveAsUpsert() {
+        list.add(new Item("b", 20));
+        list.add(0, new Item("c", 30)); // the position is ignored
+        list.add(new Item("b", 5)); // same key: replaced
+
+        assertKeys("b", "c");
+
+        Item replaced = list.set(1, new Item("a", 1));
+        assertEquals("c", replaced.key);
+        assertKeys("a", "b");
+        assertFalse(list.containsKey("c"));
+    }
+
+    @Test
+    public void removeByKey() {
+        list.upsert(new Item("a", 10));
+        list.upsert(new Item("b", 20));
+
+        assertEquals("a", list.removeByKey("a").key);
+        assertNull(list.removeByKey("a"));
+
+        assertKeys("b");
+        assertEquals(-1, list.indexOfKey("a"));
+    }
+
+    @Test
+    public void indexOfUsesTheKey() {
+        list.upsert(new Item("a", 10));
+        list.upsert(new Item("b", 20));
+
+        assertEquals(1, list.indexOf(new Item("b", 99)));
+        assertTrue(list.contains(new Item("a", 0)));
+        assertFalse(list.contains(new Item("z", 10)));
+        assertFalse(list.contains("a"));
+        assertTrue(list.remove(new Item("a", 0)));
+        assertKeys("b");
+    }
+
+    @Test
+    public void itemMutatedInPlaceIsStillFound() {
+        Item a = new Item("a", 10);
+        list.upsert(a);
+        list.upsert(new Item("b", 20));
+        list.upsert(new Item("c", 30));
+
+        // the sort key changes without an upsert
+        a.timestamp = 25;
+
+        assertEquals(0, list.indexOfKey("a"));
+        assertEquals(1, list.upsert(a));
+        assertKeys("b", "a", "c");
+    }
+
+    @Test
+    public void snapshotIsAnImmutableCopy() {
+        list.upsert(new Item("a", 10));
+
+        List<Item> snapshot = list.snapshot();
+        list.upsert(new Item("b", 20));
+
+        assertEquals(1, snapshot.size());
+
+        try {
+            snapshot.add(new Item("c", 30));
+            fail("the snapshot must be immutable");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void clear() {
+        list.upsert(new Item("a", 10));
+        list.clear();
+
+        assertEquals(0, list.size());
+        assertFalse(list.containsKey("a"));
+    }
+
+    private void assertKeys(String... keys) {
+        assertEquals(keys.length, list.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], list.get(i).key);
+        }
+    }
+}
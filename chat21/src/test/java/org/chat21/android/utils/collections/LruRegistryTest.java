@@ -0,0 +1,133 @@
+package org.chat21.android.utils.collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LruRegistryTest {
+
+    private final Set<String> inUse = new HashSet<>();
+    private final List<String> evicted = new ArrayList<>();
+
+    private final LruRegistry.EvictionPolicy<String> evictionPolicy = new LruRegistry.EvictionPolicy<String>() {
+        @Override
+        public boolean isInUse(String value) {
+            return inUse.contains(value);
+        }
+
+        @Override
+        public void onEvicted(String key, String value) {
+            evicted.add(key);
+        }
+    };
+
+    private LruRegistry<String> registry;
+
+    @Before
+    public void setUp() {
+        registry = new LruRegistry<>(2, evictionPolicy);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() {
+        registry.put("a", "a");
+        registry.put("b", "b");
+        registry.get("a"); // b is now the least recently used
+        registry.put("c", "c");
+
+        assertEquals(2, registry.size());
+        assertFalse(registry.containsKey("b"));
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0));
+    }
+
+    @Test
+    public void neverEvictsTheHandlersInUse() {
+        inUse.add("a");
+        inUse.add("b");
+
+        registry.put("a", "a");
+        registry.put("b", "b");
+        registry.put("c", "c");
+
+        // over the max size until the handlers are released
+        assertEquals(3, registry.size());
+        assertTrue(evicted.isEmpty());
+
+        inUse.remove("a");
+        registry.put("d", "d");
+
+        // the released handler and the older one not in use
+        assertEquals(2, registry.size());
+        assertTrue(registry.containsKey("b"));
+        assertTrue(registry.containsKey("d"));
+        assertEquals("a", evicted.get(0));
+        assertEquals("c", evicted.get(1));
+    }
+
+    @Test
+    public void neverEvictsTheHandlerJustAdded() {
+        inUse.add("a");
+        inUse.add("b");
+
+        registry.put("a", "a");
+        registry.put("b", "b");
+        registry.put("c", "c");
+
+        assertTrue(registry.containsKey("c"));
+    }
+
+    @Test
+    public void removeDoesNotEvict() {
+        registry.put("a", "a");
+
+        assertEquals("a", registry.remove("a"));
+        assertEquals(0, registry.size());
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void shrinkingTheMaxSizeEvicts() {
+        registry.put("a", "a");
+        registry.put("b", "b");
+
+        registry.setMaxSize(1);
+
+        assertEquals(1, registry.size());
+        assertTrue(registry.containsKey("b"));
+        assertEquals("a", evicted.get(0));
+    }
+
+    @Test
+    public void unbounded() {
+        registry.setMaxSize(0);
+
+        for (int i = 0; i < 10; i++) {
+            registry.put("key" + i, "value" + i);
+        }
+
+        assertEquals(10, registry.size());
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void entriesAreTheLeastRecentlyUsedFirst() {
+        registry.put("a", "a");
+        registry.put("b", "b");
+        registry.get("a");
+
+        List<Map.Entry<String, String>> entries = registry.entries();
+
+        assertEquals("b", entries.get(0).getKey());
+        assertEquals("a", entries.get(1).getKey());
+    }
+}
@@ -0,0 +1,132 @@
+package org.chat21.android.utils.image;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlurHashTest {
+
+    private static final int SIZE = 32;
+
+    // the tolerance of each channel, lost by the quantization
+    private static final int CHANNEL_TOLERANCE = 1;
+    private static final int AVERAGE_CHANNEL_TOLERANCE = 4;
+
+    @Test
+    public void hashLengthDependsOnTheComponents() {
+        int[] pixels = solid(0xff336699);
+
+        assertEquals(6, BlurHash.encode(pixels, SIZE, SIZE, 1, 1).length());
+        assertEquals(28, BlurHash.encode(pixels, SIZE, SIZE, 4, 3).length());
+        assertEquals(4 + 2 * 81, BlurHash.encode(pixels, SIZE, SIZE, 9, 9).length());
+    }
+
+    @Test
+    public void averageColorRoundTrip() {
+        int color = 0xff336699;
+
+        // only the average color is encoded
+        int[] decoded = BlurHash.decodePixels(BlurHash.encode(solid(color), SIZE, SIZE, 1, 1), SIZE, SIZE);
+
+        assertNotNull(decoded);
+        assertEquals(SIZE * SIZE, decoded.length);
+        for (int pixel : decoded) {
+            assertColor(color, pixel, CHANNEL_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void solidColorRoundTripKeepsTheAverageColor() {
+        int color = 0xff336699;
+
+        // the quantized components blur the edges, the average color is kept
+        int[] decoded = BlurHash.decodePixels(BlurHash.encode(solid(color), SIZE, SIZE, 4, 3), SIZE, SIZE);
+
+        assertNotNull(decoded);
+        assertColor(color, average(decoded), AVERAGE_CHANNEL_TOLERANCE);
+    }
+
+    @Test
+    public void gradientRoundTripKeepsTheShape() {
+        // black on the left, white on the right
+        int[] pixels = new int[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int gray = x * 255 / (SIZE - 1);
+                pixels[y * SIZE + x] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+            }
+        }
+
+        int[] decoded = BlurHash.decodePixels(BlurHash.encode(pixels, SIZE, SIZE, 4, 3), SIZE, SIZE);
+
+        assertNotNull(decoded);
+        int left = decoded[SIZE / 2 * SIZE] & 0xff;
+        int middle = decoded[SIZE / 2 * SIZE + SIZE / 2] & 0xff;
+        int right = decoded[SIZE / 2 * SIZE + SIZE - 1] & 0xff;
+        assertTrue(left < middle);
+        assertTrue(middle < right);
+    }
+
+    @Test
+    public void decodesAReferenceHash() {
+        int[] decoded = BlurHash.decodePixels("LEHV6nWB2yk8pyo0adR*.7kCMdnj", SIZE, SIZE);
+
+        assertNotNull(decoded);
+        for (int pixel : decoded) {
+            assertEquals(0xff, pixel >>> 24);
+        }
+    }
+
+    @Test
+    public void invalidHashesAreNotDecoded() {
+        assertNull(BlurHash.decodePixels(null, SIZE, SIZE));
+        assertNull(BlurHash.decodePixels("LEHV6", SIZE, SIZE));
+        // the size flag does not match the length
+        assertNull(BlurHash.decodePixels("LEHV6nWB2yk8pyo0adR*.7kCMd", SIZE, SIZE));
+        // not a base 83 char
+        assertNull(BlurHash.decodePixels("LEHV6nWB2yk8pyo0adR*.7kCM\"nj", SIZE, SIZE));
+        assertNull(BlurHash.decodePixels("LEHV6nWB2yk8pyo0adR*.7kCMdnj", 0, SIZE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void componentsOutOfRangeAreRejected() {
+        BlurHash.encode(solid(0xff000000), SIZE, SIZE, 10, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pixelsNotMatchingTheSizeAreRejected() {
+        BlurHash.encode(new int[SIZE], SIZE, SIZE, 4, 3);
+    }
+
+    private static int[] solid(int color) {
+        int[] pixels = new int[SIZE * SIZE];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = color;
+        }
+        return pixels;
+    }
+
+    private static int average(int[] pixels) {
+        int color = 0xff000000;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            long sum = 0;
+            for (int pixel : pixels) {
+                sum += (pixel >> shift) & 0xff;
+            }
+            color |= Math.round((float) sum / pixels.length) << shift;
+        }
+        return color;
+    }
+
+    private static void assertColor(int expected, int actual, int tolerance) {
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int expectedChannel = (expected >> shift) & 0xff;
+            int actualChannel = (actual >> shift) & 0xff;
+            assertTrue("expected " + Integer.toHexString(expected) + " but was " + Integer.toHexString(actual),
+                    Math.abs(expectedChannel - actualChannel) <= tolerance);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.chat21.android.utils.views;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageTilesTest {
+
+    private static final int TILE = ImageTiles.TILE_SIZE;
+
+    // an RGB_565 tile
+    private static final long TILE_BYTES = TILE * TILE * 2;
+
+    @Test
+    public void sampleSizeKeepsOneDecodedPixelPerViewPixel() {
+        assertEquals(1, ImageTiles.getSampleSize(2f));
+        assertEquals(1, ImageTiles.getSampleSize(1f));
+        assertEquals(1, ImageTiles.getSampleSize(0.6f));
+        assertEquals(2, ImageTiles.getSampleSize(0.5f));
+        assertEquals(2, ImageTiles.getSampleSize(0.3f));
+        assertEquals(8, ImageTiles.getSampleSize(0.1f));
+    }
+
+    @Test
+    public void countTiles() {
+        assertEquals(1, ImageTiles.countTiles(0, 0, TILE, TILE, 1));
+        assertEquals(4, ImageTiles.countTiles(0, 0, TILE + 1, TILE + 1, 1));
+        // an area across the tiles borders
+        assertEquals(4, ImageTiles.countTiles(TILE - 10, TILE - 10, TILE + 10, TILE + 10, 1));
+        // the tiles cover twice the side at each sample size
+        assertEquals(1, ImageTiles.countTiles(0, 0, 2 * TILE, 2 * TILE, 2));
+        assertEquals(6, ImageTiles.countTiles(0, 0, 3 * TILE, 2 * TILE, 1));
+    }
+
+    @Test
+    public void sampleSizeIsKeptWhenTheTilesFit() {
+        assertEquals(1, ImageTiles.fitSampleSize(1, 8, 0, 0, 2 * TILE, 2 * TILE, 4 * TILE_BYTES));
+    }
+
+    @Test
+    public void sampleSizeIsRaisedUntilTheTilesFit() {
+        // 16 tiles at sample size 1, 4 at 2
+        assertEquals(2, ImageTiles.fitSampleSize(1, 8, 0, 0, 4 * TILE, 4 * TILE, 4 * TILE_BYTES));
+        // 1 tile at sample size 4
+        assertEquals(4, ImageTiles.fitSampleSize(1, 8, 0, 0, 4 * TILE, 4 * TILE, TILE_BYTES));
+    }
+
+    @Test
+    public void sampleSizeStopsAtTheBase() {
+        assertEquals(4, ImageTiles.fitSampleSize(1, 4, 0, 0, 16 * TILE, 16 * TILE, TILE_BYTES));
+    }
+
+    @Test
+    public void tilesCacheTakesWhatTheBaseLeaves() {
+        assertEquals(24, ImageTiles.getTilesCacheBytes(32, 8));
+        // the base takes at most half the budget
+        assertEquals(16, ImageTiles.getTilesCacheBytes(32, 24));
+    }
+}